@@ -1,16 +1,38 @@
 package com.hmdp.config;
 
+import com.hmdp.utils.AdminInterceptor;
 import com.hmdp.utils.LoginInterceptor;
+import com.hmdp.utils.RateLimitInterceptor;
+import com.hmdp.utils.RateLimiter;
 import com.hmdp.utils.RefreshTokenInterceptor;
+import com.hmdp.utils.SeckillSoldOutInterceptor;
+import com.hmdp.utils.SeckillSoldOutRegistry;
 import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
 import org.springframework.context.annotation.Configuration;
 import org.springframework.data.redis.core.StringRedisTemplate;
 import org.springframework.web.servlet.config.annotation.InterceptorRegistry;
 import org.springframework.web.servlet.config.annotation.WebMvcConfigurer;
+
+import java.util.List;
 @Configuration
 public class MvcConfig implements WebMvcConfigurer {
     @Autowired
     private StringRedisTemplate stringRedisTemplate;
+    @Autowired
+    private RateLimiter rateLimiter;
+    @Autowired
+    private SeckillSoldOutRegistry seckillSoldOutRegistry;
+    /**
+     * 可信代理的ip 只有来自这些地址的请求才读取X-Forwarded-For
+     */
+    @Value("${hmdp.rate-limit.trusted-proxies:}")
+    private List<String> trustedProxies;
+    /**
+     * 可以访问运维接口的用户id
+     */
+    @Value("${hmdp.admin.user-ids:}")
+    private List<Long> adminUserIds;
 
     @Override
     public void addInterceptors(InterceptorRegistry registry) {
@@ -25,8 +47,32 @@ public class MvcConfig implements WebMvcConfigurer {
                         "/user/code",
                         "/user/login"
                 ).order(1);//后进行
+        //运维接口只允许管理员访问 在登录拦截器之后
+        registry.addInterceptor(new AdminInterceptor(adminUserIds))
+                .addPathPatterns(
+                        "/voucher-order/dlq/**",
+                        "/voucher-order/voucher/*",
+                        "/voucher-order/voucher/*/export",
+                        "/voucher-order/reconcile",
+                        "/voucher-order/streams",
+                        "/voucher-order/delay-queue",
+                        "/voucher-order/metrics",
+                        "/voucher-order/admission",
+                        "/rate-limit/metrics",
+                        "/sales-stat/status",
+                        "/voucher/seckill/stock-push",
+                        "/cache/**"
+                )
+                .order(1);
+        //售罄的秒杀请求在限流之前拒绝 不访问redis
+        registry.addInterceptor(new SeckillSoldOutInterceptor(seckillSoldOutRegistry))
+                .addPathPatterns("/voucher-order/seckill/**")
+                .order(1);
         //token刷新拦截器
         registry.addInterceptor(new RefreshTokenInterceptor(stringRedisTemplate)).addPathPatterns("/**")
                 .order(0);//先进行;
+        //限流拦截器 需要当前用户 在登录拦截器之后
+        registry.addInterceptor(new RateLimitInterceptor(rateLimiter, trustedProxies)).addPathPatterns("/**")
+                .order(2);
     }
 }
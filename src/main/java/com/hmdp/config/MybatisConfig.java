@@ -2,15 +2,27 @@ package com.hmdp.config;
 
 import com.baomidou.mybatisplus.annotation.DbType;
 import com.baomidou.mybatisplus.extension.plugins.MybatisPlusInterceptor;
+import com.baomidou.mybatisplus.extension.plugins.handler.TableNameHandler;
+import com.baomidou.mybatisplus.extension.plugins.inner.DynamicTableNameInnerInterceptor;
 import com.baomidou.mybatisplus.extension.plugins.inner.PaginationInnerInterceptor;
+import com.hmdp.utils.OrderShardInnerInterceptor;
+import com.hmdp.utils.OrderShardRouter;
 import org.springframework.context.annotation.Bean;
 import org.springframework.context.annotation.Configuration;
 
+import java.util.Collections;
+import java.util.Map;
+
 @Configuration
 public class MybatisConfig {
     @Bean
     public MybatisPlusInterceptor mybatisPlusInterceptor() {
         MybatisPlusInterceptor interceptor = new MybatisPlusInterceptor();
+        //订单分表 先解析分表再替换表名
+        interceptor.addInnerInterceptor(new OrderShardInnerInterceptor());
+        Map<String, TableNameHandler> handlers = Collections.singletonMap(OrderShardRouter.LOGIC_TABLE,
+                (sql, tableName) -> OrderShardRouter.currentTable());
+        interceptor.addInnerInterceptor(new DynamicTableNameInnerInterceptor(handlers));
         interceptor.addInnerInterceptor(new PaginationInnerInterceptor(DbType.MYSQL));
         return interceptor;
     }
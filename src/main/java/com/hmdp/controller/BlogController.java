@@ -8,6 +8,7 @@ import com.hmdp.entity.Blog;
 import com.hmdp.entity.User;
 import com.hmdp.service.IBlogService;
 import com.hmdp.service.IUserService;
+import com.hmdp.utils.RateLimit;
 import com.hmdp.utils.SystemConstants;
 import com.hmdp.utils.UserHolder;
 import org.springframework.web.bind.annotation.*;
@@ -43,6 +44,7 @@ public class BlogController {
         return Result.ok(blog.getId());
     }
 
+    @RateLimit(algorithm = RateLimit.Algorithm.TOKEN_BUCKET, permits = 10)
     @PutMapping("/like/{id}")
     public Result likeBlog(@PathVariable("id") Long id) {
         // 修改点赞数量
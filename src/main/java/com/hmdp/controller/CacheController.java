@@ -0,0 +1,37 @@
+package com.hmdp.controller;
+
+import com.hmdp.dto.Result;
+import com.hmdp.utils.CacheClient;
+import com.hmdp.utils.IdBloomFilters;
+import org.springframework.web.bind.annotation.GetMapping;
+import org.springframework.web.bind.annotation.RequestMapping;
+import org.springframework.web.bind.annotation.RestController;
+
+import javax.annotation.Resource;
+
+@RestController
+@RequestMapping("/cache")
+public class CacheController {
+
+    @Resource
+    private CacheClient cacheClient;
+
+    @Resource
+    private IdBloomFilters idBloomFilters;
+
+    /**
+     * 本地缓存和redis各自的命中率
+     */
+    @GetMapping("stats")
+    public Result stats() {
+        return Result.ok(cacheClient.stats());
+    }
+
+    /**
+     * 布隆过滤器的大小 填充比例和拦截次数
+     */
+    @GetMapping("bloom")
+    public Result bloom() {
+        return Result.ok(idBloomFilters.snapshot());
+    }
+}
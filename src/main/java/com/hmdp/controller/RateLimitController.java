@@ -0,0 +1,25 @@
+package com.hmdp.controller;
+
+import com.hmdp.dto.Result;
+import com.hmdp.utils.RateLimiter;
+import org.springframework.web.bind.annotation.GetMapping;
+import org.springframework.web.bind.annotation.RequestMapping;
+import org.springframework.web.bind.annotation.RestController;
+
+import javax.annotation.Resource;
+
+@RestController
+@RequestMapping("/rate-limit")
+public class RateLimitController {
+
+    @Resource
+    private RateLimiter rateLimiter;
+
+    /**
+     * 各限流的放行和拒绝次数
+     */
+    @GetMapping("metrics")
+    public Result metrics() {
+        return Result.ok(rateLimiter.snapshot());
+    }
+}
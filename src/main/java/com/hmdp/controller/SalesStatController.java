@@ -0,0 +1,77 @@
+package com.hmdp.controller;
+
+import com.hmdp.dto.Result;
+import com.hmdp.utils.OrderSalesStats;
+import org.springframework.format.annotation.DateTimeFormat;
+import org.springframework.web.bind.annotation.GetMapping;
+import org.springframework.web.bind.annotation.PathVariable;
+import org.springframework.web.bind.annotation.RequestMapping;
+import org.springframework.web.bind.annotation.RequestParam;
+import org.springframework.web.bind.annotation.RestController;
+
+import javax.annotation.Resource;
+import java.time.LocalDateTime;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * 销量看板 只读取统计结果 不查询订单表
+ */
+@RestController
+@RequestMapping("/sales-stat")
+public class SalesStatController {
+
+    private static final int HISTORY_LIMIT = 1000;
+
+    @Resource
+    private OrderSalesStats orderSalesStats;
+
+    /**
+     * 累计销量和最近last个桶的销量
+     * @param dimension voucher或shop
+     * @param granularity minute或hour
+     */
+    @GetMapping("{dimension}/{id}")
+    public Result recent(@PathVariable("dimension") String dimension,
+                         @PathVariable("id") Long id,
+                         @RequestParam(value = "granularity", defaultValue = "minute") String granularity,
+                         @RequestParam(value = "last", defaultValue = "60") Integer last) {
+        OrderSalesStats.Dimension d = OrderSalesStats.Dimension.of(dimension);
+        OrderSalesStats.Granularity g = OrderSalesStats.Granularity.of(granularity);
+        if (d == null || g == null) {
+            return Result.fail("统计维度或时间粒度错误");
+        }
+        if (last < 1 || last > g.getMaxBuckets()) {
+            return Result.fail("最多查询最近" + g.getMaxBuckets() + "个时间桶 更早的销量请查询history");
+        }
+        Map<String, Object> map = new LinkedHashMap<>();
+        map.put("total", orderSalesStats.total(d, id));
+        map.put("series", orderSalesStats.recent(d, id, g, last));
+        return Result.ok(map);
+    }
+
+    /**
+     * 已经汇总到数据库的历史销量
+     */
+    @GetMapping("{dimension}/{id}/history")
+    public Result history(@PathVariable("dimension") String dimension,
+                          @PathVariable("id") Long id,
+                          @RequestParam(value = "granularity", defaultValue = "hour") String granularity,
+                          @RequestParam("begin") @DateTimeFormat(pattern = "yyyy-MM-dd HH:mm:ss") LocalDateTime begin,
+                          @RequestParam("end") @DateTimeFormat(pattern = "yyyy-MM-dd HH:mm:ss") LocalDateTime end) {
+        OrderSalesStats.Dimension d = OrderSalesStats.Dimension.of(dimension);
+        OrderSalesStats.Granularity g = OrderSalesStats.Granularity.of(granularity);
+        if (d == null || g == null) {
+            return Result.fail("统计维度或时间粒度错误");
+        }
+        return Result.ok(orderSalesStats.history(d, id, g, begin, end, HISTORY_LIMIT));
+    }
+
+    /**
+     * 消费和汇总进度
+     */
+    @GetMapping("status")
+    public Result status() {
+        return Result.ok(orderSalesStats.snapshot());
+    }
+}
@@ -7,6 +7,8 @@ import com.hmdp.dto.UserDTO;
 import com.hmdp.entity.UserInfo;
 import com.hmdp.service.IUserInfoService;
 import com.hmdp.service.IUserService;
+import com.hmdp.utils.IdBloomFilters;
+import com.hmdp.utils.RateLimit;
 import com.hmdp.utils.UserHolder;
 import lombok.extern.slf4j.Slf4j;
 import org.springframework.web.bind.annotation.*;
@@ -33,9 +35,15 @@ public class UserController {
     @Resource
     private IUserInfoService userInfoService;
 
+    @Resource
+    private IdBloomFilters idBloomFilters;
+
     /**
      * 发送手机验证码
      */
+    @RateLimit(dimension = RateLimit.Dimension.PARAM, param = "phone", permits = 1, period = 60,
+            message = "验证码发送过于频繁 请稍后重试")
+    @RateLimit(name = "sendCodeByIp", dimension = RateLimit.Dimension.IP, permits = 20, period = 60)
     @PostMapping("code")
     public Result sendCode(@RequestParam("phone") String phone, HttpSession session) {
         //发送短信验证码并保存验证码
@@ -71,6 +79,10 @@ public class UserController {
 
     @GetMapping("/info/{id}")
     public Result info(@PathVariable("id") Long userId){
+        // 用户不存在 不查询数据库
+        if (!idBloomFilters.mightContain(IdBloomFilters.USER, userId)) {
+            return Result.ok();
+        }
         // 查询详情
         UserInfo info = userInfoService.getById(userId);
         if (info == null) {
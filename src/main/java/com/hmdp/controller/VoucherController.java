@@ -4,9 +4,13 @@ package com.hmdp.controller;
 import com.hmdp.dto.Result;
 import com.hmdp.entity.Voucher;
 import com.hmdp.service.IVoucherService;
+import com.hmdp.utils.SeckillStockPush;
+import org.springframework.http.MediaType;
 import org.springframework.web.bind.annotation.*;
+import org.springframework.web.servlet.mvc.method.annotation.SseEmitter;
 
 import javax.annotation.Resource;
+import javax.servlet.http.HttpServletResponse;
 
 /**
  * <p>
@@ -22,6 +26,8 @@ public class VoucherController {
 
     @Resource
     private IVoucherService voucherService;
+    @Resource
+    private SeckillStockPush seckillStockPush;
 
     /**
      * 新增普通券
@@ -54,4 +60,24 @@ public class VoucherController {
     public Result queryVoucherOfShop(@PathVariable("shopId") Long shopId) {
        return voucherService.queryVoucherOfShop(shopId);
     }
+
+    /**
+     * 订阅秒杀券的实时库存 代替轮询优惠券列表
+     * @param id 优惠券id
+     * @return SSE连接 事件名stock 数据为voucherId和stock
+     */
+    @GetMapping(value = "/seckill/{id}/stock", produces = MediaType.TEXT_EVENT_STREAM_VALUE)
+    public SseEmitter subscribeStock(@PathVariable("id") Long id, HttpServletResponse response) {
+        //未登录时RefreshTokenInterceptor会设置401 EventSource收到非200不会重连
+        response.setStatus(HttpServletResponse.SC_OK);
+        return seckillStockPush.subscribe(id);
+    }
+
+    /**
+     * 本节点的推送连接数和最近推送的库存
+     */
+    @GetMapping("/seckill/stock-push")
+    public Result stockPushStatus() {
+        return Result.ok(seckillStockPush.snapshot());
+    }
 }
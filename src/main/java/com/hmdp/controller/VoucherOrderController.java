@@ -4,12 +4,26 @@ package com.hmdp.controller;
 import com.hmdp.dto.Result;
 import com.hmdp.entity.Voucher;
 import com.hmdp.service.IVoucherOrderService;
-import org.springframework.web.bind.annotation.PathVariable;
-import org.springframework.web.bind.annotation.PostMapping;
-import org.springframework.web.bind.annotation.RequestMapping;
-import org.springframework.web.bind.annotation.RestController;
+import com.hmdp.utils.OrderConsumeMetrics;
+import com.hmdp.utils.OrderCsvWriter;
+import com.hmdp.utils.OrderDelayQueue;
+import com.hmdp.utils.OrderPendingRecovery;
+import com.hmdp.utils.OrderStatusRegistry;
+import com.hmdp.utils.OrderStreamRetention;
+import com.hmdp.utils.RateLimit;
+import com.hmdp.utils.SeckillAdmissionControl;
+import com.hmdp.utils.SeckillReconciler;
+import com.hmdp.utils.SystemConstants;
+import com.hmdp.utils.UserHolder;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.web.bind.annotation.*;
+import org.springframework.web.context.request.async.DeferredResult;
 
 import javax.annotation.Resource;
+import javax.servlet.http.HttpServletResponse;
+import java.io.IOException;
+import java.util.LinkedHashMap;
+import java.util.Map;
 
 /**
  * <p>
@@ -25,10 +39,168 @@ public class VoucherOrderController {
 
     @Resource
     private IVoucherOrderService voucherOrderService;
+    @Resource
+    private OrderConsumeMetrics orderConsumeMetrics;
+    @Resource
+    private OrderPendingRecovery orderPendingRecovery;
+    @Resource
+    private OrderStatusRegistry orderStatusRegistry;
+    @Resource
+    private OrderStreamRetention orderStreamRetention;
+    @Resource
+    private SeckillAdmissionControl seckillAdmissionControl;
+    @Resource
+    private OrderDelayQueue orderDelayQueue;
+    @Resource
+    private SeckillReconciler seckillReconciler;
+
+    /**
+     * 异步秒杀的超时时间 毫秒
+     */
+    @Value("${hmdp.seckill.async.timeout:3000}")
+    private long asyncTimeout;
 
+    /**
+     * 售罄后在限流之前拒绝 节点级的令牌桶默认关闭 由hmdp.rate-limit.seckill-node-permits开启
+     */
+    @RateLimit(permits = 5)
+    @RateLimit(name = "seckill", dimension = RateLimit.Dimension.NODE, algorithm = RateLimit.Algorithm.TOKEN_BUCKET,
+            permits = 0, permitsProperty = "hmdp.rate-limit.seckill-node-permits", message = "系统繁忙 请稍后重试")
     @PostMapping("seckill/{id}")
     public Result seckillVoucher(@PathVariable("id") Long voucherId) {
 
         return voucherOrderService.seckillVoucher(voucherId);
     }
-}
\ No newline at end of file
+
+    /**
+     * 异步秒杀 请求线程在提交lua脚本后立即释放 结果由回调写回
+     * 脚本超过pending-after没有返回时先返回订单id 客户端查询订单状态
+     * 这里的超时只是兜底 订单可能已经下单成功 重试会返回重复下单
+     */
+    @RateLimit(name = "VoucherOrderController.seckillVoucher", permits = 5)
+    @RateLimit(name = "seckill", dimension = RateLimit.Dimension.NODE, algorithm = RateLimit.Algorithm.TOKEN_BUCKET,
+            permits = 0, permitsProperty = "hmdp.rate-limit.seckill-node-permits", message = "系统繁忙 请稍后重试")
+    @PostMapping("seckill/{id}/async")
+    public DeferredResult<Result> seckillVoucherAsync(@PathVariable("id") Long voucherId) {
+        //用户在请求线程中取出 显式传给后续的回调
+        Long userId = UserHolder.getUser().getId();
+        DeferredResult<Result> result = new DeferredResult<>(asyncTimeout, Result.fail("系统繁忙 请稍后重试"));
+        voucherOrderService.seckillVoucherAsync(voucherId, userId).whenComplete((r, e) -> {
+            if (e != null) {
+                result.setErrorResult(e);
+            } else {
+                result.setResult(r);
+            }
+        });
+        return result;
+    }
+
+    /**
+     * 当前用户的订单 只查询用户所在的分表
+     * @param lastId 上一页最后一条订单的id 第一页不传
+     */
+    @GetMapping("of/me")
+    public Result queryMyOrders(@RequestParam(value = "lastId", required = false) Long lastId) {
+        return Result.ok(voucherOrderService.queryOrdersOfUser(
+                UserHolder.getUser().getId(), lastId, SystemConstants.DEFAULT_PAGE_SIZE));
+    }
+
+    /**
+     * 优惠券的订单和各状态的数量 所有分表并行查询 只允许管理员访问
+     * @param lastId 上一页最后一条订单的id 第一页不传
+     */
+    @GetMapping("voucher/{id}")
+    public Result queryVoucherOrders(@PathVariable("id") Long voucherId,
+                                     @RequestParam(value = "lastId", required = false) Long lastId,
+                                     @RequestParam(value = "limit", defaultValue = "20") Integer limit) {
+        Map<String, Object> result = new LinkedHashMap<>();
+        result.put("counts", voucherOrderService.countOrdersOfVoucher(voucherId));
+        result.put("orders", voucherOrderService.queryOrdersOfVoucher(voucherId, lastId, Math.min(limit, 100)));
+        return Result.ok(result);
+    }
+
+    /**
+     * 导出优惠券的所有订单为csv 从数据库游标直接写入响应 不在内存中汇总 只允许管理员访问
+     * @param gzip 是否压缩为csv.gz
+     */
+    @GetMapping("voucher/{id}/export")
+    public void exportVoucherOrders(@PathVariable("id") Long voucherId,
+                                    @RequestParam(value = "gzip", defaultValue = "false") Boolean gzip,
+                                    HttpServletResponse response) throws IOException {
+        String filename = "voucher-order-" + voucherId + (gzip ? ".csv.gz" : ".csv");
+        response.setContentType(gzip ? "application/gzip" : "text/csv;charset=UTF-8");
+        response.setHeader("Content-Disposition", "attachment; filename=" + filename);
+        try (OrderCsvWriter writer = new OrderCsvWriter(response.getOutputStream(), gzip)) {
+            voucherOrderService.exportOrdersOfVoucher(voucherId, writer);
+        }
+    }
+
+    /**
+     * 查询订单状态 PENDING CREATED FAILED 只读redis
+     * @param wait 大于0时长轮询 最多等待的毫秒数
+     */
+    @GetMapping("status/{id}")
+    public DeferredResult<Result> queryOrderStatus(@PathVariable("id") Long orderId,
+                                                   @RequestParam(value = "wait", defaultValue = "0") Long wait) {
+        return orderStatusRegistry.query(orderId, wait);
+    }
+
+    /**
+     * 订单消费吞吐统计
+     */
+    @GetMapping("metrics")
+    public Result orderConsumeMetrics() {
+        return Result.ok(orderConsumeMetrics.snapshot());
+    }
+
+    /**
+     * 秒杀准入控制的并发上限和信号
+     */
+    @GetMapping("admission")
+    public Result admission() {
+        return Result.ok(seckillAdmissionControl.snapshot());
+    }
+
+    /**
+     * 订单消息队列各分区的长度 内存占用和消费进度
+     */
+    @GetMapping("streams")
+    public Result orderStreamStats() {
+        return Result.ok(orderStreamRetention.stats());
+    }
+
+    /**
+     * 等待支付超时的订单数和正在取消的订单数
+     */
+    @GetMapping("delay-queue")
+    public Result orderDelayQueueStats() {
+        return Result.ok(orderDelayQueue.stats());
+    }
+
+    /**
+     * 最近一次redis和数据库的库存对账结果 包含用户id 只允许管理员访问
+     */
+    @GetMapping("reconcile")
+    public Result reconcileReport() {
+        return Result.ok(seckillReconciler.report());
+    }
+
+    /**
+     * 查看死信队列中的订单消息 只允许管理员访问
+     * @param count 最多返回的条数
+     */
+    @GetMapping("dlq")
+    public Result listDeadLetters(@RequestParam(value = "count", defaultValue = "20") Long count) {
+        return Result.ok(orderPendingRecovery.listDeadLetters(count));
+    }
+
+    /**
+     * 把死信重新投递回原分区 只允许管理员访问
+     * @param count 最多重放的条数
+     * @return 重放的条数
+     */
+    @PostMapping("dlq/replay")
+    public Result replayDeadLetters(@RequestParam(value = "count", defaultValue = "100") Long count) {
+        return Result.ok(orderPendingRecovery.replayDeadLetters(count));
+    }
+}
@@ -0,0 +1,61 @@
+package com.hmdp.entity;
+
+import com.baomidou.mybatisplus.annotation.IdType;
+import com.baomidou.mybatisplus.annotation.TableId;
+import com.baomidou.mybatisplus.annotation.TableName;
+import lombok.Data;
+import lombok.EqualsAndHashCode;
+import lombok.experimental.Accessors;
+
+import java.io.Serializable;
+import java.time.LocalDateTime;
+
+/**
+ * <p>
+ * 销量统计 按优惠券或商铺 分钟或小时分桶
+ * </p>
+ */
+@Data
+@EqualsAndHashCode(callSuper = false)
+@Accessors(chain = true)
+@TableName("tb_sales_stat")
+public class SalesStat implements Serializable {
+
+    private static final long serialVersionUID = 1L;
+
+    /**
+     * 主键
+     */
+    @TableId(value = "id", type = IdType.AUTO)
+    private Long id;
+
+    /**
+     * 统计维度 1：优惠券；2：商铺
+     */
+    private Integer dimension;
+
+    /**
+     * 优惠券id或商铺id
+     */
+    private Long targetId;
+
+    /**
+     * 时间粒度 1：分钟；2：小时
+     */
+    private Integer granularity;
+
+    /**
+     * 时间桶的开始时间
+     */
+    private LocalDateTime bucketTime;
+
+    /**
+     * 销量
+     */
+    private Integer sales;
+
+    /**
+     * 更新时间
+     */
+    private LocalDateTime updateTime;
+}
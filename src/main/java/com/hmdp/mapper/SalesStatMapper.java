@@ -0,0 +1,20 @@
+package com.hmdp.mapper;
+
+import com.baomidou.mybatisplus.core.mapper.BaseMapper;
+import com.hmdp.entity.SalesStat;
+import org.apache.ibatis.annotations.Param;
+
+import java.util.List;
+
+/**
+ * <p>
+ * 销量统计 Mapper 接口
+ * </p>
+ */
+public interface SalesStatMapper extends BaseMapper<SalesStat> {
+
+    /**
+     * 按唯一索引写入 已存在的桶直接覆盖为redis中的最新值 重复汇总没有副作用
+     */
+    int upsertBatch(@Param("stats") List<SalesStat> stats);
+}
@@ -2,6 +2,10 @@ package com.hmdp.mapper;
 
 import com.hmdp.entity.SeckillVoucher;
 import com.baomidou.mybatisplus.core.mapper.BaseMapper;
+import org.apache.ibatis.annotations.Param;
+
+import java.util.List;
+import java.util.Map;
 
 /**
  * <p>
@@ -13,4 +17,17 @@ import com.baomidou.mybatisplus.core.mapper.BaseMapper;
  */
 public interface SeckillVoucherMapper extends BaseMapper<SeckillVoucher> {
 
+    /**
+     * 一条语句同时读取剩余库存和未取消的订单数 两者来自同一个快照
+     * @param tables 订单分表
+     * @return stock sold
+     */
+    Map<String, Object> selectStockAndSold(@Param("voucherId") Long voucherId, @Param("tables") List<String> tables);
+
+    /**
+     * 库存修正为总库存减未取消的订单数
+     * @param tables 订单分表
+     */
+    int repairStock(@Param("voucherId") Long voucherId, @Param("total") int total,
+                    @Param("tables") List<String> tables);
 }
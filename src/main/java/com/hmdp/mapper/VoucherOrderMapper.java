@@ -2,6 +2,10 @@ package com.hmdp.mapper;
 
 import com.hmdp.entity.VoucherOrder;
 import com.baomidou.mybatisplus.core.mapper.BaseMapper;
+import org.apache.ibatis.annotations.Param;
+import org.apache.ibatis.cursor.Cursor;
+
+import java.util.List;
 
 /**
  * <p>
@@ -13,4 +17,61 @@ import com.baomidou.mybatisplus.core.mapper.BaseMapper;
  */
 public interface VoucherOrderMapper extends BaseMapper<VoucherOrder> {
 
+    /**
+     * 插入订单 (user_id, voucher_id)唯一索引冲突时忽略 实现一人一单
+     * @return 影响行数 0表示已经存在
+     */
+    int insertIgnore(VoucherOrder order);
+
+    /**
+     * 多行插入订单 冲突的行忽略
+     * @param orders 订单列表 必须在同一个分表
+     * @return 实际插入的行数
+     */
+    int insertBatch(@Param("orders") List<VoucherOrder> orders);
+
+    /**
+     * 查询并锁定未支付的订单 需要指定分表
+     * @param ids 订单id
+     * @return 其中仍然是未支付状态的订单 只有id user_id voucher_id
+     */
+    List<VoucherOrder> selectUnpaidForUpdate(@Param("ids") List<Long> ids);
+
+    /**
+     * 未支付的订单改为已取消 需要指定分表
+     * @return 实际取消的行数
+     */
+    int cancelUnpaid(@Param("ids") List<Long> ids);
+
+    /**
+     * @param userIds 必须在同一个分表
+     * @return userIds中对该优惠券有未取消订单的用户
+     */
+    List<Long> selectActiveUsers(@Param("voucherId") Long voucherId, @Param("userIds") List<Long> userIds);
+
+    /**
+     * 按user_id分页 lastUserId之后有未取消订单的用户 需要指定分表
+     */
+    List<Long> selectActiveUsersAfter(@Param("voucherId") Long voucherId, @Param("lastUserId") Long lastUserId,
+                                      @Param("limit") int limit);
+
+    /**
+     * 用户的订单 按id倒序分页
+     * @param lastId 上一页最后一条的id 第一页为null
+     */
+    List<VoucherOrder> selectByUserId(@Param("userId") Long userId, @Param("lastId") Long lastId,
+                                      @Param("limit") int limit);
+
+    /**
+     * 优惠券在一个分表中的订单 按id倒序分页 需要指定分表
+     */
+    List<VoucherOrder> selectByVoucherId(@Param("voucherId") Long voucherId, @Param("lastId") Long lastId,
+                                         @Param("limit") int limit);
+
+    /**
+     * 流式读取优惠券在一个分表中的订单 必须在事务中使用 读完之前连接不能执行其他语句
+     * 游标查询不经过mybatis-plus的查询拦截 不能替换逻辑表名 直接传入分表名
+     * @param table 分表名 OrderShardRouter.table
+     */
+    Cursor<VoucherOrder> scanByVoucherId(@Param("table") String table, @Param("voucherId") Long voucherId);
 }
@@ -21,6 +21,13 @@ public interface IShopService extends IService<Shop> {
      */
     Object queryById(Long id);
 
+    /**
+     * 新增店铺
+     * @param shop
+     * @return 店铺id
+     */
+    Result saveShop(Shop shop);
+
     /**
      * 更新店铺
      * @param shop
@@ -2,8 +2,14 @@ package com.hmdp.service;
 
 import com.hmdp.dto.Result;
 import com.hmdp.entity.VoucherOrder;
+import com.hmdp.utils.OrderCsvWriter;
 import com.baomidou.mybatisplus.extension.service.IService;
 
+import java.io.IOException;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+
 /**
  * <p>
  *  服务类
@@ -21,5 +27,48 @@ public interface IVoucherOrderService extends IService<VoucherOrder> {
      */
     Result seckillVoucher(Long voucherId);
 
+    /**
+     * 异步秒杀 lua脚本和id生成不占用请求线程
+     * @param userId 由调用方在请求线程中取出 回调在其他线程执行 不能使用UserHolder
+     */
+    CompletableFuture<Result> seckillVoucherAsync(Long voucherId, Long userId);
+
     Result createVoucher(VoucherOrder voucherOrder);
+
+    /**
+     * 批量创建订单 一次多行插入 每张券一次聚合扣减库存
+     * @param voucherOrders 同一批次的订单
+     * @return 实际写入的订单 其余为重复下单
+     */
+    List<VoucherOrder> createVoucherBatch(List<VoucherOrder> voucherOrders);
+
+    /**
+     * 取消超时未支付的订单 归还数据库和redis中的库存
+     * @param voucherOrders 到期的订单 需要id和userId 已经支付或者取消的跳过
+     * @return 实际取消的订单
+     */
+    List<VoucherOrder> cancelUnpaidOrders(List<VoucherOrder> voucherOrders);
+
+    /**
+     * 用户的订单 只查询用户所在的分表
+     * @param lastId 上一页最后一条的id 第一页为null
+     */
+    List<VoucherOrder> queryOrdersOfUser(Long userId, Long lastId, int limit);
+
+    /**
+     * 优惠券的订单 所有分表并行查询后合并
+     * @param lastId 上一页最后一条的id 第一页为null
+     */
+    List<VoucherOrder> queryOrdersOfVoucher(Long voucherId, Long lastId, int limit);
+
+    /**
+     * 优惠券各状态的订单数 所有分表并行统计后合并
+     */
+    Map<Integer, Long> countOrdersOfVoucher(Long voucherId);
+
+    /**
+     * 流式导出优惠券的所有订单 内存占用与订单数量无关
+     * @return 导出的行数
+     */
+    long exportOrdersOfVoucher(Long voucherId, OrderCsvWriter writer) throws IOException;
 }
@@ -11,6 +11,7 @@ import com.hmdp.mapper.ShopMapper;
 import com.hmdp.service.IShopService;
 import com.baomidou.mybatisplus.extension.service.impl.ServiceImpl;
 import com.hmdp.utils.CacheClient;
+import com.hmdp.utils.IdBloomFilters;
 import com.hmdp.utils.RedisConstants;
 import com.hmdp.utils.RedisData;
 import org.springframework.beans.factory.annotation.Autowired;
@@ -42,14 +43,18 @@ public class ShopServiceImpl extends ServiceImpl<ShopMapper, Shop> implements IS
     private ShopMapper shopMapper;
     @Resource
     private CacheClient cacheClient;
+    @Resource
+    private IdBloomFilters idBloomFilters;
 
     @Override
     public Result queryById(Long id) {
         //缓存穿透
         //Shop shop = queryWithPassThrough(id);
         Function<Long, Shop> dbFallback = n->shopMapper.selectById(n);
-        //Shop shop =  cacheClient.queryWithPassThrough(RedisConstants.CACHE_SHOP_KEY, id, Shop.class,
-        //        dbFallback, RedisConstants.CACHE_SHOP_TTL, TimeUnit.MINUTES);
+        //两级缓存 本地缓存命中时不访问redis 布隆过滤器拦截不存在的id
+        Shop shop =  cacheClient.queryWithPassThrough(RedisConstants.CACHE_SHOP_KEY, id, Shop.class,
+                n -> idBloomFilters.mightContain(IdBloomFilters.SHOP, n),
+                dbFallback, RedisConstants.CACHE_SHOP_TTL, TimeUnit.MINUTES);
 
         //互斥锁解决缓存击穿
         //Shop shop = cacheClient.queryWithLogicalExpire(RedisConstants.CACHE_SHOP_KEY, id, Shop.class,
@@ -57,7 +62,7 @@ public class ShopServiceImpl extends ServiceImpl<ShopMapper, Shop> implements IS
 
 
         //逻辑过期解决缓存击穿
-        Shop shop = queryWithLogicalExpire(id);
+        //Shop shop = queryWithLogicalExpire(id);
         if (shop == null) {
             return Result.fail("店铺不存在");
         }
@@ -234,6 +239,18 @@ public class ShopServiceImpl extends ServiceImpl<ShopMapper, Shop> implements IS
         stringRedisTemplate.opsForValue().set("cache:shop" + id,JSONUtil.toJsonStr(redisData));
     }
 
+    /**
+     * 新增店铺 写入数据库后加入布隆过滤器
+     * @param shop
+     * @return
+     */
+    @Override
+    public Result saveShop(Shop shop) {
+        save(shop);
+        idBloomFilters.add(IdBloomFilters.SHOP, shop.getId());
+        return Result.ok(shop.getId());
+    }
+
     /**
      *更新店铺
      * @param shop
@@ -244,12 +261,12 @@ public class ShopServiceImpl extends ServiceImpl<ShopMapper, Shop> implements IS
     public Result update(Shop shop) {
         Long id = shop.getId();
         if (id == null) {
-            Result.fail("id 不能为空");
+            return Result.fail("id 不能为空");
         }
         //更新数据库
         updateById(shop);
-        //删除缓存
-        stringRedisTemplate.delete("cache:shop:" + shop.getId());
+        //删除缓存 同时通知其他节点删除本地缓存
+        cacheClient.delete(RedisConstants.CACHE_SHOP_KEY + id);
         return Result.ok();
     }
 }
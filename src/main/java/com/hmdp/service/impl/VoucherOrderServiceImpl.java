@@ -10,30 +10,60 @@ import com.hmdp.mapper.VoucherOrderMapper;
 import com.hmdp.service.ISeckillVoucherService;
 import com.hmdp.service.IShopService;
 import com.hmdp.service.IVoucherOrderService;
+import com.baomidou.mybatisplus.core.conditions.query.QueryWrapper;
 import com.baomidou.mybatisplus.extension.service.impl.ServiceImpl;
 import com.hmdp.service.IVoucherService;
-import com.hmdp.utils.RedisIdWorker;
+import com.hmdp.utils.OrderConsumeMetrics;
+import com.hmdp.utils.OrderCsvWriter;
+import com.hmdp.utils.OrderDelayQueue;
+import com.hmdp.utils.OrderJournal;
+import com.hmdp.utils.OrderPendingRecovery;
+import com.hmdp.utils.OrderShardRouter;
+import com.hmdp.utils.OrderStatusRegistry;
+import com.hmdp.utils.OrderSalesStats;
+import com.hmdp.utils.OrderStreamManager;
+import com.hmdp.utils.OrderWorkerPool;
+import com.hmdp.utils.SeckillAdmissionControl;
+import com.hmdp.utils.SeckillLeaseAdmission;
+import com.hmdp.utils.SeckillSoldOutRegistry;
+import com.hmdp.utils.SeckillStockManager;
+import com.hmdp.utils.IdGenerator;
 import com.hmdp.utils.SimpleRedisLock;
 import com.hmdp.utils.UserHolder;
 import lombok.extern.slf4j.Slf4j;
+import org.apache.ibatis.cursor.Cursor;
 import org.redisson.api.RLock;
 import org.redisson.api.RedissonClient;
 import org.springframework.aop.framework.AopContext;
 import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.context.annotation.Lazy;
 import org.springframework.core.io.ClassPathResource;
 import org.springframework.data.redis.connection.stream.*;
+import org.springframework.data.redis.core.ReactiveStringRedisTemplate;
 import org.springframework.data.redis.core.StringRedisTemplate;
 import org.springframework.data.redis.core.script.DefaultRedisScript;
 import org.springframework.stereotype.Service;
 import org.springframework.transaction.annotation.Transactional;
+import org.springframework.transaction.interceptor.TransactionAspectSupport;
+import org.springframework.transaction.support.TransactionSynchronization;
+import org.springframework.transaction.support.TransactionSynchronizationManager;
 
 import javax.annotation.PostConstruct;
 import javax.annotation.Resource;
+import java.io.IOException;
 import java.time.Duration;
 import java.time.LocalDateTime;
+import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
 import java.util.concurrent.*;
 
 
@@ -42,12 +72,14 @@ import java.util.concurrent.*;
 public class VoucherOrderServiceImpl extends ServiceImpl<VoucherOrderMapper, VoucherOrder> implements IVoucherOrderService {
 
     @Resource
-    private RedisIdWorker redisIdWorker;
+    private IdGenerator idGenerator;
     @Resource
     private ISeckillVoucherService seckillVoucherService;
     @Resource
     private StringRedisTemplate stringRedisTemplate;
     @Resource
+    private ReactiveStringRedisTemplate reactiveStringRedisTemplate;
+    @Resource
     private RedissonClient redissonClient;
     @Resource
     private static final DefaultRedisScript<Long> SECKILL_SCRIPT;
@@ -56,59 +88,317 @@ public class VoucherOrderServiceImpl extends ServiceImpl<VoucherOrderMapper, Vou
         SECKILL_SCRIPT.setResultType(Long.class);
         SECKILL_SCRIPT.setLocation(new ClassPathResource("seckill.lua"));
     }
+    private static final DefaultRedisScript<Long> BORROW_SCRIPT;
+    static {
+        BORROW_SCRIPT = new DefaultRedisScript<>();
+        BORROW_SCRIPT.setResultType(Long.class);
+        BORROW_SCRIPT.setLocation(new ClassPathResource("seckill_borrow.lua"));
+    }
+    private static final DefaultRedisScript<Long> CANCEL_SCRIPT;
+    static {
+        CANCEL_SCRIPT = new DefaultRedisScript<>();
+        CANCEL_SCRIPT.setResultType(Long.class);
+        CANCEL_SCRIPT.setLocation(new ClassPathResource("seckill_cancel.lua"));
+    }
 
-    private BlockingQueue<VoucherOrder> queue = new ArrayBlockingQueue<VoucherOrder>(1024*1024);
+    /**
+     * 每个分区一个消费线程
+     */
+    private static final ExecutorService executorService = Executors.newCachedThreadPool();
 
-    private static final ExecutorService executorService = Executors.newSingleThreadExecutor();
+    /**
+     * 跨分表查询 每个分表一个线程并行执行
+     */
+    private static final ExecutorService shardQueryExecutor = Executors.newFixedThreadPool(OrderShardRouter.SHARDS);
+
+    /**
+     * 异步秒杀的后续处理 写订单日志和订单状态是阻塞调用 不能在lettuce的事件循环线程中执行
+     */
+    private ExecutorService seckillCallbackExecutor;
+    @Value("${hmdp.seckill.async.callback-threads:8}")
+    private int callbackThreads;
+    /**
+     * 异步秒杀的脚本超过该时间没有返回 先返回订单id 客户端按PENDING查询订单状态 毫秒 小于接口的超时时间
+     */
+    @Value("${hmdp.seckill.async.pending-after:2000}")
+    private long pendingAfter;
+    private final ScheduledExecutorService seckillTimer = Executors.newSingleThreadScheduledExecutor(r -> {
+        Thread t = new Thread(r, "seckill-timer");
+        t.setDaemon(true);
+        return t;
+    });
+
+    /**
+     * 本节点正在运行的分区消费任务
+     */
+    private final Map<Integer, voucherOrderTask> orderTasks = new ConcurrentHashMap<>();
+
+    /**
+     * 是否开启批量消费
+     */
+    @Value("${hmdp.seckill.order.batch-enabled:false}")
+    private boolean batchEnabled;
+    /**
+     * 每批最多读取的消息数
+     */
+    @Value("${hmdp.seckill.order.batch-size:100}")
+    private int batchSize;
+    /**
+     * 凑批最长等待时间 毫秒
+     */
+    @Value("${hmdp.seckill.order.batch-max-wait:50}")
+    private long batchMaxWait;
+
+    @Resource
+    private OrderConsumeMetrics orderConsumeMetrics;
+    @Resource
+    private OrderStreamManager orderStreamManager;
+
+    @Resource
+    private OrderPendingRecovery orderPendingRecovery;
+    @Resource
+    private SeckillSoldOutRegistry seckillSoldOutRegistry;
+    @Resource
+    private SeckillLeaseAdmission seckillLeaseAdmission;
+    @Resource
+    private SeckillStockManager seckillStockManager;
+    @Resource
+    private OrderStatusRegistry orderStatusRegistry;
+    @Resource
+    private OrderWorkerPool orderWorkerPool;
+    @Resource
+    private OrderJournal orderJournal;
+    @Resource
+    private SeckillAdmissionControl seckillAdmissionControl;
+    @Resource
+    private OrderDelayQueue orderDelayQueue;
+    @Resource
+    private OrderSalesStats orderSalesStats;
 
     @PostConstruct
     private void init(){
-        executorService.submit(new voucherOrderTask());
+        seckillCallbackExecutor = Executors.newFixedThreadPool(callbackThreads, r -> {
+            Thread t = new Thread(r, "seckill-callback");
+            t.setDaemon(true);
+            return t;
+        });
+        orderStreamManager.start(this::rebalance);
+        //pending list中的消息按退避策略重试 超过次数转入死信队列
+        orderPendingRecovery.start(mapRecord -> {
+            VoucherOrder voucherOrder = BeanUtil.fillBeanWithMap(mapRecord.getValue(), new VoucherOrder(), true);
+            if (orderWorkerPool.isEnabled()) {
+                //交给用户对应的线程 保证每个用户只有一个写入者
+                orderWorkerPool.submit(voucherOrder.getUserId(), () -> handleVoucherOrder(voucherOrder)).join();
+            } else {
+                handleVoucherOrder(voucherOrder);
+            }
+            return true;
+        });
+        //订单日志中没有落库的订单 重放到createVoucher 按唯一索引去重
+        orderJournal.start(this::handleVoucherOrder);
+        //超时未支付的订单 批量取消并归还库存
+        orderDelayQueue.start(this::cancelExpiredOrders);
+    }
+
+    /**
+     * 分区分配变化 停掉不再负责的分区 启动新分配的分区
+     * @param partitions 本节点负责的分区
+     */
+    private synchronized void rebalance(Set<Integer> partitions) {
+        orderTasks.entrySet().removeIf(entry -> {
+            if (partitions.contains(entry.getKey())) {
+                return false;
+            }
+            entry.getValue().stop();
+            return true;
+        });
+        for (Integer partition : partitions) {
+            orderTasks.computeIfAbsent(partition, p -> {
+                voucherOrderTask task = new voucherOrderTask(orderStreamManager.streamKey(p));
+                executorService.submit(task);
+                return task;
+            });
+        }
     }
 
     private class voucherOrderTask implements Runnable{
+
+        private final String streamKey;
+        private final Consumer consumer;
+        private volatile boolean running = true;
+
+        voucherOrderTask(String streamKey) {
+            this.streamKey = streamKey;
+            this.consumer = Consumer.from(OrderStreamManager.STREAM_ORDER_GROUP, orderStreamManager.getConsumerName());
+        }
+
+        void stop() {
+            running = false;
+        }
+
         @Override
         public void run() {
-            while(true){
+            //先处理上次退出时没有确认的消息
+            handlePendingList();
+            while(running){
                 //获取订单信息
                 try {
                     //VoucherOrder voucherOrder = queue.take();
+                    //批量模式 一次读取多条消息
+                    if (batchEnabled) {
+                        List<MapRecord<String, Object, Object>> batch = readBatch();
+                        if (!batch.isEmpty()) {
+                            handleVoucherOrderBatch(batch);
+                        }
+                        continue;
+                    }
+                    //按userId路由到固定线程并行落库
+                    if (orderWorkerPool.isEnabled()) {
+                        List<MapRecord<String, Object, Object>> read = stringRedisTemplate.opsForStream().read(
+                                consumer,
+                                StreamReadOptions.empty().count(batchSize).block(Duration.ofSeconds(2)),
+                                StreamOffset.create(streamKey, ReadOffset.lastConsumed()));
+                        if (read != null && !read.isEmpty()) {
+                            handleVoucherOrderRouted(read);
+                        }
+                        continue;
+                    }
                     //从消息队列中获取订单信息
                     List<MapRecord<String, Object, Object>> read = stringRedisTemplate.opsForStream().read(
-                            Consumer.from("g1", "c1"),
+                            consumer,
                             StreamReadOptions.empty().count(1).block(Duration.ofSeconds(2)),
-                            StreamOffset.create("stream.order", ReadOffset.lastConsumed()));
+                            StreamOffset.create(streamKey, ReadOffset.lastConsumed()));
                     //判断是否获取消息成功
                     if(read == null || read.isEmpty()){
                         //失败 再进行下一次循环
                         continue;
                     }
                     //成功 创建订单
+                    long begin = System.nanoTime();
                     MapRecord<String, Object, Object> mapRecord = read.get(0);
                     Map<Object, Object> value = mapRecord.getValue();
                     VoucherOrder voucherOrder = BeanUtil.fillBeanWithMap(value, new VoucherOrder(), true);
                     handleVoucherOrder(voucherOrder);
                     //ack 确认消息
                     stringRedisTemplate.opsForStream()
-                            .acknowledge("stream.order","g1", mapRecord.getId());
+                            .acknowledge(streamKey, OrderStreamManager.STREAM_ORDER_GROUP, mapRecord.getId());
+                    orderConsumeMetrics.record(1, System.nanoTime() - begin);
                 } catch (Exception e) {
+                    //处理失败的消息留在pending list中 由OrderPendingRecovery退避重试
                     log.error(e.getMessage());
-                    //处理异常消息
-                    handlePendingList();
                 }
             }
         }
 
+        /**
+         * 凑批读取 第一条消息到达后最多再等待batchMaxWait毫秒
+         */
+        private List<MapRecord<String, Object, Object>> readBatch() {
+            List<MapRecord<String, Object, Object>> batch = new ArrayList<>(batchSize);
+            long deadline = 0;
+            while (batch.size() < batchSize) {
+                long block = batch.isEmpty() ? 2000 : deadline - System.currentTimeMillis();
+                if (block <= 0) {
+                    break;
+                }
+                List<MapRecord<String, Object, Object>> read = stringRedisTemplate.opsForStream().read(
+                        consumer,
+                        StreamReadOptions.empty().count(batchSize - batch.size()).block(Duration.ofMillis(block)),
+                        StreamOffset.create(streamKey, ReadOffset.lastConsumed()));
+                if (read == null || read.isEmpty()) {
+                    break;
+                }
+                if (batch.isEmpty()) {
+                    deadline = System.currentTimeMillis() + batchMaxWait;
+                }
+                batch.addAll(read);
+            }
+            return batch;
+        }
+
+        /**
+         * 批量落库 失败时退化为逐条处理 处理成功的消息一次性ack
+         */
+        private void handleVoucherOrderBatch(List<MapRecord<String, Object, Object>> batch) {
+            long begin = System.nanoTime();
+            List<VoucherOrder> voucherOrders = new ArrayList<>(batch.size());
+            RecordId[] ids = new RecordId[batch.size()];
+            for (int i = 0; i < batch.size(); i++) {
+                MapRecord<String, Object, Object> mapRecord = batch.get(i);
+                voucherOrders.add(BeanUtil.fillBeanWithMap(mapRecord.getValue(), new VoucherOrder(), true));
+                ids[i] = mapRecord.getId();
+            }
+            try {
+                List<VoucherOrder> created = proxy.createVoucherBatch(voucherOrders);
+                orderConsumeMetrics.recordDbLatency(voucherOrders.size(), System.nanoTime() - begin);
+                updateStatus(voucherOrders, created);
+                stringRedisTemplate.opsForStream().acknowledge(streamKey, OrderStreamManager.STREAM_ORDER_GROUP, ids);
+                orderConsumeMetrics.record(voucherOrders.size(), System.nanoTime() - begin);
+                return;
+            } catch (Exception e) {
+                log.error("批量创建订单失败 逐条重试", e);
+            }
+            //逐条处理 失败的消息留在pending list中
+            List<RecordId> acked = new ArrayList<>(batch.size());
+            for (int i = 0; i < voucherOrders.size(); i++) {
+                try {
+                    handleVoucherOrder(voucherOrders.get(i));
+                    acked.add(ids[i]);
+                } catch (Exception e) {
+                    log.error(e.getMessage());
+                    orderConsumeMetrics.recordFailure(1);
+                }
+            }
+            if (!acked.isEmpty()) {
+                stringRedisTemplate.opsForStream()
+                        .acknowledge(streamKey, OrderStreamManager.STREAM_ORDER_GROUP, acked.toArray(new RecordId[0]));
+                orderConsumeMetrics.record(acked.size(), System.nanoTime() - begin);
+            }
+        }
+
+        /**
+         * 每条消息交给userId对应的线程 全部完成后一次性ack成功的消息
+         */
+        private void handleVoucherOrderRouted(List<MapRecord<String, Object, Object>> records) {
+            long begin = System.nanoTime();
+            List<CompletableFuture<Void>> futures = new ArrayList<>(records.size());
+            for (MapRecord<String, Object, Object> mapRecord : records) {
+                VoucherOrder voucherOrder = BeanUtil.fillBeanWithMap(mapRecord.getValue(), new VoucherOrder(), true);
+                futures.add(orderWorkerPool.submit(voucherOrder.getUserId(), () -> handleVoucherOrder(voucherOrder)));
+            }
+            //失败的消息留在pending list中
+            List<RecordId> acked = new ArrayList<>(records.size());
+            for (int i = 0; i < records.size(); i++) {
+                try {
+                    futures.get(i).join();
+                    acked.add(records.get(i).getId());
+                } catch (Exception e) {
+                    log.error(e.getMessage());
+                    orderConsumeMetrics.recordFailure(1);
+                }
+            }
+            if (!acked.isEmpty()) {
+                stringRedisTemplate.opsForStream()
+                        .acknowledge(streamKey, OrderStreamManager.STREAM_ORDER_GROUP, acked.toArray(new RecordId[0]));
+                orderConsumeMetrics.record(acked.size(), System.nanoTime() - begin);
+            }
+        }
+
+        /**
+         * 启动时把本节点上次没有确认的消息过一遍
+         * 失败的消息跳过 留给OrderPendingRecovery按退避策略重试 不在这里反复重读
+         */
         private void handlePendingList() {
-            while(true){
+            String offset = "0";
+            while(running){
                 //获取订单信息
                 try {
                     //VoucherOrder voucherOrder = queue.take();
                     //从pendinglist中获取订单信息
                     List<MapRecord<String, Object, Object>> read = stringRedisTemplate.opsForStream().read(
-                            Consumer.from("g1", "c1"),
+                            consumer,
                             StreamReadOptions.empty().count(1),
-                            StreamOffset.create("stream.order", ReadOffset.from("0")));
+                            StreamOffset.create(streamKey, ReadOffset.from(offset)));
                     //判断是否获取消息成功
                     if(read == null || read.isEmpty()){
                         //失败 pendlist中的消息全部处理完成
@@ -116,12 +406,13 @@ public class VoucherOrderServiceImpl extends ServiceImpl<VoucherOrderMapper, Vou
                     }
                     //成功 创建订单
                     MapRecord<String, Object, Object> mapRecord = read.get(0);
+                    offset = mapRecord.getId().getValue();
                     Map<Object, Object> value = mapRecord.getValue();
                     VoucherOrder voucherOrder = BeanUtil.fillBeanWithMap(value, new VoucherOrder(), true);
                     handleVoucherOrder(voucherOrder);
                     //ack 确认消息
                     stringRedisTemplate.opsForStream()
-                            .acknowledge("stream.order","g1", mapRecord.getId());
+                            .acknowledge(streamKey, OrderStreamManager.STREAM_ORDER_GROUP, mapRecord.getId());
                 } catch (Exception e) {
                     log.error(e.getMessage());
                     //处理异常消息
@@ -132,27 +423,61 @@ public class VoucherOrderServiceImpl extends ServiceImpl<VoucherOrderMapper, Vou
     }
 
     private void handleVoucherOrder(VoucherOrder voucherOrder) {
-        Long userId = voucherOrder.getUserId();
-        //创建锁对象
-        //SimpleRedisLock redisLock = new SimpleRedisLock("order:" + userId, stringRedisTemplate);
-        //使用redisson进行优化
-        RLock redisLock = redissonClient.getLock("lock:order:" + userId );
-        //获取锁
-        boolean success = redisLock.tryLock();
-        if (!success) {
-            log.error("不允许重复下单");
-        }
-
-        //事务提交后再释放锁
-        // synchronized (userId.toString().intern()) {//对不同的id上不同的锁
+        //一人一单由(user_id, voucher_id)唯一索引保证 不再获取分布式锁
         //获取代理对象 防止事务失效
-        try {
-            proxy.createVoucher(voucherOrder);
-        } finally {
-            redisLock.unlock();
+        long begin = System.nanoTime();
+        Result result = proxy.createVoucher(voucherOrder);
+        orderConsumeMetrics.recordDbLatency(1, System.nanoTime() - begin);
+        boolean created = Boolean.TRUE.equals(result.getSuccess());
+        orderStatusRegistry.update(voucherOrder.getId(), created
+                ? OrderStatusRegistry.Status.CREATED : OrderStatusRegistry.Status.FAILED);
+        if (created) {
+            //开始计算支付超时
+            orderDelayQueue.add(Collections.singletonList(voucherOrder));
+        } else {
+            //重复下单 不计入销量
+            orderSalesStats.fail(Collections.singletonList(voucherOrder));
         }
     }
 
+    /**
+     * 批量落库后更新订单状态 没有写入的是重复下单
+     */
+    private void updateStatus(List<VoucherOrder> voucherOrders, List<VoucherOrder> created) {
+        Set<Long> createdIds = new HashSet<>(created.size());
+        for (VoucherOrder voucherOrder : created) {
+            createdIds.add(voucherOrder.getId());
+        }
+        List<Long> failedIds = new ArrayList<>();
+        List<VoucherOrder> failed = new ArrayList<>();
+        for (VoucherOrder voucherOrder : voucherOrders) {
+            if (!createdIds.contains(voucherOrder.getId())) {
+                failedIds.add(voucherOrder.getId());
+                failed.add(voucherOrder);
+            }
+        }
+        orderStatusRegistry.update(createdIds, OrderStatusRegistry.Status.CREATED);
+        orderStatusRegistry.update(failedIds, OrderStatusRegistry.Status.FAILED);
+        orderSalesStats.fail(failed);
+        orderDelayQueue.add(created);
+    }
+
+    /**
+     * 延时队列到期的订单 已经支付的在取消时跳过
+     */
+    private void cancelExpiredOrders(List<VoucherOrder> expired) {
+        List<VoucherOrder> cancelled = proxy.cancelUnpaidOrders(expired);
+        orderSalesStats.cancel(cancelled);
+        if (!cancelled.isEmpty()) {
+            log.info("取消超时未支付订单{}条 到期{}条", cancelled.size(), expired.size());
+        }
+    }
+
+    /**
+     * 代理对象 消费线程启动时就需要 不能等到第一次秒杀请求才赋值
+     */
+    @Lazy
+    @Resource
     private IVoucherOrderService proxy;
 
     /**
@@ -162,27 +487,235 @@ public class VoucherOrderServiceImpl extends ServiceImpl<VoucherOrderMapper, Vou
      */
     @Override
     public Result seckillVoucher(Long voucherId) {
+        //本地已经标记售罄 直接返回 不再执行lua脚本
+        if (seckillSoldOutRegistry.isSoldOut(voucherId)) {
+            return Result.fail("库存不足");
+        }
+        //准入控制 订单积压或者下游变慢时直接拒绝
+        if (!seckillAdmissionControl.tryAcquire()) {
+            return Result.fail("系统繁忙 请稍后重试");
+        }
+        try {
+            return admitVoucherOrder(voucherId);
+        } finally {
+            seckillAdmissionControl.release();
+        }
+    }
+
+    @Override
+    public CompletableFuture<Result> seckillVoucherAsync(Long voucherId, Long userId) {
+        if (seckillSoldOutRegistry.isSoldOut(voucherId)) {
+            return CompletableFuture.completedFuture(Result.fail("库存不足"));
+        }
+        if (!seckillAdmissionControl.tryAcquire()) {
+            return CompletableFuture.completedFuture(Result.fail("系统繁忙 请稍后重试"));
+        }
+        CompletableFuture<Result> future;
+        try {
+            future = admitVoucherOrderAsync(voucherId, userId);
+        } catch (RuntimeException e) {
+            seckillAdmissionControl.release();
+            throw e;
+        }
+        return future.whenComplete((result, e) -> seckillAdmissionControl.release());
+    }
+
+    private CompletableFuture<Result> admitVoucherOrderAsync(Long voucherId, Long userId) {
+        if (seckillLeaseAdmission.isEnabled()) {
+            //租约模式等待的是本地攒批确认 放到回调线程中等待
+            return CompletableFuture.supplyAsync(() -> admitVoucherOrder(voucherId, userId), seckillCallbackExecutor);
+        }
+        return idGenerator.nextIdAsync("order").thenCompose(orderId -> {
+            int shard = SeckillStockManager.shardOf(userId, seckillStockManager.shards(voucherId));
+            long begin = System.nanoTime();
+            CompletableFuture<Long> script = reactiveStringRedisTemplate.execute(SECKILL_SCRIPT,
+                            SeckillStockManager.keys(voucherId, shard), Arrays.asList(userId.toString(), "0"))
+                    .next()
+                    .doOnTerminate(() -> seckillAdmissionControl.recordRedisLatency(System.nanoTime() - begin))
+                    .toFuture()
+                    //借库存和发送订单消息是阻塞调用 在回调线程中执行
+                    .thenApplyAsync(result -> completeAdmission(voucherId, userId, orderId, shard, result),
+                            seckillCallbackExecutor);
+            return awaitAdmitResult(voucherId, userId, orderId, script);
+        });
+    }
+
+    /**
+     * 脚本在pendingAfter内返回时按结果响应 否则先返回订单id 订单状态为PENDING
+     * 之后脚本返回失败时把状态改为FAILED 客户端查询订单状态得到最终结果
+     */
+    private CompletableFuture<Result> awaitAdmitResult(Long voucherId, Long userId, long orderId,
+                                                       CompletableFuture<Long> script) {
+        CompletableFuture<Result> response = new CompletableFuture<>();
+        ScheduledFuture<?> timer = seckillTimer.schedule(() -> {
+            //先响应再记录状态 脚本的失败结果先写入时HSETNX不会覆盖
+            if (response.complete(Result.ok(orderId))) {
+                orderStatusRegistry.markPending(orderId);
+            }
+        }, pendingAfter, TimeUnit.MILLISECONDS);
+        script.whenCompleteAsync((result, e) -> {
+            timer.cancel(false);
+            if (e != null) {
+                //脚本可能已经执行 已经返回订单id时保持PENDING
+                if (!response.completeExceptionally(e)) {
+                    log.warn("秒杀脚本结果未知 订单{}", orderId, e);
+                }
+                return;
+            }
+            Result outcome;
+            try {
+                outcome = handleAdmitResult(voucherId, userId, orderId, result);
+            } catch (RuntimeException ex) {
+                response.completeExceptionally(ex);
+                return;
+            }
+            if (!response.complete(outcome) && !Boolean.TRUE.equals(outcome.getSuccess())) {
+                orderStatusRegistry.update(orderId, OrderStatusRegistry.Status.FAILED);
+            }
+        }, seckillCallbackExecutor);
+        return response;
+    }
+
+    /**
+     * 用户所在的分片没有库存时从其他分片借一件再下单 下单成功后发送订单消息
+     * 发送失败时移出已下单集合并归还库存
+     * @return 与seckill.lua相同 1表示所有分片都没有库存 发送失败时返回null
+     */
+    private Long completeAdmission(Long voucherId, Long userId, long orderId, int shard, Long result) {
+        if (result != null && result == 1) {
+            result = borrow(voucherId, userId, shard);
+        }
+        if (result == null || result != 0) {
+            return result;
+        }
+        try {
+            orderStreamManager.publish(voucherId, userId, orderId);
+        } catch (RuntimeException e) {
+            log.error("发送订单消息失败 订单{}", orderId, e);
+            returnRedisStock(Collections.singletonMap(voucherId, Collections.singletonList(userId.toString())));
+            return null;
+        }
+        return result;
+    }
+
+    /**
+     * 从随机的一个兄弟分片开始依次借库存 借到后在用户所在的分片下单 没有用掉时脚本把库存留在用户所在的分片
+     */
+    private Long borrow(Long voucherId, Long userId, int shard) {
+        int shards = seckillStockManager.shards(voucherId);
+        if (shards <= 1) {
+            return 1L;
+        }
+        int offset = ThreadLocalRandom.current().nextInt(shards - 1);
+        for (int i = 0; i < shards - 1; i++) {
+            int sibling = (shard + 1 + (offset + i) % (shards - 1)) % shards;
+            Long borrowed = stringRedisTemplate.execute(BORROW_SCRIPT, SeckillStockManager.keys(voucherId, sibling));
+            if (borrowed != null && borrowed == 1) {
+                return stringRedisTemplate.execute(SECKILL_SCRIPT, SeckillStockManager.keys(voucherId, shard),
+                        userId.toString(), "1");
+            }
+        }
+        return 1L;
+    }
+
+    private Result admitVoucherOrder(Long voucherId) {
         //获取userid
-        Long userId = UserHolder.getUser().getId();
+        return admitVoucherOrder(voucherId, UserHolder.getUser().getId());
+    }
+
+    private Result admitVoucherOrder(Long voucherId, Long userId) {
         //获取order id
-        long orderId = redisIdWorker.nextId("order");
-        //执行lua脚本
-        Long result = stringRedisTemplate.execute(SECKILL_SCRIPT,
-                Collections.emptyList(),
-                voucherId.toString(), userId.toString(), String.valueOf(orderId));
-        //判断结果是否为0
-        if (result.intValue() != 0) {
-            //不为0 没有购买资格 返回错误信息
-            return Result.fail("没有购买资格");
+        long orderId = idGenerator.nextId("order");
+        if (seckillLeaseAdmission.isEnabled()) {
+            return admitWithLease(voucherId, userId, orderId);
         }
-        //获取代理对象
-        proxy = (IVoucherOrderService) AopContext.currentProxy();
+        //在用户所在的分片执行lua脚本
+        int shard = SeckillStockManager.shardOf(userId, seckillStockManager.shards(voucherId));
+        long begin = System.nanoTime();
+        Long result = stringRedisTemplate.execute(SECKILL_SCRIPT, SeckillStockManager.keys(voucherId, shard),
+                userId.toString(), "0");
+        seckillAdmissionControl.recordRedisLatency(System.nanoTime() - begin);
+        result = completeAdmission(voucherId, userId, orderId, shard, result);
+        return handleAdmitResult(voucherId, userId, orderId, result);
+    }
 
-        //获取订单id
-        long id = redisIdWorker.nextId("order:");
+    /**
+     * 本地库存租约 扣减本地库存 一人一单由后台批量确认
+     * 等待超时时确认还在排队 先返回订单id 确认完成后再写订单日志和状态 客户端凭订单id查询
+     */
+    private Result admitWithLease(Long voucherId, Long userId, long orderId) {
+        CompletableFuture<Integer> future = seckillLeaseAdmission.admit(voucherId, userId, orderId);
+        try {
+            Integer code = future.get(seckillLeaseAdmission.getConfirmTimeout(), TimeUnit.MILLISECONDS);
+            return handleAdmitResult(voucherId, userId, orderId, code.longValue());
+        } catch (ExecutionException e) {
+            //确认失败并且确定没有下单
+            log.error("租约下单确认失败", e.getCause());
+            return Result.fail("系统繁忙 请稍后重试");
+        } catch (TimeoutException | InterruptedException e) {
+            if (e instanceof InterruptedException) {
+                Thread.currentThread().interrupt();
+            }
+            orderStatusRegistry.markPending(orderId);
+            future.whenCompleteAsync((code, ex) -> {
+                if (ex != null || code == null) {
+                    orderStatusRegistry.update(orderId, OrderStatusRegistry.Status.FAILED);
+                } else if (code == 0) {
+                    handleAdmitResult(voucherId, userId, orderId, 0L);
+                } else if (code != SeckillLeaseAdmission.UNKNOWN) {
+                    orderStatusRegistry.update(orderId, OrderStatusRegistry.Status.FAILED);
+                }
+            }, seckillCallbackExecutor);
+            return Result.ok(orderId);
+        }
+    }
 
-        //返回订单id
-        return Result.ok(id);
+    /**
+     * 处理lua脚本或者租约准入的结果
+     */
+    private Result handleAdmitResult(Long voucherId, Long userId, long orderId, Long result) {
+        if (result == null) {
+            //脚本没有返回值
+            return Result.fail("系统繁忙 请稍后重试");
+        }
+        //判断结果是否为0 不为0 没有购买资格 返回错误信息
+        switch (result.intValue()) {
+            case 0:
+                break;
+            case 1:
+                //所有分片都没有库存 标记售罄并通知其他节点
+                seckillSoldOutRegistry.markSoldOut(voucherId);
+                return Result.fail("库存不足");
+            case SeckillLeaseAdmission.NO_LEASE:
+                //只是本节点的租约用完 其他节点还有库存 不能标记售罄
+                return Result.fail("库存不足");
+            case SeckillLeaseAdmission.UNKNOWN:
+                //确认结果未知 可能已经下单 不写订单日志 避免恢复时补出没有下单的订单 由消费者落库后更新状态
+                orderStatusRegistry.markPending(orderId);
+                return Result.ok(orderId);
+            case 2:
+                return Result.fail("不允许重复下单");
+            case 3:
+                return Result.fail("秒杀未开始");
+            case 4:
+                return Result.fail("秒杀已结束");
+            case 5:
+                return Result.fail("优惠券不存在");
+            default:
+                return Result.fail("没有购买资格");
+        }
+        //写入本地订单日志 redis主从切换丢掉消息时用来恢复
+        if (orderJournal.isEnabled()) {
+            try {
+                orderJournal.append(orderId, userId, voucherId);
+            } catch (IOException e) {
+                log.error("写入订单日志失败 {}", orderId, e);
+            }
+        }
+        //记录订单状态 客户端凭订单id查询是否落库
+        orderStatusRegistry.markPending(orderId);
+        //返回写入消息队列的订单id
+        return Result.ok(orderId);
     }
 
     /*
@@ -201,7 +734,7 @@ public class VoucherOrderServiceImpl extends ServiceImpl<VoucherOrderMapper, Vou
         //创建订单
         VoucherOrder voucherOrder = new VoucherOrder();
         //订单id
-        voucherOrder.setVoucherId(redisIdWorker.nextId("voucherOrder"));
+        voucherOrder.setVoucherId(idGenerator.nextId("voucherOrder"));
         //用户id
         voucherOrder.setUserId(userId);
         //优惠券id
@@ -209,11 +742,8 @@ public class VoucherOrderServiceImpl extends ServiceImpl<VoucherOrderMapper, Vou
         //加入阻塞队列
         queue.add(voucherOrder);
 
-        //获取代理对象
-        proxy = (IVoucherOrderService) AopContext.currentProxy();
-
         //获取订单id
-        long id = redisIdWorker.nextId("order:");
+        long id = idGenerator.nextId("order:");
 
         //返回订单id
         return Result.ok(id);
@@ -263,7 +793,7 @@ public class VoucherOrderServiceImpl extends ServiceImpl<VoucherOrderMapper, Vou
     //// }
     //
     /**
-     * 通过悲观锁实现一人一单
+     * 通过唯一索引实现一人一单 先插入订单 冲突时忽略 插入成功再扣减库存
      * @param voucherOrder
      * @return
      */
@@ -271,11 +801,13 @@ public class VoucherOrderServiceImpl extends ServiceImpl<VoucherOrderMapper, Vou
     public Result createVoucher(VoucherOrder voucherOrder) {
         //获取优惠券id
         Long voucherId = voucherOrder.getVoucherId();
-        //一人一单
-        Long userId = UserHolder.getUser().getId();
-        //判断用户是否下过单
-        Integer count = query().eq("voucher_id", voucherId).eq("user_id", userId).count();
-        if (count > 0) {
+        //写入数据库 (user_id, voucher_id)已存在时忽略 不再先查询是否下过单
+        int inserted = getBaseMapper().insertIgnore(voucherOrder);
+        if (inserted == 0) {
+            //消息重复投递 订单已经写入过 不算失败
+            if (OrderShardRouter.route(voucherOrder.getUserId(), () -> getById(voucherOrder.getId())) != null) {
+                return Result.ok(voucherOrder.getVoucherId());
+            }
             return Result.fail("已下过单");
         }
 
@@ -286,13 +818,208 @@ public class VoucherOrderServiceImpl extends ServiceImpl<VoucherOrderMapper, Vou
                 .gt("stock", 0)//乐观锁 只要库存大于0 防止超卖
                 .update();
         if (!update) {
+            //回滚已经插入的订单
+            TransactionAspectSupport.currentTransactionStatus().setRollbackOnly();
             return Result.fail("扣减库存失败");
         }
-        //写入数据库
-        save(voucherOrder);
         //返回订单id
         return Result.ok(voucherOrder.getVoucherId());
     }
 
+    /**
+     * 批量创建订单
+     * 批内去重后多行插入 唯一索引冲突的行被忽略 有冲突时整体回滚 交给逐条处理区分重复的订单
+     * 全部插入成功后每张券一次聚合扣减库存
+     * 任意一步失败整体回滚 由调用方逐条重试
+     * @param voucherOrders
+     */
+    @Override
+    @Transactional
+    public List<VoucherOrder> createVoucherBatch(List<VoucherOrder> voucherOrders) {
+        //按优惠券分组 同一用户同一张券只保留一条
+        Map<Long, Map<Long, VoucherOrder>> byVoucher = new HashMap<>();
+        for (VoucherOrder voucherOrder : voucherOrders) {
+            byVoucher.computeIfAbsent(voucherOrder.getVoucherId(), k -> new LinkedHashMap<>())
+                    .putIfAbsent(voucherOrder.getUserId(), voucherOrder);
+        }
+        List<VoucherOrder> toSave = new ArrayList<>(voucherOrders.size());
+        for (Map<Long, VoucherOrder> orders : byVoucher.values()) {
+            toSave.addAll(orders.values());
+        }
+        //写入数据库 一人一单由唯一索引保证 每个分表一条多行插入
+        Map<Integer, List<VoucherOrder>> byShard = new HashMap<>();
+        for (VoucherOrder voucherOrder : toSave) {
+            byShard.computeIfAbsent(OrderShardRouter.shardOf(voucherOrder.getUserId()), k -> new ArrayList<>())
+                    .add(voucherOrder);
+        }
+        int inserted = 0;
+        for (List<VoucherOrder> orders : byShard.values()) {
+            inserted += getBaseMapper().insertBatch(orders);
+        }
+        if (inserted != toSave.size()) {
+            throw new IllegalStateException("批内有已经存在的订单 " + (toSave.size() - inserted) + "条");
+        }
+        for (Map.Entry<Long, Map<Long, VoucherOrder>> entry : byVoucher.entrySet()) {
+            Long voucherId = entry.getKey();
+            //聚合扣减库存
+            int n = entry.getValue().size();
+            boolean update = seckillVoucherService.update()
+                    .setSql("stock = stock - " + n)
+                    .eq("voucher_id", voucherId)
+                    .ge("stock", n)//乐观锁 库存足够扣减整批才更新 防止超卖
+                    .update();
+            if (!update) {
+                throw new IllegalStateException("扣减库存失败 优惠券" + voucherId + " 数量" + n);
+            }
+        }
+        return toSave;
+    }
+
+    /**
+     * 锁定仍未支付的订单后改为已取消 每张券一次聚合归还数据库库存
+     * redis库存在事务提交之后归还 回滚时不会提前放出库存 让用户在原订单仍然有效时再次抢购
+     * 只有移出seckill:order的用户才归还 重复执行不会多还 归还失败由对账修复
+     */
+    @Override
+    @Transactional
+    public List<VoucherOrder> cancelUnpaidOrders(List<VoucherOrder> voucherOrders) {
+        //订单按user_id分表 每个分表锁定并取消一次
+        Map<Integer, List<Long>> idsByShard = new HashMap<>();
+        for (VoucherOrder voucherOrder : voucherOrders) {
+            idsByShard.computeIfAbsent(OrderShardRouter.shardOf(voucherOrder.getUserId()), k -> new ArrayList<>())
+                    .add(voucherOrder.getId());
+        }
+        List<VoucherOrder> unpaid = new ArrayList<>(voucherOrders.size());
+        for (Map.Entry<Integer, List<Long>> entry : idsByShard.entrySet()) {
+            List<VoucherOrder> shardUnpaid = OrderShardRouter.onShard(entry.getKey(),
+                    () -> getBaseMapper().selectUnpaidForUpdate(entry.getValue()));
+            if (shardUnpaid.isEmpty()) {
+                continue;
+            }
+            List<Long> unpaidIds = new ArrayList<>(shardUnpaid.size());
+            for (VoucherOrder voucherOrder : shardUnpaid) {
+                unpaidIds.add(voucherOrder.getId());
+            }
+            OrderShardRouter.onShard(entry.getKey(), () -> getBaseMapper().cancelUnpaid(unpaidIds));
+            unpaid.addAll(shardUnpaid);
+        }
+        if (unpaid.isEmpty()) {
+            return unpaid;
+        }
+        Map<Long, List<String>> byVoucher = new HashMap<>();
+        for (VoucherOrder voucherOrder : unpaid) {
+            byVoucher.computeIfAbsent(voucherOrder.getVoucherId(), k -> new ArrayList<>())
+                    .add(voucherOrder.getUserId().toString());
+        }
+        for (Map.Entry<Long, List<String>> entry : byVoucher.entrySet()) {
+            Long voucherId = entry.getKey();
+            seckillVoucherService.update()
+                    .setSql("stock = stock + " + entry.getValue().size())
+                    .eq("voucher_id", voucherId)
+                    .update();
+        }
+        //提交之后归还redis库存 移出已下单用户
+        TransactionSynchronizationManager.registerSynchronization(new TransactionSynchronization() {
+            @Override
+            public void afterCommit() {
+                returnRedisStock(byVoucher);
+            }
+        });
+        return unpaid;
+    }
 
+    /**
+     * 每张券单独执行 一张券失败不影响其他券 用户按所在的分片分组 每个分片一次脚本
+     * @param byVoucher 每张券已取消订单的userId
+     */
+    private void returnRedisStock(Map<Long, List<String>> byVoucher) {
+        for (Map.Entry<Long, List<String>> entry : byVoucher.entrySet()) {
+            Long voucherId = entry.getKey();
+            try {
+                int shards = seckillStockManager.shards(voucherId);
+                Map<Integer, List<String>> byShard = new HashMap<>();
+                for (String userId : entry.getValue()) {
+                    byShard.computeIfAbsent(SeckillStockManager.shardOf(Long.valueOf(userId), shards),
+                            k -> new ArrayList<>()).add(userId);
+                }
+                long returned = 0;
+                for (Map.Entry<Integer, List<String>> shard : byShard.entrySet()) {
+                    Long count = stringRedisTemplate.execute(CANCEL_SCRIPT,
+                            SeckillStockManager.keys(voucherId, shard.getKey()), shard.getValue().toArray());
+                    returned += count == null ? 0 : count;
+                }
+                if (returned > 0) {
+                    //重新有了库存 清除各节点的售罄标记
+                    seckillSoldOutRegistry.reset(voucherId);
+                }
+            } catch (Exception e) {
+                //数据库中已经取消 对账时作为redis多出的用户移除并归还库存
+                log.error("归还redis库存失败 优惠券{} 用户{}", voucherId, entry.getValue(), e);
+            }
+        }
+    }
+
+    @Override
+    public List<VoucherOrder> queryOrdersOfUser(Long userId, Long lastId, int limit) {
+        //参数中有userId 自动路由到用户所在的分表
+        return getBaseMapper().selectByUserId(userId, lastId, limit);
+    }
+
+    /**
+     * 每个分表并行取一页 合并后按id倒序取前limit条
+     */
+    @Override
+    public List<VoucherOrder> queryOrdersOfVoucher(Long voucherId, Long lastId, int limit) {
+        List<CompletableFuture<List<VoucherOrder>>> futures = new ArrayList<>(OrderShardRouter.SHARDS);
+        for (int i = 0; i < OrderShardRouter.SHARDS; i++) {
+            int shard = i;
+            futures.add(CompletableFuture.supplyAsync(() -> OrderShardRouter.onShard(shard,
+                    () -> getBaseMapper().selectByVoucherId(voucherId, lastId, limit)), shardQueryExecutor));
+        }
+        List<VoucherOrder> orders = new ArrayList<>();
+        for (CompletableFuture<List<VoucherOrder>> future : futures) {
+            orders.addAll(future.join());
+        }
+        orders.sort((a, b) -> Long.compare(b.getId(), a.getId()));
+        return orders.size() <= limit ? orders : new ArrayList<>(orders.subList(0, limit));
+    }
+
+    /**
+     * 每个分表并行统计 按状态汇总
+     */
+    @Override
+    public Map<Integer, Long> countOrdersOfVoucher(Long voucherId) {
+        List<CompletableFuture<List<Map<String, Object>>>> futures = new ArrayList<>(OrderShardRouter.SHARDS);
+        for (int i = 0; i < OrderShardRouter.SHARDS; i++) {
+            int shard = i;
+            futures.add(CompletableFuture.supplyAsync(() -> OrderShardRouter.onShard(shard,
+                    () -> listMaps(new QueryWrapper<VoucherOrder>()
+                            //status是tinyint(1) 驱动会按布尔值返回 转成整数
+                            .select("CAST(status AS SIGNED) AS status", "COUNT(*) AS total")
+                            .eq("voucher_id", voucherId)
+                            .groupBy("status"))), shardQueryExecutor));
+        }
+        Map<Integer, Long> counts = new TreeMap<>();
+        for (CompletableFuture<List<Map<String, Object>>> future : futures) {
+            for (Map<String, Object> row : future.join()) {
+                counts.merge(((Number) row.get("status")).intValue(), ((Number) row.get("total")).longValue(), Long::sum);
+            }
+        }
+        return counts;
+    }
+
+    /**
+     * 逐个分表打开游标写入csv 同一时间只有一个结果集在读取
+     * 只读事务保证游标遍历期间连接不被归还
+     */
+    @Override
+    @Transactional(readOnly = true)
+    public long exportOrdersOfVoucher(Long voucherId, OrderCsvWriter writer) throws IOException {
+        for (String table : OrderShardRouter.tables()) {
+            try (Cursor<VoucherOrder> cursor = getBaseMapper().scanByVoucherId(table, voucherId)) {
+                writer.writeAll(cursor);
+            }
+        }
+        return writer.getRows();
+    }
 }
@@ -8,6 +8,8 @@ import com.hmdp.entity.SeckillVoucher;
 import com.hmdp.service.ISeckillVoucherService;
 import com.hmdp.service.IVoucherService;
 import com.hmdp.utils.RedisConstants;
+import com.hmdp.utils.SeckillSoldOutRegistry;
+import com.hmdp.utils.SeckillStockManager;
 import org.springframework.data.redis.core.StringRedisTemplate;
 import org.springframework.stereotype.Service;
 import org.springframework.transaction.annotation.Transactional;
@@ -30,6 +32,10 @@ public class VoucherServiceImpl extends ServiceImpl<VoucherMapper, Voucher> impl
     private ISeckillVoucherService seckillVoucherService;
     @Resource
     private StringRedisTemplate stringRedisTemplate;
+    @Resource
+    private SeckillSoldOutRegistry seckillSoldOutRegistry;
+    @Resource
+    private SeckillStockManager seckillStockManager;
 
     @Override
     public Result queryVoucherOfShop(Long shopId) {
@@ -52,6 +58,9 @@ public class VoucherServiceImpl extends ServiceImpl<VoucherMapper, Voucher> impl
         seckillVoucher.setEndTime(voucher.getEndTime());
         seckillVoucherService.save(seckillVoucher);
         //保存秒杀库存到redis当中
-        stringRedisTemplate.opsForValue().set(RedisConstants.SECKILL_STOCK_KEY, voucher.getStock().toString());
+        seckillStockManager.initStock(voucher.getId(), voucher.getStock());
+        seckillStockManager.saveMeta(voucher.getId(), voucher.getBeginTime(), voucher.getEndTime(), voucher.getStock());
+        //有库存了 清除各节点的售罄标记
+        seckillSoldOutRegistry.reset(voucher.getId());
     }
 }
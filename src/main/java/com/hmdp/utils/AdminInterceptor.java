@@ -0,0 +1,42 @@
+package com.hmdp.utils;
+
+import com.hmdp.dto.UserDTO;
+import org.springframework.web.servlet.HandlerInterceptor;
+
+import javax.servlet.DispatcherType;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+import java.util.Collection;
+import java.util.HashSet;
+import java.util.Set;
+
+/**
+ * 运维接口只允许配置的管理员用户访问 在登录拦截器之后执行
+ * 没有配置管理员时所有用户都不能访问
+ */
+public class AdminInterceptor implements HandlerInterceptor {
+
+    private final Set<Long> adminUserIds;
+
+    public AdminInterceptor(Collection<Long> adminUserIds) {
+        this.adminUserIds = new HashSet<>(adminUserIds);
+    }
+
+    @Override
+    public boolean preHandle(HttpServletRequest request, HttpServletResponse response, Object handler) throws Exception {
+        //异步请求完成后的再次分派 第一次分派时已经校验过
+        if (request.getDispatcherType() == DispatcherType.ASYNC) {
+            return true;
+        }
+        UserDTO user = UserHolder.getUser();
+        if (user == null) {
+            response.setStatus(HttpServletResponse.SC_UNAUTHORIZED);
+            return false;
+        }
+        if (!adminUserIds.contains(user.getId())) {
+            response.setStatus(HttpServletResponse.SC_FORBIDDEN);
+            return false;
+        }
+        return true;
+    }
+}
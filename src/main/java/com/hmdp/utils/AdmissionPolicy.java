@@ -0,0 +1,15 @@
+package com.hmdp.utils;
+
+/**
+ * 秒杀准入策略 根据实时信号计算下一个周期允许的并发请求数
+ * 通过hmdp.seckill.admission.policy切换实现 static: StaticAdmissionPolicy aimd: AimdAdmissionPolicy gradient: GradientAdmissionPolicy
+ */
+public interface AdmissionPolicy {
+
+    /**
+     * @param limit 当前的并发上限
+     * @param signals 本周期采集到的信号
+     * @return 新的并发上限 调用方会限制在[minLimit, maxLimit]之间
+     */
+    int nextLimit(int limit, AdmissionSignals signals);
+}
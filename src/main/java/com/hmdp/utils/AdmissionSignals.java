@@ -0,0 +1,40 @@
+package com.hmdp.utils;
+
+import lombok.Data;
+
+/**
+ * 准入控制的实时信号和阈值
+ */
+@Data
+public class AdmissionSignals {
+
+    /**
+     * 订单消息积压 所有分区之和
+     */
+    private long lag;
+    /**
+     * 落库耗时 毫秒
+     */
+    private double dbLatencyMillis;
+    /**
+     * redis耗时 毫秒
+     */
+    private double redisLatencyMillis;
+
+    private long maxLag;
+    private double maxDbLatencyMillis;
+    private double maxRedisLatencyMillis;
+
+    /**
+     * 压力 各信号与阈值之比的最大值 大于1表示过载
+     */
+    public double pressure() {
+        double pressure = (double) lag / maxLag;
+        pressure = Math.max(pressure, dbLatencyMillis / maxDbLatencyMillis);
+        return Math.max(pressure, redisLatencyMillis / maxRedisLatencyMillis);
+    }
+
+    public boolean overloaded() {
+        return pressure() > 1;
+    }
+}
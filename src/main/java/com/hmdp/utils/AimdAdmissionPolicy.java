@@ -0,0 +1,26 @@
+package com.hmdp.utils;
+
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnProperty;
+import org.springframework.stereotype.Component;
+
+/**
+ * 加性增 乘性减 没有过载时每个周期并发上限加increase 过载时乘以backoff
+ */
+@Component
+@ConditionalOnProperty(name = "hmdp.seckill.admission.policy", havingValue = "aimd")
+public class AimdAdmissionPolicy implements AdmissionPolicy {
+
+    @Value("${hmdp.seckill.admission.aimd.increase:10}")
+    private int increase;
+    @Value("${hmdp.seckill.admission.aimd.backoff:0.7}")
+    private double backoff;
+
+    @Override
+    public int nextLimit(int limit, AdmissionSignals signals) {
+        if (signals.overloaded()) {
+            return (int) (limit * backoff);
+        }
+        return limit + increase;
+    }
+}
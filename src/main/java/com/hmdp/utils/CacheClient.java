@@ -4,33 +4,117 @@ import cn.hutool.core.util.BooleanUtil;
 import cn.hutool.core.util.StrUtil;
 import cn.hutool.json.JSONObject;
 import cn.hutool.json.JSONUtil;
-import com.hmdp.entity.Shop;
+import com.github.benmanes.caffeine.cache.Cache;
+import com.github.benmanes.caffeine.cache.Caffeine;
+import com.github.benmanes.caffeine.cache.stats.CacheStats;
 import lombok.extern.slf4j.Slf4j;
-import org.springframework.data.redis.core.RedisTemplate;
+import org.springframework.beans.factory.annotation.Value;
 import org.springframework.data.redis.core.StringRedisTemplate;
+import org.springframework.data.redis.listener.ChannelTopic;
+import org.springframework.data.redis.listener.RedisMessageListenerContainer;
 import org.springframework.stereotype.Component;
 
+import javax.annotation.PostConstruct;
+import java.nio.charset.StandardCharsets;
 import java.time.LocalDateTime;
+import java.util.LinkedHashMap;
+import java.util.Map;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
 import java.util.function.Function;
+import java.util.function.Predicate;
 
+import static com.hmdp.utils.RedisConstants.CACHE_NULL_TTL;
+
+/**
+ * 两级缓存 本地caffeine(W-TinyLFU 按json大小计算权重)加redis 之前可以用布隆过滤器拦截不存在的id
+ * 本地缓存保存反序列化后的对象 命中时不访问redis也不解析json 对象被多个请求共享 调用方不能修改
+ * set*和delete写入redis后通过cache:invalidate频道通知所有节点删除本地缓存
+ * 查询时回填缺失的key不发通知 这时其他节点不会有更新的本地副本
+ */
 @Component
 @Slf4j
 public class CacheClient {
 
+    private static final String CACHE_INVALIDATE_CHANNEL = "cache:invalidate";
+    /**
+     * 本地缓存条目除json之外的固定开销 字节
+     */
+    private static final int ENTRY_OVERHEAD = 64;
+
     private StringRedisTemplate stringRedisTemplate;
 
-    public CacheClient(StringRedisTemplate stringRedisTemplate) {
+    /**
+     * 是否开启本地缓存
+     */
+    @Value("${hmdp.cache.local.enabled:true}")
+    private boolean localEnabled;
+    /**
+     * 本地缓存的最大权重 按json字符数的两倍估算占用的字节
+     */
+    @Value("${hmdp.cache.local.max-weight:67108864}")
+    private long localMaxWeight;
+    /**
+     * 本地缓存的过期时间 丢失失效通知时的兜底 毫秒
+     */
+    @Value("${hmdp.cache.local.ttl:60000}")
+    private long localTtl;
+
+    private Cache<String, LocalEntry> local;
+    /**
+     * 本地缓存的失效次数 读取redis期间发生过失效的结果不放入本地缓存
+     */
+    private final AtomicLong invalidations = new AtomicLong();
+
+    private final LongAdder redisHits = new LongAdder();
+    private final LongAdder redisMisses = new LongAdder();
+    private final LongAdder dbLoads = new LongAdder();
+    private final LongAdder filtered = new LongAdder();
+
+    public CacheClient(StringRedisTemplate stringRedisTemplate,
+                       RedisMessageListenerContainer redisMessageListenerContainer) {
         this.stringRedisTemplate = stringRedisTemplate;
+        //其他节点和本节点写入的key 删除本地副本
+        redisMessageListenerContainer.addMessageListener((message, pattern) ->
+                        invalidateLocal(new String(message.getBody(), StandardCharsets.UTF_8)),
+                new ChannelTopic(CACHE_INVALIDATE_CHANNEL));
+    }
+
+    @PostConstruct
+    private void init() {
+        if (!localEnabled) {
+            return;
+        }
+        local = Caffeine.newBuilder()
+                .maximumWeight(localMaxWeight)
+                .weigher((String key, LocalEntry entry) -> entry.weight)
+                .expireAfterWrite(localTtl, TimeUnit.MILLISECONDS)
+                .recordStats()
+                .build();
     }
 
     public void set(String key, Object value,Long time, TimeUnit timeUnit){
         stringRedisTemplate.opsForValue().set(key,JSONUtil.toJsonStr(value),time,timeUnit);
+        invalidate(key);
     }
 
     public void setWithLogicalExpire(String key, Object value,Long time, TimeUnit timeUnit) {
+        writeWithLogicalExpire(key, value, time, timeUnit);
+        invalidate(key);
+    }
+
+    /**
+     * 删除redis和所有节点的本地缓存
+     */
+    public void delete(String key) {
+        stringRedisTemplate.delete(key);
+        invalidate(key);
+    }
+
+    private void writeWithLogicalExpire(String key, Object value,Long time, TimeUnit timeUnit) {
         //设置逻辑过期
         RedisData redisData = new RedisData();
         redisData.setData(value);
@@ -39,32 +123,89 @@ public class CacheClient {
         stringRedisTemplate.opsForValue().set(key, JSONUtil.toJsonStr(redisData));
     }
 
+    /**
+     * 先删除本地副本 再通知其他节点
+     */
+    private void invalidate(String key) {
+        invalidateLocal(key);
+        stringRedisTemplate.convertAndSend(CACHE_INVALIDATE_CHANNEL, key);
+    }
+
+    private void invalidateLocal(String key) {
+        invalidations.incrementAndGet();
+        if (local != null) {
+            local.invalidate(key);
+        }
+    }
+
+    private LocalEntry getLocal(String key) {
+        return local == null ? null : local.getIfPresent(key);
+    }
+
+    /**
+     * @param version 读取redis之前的失效次数
+     */
+    private void putLocal(String key, Object value, LocalDateTime expireTime, int jsonLength, long version) {
+        if (local == null || invalidations.get() != version) {
+            return;
+        }
+        local.put(key, new LocalEntry(value, expireTime, (key.length() + jsonLength) * 2 + ENTRY_OVERHEAD));
+        //写入期间发生的失效可能已经先执行 再检查一次
+        if (invalidations.get() != version) {
+            local.invalidate(key);
+        }
+    }
+
     public <R,ID>R queryWithPassThrough(
             String prefixkey, ID id, Class<R> clazz, Function<ID,R> dbFallback, Long time, TimeUnit timeUnit) {
+        return queryWithPassThrough(prefixkey, id, clazz, null, dbFallback, time, timeUnit);
+    }
+
+    /**
+     * @param mightExist 布隆过滤器 返回false的id一定不存在 不访问缓存和数据库 也不缓存空值
+     */
+    public <R,ID>R queryWithPassThrough(String prefixkey, ID id, Class<R> clazz, Predicate<ID> mightExist,
+                                        Function<ID,R> dbFallback, Long time, TimeUnit timeUnit) {
+        if (mightExist != null && !mightExist.test(id)) {
+            filtered.increment();
+            return null;
+        }
         String key = prefixkey + id;
+        //从本地缓存查询 空值也会缓存
+        LocalEntry entry = getLocal(key);
+        if (entry != null) {
+            return clazz.cast(entry.value);
+        }
+        long version = invalidations.get();
         //从redis查询
-        String json = stringRedisTemplate.opsForValue().get("cache:shop:" + id);
+        String json = stringRedisTemplate.opsForValue().get(key);
         //判断是否存在
         if (StrUtil.isNotBlank(json)) {
             //若存在 返回
+            redisHits.increment();
             R r = JSONUtil.toBean(json, clazz);
+            putLocal(key, r, null, json.length(), version);
             return r;
         }
         //判断是否为空值
-        if (json == null) {
+        if (json != null) {
+            redisHits.increment();
+            putLocal(key, null, null, 0, version);
             return null;
         }
+        redisMisses.increment();
         //不存在查询数据库
+        dbLoads.increment();
         R r = dbFallback.apply(id);
         //数据库不存在 返回错误
         if (r == null) {
             //将空值写入redis
-            stringRedisTemplate.opsForValue().set(key, "", time, timeUnit);
+            stringRedisTemplate.opsForValue().set(key, "", CACHE_NULL_TTL, TimeUnit.MINUTES);
             //返回错误信息
             return null;
         }
         //存在 写入redis
-        setWithLogicalExpire(key, r, time, timeUnit);
+        stringRedisTemplate.opsForValue().set(key, JSONUtil.toJsonStr(r), time, timeUnit);
         //返回
         return r;
     }
@@ -73,13 +214,21 @@ public class CacheClient {
 
     public <R,ID> R queryWithLogicalExpire(String prefixkey, ID id, Class<R> clazz, Function<ID,R> dbFallback, Long time, TimeUnit timeUnit) {
         String key = prefixkey + id;
+        //本地缓存命中并且没有逻辑过期 直接返回 过期后走redis 由redis的逻辑过期触发重建
+        LocalEntry entry = getLocal(key);
+        if (entry != null && entry.expireTime.isAfter(LocalDateTime.now())) {
+            return clazz.cast(entry.value);
+        }
+        long version = invalidations.get();
         //从redis查询
         String json = stringRedisTemplate.opsForValue().get(key);
         //判断是否存在
         if (StrUtil.isBlank(json)) {
             //若不存在 返回null
+            redisMisses.increment();
             return null;
         }
+        redisHits.increment();
         //命中 把json序列化 从json中获取过期时间
         RedisData data = JSONUtil.toBean(json, RedisData.class);
         R r = JSONUtil.toBean((JSONObject) data.getData(), clazz);
@@ -87,6 +236,7 @@ public class CacheClient {
         //判断是否过期
         if (expireTime.isAfter(LocalDateTime.now())) {
             //未过期 直接返回信息
+            putLocal(key, r, expireTime, json.length(), version);
             return r;
         }
         //已经过期 缓存重建
@@ -99,6 +249,7 @@ public class CacheClient {
                 try {
                     //缓存重建
                     //查询数据库
+                    dbLoads.increment();
                     R apply = dbFallback.apply(id);
                     //写入redis
                     this.setWithLogicalExpire(key, apply, time, timeUnit);
@@ -124,4 +275,51 @@ public class CacheClient {
         stringRedisTemplate.delete(key);
     }
 
+    /**
+     * 两级缓存各自的命中率 本地缓存的命中次数不计入redis
+     */
+    public Map<String, Object> stats() {
+        Map<String, Object> map = new LinkedHashMap<>();
+        Map<String, Object> l1 = new LinkedHashMap<>();
+        l1.put("enabled", local != null);
+        if (local != null) {
+            CacheStats stats = local.stats();
+            l1.put("hits", stats.hitCount());
+            l1.put("misses", stats.missCount());
+            l1.put("hitRate", stats.hitRate());
+            l1.put("evictions", stats.evictionCount());
+            l1.put("size", local.estimatedSize());
+            local.policy().eviction().ifPresent(eviction -> {
+                l1.put("weight", eviction.weightedSize().orElse(0L));
+                l1.put("maxWeight", eviction.getMaximum());
+            });
+        }
+        l1.put("invalidations", invalidations.get());
+        map.put("local", l1);
+        Map<String, Object> l2 = new LinkedHashMap<>();
+        long hits = redisHits.sum();
+        long misses = redisMisses.sum();
+        l2.put("hits", hits);
+        l2.put("misses", misses);
+        l2.put("hitRate", hits + misses == 0 ? 1.0 : (double) hits / (hits + misses));
+        map.put("redis", l2);
+        map.put("dbLoads", dbLoads.sum());
+        map.put("filtered", filtered.sum());
+        return map;
+    }
+
+    /**
+     * 本地缓存条目 value为null表示缓存的空值 expireTime只在逻辑过期方式中使用
+     */
+    private static final class LocalEntry {
+        private final Object value;
+        private final LocalDateTime expireTime;
+        private final int weight;
+
+        LocalEntry(Object value, LocalDateTime expireTime, int weight) {
+            this.value = value;
+            this.expireTime = expireTime;
+            this.weight = weight;
+        }
+    }
 }
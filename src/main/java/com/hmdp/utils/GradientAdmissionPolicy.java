@@ -0,0 +1,32 @@
+package com.hmdp.utils;
+
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnProperty;
+import org.springframework.stereotype.Component;
+
+/**
+ * 梯度 按压力的倒数缩放并发上限 压力越接近阈值调整越平缓
+ * 新上限 = 上限 * min(1 / 压力, 1) + sqrt(上限) 其中sqrt(上限)是留给突发请求的余量 再与旧值做平滑
+ */
+@Component
+@ConditionalOnProperty(name = "hmdp.seckill.admission.policy", havingValue = "gradient")
+public class GradientAdmissionPolicy implements AdmissionPolicy {
+
+    /**
+     * 单个周期最多缩小到原来的一半 避免一次抖动把上限打到底
+     */
+    private static final double MIN_GRADIENT = 0.5;
+
+    @Value("${hmdp.seckill.admission.gradient.smoothing:0.2}")
+    private double smoothing;
+
+    @Override
+    public int nextLimit(int limit, AdmissionSignals signals) {
+        double pressure = signals.pressure();
+        double gradient = pressure <= 0 ? 1 : Math.max(MIN_GRADIENT, Math.min(1, 1 / pressure));
+        //上限为0时也要能恢复
+        int base = Math.max(limit, 1);
+        double target = base * gradient + Math.sqrt(base);
+        return (int) Math.ceil(base * (1 - smoothing) + target * smoothing);
+    }
+}
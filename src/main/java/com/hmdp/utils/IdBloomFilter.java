@@ -0,0 +1,227 @@
+package com.hmdp.utils;
+
+import java.nio.ByteBuffer;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * id布隆过滤器的本地副本 位的顺序和redis的bitmap相同 第i位在第i/8个字节的高位开始
+ * 按大端读取每8个字节为一个long 第i位对应words[i/64]的第63-i%64位
+ * 加载之前mightContain总是返回true 不拦截任何请求
+ */
+public class IdBloomFilter {
+
+    private final String name;
+    /**
+     * 位数 64的倍数
+     */
+    private final long bits;
+    /**
+     * 哈希函数个数
+     */
+    private final int hashes;
+
+    private volatile AtomicLongArray words;
+    /**
+     * 加载期间收到的id 替换之后再写入一次 避免丢失
+     */
+    private volatile boolean loading;
+    private final Queue<Long> loadingAdds = new ConcurrentLinkedQueue<>();
+
+    /**
+     * @param expectedInsertions 预计的id数
+     * @param fpp 误判率
+     */
+    public IdBloomFilter(String name, long expectedInsertions, double fpp) {
+        this.name = name;
+        long n = Math.max(1, expectedInsertions);
+        long m = (long) Math.ceil(-n * Math.log(fpp) / (Math.log(2) * Math.log(2)));
+        this.bits = (m + 63) / 64 * 64;
+        this.hashes = Math.max(1, (int) Math.round((double) bits / n * Math.log(2)));
+    }
+
+    public String getName() {
+        return name;
+    }
+
+    public long getBits() {
+        return bits;
+    }
+
+    public int getHashes() {
+        return hashes;
+    }
+
+    public boolean isReady() {
+        return words != null;
+    }
+
+    public boolean mightContain(long id) {
+        AtomicLongArray current = words;
+        if (current == null) {
+            return true;
+        }
+        for (long offset : offsets(id)) {
+            if ((current.get((int) (offset >>> 6)) & mask(offset)) == 0) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * 只写本地副本 redis由调用方写入
+     */
+    public void addLocal(long id) {
+        //先记录再写入 加载线程替换之后一定能看到
+        if (loading) {
+            loadingAdds.add(id);
+        }
+        AtomicLongArray current = words;
+        if (current == null) {
+            return;
+        }
+        for (long offset : offsets(id)) {
+            int index = (int) (offset >>> 6);
+            long mask = mask(offset);
+            long word;
+            do {
+                word = current.get(index);
+            } while ((word & mask) == 0 && !current.compareAndSet(index, word, word | mask));
+        }
+    }
+
+    /**
+     * 加载之前调用 之后收到的id在替换时补上
+     */
+    public void beginLoad() {
+        loadingAdds.clear();
+        loading = true;
+    }
+
+    /**
+     * 加载失败或者bitmap不存在 保留原来的副本
+     */
+    public void abortLoad() {
+        loading = false;
+        loadingAdds.clear();
+    }
+
+    /**
+     * 用redis的bitmap替换本地副本 bitmap比位数短时剩余的位为0
+     */
+    public void load(byte[] bitmap) {
+        Loader loader = loader();
+        if (bitmap != null) {
+            loader.append(bitmap);
+        }
+        loader.finish();
+    }
+
+    /**
+     * 分段加载 每次GETRANGE读取一段 不需要一次读出整个bitmap
+     */
+    public Loader loader() {
+        return new Loader();
+    }
+
+    public class Loader {
+
+        private final AtomicLongArray array = new AtomicLongArray((int) (bits / 64));
+        /**
+         * 已经加载的字节数
+         */
+        private long position;
+
+        /**
+         * 按顺序追加下一段 redis只保存到最后一个为1的位所在的字节 可能不是8的倍数
+         */
+        public void append(byte[] chunk) {
+            int length = (int) Math.min(chunk.length, bits / 8 - position);
+            for (int i = 0; i < length; i++) {
+                long p = position + i;
+                int index = (int) (p >>> 3);
+                array.lazySet(index, array.get(index) | (chunk[i] & 0xFFL) << (56 - ((p & 7) << 3)));
+            }
+            position += Math.max(length, 0);
+        }
+
+        /**
+         * 替换本地副本 补上加载期间收到的id
+         */
+        public void finish() {
+            words = array;
+            loading = false;
+            Long id;
+            while ((id = loadingAdds.poll()) != null) {
+                addLocal(id);
+            }
+        }
+    }
+
+    /**
+     * 重建时分批加入全部id 最后生成redis的bitmap
+     */
+    public Builder builder() {
+        return new Builder();
+    }
+
+    public class Builder {
+
+        private final long[] array = new long[(int) (bits / 64)];
+
+        public void add(long id) {
+            for (long offset : offsets(id)) {
+                array[(int) (offset >>> 6)] |= mask(offset);
+            }
+        }
+
+        public byte[] toBitmap() {
+            ByteBuffer buffer = ByteBuffer.allocate(array.length * 8);
+            buffer.asLongBuffer().put(array);
+            return buffer.array();
+        }
+    }
+
+    /**
+     * id对应的各个位 两个哈希值组合出hashes个位置
+     */
+    public long[] offsets(long id) {
+        long h1 = mix(id);
+        long h2 = mix(h1 ^ 0x9E3779B97F4A7C15L);
+        long[] offsets = new long[hashes];
+        for (int i = 0; i < hashes; i++) {
+            offsets[i] = ((h1 + i * h2) & Long.MAX_VALUE) % bits;
+        }
+        return offsets;
+    }
+
+    /**
+     * 估算已经设置的位的比例 接近0.5时误判率开始明显上升 应该调大expected-insertions
+     */
+    public double fillRatio() {
+        AtomicLongArray current = words;
+        if (current == null) {
+            return 0;
+        }
+        long count = 0;
+        for (int i = 0; i < current.length(); i++) {
+            count += Long.bitCount(current.get(i));
+        }
+        return (double) count / bits;
+    }
+
+    private static long mask(long offset) {
+        return Long.MIN_VALUE >>> (offset & 63);
+    }
+
+    /**
+     * splitmix64 的最后一步 让连续的id分散开
+     */
+    private static long mix(long z) {
+        z = (z ^ (z >>> 30)) * 0xBF58476D1CE4E5B9L;
+        z = (z ^ (z >>> 27)) * 0x94D049BB133111EBL;
+        return z ^ (z >>> 31);
+    }
+}
@@ -0,0 +1,511 @@
+package com.hmdp.utils;
+
+import com.baomidou.mybatisplus.core.conditions.query.QueryWrapper;
+import com.hmdp.entity.Shop;
+import com.hmdp.entity.User;
+import com.hmdp.mapper.ShopMapper;
+import com.hmdp.mapper.UserMapper;
+import lombok.extern.slf4j.Slf4j;
+import org.redisson.api.RLock;
+import org.redisson.api.RedissonClient;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.core.io.ClassPathResource;
+import org.springframework.data.redis.connection.StringRedisConnection;
+import org.springframework.data.redis.core.RedisCallback;
+import org.springframework.data.redis.core.StringRedisTemplate;
+import org.springframework.data.redis.core.script.DefaultRedisScript;
+import org.springframework.data.redis.listener.ChannelTopic;
+import org.springframework.data.redis.listener.RedisMessageListenerContainer;
+import org.springframework.stereotype.Component;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.Queue;
+import java.util.Set;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.BiFunction;
+
+import static com.hmdp.utils.RedisConstants.BLOOM_FILTER_KEY;
+import static com.hmdp.utils.RedisConstants.LOCK_BLOOM_REBUILD_KEY;
+
+/**
+ * 商铺和用户id的布隆过滤器 拦截不存在的id 不再为每个随机id缓存空值和查询数据库
+ * redis的bitmap bloom:{name}由所有节点共享 同一个过滤器的key使用相同的hash tag 每个节点在本地保存一份副本 判断时只读本地
+ * 新增的id由bloom_add.lua写入bitmap 同时通过bloom:add频道通知其他节点写入本地副本
+ * 不存在bitmap时由获得锁的节点从数据库按id分页生成 之后定期重建清除已删除的id
+ * 重建先写入临时key再RENAME替换 替换后补上id大于扫描最大值的新数据和重建期间新增的id 然后通过bloom:reload通知所有节点重新加载
+ * bloom:{name}:version只在重建时递增 本地副本每sync-interval毫秒检查一次 有变化才重新加载
+ * 每次写入递增bloom:{name}:adds 并在bloom:{name}:recent中保留最近的recent-adds条记录
+ * 版本号没有变化时按写入序号从记录中补上丢失的通知 记录不完整时才重新加载
+ * 加载按load-chunk字节分段GETRANGE 避免一次读取整个大key阻塞redis
+ * 所有节点的expected-insertions和fpp必须一致 否则位置不同 会误判存在的id
+ */
+@Slf4j
+@Component
+public class IdBloomFilters {
+
+    public static final String SHOP = "shop";
+    public static final String USER = "user";
+
+    private static final String BLOOM_ADD_CHANNEL = "bloom:add";
+    private static final String BLOOM_RELOAD_CHANNEL = "bloom:reload";
+    /**
+     * 补充丢失的通知时每次读取的记录数
+     */
+    private static final int RECENT_PAGE = 256;
+
+    private static final DefaultRedisScript<Long> ADD_SCRIPT;
+
+    static {
+        ADD_SCRIPT = new DefaultRedisScript<>();
+        ADD_SCRIPT.setLocation(new ClassPathResource("bloom_add.lua"));
+        ADD_SCRIPT.setResultType(Long.class);
+    }
+
+    private final StringRedisTemplate stringRedisTemplate;
+    private final RedisMessageListenerContainer redisMessageListenerContainer;
+    private final RedissonClient redissonClient;
+    private final ShopMapper shopMapper;
+    private final UserMapper userMapper;
+
+    /**
+     * 是否开启布隆过滤器 关闭时所有id都视为可能存在
+     */
+    @Value("${hmdp.bloom.enabled:true}")
+    private boolean enabled;
+    @Value("${hmdp.bloom.shop.expected-insertions:1000000}")
+    private long shopExpectedInsertions;
+    @Value("${hmdp.bloom.shop.fpp:0.01}")
+    private double shopFpp;
+    @Value("${hmdp.bloom.user.expected-insertions:10000000}")
+    private long userExpectedInsertions;
+    @Value("${hmdp.bloom.user.fpp:0.01}")
+    private double userFpp;
+    /**
+     * 重建时每次查询的id数
+     */
+    @Value("${hmdp.bloom.build-batch:5000}")
+    private int buildBatch;
+    /**
+     * 本地副本从redis重新加载的周期 毫秒
+     */
+    @Value("${hmdp.bloom.sync-interval:60000}")
+    private long syncInterval;
+    /**
+     * 加载时每次GETRANGE读取的字节数
+     */
+    @Value("${hmdp.bloom.load-chunk:1048576}")
+    private int loadChunk;
+    /**
+     * 保留的最近写入记录数 两次检查之间丢失的通知超过该数量时重新加载
+     */
+    @Value("${hmdp.bloom.recent-adds:10000}")
+    private int recentAdds;
+    /**
+     * 重建周期 毫秒
+     */
+    @Value("${hmdp.bloom.rebuild-interval:21600000}")
+    private long rebuildInterval;
+
+    private final Map<String, Entry> filters = new LinkedHashMap<>();
+
+    private final ScheduledExecutorService scheduler = Executors.newSingleThreadScheduledExecutor(r -> {
+        Thread t = new Thread(r, "id-bloom-filter");
+        t.setDaemon(true);
+        return t;
+    });
+
+    public IdBloomFilters(StringRedisTemplate stringRedisTemplate,
+                          RedisMessageListenerContainer redisMessageListenerContainer,
+                          RedissonClient redissonClient,
+                          ShopMapper shopMapper,
+                          UserMapper userMapper) {
+        this.stringRedisTemplate = stringRedisTemplate;
+        this.redisMessageListenerContainer = redisMessageListenerContainer;
+        this.redissonClient = redissonClient;
+        this.shopMapper = shopMapper;
+        this.userMapper = userMapper;
+    }
+
+    @PostConstruct
+    private void init() {
+        filters.put(SHOP, new Entry(new IdBloomFilter(SHOP, shopExpectedInsertions, shopFpp),
+                (last, limit) -> shopMapper.selectObjs(IdBloomFilters.<Shop>idsAfter(last, limit))));
+        filters.put(USER, new Entry(new IdBloomFilter(USER, userExpectedInsertions, userFpp),
+                (last, limit) -> userMapper.selectObjs(IdBloomFilters.<User>idsAfter(last, limit))));
+        if (!enabled) {
+            return;
+        }
+        //消息为 {name}:{id}
+        redisMessageListenerContainer.addMessageListener((message, pattern) -> {
+            String body = new String(message.getBody(), StandardCharsets.UTF_8);
+            int split = body.indexOf(':');
+            Entry entry = split < 0 ? null : filters.get(body.substring(0, split));
+            if (entry == null) {
+                return;
+            }
+            try {
+                long id = Long.parseLong(body.substring(split + 1));
+                //其他节点在重建期间写入的id 可能写在了被替换的旧bitmap中
+                if (entry.rebuilding) {
+                    entry.rebuildAdds.add(id);
+                }
+                entry.filter.addLocal(id);
+            } catch (NumberFormatException e) {
+                log.debug("忽略布隆过滤器消息 {}", body);
+            }
+        }, new ChannelTopic(BLOOM_ADD_CHANNEL));
+        redisMessageListenerContainer.addMessageListener((message, pattern) -> {
+            String name = new String(message.getBody(), StandardCharsets.UTF_8);
+            if (filters.containsKey(name)) {
+                scheduler.execute(() -> reload(name, true));
+            }
+        }, new ChannelTopic(BLOOM_RELOAD_CHANNEL));
+        //启动时在后台加载 加载完成之前不拦截
+        for (String name : filters.keySet()) {
+            scheduler.execute(() -> {
+                if (!reload(name, true)) {
+                    rebuild(name);
+                }
+            });
+            scheduler.scheduleWithFixedDelay(() -> reload(name, false), syncInterval, syncInterval, TimeUnit.MILLISECONDS);
+            scheduler.scheduleWithFixedDelay(() -> rebuild(name),
+                    rebuildInterval, rebuildInterval, TimeUnit.MILLISECONDS);
+        }
+    }
+
+    @PreDestroy
+    private void destroy() {
+        scheduler.shutdownNow();
+    }
+
+    public IdBloomFilter get(String name) {
+        return filters.get(name).filter;
+    }
+
+    /**
+     * id是否可能存在 返回false时一定不存在
+     */
+    public boolean mightContain(String name, Long id) {
+        if (!enabled || id == null) {
+            return true;
+        }
+        Entry entry = filters.get(name);
+        if (entry.filter.mightContain(id)) {
+            return true;
+        }
+        entry.rejected.increment();
+        return false;
+    }
+
+    /**
+     * 新增数据之后调用 写入bitmap和所有节点的本地副本
+     * 写入失败只记录日志 下次重建时会补上
+     */
+    public void add(String name, Long id) {
+        if (!enabled || id == null) {
+            return;
+        }
+        Entry entry = filters.get(name);
+        IdBloomFilter filter = entry.filter;
+        //先记录再写入 重建替换之后一定能补上
+        if (entry.rebuilding) {
+            entry.rebuildAdds.add(id);
+        }
+        filter.addLocal(id);
+        entry.added.increment();
+        addToRedis(name, filter, id);
+    }
+
+    private void addToRedis(String name, IdBloomFilter filter, Long id) {
+        long[] offsets = filter.offsets(id);
+        String[] args = new String[offsets.length + 4];
+        args[0] = BLOOM_ADD_CHANNEL;
+        args[1] = name + ":" + id;
+        args[2] = id.toString();
+        args[3] = String.valueOf(recentAdds);
+        for (int i = 0; i < offsets.length; i++) {
+            args[i + 4] = String.valueOf(offsets[i]);
+        }
+        try {
+            stringRedisTemplate.execute(ADD_SCRIPT, Arrays.asList(bitmapKey(name), addsKey(name), recentKey(name)),
+                    (Object[]) args);
+        } catch (Exception e) {
+            log.error("写入布隆过滤器失败 {} {}", name, id, e);
+        }
+    }
+
+    /**
+     * 从redis分段加载本地副本
+     * 分段之间发生的重建会改变版本号 下个周期再加载一次 分段之间的写入在下个周期按记录补上
+     * @param force 为false时版本号没有变化只补上丢失的通知 不加载
+     * @return bitmap不存在时返回false
+     */
+    private boolean reload(String name, boolean force) {
+        Entry entry = filters.get(name);
+        IdBloomFilter filter = entry.filter;
+        String key = bitmapKey(name);
+        byte[] rawKey = key.getBytes(StandardCharsets.UTF_8);
+        try {
+            String version = stringRedisTemplate.opsForValue().get(versionKey(name));
+            if (!force && filter.isReady() && Objects.equals(version, entry.loadedVersion)
+                    && catchUp(name, entry)) {
+                return true;
+            }
+            //先读取写入序号 加载期间的写入会在下次检查时重复补上
+            long adds = parseLong(stringRedisTemplate.opsForValue().get(addsKey(name)));
+            filter.beginLoad();
+            if (!Boolean.TRUE.equals(stringRedisTemplate.hasKey(key))) {
+                filter.abortLoad();
+                return false;
+            }
+            IdBloomFilter.Loader loader = filter.loader();
+            long size = filter.getBits() / 8;
+            for (long start = 0; start < size; start += loadChunk) {
+                long from = start;
+                long to = Math.min(start + loadChunk, size) - 1;
+                byte[] chunk = stringRedisTemplate.execute(
+                        (RedisCallback<byte[]>) connection -> connection.getRange(rawKey, from, to));
+                if (chunk == null || chunk.length == 0) {
+                    break;
+                }
+                loader.append(chunk);
+                if (chunk.length < to - from + 1) {
+                    //redis中的bitmap到此结束 剩余的位为0
+                    break;
+                }
+            }
+            loader.finish();
+            entry.loadedVersion = version;
+            entry.loadedAdds = adds;
+            return true;
+        } catch (Exception e) {
+            //异常不能抛出 否则定时任务不再执行 redis不可用时也不重建
+            filter.abortLoad();
+            log.error("加载布隆过滤器失败 {}", name, e);
+            return true;
+        }
+    }
+
+    /**
+     * 按写入序号从最近写入的记录中补上丢失的通知 记录按序号从新到旧排列
+     * @return 记录中缺少需要补上的序号时返回false
+     */
+    private boolean catchUp(String name, Entry entry) {
+        long adds = parseLong(stringRedisTemplate.opsForValue().get(addsKey(name)));
+        long loaded = entry.loadedAdds;
+        if (adds <= loaded) {
+            return true;
+        }
+        List<Long> ids = new ArrayList<>();
+        boolean complete = false;
+        for (long start = 0; !complete && start < recentAdds; start += RECENT_PAGE) {
+            List<String> records = stringRedisTemplate.opsForList()
+                    .range(recentKey(name), start, start + RECENT_PAGE - 1);
+            if (records == null || records.isEmpty()) {
+                break;
+            }
+            for (String record : records) {
+                int split = record.indexOf(':');
+                long seq = Long.parseLong(record.substring(0, split));
+                if (seq <= loaded) {
+                    complete = true;
+                    break;
+                }
+                ids.add(Long.parseLong(record.substring(split + 1)));
+                if (seq == loaded + 1) {
+                    complete = true;
+                    break;
+                }
+            }
+            if (records.size() < RECENT_PAGE) {
+                break;
+            }
+        }
+        if (!complete) {
+            log.info("布隆过滤器 {} 丢失的通知超过保留的记录 重新加载", name);
+            return false;
+        }
+        for (Long id : ids) {
+            entry.filter.addLocal(id);
+        }
+        entry.loadedAdds = adds;
+        return true;
+    }
+
+    private void rebuild(String name) {
+        RLock lock = redissonClient.getLock(LOCK_BLOOM_REBUILD_KEY + name);
+        try {
+            if (!lock.tryLock()) {
+                return;
+            }
+        } catch (Exception e) {
+            log.error("获取布隆过滤器重建锁失败 {}", name, e);
+            return;
+        }
+        Entry entry = filters.get(name);
+        try {
+            long begin = System.currentTimeMillis();
+            //扫描开始之后新增的id 提交顺序和id顺序不一定一致 替换之后重新写入
+            entry.rebuildAdds.clear();
+            entry.rebuilding = true;
+            IdBloomFilter.Builder builder = entry.filter.builder();
+            long last = 0;
+            long count = 0;
+            List<Long> ids;
+            do {
+                ids = selectIds(entry.loader, last, buildBatch);
+                for (Long id : ids) {
+                    builder.add(id);
+                }
+                count += ids.size();
+                if (!ids.isEmpty()) {
+                    last = ids.get(ids.size() - 1);
+                }
+            } while (ids.size() == buildBatch);
+            String key = bitmapKey(name);
+            String tmpKey = key + ":tmp";
+            byte[] bitmap = builder.toBitmap();
+            stringRedisTemplate.executePipelined((RedisCallback<Object>) connection -> {
+                StringRedisConnection conn = (StringRedisConnection) connection;
+                conn.set(tmpKey.getBytes(StandardCharsets.UTF_8), bitmap);
+                conn.rename(tmpKey, key);
+                conn.incr(versionKey(name));
+                return null;
+            });
+            //扫描期间新增的id可能只写入了旧的bitmap
+            long caughtUp = 0;
+            do {
+                ids = selectIds(entry.loader, last, buildBatch);
+                for (Long id : ids) {
+                    add(name, id);
+                }
+                caughtUp += ids.size();
+                if (!ids.isEmpty()) {
+                    last = ids.get(ids.size() - 1);
+                }
+            } while (ids.size() == buildBatch);
+            //之后新增的id直接写入新的bitmap 再补上重建期间记录的id
+            entry.rebuilding = false;
+            Set<Long> added = new HashSet<>();
+            Long id;
+            while ((id = entry.rebuildAdds.poll()) != null) {
+                if (added.add(id)) {
+                    addToRedis(name, entry.filter, id);
+                }
+            }
+            entry.lastRebuild = System.currentTimeMillis();
+            entry.lastRebuildCount = count + caughtUp;
+            stringRedisTemplate.convertAndSend(BLOOM_RELOAD_CHANNEL, name);
+            log.info("重建布隆过滤器 {} id数{} 补充{} 重建期间新增{} 用时{}毫秒", name, count, caughtUp, added.size(),
+                    System.currentTimeMillis() - begin);
+        } catch (Exception e) {
+            //异常不能抛出 否则定时任务不再执行
+            log.error("重建布隆过滤器失败 {}", name, e);
+        } finally {
+            entry.rebuilding = false;
+            lock.unlock();
+        }
+    }
+
+    private static String bitmapKey(String name) {
+        return BLOOM_FILTER_KEY + "{" + name + "}";
+    }
+
+    private static String versionKey(String name) {
+        return bitmapKey(name) + ":version";
+    }
+
+    private static String addsKey(String name) {
+        return bitmapKey(name) + ":adds";
+    }
+
+    private static String recentKey(String name) {
+        return bitmapKey(name) + ":recent";
+    }
+
+    private static long parseLong(String value) {
+        return value == null ? 0 : Long.parseLong(value);
+    }
+
+    /**
+     * 按主键顺序查询大于last的id
+     */
+    private static <T> QueryWrapper<T> idsAfter(long last, int limit) {
+        return new QueryWrapper<T>()
+                .select("id")
+                .gt("id", last)
+                .orderByAsc("id")
+                .last("limit " + limit);
+    }
+
+    private static List<Long> selectIds(BiFunction<Long, Integer, List<Object>> loader, long last, int limit) {
+        List<Object> objs = loader.apply(last, limit);
+        List<Long> ids = new ArrayList<>(objs.size());
+        for (Object obj : objs) {
+            ids.add(((Number) obj).longValue());
+        }
+        return ids;
+    }
+
+    public Map<String, Object> snapshot() {
+        Map<String, Object> map = new LinkedHashMap<>();
+        map.put("enabled", enabled);
+        filters.forEach((name, entry) -> {
+            IdBloomFilter filter = entry.filter;
+            Map<String, Object> m = new LinkedHashMap<>();
+            m.put("ready", filter.isReady());
+            m.put("bits", filter.getBits());
+            m.put("hashes", filter.getHashes());
+            m.put("fillRatio", filter.fillRatio());
+            m.put("rejected", entry.rejected.sum());
+            m.put("added", entry.added.sum());
+            m.put("lastRebuild", entry.lastRebuild);
+            m.put("lastRebuildCount", entry.lastRebuildCount);
+            map.put(name, m);
+        });
+        return map;
+    }
+
+    private static final class Entry {
+        private final IdBloomFilter filter;
+        /**
+         * 查询大于last的limit个id
+         */
+        private final BiFunction<Long, Integer, List<Object>> loader;
+        private final LongAdder rejected = new LongAdder();
+        private final LongAdder added = new LongAdder();
+        private volatile long lastRebuild;
+        private volatile long lastRebuildCount;
+        /**
+         * 本地副本加载时的版本号
+         */
+        private volatile String loadedVersion;
+        /**
+         * 本地副本已经包含的写入序号
+         */
+        private volatile long loadedAdds;
+        /**
+         * 重建期间新增的id
+         */
+        private volatile boolean rebuilding;
+        private final Queue<Long> rebuildAdds = new ConcurrentLinkedQueue<>();
+
+        Entry(IdBloomFilter filter, BiFunction<Long, Integer, List<Object>> loader) {
+            this.filter = filter;
+            this.loader = loader;
+        }
+    }
+}
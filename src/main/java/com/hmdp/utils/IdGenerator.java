@@ -0,0 +1,33 @@
+package com.hmdp.utils;
+
+import java.util.concurrent.CompletableFuture;
+
+/**
+ * 全局唯一id生成器
+ * 通过hmdp.id.generator切换实现 redis: RedisIdWorker snowflake: SnowflakeIdGenerator
+ */
+public interface IdGenerator {
+
+    /**
+     * 生成下一个id
+     * @param keyPrefix 业务前缀
+     * @return 全局唯一id
+     */
+    long nextId(String keyPrefix);
+
+    /**
+     * 异步生成下一个id 不需要访问redis的实现直接在调用线程生成
+     * @param keyPrefix 业务前缀
+     * @return 全局唯一id
+     */
+    default CompletableFuture<Long> nextIdAsync(String keyPrefix) {
+        return CompletableFuture.completedFuture(nextId(keyPrefix));
+    }
+
+    /**
+     * 从id中解析出生成时的时间
+     * @param id nextId生成的id
+     * @return 毫秒时间戳
+     */
+    long timestampOf(long id);
+}
@@ -8,6 +8,7 @@ import org.aopalliance.intercept.Interceptor;
 import org.springframework.data.redis.core.StringRedisTemplate;
 import org.springframework.web.servlet.HandlerInterceptor;
 
+import javax.servlet.DispatcherType;
 import javax.servlet.http.HttpServletRequest;
 import javax.servlet.http.HttpServletResponse;
 import javax.servlet.http.HttpSession;
@@ -22,6 +23,10 @@ public class LoginInterceptor implements HandlerInterceptor {
 
     @Override
     public boolean preHandle(HttpServletRequest request, HttpServletResponse response, Object handler) throws Exception {
+        //异步请求完成后的再次分派 第一次分派时已经校验过
+        if (request.getDispatcherType() == DispatcherType.ASYNC) {
+            return true;
+        }
         if (UserHolder.getUser() == null) {
             response.setStatus(HttpServletResponse.SC_UNAUTHORIZED);
             //拦截
@@ -0,0 +1,125 @@
+package com.hmdp.utils;
+
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.stereotype.Component;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * 秒杀订单消费吞吐统计
+ */
+@Slf4j
+@Component
+public class OrderConsumeMetrics {
+
+    /**
+     * 统计周期 秒
+     */
+    private static final long REPORT_PERIOD = 10L;
+
+    private final LongAdder orders = new LongAdder();
+    private final LongAdder batches = new LongAdder();
+    private final LongAdder failures = new LongAdder();
+    private final LongAdder costNanos = new LongAdder();
+
+    private volatile long lastOrders;
+    private volatile double ordersPerSecond;
+
+    /**
+     * 落库耗时的指数加权平均 毫秒 准入控制的信号之一
+     */
+    private static final double EWMA_ALPHA = 0.2;
+    private volatile double dbLatencyMillis;
+    /**
+     * 落库耗时的采样次数 准入控制据此判断周期内有没有新的样本
+     */
+    private volatile long dbSamples;
+
+    private final ScheduledExecutorService scheduler = Executors.newSingleThreadScheduledExecutor(r -> {
+        Thread t = new Thread(r, "order-consume-metrics");
+        t.setDaemon(true);
+        return t;
+    });
+
+    @PostConstruct
+    private void init() {
+        scheduler.scheduleAtFixedRate(this::report, REPORT_PERIOD, REPORT_PERIOD, TimeUnit.SECONDS);
+    }
+
+    @PreDestroy
+    private void destroy() {
+        scheduler.shutdownNow();
+    }
+
+    /**
+     * 记录一次成功落库
+     * @param size 本次处理的订单数
+     * @param nanos 耗时
+     */
+    public void record(int size, long nanos) {
+        orders.add(size);
+        batches.increment();
+        costNanos.add(nanos);
+    }
+
+    /**
+     * 记录一次落库调用的耗时 批量时按订单数平均 和单条落库的阈值比较
+     * @param size 本次落库的订单数
+     */
+    public synchronized void recordDbLatency(int size, long nanos) {
+        dbLatencyMillis = dbLatencyMillis * (1 - EWMA_ALPHA) + nanos / 1e6 / Math.max(size, 1) * EWMA_ALPHA;
+        dbSamples++;
+    }
+
+    /**
+     * 没有新样本时衰减 准入全部拒绝后不再落库 耗时不衰减就永远不会恢复
+     */
+    public synchronized void decayDbLatency() {
+        dbLatencyMillis = dbLatencyMillis * (1 - EWMA_ALPHA);
+    }
+
+    public long getDbSamples() {
+        return dbSamples;
+    }
+
+    public double getDbLatencyMillis() {
+        return dbLatencyMillis;
+    }
+
+    /**
+     * 记录处理失败的订单数
+     */
+    public void recordFailure(int size) {
+        failures.add(size);
+    }
+
+    public Map<String, Object> snapshot() {
+        long total = orders.sum();
+        long batchCount = batches.sum();
+        Map<String, Object> map = new LinkedHashMap<>();
+        map.put("orders", total);
+        map.put("batches", batchCount);
+        map.put("failures", failures.sum());
+        map.put("avgBatchSize", batchCount == 0 ? 0 : (double) total / batchCount);
+        map.put("avgBatchMillis", batchCount == 0 ? 0 : costNanos.sum() / 1e6 / batchCount);
+        map.put("ordersPerSecond", ordersPerSecond);
+        map.put("dbLatencyMillis", dbLatencyMillis);
+        return map;
+    }
+
+    private void report() {
+        long total = orders.sum();
+        ordersPerSecond = (double) (total - lastOrders) / REPORT_PERIOD;
+        lastOrders = total;
+        if (ordersPerSecond > 0) {
+            log.info("订单消费吞吐 {}", snapshot());
+        }
+    }
+}
@@ -0,0 +1,133 @@
+package com.hmdp.utils;
+
+import com.hmdp.entity.VoucherOrder;
+
+import java.io.BufferedWriter;
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.time.LocalDateTime;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * 把订单逐行写成csv 不缓存行 内存占用只有固定大小的缓冲区
+ * 不关心数据来源 数据库游标和生成的测试数据都可以写入
+ */
+public class OrderCsvWriter implements Closeable {
+
+    private static final String HEADER =
+            "id,user_id,voucher_id,pay_type,status,create_time,pay_time,use_time,refund_time,update_time\n";
+    private static final int BUFFER_SIZE = 64 * 1024;
+
+    private final Writer writer;
+    private final GZIPOutputStream gzip;
+    /**
+     * 格式化数字和时间的缓冲区 每行复用 不产生临时字符串
+     */
+    private final char[] chars = new char[20];
+    private long rows;
+
+    /**
+     * @param out 输出流 写完之后由close关闭
+     * @param gzip 是否压缩
+     */
+    public OrderCsvWriter(OutputStream out, boolean gzip) throws IOException {
+        this.gzip = gzip ? new GZIPOutputStream(out, BUFFER_SIZE) : null;
+        this.writer = new BufferedWriter(new OutputStreamWriter(gzip ? this.gzip : out, StandardCharsets.UTF_8),
+                BUFFER_SIZE);
+        writer.write(HEADER);
+    }
+
+    public void write(VoucherOrder order) throws IOException {
+        writeValue(order.getId());
+        writer.write(',');
+        writeValue(order.getUserId());
+        writer.write(',');
+        writeValue(order.getVoucherId());
+        writer.write(',');
+        writeValue(order.getPayType());
+        writer.write(',');
+        writeValue(order.getStatus());
+        writer.write(',');
+        writeTime(order.getCreateTime());
+        writer.write(',');
+        writeTime(order.getPayTime());
+        writer.write(',');
+        writeTime(order.getUseTime());
+        writer.write(',');
+        writeTime(order.getRefundTime());
+        writer.write(',');
+        writeTime(order.getUpdateTime());
+        writer.write('\n');
+        rows++;
+    }
+
+    /**
+     * 依次写入 游标在遍历时才从数据库读取下一行
+     */
+    public void writeAll(Iterable<VoucherOrder> orders) throws IOException {
+        for (VoucherOrder order : orders) {
+            write(order);
+        }
+    }
+
+    public long getRows() {
+        return rows;
+    }
+
+    private void writeValue(Number value) throws IOException {
+        if (value == null) {
+            return;
+        }
+        long v = value.longValue();
+        if (v < 0) {
+            writer.write('-');
+            v = -v;
+        }
+        int pos = chars.length;
+        do {
+            chars[--pos] = (char) ('0' + v % 10);
+            v /= 10;
+        } while (v > 0);
+        writer.write(chars, pos, chars.length - pos);
+    }
+
+    /**
+     * yyyy-MM-dd HH:mm:ss
+     */
+    private void writeTime(LocalDateTime time) throws IOException {
+        if (time == null) {
+            return;
+        }
+        digits(0, time.getYear(), 4);
+        chars[4] = '-';
+        digits(5, time.getMonthValue(), 2);
+        chars[7] = '-';
+        digits(8, time.getDayOfMonth(), 2);
+        chars[10] = ' ';
+        digits(11, time.getHour(), 2);
+        chars[13] = ':';
+        digits(14, time.getMinute(), 2);
+        chars[16] = ':';
+        digits(17, time.getSecond(), 2);
+        writer.write(chars, 0, 19);
+    }
+
+    private void digits(int offset, int value, int width) {
+        for (int i = offset + width - 1; i >= offset; i--) {
+            chars[i] = (char) ('0' + value % 10);
+            value /= 10;
+        }
+    }
+
+    /**
+     * 刷出缓冲区 压缩时写入gzip结尾
+     */
+    @Override
+    public void close() throws IOException {
+        writer.close();
+    }
+}
@@ -0,0 +1,251 @@
+package com.hmdp.utils;
+
+import com.hmdp.entity.VoucherOrder;
+import io.netty.util.HashedWheelTimer;
+import io.netty.util.Timeout;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.core.io.ClassPathResource;
+import org.springframework.data.redis.connection.StringRedisConnection;
+import org.springframework.data.redis.core.RedisCallback;
+import org.springframework.data.redis.core.StringRedisTemplate;
+import org.springframework.data.redis.core.ZSetOperations;
+import org.springframework.data.redis.core.script.DefaultRedisScript;
+import org.springframework.stereotype.Component;
+
+import javax.annotation.PreDestroy;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Queue;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Consumer;
+
+import static com.hmdp.utils.RedisConstants.ORDER_DELAY_KEY;
+import static com.hmdp.utils.RedisConstants.ORDER_DELAY_PROCESSING_KEY;
+
+/**
+ * 未支付订单的延时取消队列
+ * 订单落库后写入zset order:delay:cancel score为支付截止时间 member为voucherId:userId:orderId
+ * 各节点定时取出lookahead内到期的成员放进本地时间轮 到期后攒批 用lua脚本从zset领取 多个节点只有一个领取成功
+ * 领取的成员放在处理中队列 处理完删除 节点宕机时超时放回 zset只按score范围查询 不扫描订单表
+ */
+@Slf4j
+@Component
+public class OrderDelayQueue {
+
+    private static final DefaultRedisScript<List> CLAIM_SCRIPT;
+    private static final DefaultRedisScript<Long> REQUEUE_SCRIPT;
+
+    static {
+        CLAIM_SCRIPT = new DefaultRedisScript<>();
+        CLAIM_SCRIPT.setLocation(new ClassPathResource("order_delay_claim.lua"));
+        CLAIM_SCRIPT.setResultType(List.class);
+        REQUEUE_SCRIPT = new DefaultRedisScript<>();
+        REQUEUE_SCRIPT.setLocation(new ClassPathResource("order_delay_requeue.lua"));
+        REQUEUE_SCRIPT.setResultType(Long.class);
+    }
+
+    private final StringRedisTemplate stringRedisTemplate;
+    private final IdGenerator idGenerator;
+
+    /**
+     * 是否开启超时取消
+     */
+    @Value("${hmdp.seckill.order.cancel.enabled:true}")
+    private boolean enabled;
+    /**
+     * 支付超时时间 毫秒
+     */
+    @Value("${hmdp.seckill.order.cancel.pay-timeout:900000}")
+    private long payTimeout;
+    /**
+     * 每次把多长时间内到期的成员放进时间轮 毫秒
+     */
+    @Value("${hmdp.seckill.order.cancel.lookahead:10000}")
+    private long lookahead;
+    /**
+     * 每次最多放进时间轮的成员数 积压时分多次加载
+     */
+    @Value("${hmdp.seckill.order.cancel.load-limit:10000}")
+    private int loadLimit;
+    /**
+     * 每批最多取消的订单数
+     */
+    @Value("${hmdp.seckill.order.cancel.batch-size:100}")
+    private int batchSize;
+    /**
+     * 攒批的最长时间 毫秒
+     */
+    @Value("${hmdp.seckill.order.cancel.flush-interval:200}")
+    private long flushInterval;
+    /**
+     * 领取后多久没有处理完放回延时队列 毫秒
+     */
+    @Value("${hmdp.seckill.order.cancel.processing-timeout:60000}")
+    private long processingTimeout;
+
+    /**
+     * 已经放进时间轮的成员 避免重复加载
+     */
+    private final Set<String> scheduled = ConcurrentHashMap.newKeySet();
+    /**
+     * 时间轮中已经到期 等待攒批领取的成员
+     */
+    private final Queue<String> due = new ConcurrentLinkedQueue<>();
+
+    private final HashedWheelTimer timer = new HashedWheelTimer(r -> {
+        Thread t = new Thread(r, "order-delay-wheel");
+        t.setDaemon(true);
+        return t;
+    }, 100, TimeUnit.MILLISECONDS, 512);
+
+    private final ScheduledExecutorService scheduler = Executors.newScheduledThreadPool(2, r -> {
+        Thread t = new Thread(r, "order-delay");
+        t.setDaemon(true);
+        return t;
+    });
+
+    public OrderDelayQueue(StringRedisTemplate stringRedisTemplate, IdGenerator idGenerator) {
+        this.stringRedisTemplate = stringRedisTemplate;
+        this.idGenerator = idGenerator;
+    }
+
+    @PreDestroy
+    private void destroy() {
+        scheduler.shutdownNow();
+        timer.stop();
+    }
+
+    public boolean isEnabled() {
+        return enabled;
+    }
+
+    /**
+     * 开始加载和处理到期的订单
+     * @param handler 取消一批订单 抛出异常表示失败 成员留在处理中队列 超时后重试
+     */
+    public synchronized void start(Consumer<List<VoucherOrder>> handler) {
+        if (!enabled) {
+            return;
+        }
+        long loadInterval = Math.max(lookahead / 2, 1000);
+        scheduler.scheduleWithFixedDelay(this::load, 0, loadInterval, TimeUnit.MILLISECONDS);
+        scheduler.scheduleWithFixedDelay(() -> flush(handler), flushInterval, flushInterval, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * 订单落库后加入延时队列 截止时间按订单id中的时间计算 重复加入不会推迟截止时间
+     */
+    public void add(Collection<VoucherOrder> voucherOrders) {
+        if (!enabled || voucherOrders.isEmpty()) {
+            return;
+        }
+        stringRedisTemplate.executePipelined((RedisCallback<Object>) connection -> {
+            StringRedisConnection conn = (StringRedisConnection) connection;
+            for (VoucherOrder voucherOrder : voucherOrders) {
+                conn.zAdd(ORDER_DELAY_KEY, idGenerator.timestampOf(voucherOrder.getId()) + payTimeout,
+                        member(voucherOrder));
+            }
+            return null;
+        });
+    }
+
+    /**
+     * 把lookahead内到期的成员放进时间轮 顺便放回处理超时的成员
+     */
+    private void load() {
+        try {
+            Long requeued = stringRedisTemplate.execute(REQUEUE_SCRIPT,
+                    Arrays.asList(ORDER_DELAY_KEY, ORDER_DELAY_PROCESSING_KEY),
+                    String.valueOf(processingTimeout), String.valueOf(loadLimit));
+            if (requeued != null && requeued > 0) {
+                log.warn("{}个超时取消任务处理超时 放回延时队列", requeued);
+            }
+            long now = System.currentTimeMillis();
+            Set<ZSetOperations.TypedTuple<String>> tuples = stringRedisTemplate.opsForZSet()
+                    .rangeByScoreWithScores(ORDER_DELAY_KEY, 0, now + lookahead, 0, loadLimit);
+            if (tuples == null) {
+                return;
+            }
+            for (ZSetOperations.TypedTuple<String> tuple : tuples) {
+                String member = tuple.getValue();
+                if (member == null || tuple.getScore() == null || !scheduled.add(member)) {
+                    continue;
+                }
+                long delay = Math.max(tuple.getScore().longValue() - now, 0);
+                timer.newTimeout((Timeout timeout) -> due.add(member), delay, TimeUnit.MILLISECONDS);
+            }
+        } catch (Exception e) {
+            log.error("加载超时取消任务失败", e);
+        }
+    }
+
+    /**
+     * 领取到期的成员 按批交给handler
+     */
+    private void flush(Consumer<List<VoucherOrder>> handler) {
+        while (!due.isEmpty()) {
+            List<String> batch = new ArrayList<>(batchSize);
+            String member;
+            while (batch.size() < batchSize && (member = due.poll()) != null) {
+                batch.add(member);
+            }
+            try {
+                process(batch, handler);
+            } catch (Exception e) {
+                log.error("取消超时订单失败 {}条", batch.size(), e);
+            } finally {
+                //领取失败的成员还在zset中 下次加载时重新放进时间轮
+                scheduled.removeAll(batch);
+            }
+        }
+    }
+
+    @SuppressWarnings("unchecked")
+    private void process(List<String> batch, Consumer<List<VoucherOrder>> handler) {
+        List<String> claimed = stringRedisTemplate.execute(CLAIM_SCRIPT,
+                Arrays.asList(ORDER_DELAY_KEY, ORDER_DELAY_PROCESSING_KEY), batch.toArray());
+        if (claimed == null || claimed.isEmpty()) {
+            return;
+        }
+        List<VoucherOrder> voucherOrders = new ArrayList<>(claimed.size());
+        for (String member : claimed) {
+            voucherOrders.add(parse(member));
+        }
+        handler.accept(voucherOrders);
+        stringRedisTemplate.opsForZSet().remove(ORDER_DELAY_PROCESSING_KEY, claimed.toArray());
+    }
+
+    /**
+     * 延时队列和处理中队列的长度
+     */
+    public Map<String, Long> stats() {
+        Map<String, Long> map = new LinkedHashMap<>();
+        map.put("delayed", stringRedisTemplate.opsForZSet().zCard(ORDER_DELAY_KEY));
+        map.put("processing", stringRedisTemplate.opsForZSet().zCard(ORDER_DELAY_PROCESSING_KEY));
+        map.put("scheduled", (long) scheduled.size());
+        return map;
+    }
+
+    private String member(VoucherOrder voucherOrder) {
+        return voucherOrder.getVoucherId() + ":" + voucherOrder.getUserId() + ":" + voucherOrder.getId();
+    }
+
+    private VoucherOrder parse(String member) {
+        String[] parts = member.split(":");
+        VoucherOrder voucherOrder = new VoucherOrder();
+        voucherOrder.setVoucherId(Long.valueOf(parts[0]));
+        voucherOrder.setUserId(Long.valueOf(parts[1]));
+        voucherOrder.setId(Long.valueOf(parts[2]));
+        return voucherOrder;
+    }
+}
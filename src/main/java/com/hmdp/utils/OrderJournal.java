@@ -0,0 +1,373 @@
+package com.hmdp.utils;
+
+import com.hmdp.entity.VoucherOrder;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Consumer;
+import java.util.zip.CRC32;
+
+/**
+ * 订单日志
+ * lua脚本放行的订单在返回前追加到本地的内存映射文件 redis主从切换丢掉消息时可以从这里恢复
+ * 文件按固定大小分段 每条记录32字节 magic crc 订单id 用户id 优惠券id
+ * 刷盘策略 ALWAYS 每条记录刷一次 GROUP 后台线程把同一时间段的写入合并成一次刷盘 NONE 只写入页缓存 进程崩溃不丢 断电可能丢
+ * 启动时把上次留下的分段全部重放到createVoucher 写满或者空闲的分段在订单都有了最终状态之后删除
+ */
+@Slf4j
+@Component
+public class OrderJournal {
+
+    public enum SyncPolicy {
+        ALWAYS, GROUP, NONE
+    }
+
+    private static final int RECORD_SIZE = 32;
+    private static final int MAGIC = 0x4F4A4E4C;
+    private static final String SUFFIX = ".journal";
+
+    private final OrderStatusRegistry orderStatusRegistry;
+
+    /**
+     * 是否开启订单日志
+     */
+    @Value("${hmdp.seckill.journal.enabled:false}")
+    private boolean enabled;
+    /**
+     * 日志目录
+     */
+    @Value("${hmdp.seckill.journal.dir:./data/order-journal}")
+    private String dir;
+    /**
+     * 刷盘策略
+     */
+    @Value("${hmdp.seckill.journal.sync:GROUP}")
+    private SyncPolicy sync;
+    /**
+     * 每个分段文件的大小 字节
+     */
+    @Value("${hmdp.seckill.journal.segment-size:67108864}")
+    private int segmentSize;
+    /**
+     * 检查分段能否删除的周期 毫秒
+     */
+    @Value("${hmdp.seckill.journal.truncate-interval:30000}")
+    private long truncateInterval;
+    /**
+     * 分段封存多久之后开始检查 给消费者留出落库的时间 毫秒
+     */
+    @Value("${hmdp.seckill.journal.truncate-delay:60000}")
+    private long truncateDelay;
+    /**
+     * 分段封存多久之后仍然是PENDING的订单直接重放 毫秒
+     */
+    @Value("${hmdp.seckill.journal.replay-after:300000}")
+    private long replayAfter;
+
+    /**
+     * 已经封存的分段 key为分段序号 value为封存时间
+     */
+    private final Map<Long, Long> sealed = new ConcurrentSkipListMap<>();
+
+    private long segmentSeq;
+    private MappedByteBuffer current;
+    private long lastWrite;
+
+    /**
+     * 已经写入的记录数和已经刷盘的记录数 GROUP策略下请求线程等待刷盘追上自己的序号
+     */
+    private long written;
+    private long flushed;
+    private final Object flushLock = new Object();
+
+    private volatile boolean running;
+    private Thread flusher;
+
+    private final ScheduledExecutorService scheduler = Executors.newSingleThreadScheduledExecutor(r -> {
+        Thread t = new Thread(r, "order-journal-truncate");
+        t.setDaemon(true);
+        return t;
+    });
+
+    public OrderJournal(OrderStatusRegistry orderStatusRegistry) {
+        this.orderStatusRegistry = orderStatusRegistry;
+    }
+
+    @PostConstruct
+    public void init() throws IOException {
+        if (!enabled) {
+            return;
+        }
+        Files.createDirectories(Paths.get(dir));
+        //上次留下的分段都当作已封存 新分段的序号接在后面
+        for (Long seq : listSegments()) {
+            sealed.put(seq, 0L);
+            segmentSeq = Math.max(segmentSeq, seq);
+        }
+        running = true;
+        if (sync == SyncPolicy.GROUP) {
+            flusher = new Thread(this::flushLoop, "order-journal-flush");
+            flusher.setDaemon(true);
+            flusher.start();
+        }
+    }
+
+    @PreDestroy
+    public void destroy() {
+        if (!enabled) {
+            return;
+        }
+        running = false;
+        scheduler.shutdownNow();
+        synchronized (flushLock) {
+            flushLock.notifyAll();
+        }
+        synchronized (this) {
+            if (current != null) {
+                current.force();
+            }
+        }
+    }
+
+    /**
+     * 开始重放和清理
+     * @param handler 重放订单 重复调用必须是幂等的 抛出异常表示失败 分段保留到下次
+     */
+    public synchronized void start(Consumer<VoucherOrder> handler) {
+        if (!enabled) {
+            return;
+        }
+        scheduler.scheduleWithFixedDelay(() -> truncate(handler), 0, truncateInterval, TimeUnit.MILLISECONDS);
+    }
+
+    public boolean isEnabled() {
+        return enabled;
+    }
+
+    /**
+     * 追加一条订单 按刷盘策略返回
+     */
+    public void append(long orderId, Long userId, Long voucherId) throws IOException {
+        long seq;
+        synchronized (this) {
+            if (current == null || current.remaining() < RECORD_SIZE) {
+                roll();
+            }
+            ByteBuffer record = ByteBuffer.allocate(RECORD_SIZE);
+            record.putInt(MAGIC).putInt(0).putLong(orderId).putLong(userId).putLong(voucherId);
+            record.putInt(4, crc(record.array()));
+            current.put(record.array());
+            lastWrite = System.currentTimeMillis();
+            seq = ++written;
+            if (sync == SyncPolicy.ALWAYS) {
+                current.force();
+                return;
+            }
+        }
+        if (sync == SyncPolicy.GROUP) {
+            synchronized (flushLock) {
+                flushLock.notifyAll();
+                while (flushed < seq && running) {
+                    try {
+                        flushLock.wait();
+                    } catch (InterruptedException e) {
+                        Thread.currentThread().interrupt();
+                        throw new IOException("等待刷盘被中断", e);
+                    }
+                }
+            }
+        }
+    }
+
+    /**
+     * 有未刷盘的记录就刷一次 刷盘期间到达的写入在下一次一起刷
+     */
+    private void flushLoop() {
+        while (running) {
+            long target;
+            MappedByteBuffer buffer;
+            synchronized (flushLock) {
+                while (running && flushed >= writtenSnapshot()) {
+                    try {
+                        flushLock.wait();
+                    } catch (InterruptedException e) {
+                        return;
+                    }
+                }
+            }
+            synchronized (this) {
+                target = written;
+                buffer = current;
+            }
+            //之前的分段在封存时已经刷过盘
+            if (buffer != null) {
+                buffer.force();
+            }
+            synchronized (flushLock) {
+                flushed = target;
+                flushLock.notifyAll();
+            }
+        }
+    }
+
+    private synchronized long writtenSnapshot() {
+        return written;
+    }
+
+    /**
+     * 封存当前分段 创建下一个分段
+     */
+    private void roll() throws IOException {
+        seal();
+        segmentSeq++;
+        Path path = segmentPath(segmentSeq);
+        try (RandomAccessFile file = new RandomAccessFile(path.toFile(), "rw")) {
+            file.setLength(segmentSize);
+            current = file.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, segmentSize);
+        }
+    }
+
+    private void seal() {
+        if (current == null) {
+            return;
+        }
+        current.force();
+        sealed.put(segmentSeq, System.currentTimeMillis());
+        current = null;
+    }
+
+    /**
+     * 删除订单都有了最终状态的分段
+     * 状态丢失或者长时间PENDING的订单直接重放 createVoucher按唯一索引去重 重复重放没有副作用
+     */
+    private void truncate(Consumer<VoucherOrder> handler) {
+        //空闲的分段也封存 否则低流量时一直不能删除
+        synchronized (this) {
+            if (current != null && current.position() > 0
+                    && System.currentTimeMillis() - lastWrite > truncateDelay) {
+                seal();
+            }
+        }
+        long now = System.currentTimeMillis();
+        for (Map.Entry<Long, Long> entry : sealed.entrySet()) {
+            Long seq = entry.getKey();
+            long sealedAt = entry.getValue();
+            if (now - sealedAt < truncateDelay) {
+                continue;
+            }
+            try {
+                List<VoucherOrder> orders = read(segmentPath(seq));
+                //启动前留下的分段全部重放
+                boolean replayAll = sealedAt == 0;
+                if (!replayAll && !settle(orders, now - sealedAt >= replayAfter, handler)) {
+                    continue;
+                }
+                if (replayAll) {
+                    orders.forEach(handler);
+                    log.info("重放订单日志 分段{} {}条", seq, orders.size());
+                }
+                Files.deleteIfExists(segmentPath(seq));
+                sealed.remove(seq);
+            } catch (Exception e) {
+                log.error("清理订单日志失败 分段{}", seq, e);
+            }
+        }
+    }
+
+    /**
+     * @return 分段中的订单是否都已经有了最终状态
+     */
+    private boolean settle(List<VoucherOrder> orders, boolean replayPending, Consumer<VoucherOrder> handler) {
+        List<Long> orderIds = new ArrayList<>(orders.size());
+        for (VoucherOrder order : orders) {
+            orderIds.add(order.getId());
+        }
+        List<OrderStatusRegistry.Status> statuses = orderStatusRegistry.get(orderIds);
+        int replayed = 0;
+        for (int i = 0; i < orders.size(); i++) {
+            OrderStatusRegistry.Status status = statuses.get(i);
+            if (status == OrderStatusRegistry.Status.CREATED || status == OrderStatusRegistry.Status.FAILED) {
+                continue;
+            }
+            //状态不存在说明redis丢了这个订单
+            if (status == OrderStatusRegistry.Status.PENDING && !replayPending) {
+                return false;
+            }
+            handler.accept(orders.get(i));
+            replayed++;
+        }
+        if (replayed > 0) {
+            log.warn("订单日志补偿{}条没有落库的订单", replayed);
+        }
+        return true;
+    }
+
+    /**
+     * 读取分段中的记录 遇到未写入或者校验失败的位置结束
+     */
+    List<VoucherOrder> read(Path path) throws IOException {
+        List<VoucherOrder> orders = new ArrayList<>();
+        try (FileChannel channel = FileChannel.open(path, StandardOpenOption.READ)) {
+            ByteBuffer buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+            byte[] record = new byte[RECORD_SIZE];
+            while (buffer.remaining() >= RECORD_SIZE) {
+                buffer.get(record);
+                ByteBuffer wrap = ByteBuffer.wrap(record);
+                if (wrap.getInt(0) != MAGIC || wrap.getInt(4) != crc(record)) {
+                    break;
+                }
+                VoucherOrder order = new VoucherOrder();
+                order.setId(wrap.getLong(8));
+                order.setUserId(wrap.getLong(16));
+                order.setVoucherId(wrap.getLong(24));
+                orders.add(order);
+            }
+        }
+        return orders;
+    }
+
+    /**
+     * crc字段本身不参与计算
+     */
+    private int crc(byte[] record) {
+        CRC32 crc32 = new CRC32();
+        crc32.update(record, 0, 4);
+        crc32.update(record, 8, RECORD_SIZE - 8);
+        return (int) crc32.getValue();
+    }
+
+    private List<Long> listSegments() throws IOException {
+        List<Long> segments = new ArrayList<>();
+        try (DirectoryStream<Path> stream = Files.newDirectoryStream(Paths.get(dir), "*" + SUFFIX)) {
+            for (Path path : stream) {
+                String name = path.getFileName().toString();
+                segments.add(Long.parseLong(name.substring(0, name.length() - SUFFIX.length())));
+            }
+        }
+        return segments;
+    }
+
+    private Path segmentPath(long seq) {
+        return Paths.get(dir, String.format("%020d%s", seq, SUFFIX));
+    }
+}
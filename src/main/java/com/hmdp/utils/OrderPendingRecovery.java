@@ -0,0 +1,295 @@
+package com.hmdp.utils;
+
+import cn.hutool.core.bean.BeanUtil;
+import com.hmdp.entity.VoucherOrder;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.data.domain.Range;
+import org.springframework.data.redis.connection.RedisStreamCommands;
+import org.springframework.data.redis.connection.RedisZSetCommands;
+import org.springframework.data.redis.connection.stream.ByteRecord;
+import org.springframework.data.redis.connection.stream.MapRecord;
+import org.springframework.data.redis.connection.stream.PendingMessage;
+import org.springframework.data.redis.connection.stream.PendingMessages;
+import org.springframework.data.redis.connection.stream.RecordId;
+import org.springframework.data.redis.connection.stream.StreamRecords;
+import org.springframework.data.redis.core.StringRedisTemplate;
+import org.springframework.data.redis.serializer.StringRedisSerializer;
+import org.springframework.stereotype.Component;
+
+import javax.annotation.PreDestroy;
+import java.nio.charset.StandardCharsets;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Predicate;
+
+/**
+ * 秒杀订单pending list恢复
+ * 定时扫描本节点负责分区的XPENDING 空闲时间超过退避时间的消息用XCLAIM认领后重新处理
+ * 退避时间随投递次数指数增长 投递次数达到上限的消息转入死信队列 不再阻塞消费
+ * XPENDING从上次扫描到的id之后分页读取 队首退避中的消息不会挡住后面的消息 每次最多扫描recovery-scan条
+ * 退避时间取决于每条消息的投递次数 XAUTOCLAIM只有一个min-idle并且不返回投递次数 所以按页XCLAIM 同一页退避时间相同的一次认领
+ */
+@Slf4j
+@Component
+public class OrderPendingRecovery {
+
+    public static final String STREAM_ORDER_DLQ_KEY = "stream.order.dlq";
+
+    /**
+     * XPENDING每页的消息数
+     */
+    private static final long SCAN_COUNT = 100L;
+
+    private final StringRedisTemplate stringRedisTemplate;
+    private final OrderStreamManager orderStreamManager;
+    private final OrderStatusRegistry orderStatusRegistry;
+    private final OrderSalesStats orderSalesStats;
+
+    /**
+     * 扫描周期 毫秒
+     */
+    @Value("${hmdp.seckill.order.recovery-interval:5000}")
+    private long recoveryInterval;
+    /**
+     * 首次重试的退避时间 毫秒
+     */
+    @Value("${hmdp.seckill.order.retry-backoff:5000}")
+    private long retryBackoff;
+    /**
+     * 退避时间上限 毫秒
+     */
+    @Value("${hmdp.seckill.order.retry-backoff-max:300000}")
+    private long retryBackoffMax;
+    /**
+     * 最大投递次数 达到后转入死信队列
+     */
+    @Value("${hmdp.seckill.order.max-deliveries:5}")
+    private long maxDeliveries;
+    /**
+     * 每次扫描每个分区最多检查的pending消息数 没有扫描完的下次从上次的位置继续
+     */
+    @Value("${hmdp.seckill.order.recovery-scan:10000}")
+    private long recoveryScan;
+
+    /**
+     * 每个分区下次扫描的起始id 为null时从头开始
+     */
+    private final Map<String, String> cursors = new HashMap<>();
+
+    private Predicate<MapRecord<String, Object, Object>> handler;
+
+    private final ScheduledExecutorService scheduler = Executors.newSingleThreadScheduledExecutor(r -> {
+        Thread t = new Thread(r, "order-pending-recovery");
+        t.setDaemon(true);
+        return t;
+    });
+
+    public OrderPendingRecovery(StringRedisTemplate stringRedisTemplate, OrderStreamManager orderStreamManager,
+                                OrderStatusRegistry orderStatusRegistry, OrderSalesStats orderSalesStats) {
+        this.stringRedisTemplate = stringRedisTemplate;
+        this.orderStreamManager = orderStreamManager;
+        this.orderStatusRegistry = orderStatusRegistry;
+        this.orderSalesStats = orderSalesStats;
+    }
+
+    /**
+     * 开始定时恢复
+     * @param handler 处理认领到的消息 返回true表示处理成功可以ack
+     */
+    public synchronized void start(Predicate<MapRecord<String, Object, Object>> handler) {
+        this.handler = handler;
+        scheduler.scheduleWithFixedDelay(this::recover, recoveryInterval, recoveryInterval, TimeUnit.MILLISECONDS);
+    }
+
+    @PreDestroy
+    private void destroy() {
+        scheduler.shutdownNow();
+    }
+
+    /**
+     * 第n次投递后需要空闲多久才能再次投递
+     */
+    long backoff(long deliveries) {
+        int shift = (int) Math.min(Math.max(deliveries - 1, 0), 30);
+        return Math.min(retryBackoff << shift, retryBackoffMax);
+    }
+
+    private void recover() {
+        for (Integer partition : orderStreamManager.getAssigned()) {
+            String streamKey = orderStreamManager.streamKey(partition);
+            try {
+                recover(streamKey);
+            } catch (Exception e) {
+                log.error("恢复pending消息失败 {}", streamKey, e);
+            }
+        }
+    }
+
+    private void recover(String streamKey) {
+        long scanned = 0;
+        while (scanned < recoveryScan) {
+            //扫描所有消费者的pending消息 包括已经下线的节点
+            String cursor = cursors.get(streamKey);
+            Range<String> range = cursor == null ? Range.unbounded()
+                    : Range.rightUnbounded(Range.Bound.inclusive(cursor));
+            PendingMessages pending = stringRedisTemplate.opsForStream().pending(
+                    streamKey, OrderStreamManager.STREAM_ORDER_GROUP, range, SCAN_COUNT);
+            if (pending.isEmpty()) {
+                cursors.remove(streamKey);
+                return;
+            }
+            recover(streamKey, pending);
+            scanned += pending.size();
+            if (pending.size() < SCAN_COUNT) {
+                //扫描到末尾 下次从头开始
+                cursors.remove(streamKey);
+                return;
+            }
+            cursors.put(streamKey, next(pending.get(pending.size() - 1).getId()));
+        }
+    }
+
+    /**
+     * 处理一页pending消息 到期的消息按退避时间分组认领
+     */
+    private void recover(String streamKey, PendingMessages pending) {
+        Map<Long, List<RecordId>> due = new TreeMap<>();
+        Map<RecordId, Long> deliveries = new HashMap<>();
+        for (PendingMessage message : pending) {
+            long count = message.getTotalDeliveryCount();
+            long idle = message.getElapsedTimeSinceLastDelivery().toMillis();
+            long backoff = backoff(count);
+            if (idle < backoff) {
+                //还在退避中 或者正在被消费者处理
+                continue;
+            }
+            if (count >= maxDeliveries) {
+                moveToDeadLetter(streamKey, message);
+                continue;
+            }
+            due.computeIfAbsent(backoff, k -> new ArrayList<>()).add(message.getId());
+            deliveries.put(message.getId(), count);
+        }
+        for (Map.Entry<Long, List<RecordId>> entry : due.entrySet()) {
+            //认领 minIdle保证多个节点同时扫描时只有一个能认领成功
+            List<MapRecord<String, Object, Object>> claimed = claim(streamKey, entry.getValue(), entry.getKey());
+            for (MapRecord<String, Object, Object> record : claimed) {
+                boolean success;
+                try {
+                    success = handler.test(record);
+                } catch (Exception e) {
+                    log.error("重试订单消息失败 {} 第{}次", record.getId(),
+                            deliveries.getOrDefault(record.getId(), 0L) + 1, e);
+                    success = false;
+                }
+                if (success) {
+                    stringRedisTemplate.opsForStream()
+                            .acknowledge(streamKey, OrderStreamManager.STREAM_ORDER_GROUP, record.getId());
+                }
+            }
+        }
+    }
+
+    /**
+     * 紧跟在id之后的id 作为下一页的起始位置
+     */
+    private static String next(RecordId id) {
+        return id.getTimestamp() + "-" + (id.getSequence() + 1);
+    }
+
+    private List<MapRecord<String, Object, Object>> claim(String streamKey, List<RecordId> ids, long minIdle) {
+        String consumerName = orderStreamManager.getConsumerName();
+        List<ByteRecord> records = stringRedisTemplate.execute(connection -> connection.streamCommands().xClaim(
+                streamKey.getBytes(StandardCharsets.UTF_8), OrderStreamManager.STREAM_ORDER_GROUP, consumerName,
+                RedisStreamCommands.XClaimOptions.minIdle(Duration.ofMillis(minIdle))
+                        .ids(ids.toArray(new RecordId[0]))), true);
+        if (records == null || records.isEmpty()) {
+            return Collections.emptyList();
+        }
+        List<MapRecord<String, Object, Object>> result = new ArrayList<>(records.size());
+        for (ByteRecord record : records) {
+            MapRecord<String, String, String> mapRecord = record.deserialize(
+                    StringRedisSerializer.UTF_8, StringRedisSerializer.UTF_8, StringRedisSerializer.UTF_8);
+            result.add(StreamRecords.<String, Object, Object>mapBacked(new HashMap<>(mapRecord.getValue()))
+                    .withStreamKey(streamKey).withId(mapRecord.getId()));
+        }
+        return result;
+    }
+
+    /**
+     * 转入死信队列 保留原消息内容和来源 然后在原队列中ack
+     */
+    private void moveToDeadLetter(String streamKey, PendingMessage message) {
+        String id = message.getIdAsString();
+        List<MapRecord<String, Object, Object>> records = stringRedisTemplate.opsForStream()
+                .range(streamKey, Range.closed(id, id));
+        if (records != null && !records.isEmpty()) {
+            Map<Object, Object> value = new HashMap<>(records.get(0).getValue());
+            value.put("sourceStream", streamKey);
+            value.put("sourceId", id);
+            value.put("deliveries", String.valueOf(message.getTotalDeliveryCount()));
+            stringRedisTemplate.opsForStream().add(STREAM_ORDER_DLQ_KEY, value);
+            orderStatusRegistry.update(Long.parseLong(value.get("id").toString()), OrderStatusRegistry.Status.FAILED);
+            //销量中扣除 重放时再恢复
+            orderSalesStats.fail(Collections.singletonList(BeanUtil.fillBeanWithMap(value, new VoucherOrder(), true)));
+        }
+        stringRedisTemplate.opsForStream().acknowledge(streamKey, OrderStreamManager.STREAM_ORDER_GROUP, id);
+        log.error("订单消息投递{}次仍失败 转入死信队列 {} {}", message.getTotalDeliveryCount(), streamKey, id);
+    }
+
+    /**
+     * 查看死信队列
+     */
+    public List<Map<String, Object>> listDeadLetters(long count) {
+        List<MapRecord<String, Object, Object>> records = stringRedisTemplate.opsForStream()
+                .range(STREAM_ORDER_DLQ_KEY, Range.unbounded(), RedisZSetCommands.Limit.limit().count((int) count));
+        List<Map<String, Object>> result = new ArrayList<>();
+        if (records == null) {
+            return result;
+        }
+        for (MapRecord<String, Object, Object> record : records) {
+            Map<String, Object> map = new HashMap<>();
+            record.getValue().forEach((k, v) -> map.put(k.toString(), v));
+            map.put("dlqId", record.getId().getValue());
+            result.add(map);
+        }
+        return result;
+    }
+
+    /**
+     * 重放死信 写回原来的分区后从死信队列删除
+     * @return 重放的条数
+     */
+    public int replayDeadLetters(long count) {
+        List<MapRecord<String, Object, Object>> records = stringRedisTemplate.opsForStream()
+                .range(STREAM_ORDER_DLQ_KEY, Range.unbounded(), RedisZSetCommands.Limit.limit().count((int) count));
+        if (records == null) {
+            return 0;
+        }
+        int replayed = 0;
+        for (MapRecord<String, Object, Object> record : records) {
+            Map<Object, Object> value = new HashMap<>(record.getValue());
+            Object sourceStream = value.remove("sourceStream");
+            value.remove("sourceId");
+            value.remove("deliveries");
+            String streamKey = sourceStream == null ? OrderStreamManager.STREAM_ORDER_KEY : sourceStream.toString();
+            //重放的是新消息 先清除失败标记 落库成功后按订单id重新计入销量
+            orderSalesStats.replay(Collections.singletonList(Long.parseLong(value.get("id").toString())));
+            stringRedisTemplate.opsForStream().add(streamKey, value);
+            stringRedisTemplate.opsForStream().delete(STREAM_ORDER_DLQ_KEY, record.getId());
+            orderStatusRegistry.update(Long.parseLong(value.get("id").toString()), OrderStatusRegistry.Status.PENDING);
+            replayed++;
+        }
+        log.info("重放死信订单{}条", replayed);
+        return replayed;
+    }
+}
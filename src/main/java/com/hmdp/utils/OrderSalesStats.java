@@ -0,0 +1,683 @@
+package com.hmdp.utils;
+
+import com.baomidou.mybatisplus.core.conditions.query.QueryWrapper;
+import com.hmdp.entity.SalesStat;
+import com.hmdp.entity.Voucher;
+import com.hmdp.entity.VoucherOrder;
+import com.hmdp.mapper.SalesStatMapper;
+import com.hmdp.mapper.VoucherMapper;
+import lombok.extern.slf4j.Slf4j;
+import org.redisson.api.RLock;
+import org.redisson.api.RedissonClient;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.core.io.ClassPathResource;
+import org.springframework.data.domain.Range;
+import org.springframework.data.redis.connection.RedisStreamCommands;
+import org.springframework.data.redis.connection.StringRedisConnection;
+import org.springframework.data.redis.connection.stream.ByteRecord;
+import org.springframework.data.redis.connection.stream.Consumer;
+import org.springframework.data.redis.connection.stream.MapRecord;
+import org.springframework.data.redis.connection.stream.PendingMessage;
+import org.springframework.data.redis.connection.stream.PendingMessages;
+import org.springframework.data.redis.connection.stream.ReadOffset;
+import org.springframework.data.redis.connection.stream.RecordId;
+import org.springframework.data.redis.connection.stream.StreamOffset;
+import org.springframework.data.redis.connection.stream.StreamReadOptions;
+import org.springframework.data.redis.core.RedisCallback;
+import org.springframework.data.redis.core.StringRedisTemplate;
+import org.springframework.data.redis.core.script.DefaultRedisScript;
+import org.springframework.data.redis.serializer.StringRedisSerializer;
+import org.springframework.stereotype.Component;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+import java.nio.charset.StandardCharsets;
+import java.time.Duration;
+import java.time.Instant;
+import java.time.LocalDate;
+import java.time.LocalDateTime;
+import java.time.LocalTime;
+import java.time.ZoneId;
+import java.time.format.DateTimeFormatter;
+import java.time.temporal.ChronoUnit;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+import static com.hmdp.utils.RedisConstants.LOCK_SALES_ROLLUP_KEY;
+import static com.hmdp.utils.RedisConstants.SALES_DIRTY_KEY;
+import static com.hmdp.utils.RedisConstants.SALES_STAT_KEY;
+
+/**
+ * 销量统计
+ * 用单独的消费者组sales消费订单消息 按优惠券和商铺 分钟和小时分桶计数
+ * 桶为hash sales:{stat}:{粒度}:{维度}:{id}:{yyyyMMdd} field为HHmm或HH 另有sales:{stat}:total:{维度}记录累计值
+ * 有变化的桶记入sales:{stat}:dirty 定时汇总到tb_sales_stat 看板只读这些计数 不统计订单表
+ * 订单消息在秒杀通过时产生 取消的订单由cancel 落库失败和转入死信的订单由fail从原来的桶中扣减
+ * 按订单id去重 sales:{stat}:orders:{yyyyMMdd}记录每个订单是否已经计数 死信重放产生的新消息不会重复计数
+ * 统计的key都使用{stat} hash tag 脚本中的key在cluster中位于同一个slot 每批消息只执行一次脚本
+ */
+@Slf4j
+@Component
+public class OrderSalesStats {
+
+    public static final String STREAM_SALES_GROUP = "sales";
+
+    private static final DefaultRedisScript<Long> STATS_SCRIPT;
+    private static final DefaultRedisScript<Long> CANCEL_SCRIPT;
+    private static final DefaultRedisScript<Long> REPLAY_SCRIPT;
+
+    static {
+        STATS_SCRIPT = new DefaultRedisScript<>();
+        STATS_SCRIPT.setLocation(new ClassPathResource("sales_stats.lua"));
+        STATS_SCRIPT.setResultType(Long.class);
+        CANCEL_SCRIPT = new DefaultRedisScript<>();
+        CANCEL_SCRIPT.setLocation(new ClassPathResource("sales_stats_cancel.lua"));
+        CANCEL_SCRIPT.setResultType(Long.class);
+        REPLAY_SCRIPT = new DefaultRedisScript<>();
+        REPLAY_SCRIPT.setLocation(new ClassPathResource("sales_stats_replay.lua"));
+        REPLAY_SCRIPT.setResultType(Long.class);
+    }
+
+    private static final DateTimeFormatter DAY_FORMATTER = DateTimeFormatter.ofPattern("yyyyMMdd");
+    /**
+     * 每次扫描的pending消息数
+     */
+    private static final int SCAN_COUNT = 100;
+
+    public enum Dimension {
+        VOUCHER(1), SHOP(2);
+
+        private final int code;
+
+        Dimension(int code) {
+            this.code = code;
+        }
+
+        public int getCode() {
+            return code;
+        }
+
+        public static Dimension of(String name) {
+            for (Dimension dimension : values()) {
+                if (dimension.name().equalsIgnoreCase(name)) {
+                    return dimension;
+                }
+            }
+            return null;
+        }
+    }
+
+    public enum Granularity {
+        MINUTE(1, ChronoUnit.MINUTES, "HHmm", 1440),
+        HOUR(2, ChronoUnit.HOURS, "HH", 168);
+
+        private final int code;
+        private final ChronoUnit unit;
+        private final DateTimeFormatter formatter;
+        /**
+         * 实时查询最多返回的桶数 更早的数据查询数据库
+         */
+        private final int maxBuckets;
+
+        Granularity(int code, ChronoUnit unit, String pattern, int maxBuckets) {
+            this.code = code;
+            this.unit = unit;
+            this.formatter = DateTimeFormatter.ofPattern(pattern);
+            this.maxBuckets = maxBuckets;
+        }
+
+        public int getCode() {
+            return code;
+        }
+
+        public int getMaxBuckets() {
+            return maxBuckets;
+        }
+
+        public static Granularity of(String name) {
+            for (Granularity granularity : values()) {
+                if (granularity.name().equalsIgnoreCase(name)) {
+                    return granularity;
+                }
+            }
+            return null;
+        }
+    }
+
+    private final StringRedisTemplate stringRedisTemplate;
+    private final RedissonClient redissonClient;
+    private final OrderStreamManager orderStreamManager;
+    private final IdGenerator idGenerator;
+    private final VoucherMapper voucherMapper;
+    private final SalesStatMapper salesStatMapper;
+
+    /**
+     * 是否开启销量统计 所有节点需要保持一致 否则未开启节点负责的分区没有人消费 消息不能被清理
+     */
+    @Value("${hmdp.sales-stat.enabled:true}")
+    private boolean enabled;
+    /**
+     * 没有新消息时的轮询间隔 毫秒
+     */
+    @Value("${hmdp.sales-stat.poll-interval:200}")
+    private long pollInterval;
+    /**
+     * 每次读取的消息数
+     */
+    @Value("${hmdp.sales-stat.batch-size:100}")
+    private int batchSize;
+    /**
+     * pending消息空闲多久后重新认领 毫秒
+     */
+    @Value("${hmdp.sales-stat.claim-idle:60000}")
+    private long claimIdle;
+    /**
+     * 汇总到数据库的周期 毫秒
+     */
+    @Value("${hmdp.sales-stat.rollup-interval:60000}")
+    private long rollupInterval;
+    /**
+     * 每次汇总的桶数
+     */
+    @Value("${hmdp.sales-stat.rollup-batch:500}")
+    private int rollupBatch;
+    /**
+     * 分钟桶在redis中的保留时间 秒
+     */
+    @Value("${hmdp.sales-stat.minute-ttl:172800}")
+    private long minuteTtl;
+    /**
+     * 小时桶在redis中的保留时间 秒
+     */
+    @Value("${hmdp.sales-stat.hour-ttl:691200}")
+    private long hourTtl;
+
+    /**
+     * 优惠券所属的商铺 优惠券创建后不会更换商铺 0表示优惠券不存在
+     */
+    private final Map<Long, Long> shopIds = new ConcurrentHashMap<>();
+    /**
+     * 已经创建过消费者组的stream
+     */
+    private final Set<String> groups = ConcurrentHashMap.newKeySet();
+
+    private final LongAdder counted = new LongAdder();
+    private final LongAdder cancelled = new LongAdder();
+    private final LongAdder failed = new LongAdder();
+    private final LongAdder rolledUp = new LongAdder();
+    private volatile long lastRollup;
+
+    private final ScheduledExecutorService scheduler = Executors.newScheduledThreadPool(2, r -> {
+        Thread t = new Thread(r, "order-sales-stats");
+        t.setDaemon(true);
+        return t;
+    });
+
+    public OrderSalesStats(StringRedisTemplate stringRedisTemplate,
+                           RedissonClient redissonClient,
+                           OrderStreamManager orderStreamManager,
+                           IdGenerator idGenerator,
+                           VoucherMapper voucherMapper,
+                           SalesStatMapper salesStatMapper) {
+        this.stringRedisTemplate = stringRedisTemplate;
+        this.redissonClient = redissonClient;
+        this.orderStreamManager = orderStreamManager;
+        this.idGenerator = idGenerator;
+        this.voucherMapper = voucherMapper;
+        this.salesStatMapper = salesStatMapper;
+    }
+
+    @PostConstruct
+    private void init() {
+        if (!enabled) {
+            return;
+        }
+        //只消费本节点负责的分区 分区分配跟随订单消费
+        scheduler.scheduleWithFixedDelay(this::consume, pollInterval, pollInterval, TimeUnit.MILLISECONDS);
+        scheduler.scheduleWithFixedDelay(() -> {
+            claim();
+            rollup();
+        }, rollupInterval, rollupInterval, TimeUnit.MILLISECONDS);
+    }
+
+    @PreDestroy
+    private void destroy() {
+        scheduler.shutdownNow();
+    }
+
+    /**
+     * 读到没有新消息为止
+     */
+    private void consume() {
+        try {
+            Consumer consumer = Consumer.from(STREAM_SALES_GROUP, orderStreamManager.getConsumerName());
+            for (Integer partition : orderStreamManager.getAssigned()) {
+                String streamKey = orderStreamManager.streamKey(partition);
+                if (groups.add(streamKey)) {
+                    orderStreamManager.createGroupIfAbsent(streamKey, STREAM_SALES_GROUP);
+                }
+                while (true) {
+                    List<MapRecord<String, Object, Object>> read = stringRedisTemplate.opsForStream().read(
+                            consumer, StreamReadOptions.empty().count(batchSize),
+                            StreamOffset.create(streamKey, ReadOffset.lastConsumed()));
+                    if (read == null || read.isEmpty()) {
+                        break;
+                    }
+                    count(streamKey, read);
+                }
+            }
+        } catch (Exception e) {
+            //没有确认的消息留在pending list中 由claim重新认领
+            log.error("统计订单销量失败", e);
+        }
+    }
+
+    /**
+     * 认领空闲的pending消息 包括本节点处理失败的和下线节点留下的
+     */
+    private void claim() {
+        for (Integer partition : orderStreamManager.getAssigned()) {
+            String streamKey = orderStreamManager.streamKey(partition);
+            try {
+                PendingMessages pending = stringRedisTemplate.opsForStream().pending(
+                        streamKey, STREAM_SALES_GROUP, Range.unbounded(), SCAN_COUNT);
+                List<RecordId> ids = new ArrayList<>();
+                for (PendingMessage message : pending) {
+                    if (message.getElapsedTimeSinceLastDelivery().toMillis() >= claimIdle) {
+                        ids.add(message.getId());
+                    }
+                }
+                if (!ids.isEmpty()) {
+                    List<MapRecord<String, Object, Object>> claimed = claim(streamKey, ids);
+                    if (!claimed.isEmpty()) {
+                        count(streamKey, claimed);
+                        log.info("重新统计pending订单消息 {} {}条", streamKey, claimed.size());
+                    }
+                }
+            } catch (Exception e) {
+                log.error("认领销量统计消息失败 {}", streamKey, e);
+            }
+        }
+    }
+
+    private List<MapRecord<String, Object, Object>> claim(String streamKey, List<RecordId> ids) {
+        String consumerName = orderStreamManager.getConsumerName();
+        List<ByteRecord> records = stringRedisTemplate.execute(connection -> connection.streamCommands().xClaim(
+                streamKey.getBytes(StandardCharsets.UTF_8), STREAM_SALES_GROUP, consumerName,
+                RedisStreamCommands.XClaimOptions.minIdle(Duration.ofMillis(claimIdle))
+                        .ids(ids.toArray(new RecordId[0]))), true);
+        if (records == null || records.isEmpty()) {
+            return Collections.emptyList();
+        }
+        List<MapRecord<String, Object, Object>> result = new ArrayList<>(records.size());
+        for (ByteRecord record : records) {
+            MapRecord<String, String, String> mapRecord = record.deserialize(
+                    StringRedisSerializer.UTF_8, StringRedisSerializer.UTF_8, StringRedisSerializer.UTF_8);
+            result.add(MapRecord.<String, Object, Object>create(streamKey, new LinkedHashMap<>(mapRecord.getValue()))
+                    .withId(mapRecord.getId()));
+        }
+        return result;
+    }
+
+    /**
+     * 同一批消息用到的计数项去重后传给脚本 脚本按订单id去重计数 之后再确认消息
+     * 计数之后确认之前宕机 重新投递的消息已经有计数标记 不会重复计数
+     */
+    private void count(String streamKey, List<MapRecord<String, Object, Object>> records) {
+        Map<String, Integer> index = new LinkedHashMap<>();
+        List<String> fields = new ArrayList<>();
+        List<String> orders = new ArrayList<>();
+        Map<String, Integer> marks = new LinkedHashMap<>();
+        RecordId[] ids = new RecordId[records.size()];
+        for (int r = 0; r < records.size(); r++) {
+            MapRecord<String, Object, Object> record = records.get(r);
+            ids[r] = record.getId();
+            List<String[]> counters = counters(record.getValue());
+            //消息内容不完整的不计数 直接确认
+            if (counters.isEmpty()) {
+                continue;
+            }
+            long id = Long.parseLong(record.getValue().get("id").toString());
+            orders.add(markKey(id));
+            orders.add(String.valueOf(id));
+            orders.add(String.valueOf(counters.size()));
+            for (String[] counter : counters) {
+                Integer i = index.get(counter[0] + "|" + counter[1]);
+                if (i == null) {
+                    i = index.size() + 1;
+                    index.put(counter[0] + "|" + counter[1], i);
+                    fields.add(counter[1]);
+                    fields.add(counter[2]);
+                }
+                orders.add(i.toString());
+            }
+        }
+        if (!orders.isEmpty()) {
+            //计数项的key在前 订单状态key在后 按序号引用
+            List<String> keys = new ArrayList<>(1 + index.size());
+            keys.add(SALES_DIRTY_KEY);
+            for (String item : index.keySet()) {
+                keys.add(item.substring(0, item.lastIndexOf('|')));
+            }
+            for (int i = 0; i < orders.size(); ) {
+                orders.set(i, String.valueOf(indexOf(keys, marks, orders.get(i))));
+                i += 3 + Integer.parseInt(orders.get(i + 2));
+            }
+            List<String> args = new ArrayList<>(2 + fields.size() + orders.size());
+            args.add(String.valueOf(index.size()));
+            args.add(String.valueOf(hourTtl));
+            args.addAll(fields);
+            args.addAll(orders);
+            Long result = stringRedisTemplate.execute(STATS_SCRIPT, keys, args.toArray());
+            if (result != null) {
+                counted.add(result);
+            }
+        }
+        stringRedisTemplate.opsForStream().acknowledge(streamKey, STREAM_SALES_GROUP, ids);
+    }
+
+    /**
+     * 脚本的key去重后按序号引用 返回key在KEYS中的序号 从1开始
+     */
+    private static int indexOf(List<String> keys, Map<String, Integer> index, String key) {
+        return index.computeIfAbsent(key, k -> {
+            keys.add(k);
+            return keys.size();
+        });
+    }
+
+    /**
+     * 一条订单消息对应的计数项 key field ttl
+     * 消息内容不完整的不计数 仍然确认
+     */
+    private List<String[]> counters(Map<Object, Object> value) {
+        Object voucherId = value.get("voucherId");
+        Object orderId = value.get("id");
+        if (voucherId == null || orderId == null) {
+            return Collections.emptyList();
+        }
+        return counters(Long.valueOf(voucherId.toString()), Long.parseLong(orderId.toString()));
+    }
+
+    private List<String[]> counters(Long voucherId, long orderId) {
+        LocalDateTime time = LocalDateTime.ofInstant(
+                Instant.ofEpochMilli(idGenerator.timestampOf(orderId)), ZoneId.systemDefault());
+        List<String[]> counters = new ArrayList<>(6);
+        addCounters(counters, Dimension.VOUCHER, voucherId, time);
+        Long shopId = shopOf(voucherId);
+        if (shopId != 0) {
+            addCounters(counters, Dimension.SHOP, shopId, time);
+        }
+        return counters;
+    }
+
+    private void addCounters(List<String[]> counters, Dimension dimension, Long id, LocalDateTime time) {
+        for (Granularity granularity : Granularity.values()) {
+            counters.add(new String[]{bucketKey(granularity, dimension, id, time.toLocalDate()),
+                    granularity.formatter.format(time), String.valueOf(ttl(granularity))});
+        }
+        counters.add(new String[]{totalKey(dimension), id.toString(), "0"});
+    }
+
+    private Long shopOf(Long voucherId) {
+        return shopIds.computeIfAbsent(voucherId, id -> {
+            Voucher voucher = voucherMapper.selectById(id);
+            return voucher == null || voucher.getShopId() == null ? 0L : voucher.getShopId();
+        });
+    }
+
+    /**
+     * 取消的订单从下单时间所在的桶中扣减 需要在取消的事务提交之后调用
+     */
+    public void cancel(Collection<VoucherOrder> orders) {
+        subtract(orders, cancelled);
+    }
+
+    /**
+     * 落库失败或者转入死信的订单 已经计数的扣减 还没有计数的之后不再计数
+     */
+    public void fail(Collection<VoucherOrder> orders) {
+        subtract(orders, failed);
+    }
+
+    /**
+     * 死信重放之前清除失败标记 落库成功后重新计数
+     */
+    public void replay(Collection<Long> orderIds) {
+        if (!enabled || orderIds.isEmpty()) {
+            return;
+        }
+        try {
+            List<String> keys = new ArrayList<>();
+            Map<String, Integer> index = new LinkedHashMap<>();
+            List<String> args = new ArrayList<>(orderIds.size() * 2);
+            for (Long orderId : orderIds) {
+                args.add(String.valueOf(indexOf(keys, index, markKey(orderId))));
+                args.add(orderId.toString());
+            }
+            stringRedisTemplate.execute(REPLAY_SCRIPT, keys, args.toArray());
+        } catch (Exception e) {
+            log.error("清除重放订单的销量标记失败 {}条", orderIds.size(), e);
+        }
+    }
+
+    private void subtract(Collection<VoucherOrder> orders, LongAdder adder) {
+        if (!enabled || orders.isEmpty()) {
+            return;
+        }
+        try {
+            List<String> keys = new ArrayList<>();
+            keys.add(SALES_DIRTY_KEY);
+            Map<String, Integer> index = new LinkedHashMap<>();
+            List<String> args = new ArrayList<>();
+            args.add(String.valueOf(hourTtl));
+            for (VoucherOrder order : orders) {
+                List<String[]> counters = counters(order.getVoucherId(), order.getId());
+                args.add(String.valueOf(indexOf(keys, index, markKey(order.getId()))));
+                args.add(order.getId().toString());
+                args.add(String.valueOf(counters.size()));
+                for (String[] counter : counters) {
+                    args.add(String.valueOf(indexOf(keys, index, counter[0])));
+                    args.add(counter[1]);
+                    args.add(counter[2]);
+                }
+            }
+            Long subtracted = stringRedisTemplate.execute(CANCEL_SCRIPT, keys, args.toArray());
+            if (subtracted != null) {
+                adder.add(subtracted);
+            }
+        } catch (Exception e) {
+            log.error("扣减订单销量失败 {}条", orders.size(), e);
+        }
+    }
+
+    /**
+     * 把有变化的桶写入数据库 多个节点只有一个在汇总 写入的是redis中的最新值 重复汇总没有副作用
+     * 写入数据库之后才从sales:{stat}:dirty中删除 宕机时下次重新汇总
+     * 每次最多处理开始时的桶数 持续有新计数时不会一直循环
+     */
+    private void rollup() {
+        RLock lock = redissonClient.getLock(LOCK_SALES_ROLLUP_KEY);
+        try {
+            if (!lock.tryLock()) {
+                return;
+            }
+        } catch (Exception e) {
+            log.error("获取销量汇总锁失败", e);
+            return;
+        }
+        try {
+            Long size = stringRedisTemplate.opsForSet().size(SALES_DIRTY_KEY);
+            long remaining = size == null ? 0 : size;
+            while (remaining > 0) {
+                Set<String> members = stringRedisTemplate.opsForSet()
+                        .distinctRandomMembers(SALES_DIRTY_KEY, Math.min(rollupBatch, remaining));
+                if (members == null || members.isEmpty()) {
+                    break;
+                }
+                rollup(new ArrayList<>(members));
+                remaining -= members.size();
+            }
+            lastRollup = System.currentTimeMillis();
+        } catch (Exception e) {
+            log.error("汇总销量统计失败", e);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private void rollup(List<String> members) {
+        List<Object> values = readBuckets(members);
+        List<SalesStat> stats = new ArrayList<>(members.size());
+        for (int i = 0; i < members.size(); i++) {
+            //桶已经过期
+            if (values.get(i) == null) {
+                continue;
+            }
+            stats.add(parse(members.get(i)).setSales(Integer.valueOf(values.get(i).toString())));
+        }
+        if (!stats.isEmpty()) {
+            salesStatMapper.upsertBatch(stats);
+            rolledUp.add(stats.size());
+        }
+        //写入之后删除 删除之后的计数会重新加入 删除之前的计数在这里重新读取发现
+        stringRedisTemplate.opsForSet().remove(SALES_DIRTY_KEY, members.toArray());
+        List<Object> latest = readBuckets(members);
+        List<String> changed = new ArrayList<>();
+        for (int i = 0; i < members.size(); i++) {
+            if (!Objects.equals(values.get(i), latest.get(i))) {
+                changed.add(members.get(i));
+            }
+        }
+        if (!changed.isEmpty()) {
+            stringRedisTemplate.opsForSet().add(SALES_DIRTY_KEY, changed.toArray(new String[0]));
+        }
+    }
+
+    private List<Object> readBuckets(List<String> members) {
+        return stringRedisTemplate.executePipelined((RedisCallback<Object>) connection -> {
+            StringRedisConnection conn = (StringRedisConnection) connection;
+            for (String member : members) {
+                int split = member.lastIndexOf('|');
+                conn.hGet(member.substring(0, split), member.substring(split + 1));
+            }
+            return null;
+        });
+    }
+
+    /**
+     * sales:{stat}:{粒度}:{维度}:{id}:{yyyyMMdd}|{HHmm或HH}
+     */
+    private SalesStat parse(String member) {
+        int split = member.lastIndexOf('|');
+        String[] parts = member.substring(SALES_STAT_KEY.length(), split).split(":");
+        String field = member.substring(split + 1);
+        Granularity granularity = Granularity.valueOf(parts[0].toUpperCase());
+        LocalTime time = granularity == Granularity.MINUTE
+                ? LocalTime.of(Integer.parseInt(field.substring(0, 2)), Integer.parseInt(field.substring(2)))
+                : LocalTime.of(Integer.parseInt(field), 0);
+        return new SalesStat()
+                .setGranularity(granularity.getCode())
+                .setDimension(Dimension.valueOf(parts[1].toUpperCase()).getCode())
+                .setTargetId(Long.valueOf(parts[2]))
+                .setBucketTime(LocalDateTime.of(LocalDate.parse(parts[3], DAY_FORMATTER), time));
+    }
+
+    /**
+     * 累计销量
+     */
+    public long total(Dimension dimension, Long id) {
+        Object total = stringRedisTemplate.opsForHash().get(totalKey(dimension), id.toString());
+        return total == null ? 0 : Long.parseLong(total.toString());
+    }
+
+    /**
+     * 最近last个桶的销量 包括当前桶 按时间升序 每天的桶一次HMGET
+     */
+    public List<Map<String, Object>> recent(Dimension dimension, Long id, Granularity granularity, int last) {
+        LocalDateTime end = LocalDateTime.now().truncatedTo(granularity.unit);
+        Map<String, List<String>> fields = new LinkedHashMap<>();
+        List<LocalDateTime> times = new ArrayList<>(last);
+        for (int i = last - 1; i >= 0; i--) {
+            LocalDateTime time = end.minus(i, granularity.unit);
+            times.add(time);
+            fields.computeIfAbsent(bucketKey(granularity, dimension, id, time.toLocalDate()), k -> new ArrayList<>())
+                    .add(granularity.formatter.format(time));
+        }
+        List<Object> values = stringRedisTemplate.executePipelined((RedisCallback<Object>) connection -> {
+            StringRedisConnection conn = (StringRedisConnection) connection;
+            fields.forEach((key, list) -> conn.hMGet(key, list.toArray(new String[0])));
+            return null;
+        });
+        List<Map<String, Object>> result = new ArrayList<>(last);
+        int t = 0;
+        for (Object value : values) {
+            for (Object sales : (List<?>) value) {
+                Map<String, Object> bucket = new LinkedHashMap<>();
+                bucket.put("time", times.get(t++));
+                bucket.put("sales", sales == null ? 0 : Long.parseLong(sales.toString()));
+                result.add(bucket);
+            }
+        }
+        return result;
+    }
+
+    /**
+     * 已经汇总到数据库的销量 最近一个汇总周期内的变化还没有写入
+     */
+    public List<SalesStat> history(Dimension dimension, Long id, Granularity granularity,
+                                   LocalDateTime begin, LocalDateTime end, int limit) {
+        return salesStatMapper.selectList(new QueryWrapper<SalesStat>()
+                .eq("dimension", dimension.getCode())
+                .eq("target_id", id)
+                .eq("granularity", granularity.getCode())
+                .between("bucket_time", begin, end)
+                .orderByAsc("bucket_time")
+                .last("LIMIT " + limit));
+    }
+
+    public Map<String, Object> snapshot() {
+        Map<String, Object> map = new LinkedHashMap<>();
+        map.put("enabled", enabled);
+        map.put("counted", counted.sum());
+        map.put("cancelled", cancelled.sum());
+        map.put("failed", failed.sum());
+        map.put("rolledUp", rolledUp.sum());
+        map.put("dirty", stringRedisTemplate.opsForSet().size(SALES_DIRTY_KEY));
+        map.put("lastRollup", lastRollup);
+        return map;
+    }
+
+    private long ttl(Granularity granularity) {
+        return granularity == Granularity.MINUTE ? minuteTtl : hourTtl;
+    }
+
+    private static String bucketKey(Granularity granularity, Dimension dimension, Long id, LocalDate day) {
+        return SALES_STAT_KEY + granularity.name().toLowerCase() + ":" + dimension.name().toLowerCase()
+                + ":" + id + ":" + DAY_FORMATTER.format(day);
+    }
+
+    /**
+     * 订单是否已经计数 按下单日期分key 和小时桶一起过期
+     */
+    private String markKey(long orderId) {
+        LocalDate day = LocalDateTime.ofInstant(
+                Instant.ofEpochMilli(idGenerator.timestampOf(orderId)), ZoneId.systemDefault()).toLocalDate();
+        return SALES_STAT_KEY + "orders:" + DAY_FORMATTER.format(day);
+    }
+
+    private static String totalKey(Dimension dimension) {
+        return SALES_STAT_KEY + "total:" + dimension.name().toLowerCase();
+    }
+}
@@ -0,0 +1,79 @@
+package com.hmdp.utils;
+
+import com.baomidou.mybatisplus.core.toolkit.PluginUtils;
+import com.baomidou.mybatisplus.extension.plugins.inner.InnerInterceptor;
+import com.hmdp.entity.VoucherOrder;
+import org.apache.ibatis.executor.Executor;
+import org.apache.ibatis.executor.statement.StatementHandler;
+import org.apache.ibatis.mapping.BoundSql;
+import org.apache.ibatis.mapping.MappedStatement;
+import org.apache.ibatis.mapping.SqlCommandType;
+import org.apache.ibatis.session.ResultHandler;
+import org.apache.ibatis.session.RowBounds;
+
+import java.sql.Connection;
+import java.util.Collection;
+import java.util.Map;
+
+/**
+ * 从语句参数中解析订单所在的分表 必须注册在DynamicTableNameInnerInterceptor之前
+ * 支持的参数 VoucherOrder实体 updateById的et 名为userId的参数 以及同一分表的orders和userIds集合
+ */
+public class OrderShardInnerInterceptor implements InnerInterceptor {
+
+    @Override
+    public void beforeQuery(Executor executor, MappedStatement ms, Object parameter, RowBounds rowBounds,
+                            ResultHandler resultHandler, BoundSql boundSql) {
+        OrderShardRouter.resolve(shardOf(parameter));
+    }
+
+    @Override
+    public void beforePrepare(StatementHandler sh, Connection connection, Integer transactionTimeout) {
+        PluginUtils.MPStatementHandler mpSh = PluginUtils.mpStatementHandler(sh);
+        if (mpSh.mappedStatement().getSqlCommandType() == SqlCommandType.SELECT) {
+            return;
+        }
+        OrderShardRouter.resolve(shardOf(mpSh.boundSql().getParameterObject()));
+    }
+
+    private Integer shardOf(Object parameter) {
+        if (parameter instanceof VoucherOrder) {
+            Long userId = ((VoucherOrder) parameter).getUserId();
+            return userId == null ? null : OrderShardRouter.shardOf(userId);
+        }
+        if (!(parameter instanceof Map)) {
+            return null;
+        }
+        //mybatis的ParamMap取不存在的key会抛出异常 先判断
+        Map<?, ?> params = (Map<?, ?>) parameter;
+        if (params.containsKey("userId") && params.get("userId") instanceof Long) {
+            return OrderShardRouter.shardOf((Long) params.get("userId"));
+        }
+        if (params.containsKey("et") && params.get("et") instanceof VoucherOrder) {
+            return shardOf(params.get("et"));
+        }
+        if (params.containsKey("orders")) {
+            return sameShard((Collection<?>) params.get("orders"));
+        }
+        if (params.containsKey("userIds")) {
+            return sameShard((Collection<?>) params.get("userIds"));
+        }
+        return null;
+    }
+
+    /**
+     * 批量语句只能写入一个分表 调用方需要先按分表分组
+     */
+    private Integer sameShard(Collection<?> items) {
+        Integer shard = null;
+        for (Object item : items) {
+            Long userId = item instanceof VoucherOrder ? ((VoucherOrder) item).getUserId() : (Long) item;
+            int current = OrderShardRouter.shardOf(userId);
+            if (shard != null && shard != current) {
+                throw new IllegalStateException("批量语句中的订单不在同一个分表");
+            }
+            shard = current;
+        }
+        return shard;
+    }
+}
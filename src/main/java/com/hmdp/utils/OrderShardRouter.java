@@ -0,0 +1,100 @@
+package com.hmdp.utils;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.function.Supplier;
+
+/**
+ * 订单表按user_id分表 tb_voucher_order_00 ~ tb_voucher_order_15
+ * sql中仍然写逻辑表名tb_voucher_order 执行前由DynamicTableNameInnerInterceptor替换为分表
+ * 分表由参数中的userId自动确定 参数中没有userId的语句需要用route或onShard指定
+ */
+public class OrderShardRouter {
+
+    public static final String LOGIC_TABLE = "tb_voucher_order";
+    /**
+     * 分表数量 建表之后不能修改
+     */
+    public static final int SHARDS = 16;
+
+    private static final List<String> TABLES;
+
+    static {
+        List<String> tables = new ArrayList<>(SHARDS);
+        for (int i = 0; i < SHARDS; i++) {
+            tables.add(table(i));
+        }
+        TABLES = Collections.unmodifiableList(tables);
+    }
+
+    /**
+     * 调用方显式指定的分表 优先于参数
+     */
+    private static final ThreadLocal<Integer> routed = new ThreadLocal<>();
+    /**
+     * 从当前语句参数中解析出的分表 每条语句执行前重新解析
+     */
+    private static final ThreadLocal<Integer> resolved = new ThreadLocal<>();
+
+    public static int shardOf(Long userId) {
+        return (int) Math.floorMod(userId, (long) SHARDS);
+    }
+
+    public static String table(int shard) {
+        return String.format("%s_%02d", LOGIC_TABLE, shard);
+    }
+
+    /**
+     * 所有分表 跨分表统计时使用
+     */
+    public static List<String> tables() {
+        return TABLES;
+    }
+
+    /**
+     * 在userId所在的分表上执行
+     */
+    public static <T> T route(Long userId, Supplier<T> action) {
+        return onShard(shardOf(userId), action);
+    }
+
+    /**
+     * 在指定分表上执行 可以嵌套
+     */
+    public static <T> T onShard(int shard, Supplier<T> action) {
+        Integer previous = routed.get();
+        routed.set(shard);
+        try {
+            return action.get();
+        } finally {
+            if (previous == null) {
+                routed.remove();
+            } else {
+                routed.set(previous);
+            }
+        }
+    }
+
+    static void resolve(Integer shard) {
+        if (shard == null) {
+            resolved.remove();
+        } else {
+            resolved.set(shard);
+        }
+    }
+
+    /**
+     * 当前语句使用的分表
+     */
+    public static String currentTable() {
+        Integer shard = routed.get();
+        if (shard == null) {
+            shard = resolved.get();
+        }
+        if (shard == null) {
+            throw new IllegalStateException("订单表已分表 语句参数中没有userId时需要指定分表");
+        }
+        return table(shard);
+    }
+}
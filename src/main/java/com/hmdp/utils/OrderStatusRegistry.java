@@ -0,0 +1,236 @@
+package com.hmdp.utils;
+
+import com.hmdp.dto.Result;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.data.redis.connection.StringRedisConnection;
+import org.springframework.data.redis.core.RedisCallback;
+import org.springframework.data.redis.core.StringRedisTemplate;
+import org.springframework.stereotype.Component;
+import org.springframework.web.context.request.async.DeferredResult;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+import static com.hmdp.utils.RedisConstants.ORDER_STATUS_KEY;
+
+/**
+ * 订单状态
+ * 下单成功写入PENDING 消费者落库后改为CREATED 失败或者转入死信改为FAILED
+ * 按订单id中的时间每10分钟一个hash order:status:{bucket} field为订单id value为一个字符的状态码 整个hash设置过期时间
+ * 查询只读redis 长轮询的请求由后台线程统一批量查询 不会每个请求各自轮询
+ */
+@Slf4j
+@Component
+public class OrderStatusRegistry {
+
+    public enum Status {
+        PENDING("P"), CREATED("C"), FAILED("F");
+
+        private final String code;
+
+        Status(String code) {
+            this.code = code;
+        }
+
+        static Status of(Object code) {
+            if (code == null) {
+                return null;
+            }
+            for (Status status : values()) {
+                if (status.code.equals(code.toString())) {
+                    return status;
+                }
+            }
+            return null;
+        }
+    }
+
+    private static final long BUCKET_MILLIS = TimeUnit.MINUTES.toMillis(10);
+    /**
+     * 长轮询最长等待时间 毫秒
+     */
+    private static final long MAX_WAIT = 30000;
+
+    private final StringRedisTemplate stringRedisTemplate;
+    private final IdGenerator idGenerator;
+
+    /**
+     * 状态保存时间 秒
+     */
+    @Value("${hmdp.seckill.order.status-ttl:3600}")
+    private long statusTtl;
+    /**
+     * 长轮询检查状态的间隔 毫秒
+     */
+    @Value("${hmdp.seckill.order.status-poll-interval:100}")
+    private long pollInterval;
+
+    /**
+     * 等待状态变化的长轮询请求
+     */
+    private final Map<Long, List<Waiter>> waiters = new ConcurrentHashMap<>();
+
+    private final ScheduledExecutorService scheduler = Executors.newSingleThreadScheduledExecutor(r -> {
+        Thread t = new Thread(r, "order-status-poll");
+        t.setDaemon(true);
+        return t;
+    });
+
+    public OrderStatusRegistry(StringRedisTemplate stringRedisTemplate, IdGenerator idGenerator) {
+        this.stringRedisTemplate = stringRedisTemplate;
+        this.idGenerator = idGenerator;
+    }
+
+    @PostConstruct
+    private void init() {
+        scheduler.scheduleWithFixedDelay(this::pollWaiters, pollInterval, pollInterval, TimeUnit.MILLISECONDS);
+    }
+
+    @PreDestroy
+    private void destroy() {
+        scheduler.shutdownNow();
+    }
+
+    /**
+     * 下单成功 消费者可能已经先写了最终状态 所以只在没有状态时写入
+     */
+    public void markPending(long orderId) {
+        String key = key(orderId);
+        stringRedisTemplate.executePipelined((RedisCallback<Object>) connection -> {
+            StringRedisConnection conn = (StringRedisConnection) connection;
+            conn.hSetNX(key, String.valueOf(orderId), Status.PENDING.code);
+            conn.expire(key, statusTtl);
+            return null;
+        });
+    }
+
+    public void update(long orderId, Status status) {
+        update(Collections.singletonList(orderId), status);
+    }
+
+    /**
+     * 批量更新状态 一次pipeline
+     */
+    public void update(Collection<Long> orderIds, Status status) {
+        if (orderIds.isEmpty()) {
+            return;
+        }
+        stringRedisTemplate.executePipelined((RedisCallback<Object>) connection -> {
+            StringRedisConnection conn = (StringRedisConnection) connection;
+            for (Long orderId : orderIds) {
+                String key = key(orderId);
+                conn.hSet(key, orderId.toString(), status.code);
+                conn.expire(key, statusTtl);
+            }
+            return null;
+        });
+    }
+
+    /**
+     * @return 状态 不存在或者已经过期返回null
+     */
+    public Status get(long orderId) {
+        return Status.of(stringRedisTemplate.opsForHash().get(key(orderId), String.valueOf(orderId)));
+    }
+
+    /**
+     * 批量查询 一次pipeline
+     * @return 与orderIds一一对应 不存在的为null
+     */
+    public List<Status> get(List<Long> orderIds) {
+        List<Object> codes = stringRedisTemplate.executePipelined((RedisCallback<Object>) connection -> {
+            StringRedisConnection conn = (StringRedisConnection) connection;
+            for (Long orderId : orderIds) {
+                conn.hGet(key(orderId), orderId.toString());
+            }
+            return null;
+        });
+        List<Status> statuses = new ArrayList<>(orderIds.size());
+        for (Object code : codes) {
+            statuses.add(Status.of(code));
+        }
+        return statuses;
+    }
+
+    /**
+     * 查询订单状态 wait大于0时长轮询 直到状态不再是PENDING或者超时
+     * @param wait 最长等待时间 毫秒
+     */
+    public DeferredResult<Result> query(long orderId, long wait) {
+        long timeout = Math.min(Math.max(wait, 0), MAX_WAIT);
+        DeferredResult<Result> result = new DeferredResult<>(timeout + 1000);
+        Status status = get(orderId);
+        if (status != Status.PENDING || timeout == 0) {
+            result.setResult(toResult(status));
+            return result;
+        }
+        Waiter waiter = new Waiter(result, System.currentTimeMillis() + timeout);
+        waiters.computeIfAbsent(orderId, k -> new CopyOnWriteArrayList<>()).add(waiter);
+        result.onTimeout(() -> result.setResult(toResult(Status.PENDING)));
+        result.onCompletion(() -> waiters.computeIfPresent(orderId, (k, list) -> {
+            list.remove(waiter);
+            return list.isEmpty() ? null : list;
+        }));
+        return result;
+    }
+
+    /**
+     * 所有等待中的订单一次pipeline查询
+     */
+    private void pollWaiters() {
+        if (waiters.isEmpty()) {
+            return;
+        }
+        try {
+            List<Long> orderIds = new ArrayList<>(waiters.keySet());
+            List<Status> statuses = get(orderIds);
+            long now = System.currentTimeMillis();
+            for (int i = 0; i < orderIds.size(); i++) {
+                Status status = statuses.get(i);
+                List<Waiter> list = waiters.get(orderIds.get(i));
+                if (list == null) {
+                    continue;
+                }
+                for (Waiter waiter : list) {
+                    if (status != Status.PENDING || now >= waiter.deadline) {
+                        waiter.result.setResult(toResult(status));
+                    }
+                }
+            }
+        } catch (Exception e) {
+            log.error("查询订单状态失败", e);
+        }
+    }
+
+    private Result toResult(Status status) {
+        if (status == null) {
+            return Result.fail("订单不存在或状态已过期");
+        }
+        return Result.ok(status.name());
+    }
+
+    private String key(long orderId) {
+        return ORDER_STATUS_KEY + idGenerator.timestampOf(orderId) / BUCKET_MILLIS;
+    }
+
+    private static class Waiter {
+        private final DeferredResult<Result> result;
+        private final long deadline;
+
+        private Waiter(DeferredResult<Result> result, long deadline) {
+            this.result = result;
+            this.deadline = deadline;
+        }
+    }
+}
@@ -0,0 +1,236 @@
+package com.hmdp.utils;
+
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.data.redis.connection.StringRedisConnection;
+import org.springframework.data.redis.connection.stream.StreamRecords;
+import org.springframework.data.redis.core.RedisCallback;
+import org.springframework.data.redis.core.StringRedisTemplate;
+import org.springframework.stereotype.Component;
+
+import javax.annotation.PreDestroy;
+import java.lang.management.ManagementFactory;
+import java.net.InetAddress;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Consumer;
+
+/**
+ * 秒杀订单消息队列分区管理
+ * 订单按userId取模写入不同的stream 每个节点用心跳注册到zset中
+ * 存活节点按名字排序后轮流认领分区 节点加入或退出时重新分配
+ * 分区不带hash tag 在cluster中和秒杀库存不在同一个slot 订单消息在秒杀脚本成功后单独发送
+ */
+@Slf4j
+@Component
+public class OrderStreamManager {
+
+    public static final String STREAM_ORDER_KEY = "stream.order";
+    public static final String STREAM_ORDER_GROUP = "g1";
+    /**
+     * 存活节点 score为最近一次心跳时间
+     */
+    private static final String STREAM_ORDER_NODES_KEY = "stream.order:nodes";
+    /**
+     * 心跳周期 秒
+     */
+    private static final long HEARTBEAT_PERIOD = 5L;
+    /**
+     * 超过该时间没有心跳的节点视为下线 秒
+     */
+    private static final long NODE_EXPIRE = 15L;
+
+    private final StringRedisTemplate stringRedisTemplate;
+
+    /**
+     * 分区数量 为1时沿用原来的stream.order
+     */
+    @Value("${hmdp.seckill.order.partitions:1}")
+    private int partitions;
+
+    @Value("${server.port:8080}")
+    private int serverPort;
+
+    private String consumerName;
+
+    private volatile Set<Integer> assigned = Collections.emptySet();
+
+    private Consumer<Set<Integer>> listener;
+
+    private final ScheduledExecutorService scheduler = Executors.newSingleThreadScheduledExecutor(r -> {
+        Thread t = new Thread(r, "order-stream-rebalance");
+        t.setDaemon(true);
+        return t;
+    });
+
+    public OrderStreamManager(StringRedisTemplate stringRedisTemplate) {
+        this.stringRedisTemplate = stringRedisTemplate;
+    }
+
+    /**
+     * 开始心跳并在分区分配变化时回调
+     * @param listener 参数为本节点当前负责的分区
+     */
+    public synchronized void start(Consumer<Set<Integer>> listener) {
+        this.listener = listener;
+        for (int i = 0; i < partitions; i++) {
+            createGroupIfAbsent(streamKey(i));
+        }
+        scheduler.scheduleWithFixedDelay(this::rebalance, 0, HEARTBEAT_PERIOD, TimeUnit.SECONDS);
+    }
+
+    @PreDestroy
+    private void destroy() {
+        scheduler.shutdownNow();
+        //主动下线 其他节点下一次心跳即可接管分区
+        stringRedisTemplate.opsForZSet().remove(STREAM_ORDER_NODES_KEY, getConsumerName());
+    }
+
+    public int getPartitions() {
+        return partitions;
+    }
+
+    public Set<Integer> getAssigned() {
+        return assigned;
+    }
+
+    /**
+     * 分区对应的stream
+     */
+    public String streamKey(int partition) {
+        return partitions <= 1 ? STREAM_ORDER_KEY : STREAM_ORDER_KEY + ":" + partition;
+    }
+
+    /**
+     * 用户所在的分区
+     */
+    public int partitionOf(Long userId) {
+        return (int) (userId % partitions);
+    }
+
+    /**
+     * 所有分区的stream 按分区顺序
+     */
+    public List<String> streamKeys() {
+        List<String> keys = new ArrayList<>(partitions);
+        for (int i = 0; i < partitions; i++) {
+            keys.add(streamKey(i));
+        }
+        return keys;
+    }
+
+    /**
+     * 发送订单消息到用户所在的分区
+     */
+    public void publish(Long voucherId, Long userId, long orderId) {
+        stringRedisTemplate.opsForStream().add(StreamRecords.string(order(voucherId, userId, orderId))
+                .withStreamKey(streamKey(partitionOf(userId))));
+    }
+
+    /**
+     * 一次pipeline发送一批订单消息 任何一条失败时抛出异常 这时其他消息可能已经发送
+     */
+    public void publishAll(Long voucherId, List<Long> userIds, List<Long> orderIds) {
+        stringRedisTemplate.executePipelined((RedisCallback<Object>) connection -> {
+            StringRedisConnection conn = (StringRedisConnection) connection;
+            for (int i = 0; i < userIds.size(); i++) {
+                Long userId = userIds.get(i);
+                conn.xAdd(StreamRecords.string(order(voucherId, userId, orderIds.get(i)))
+                        .withStreamKey(streamKey(partitionOf(userId))));
+            }
+            return null;
+        });
+    }
+
+    private Map<String, String> order(Long voucherId, Long userId, long orderId) {
+        Map<String, String> order = new HashMap<>();
+        order.put("voucherId", voucherId.toString());
+        order.put("userId", userId.toString());
+        order.put("id", String.valueOf(orderId));
+        return order;
+    }
+
+    /**
+     * 心跳没有过期的节点的消费者名
+     */
+    public Set<String> aliveNodes() {
+        long now = System.currentTimeMillis();
+        Set<String> nodes = stringRedisTemplate.opsForZSet()
+                .rangeByScore(STREAM_ORDER_NODES_KEY, now - NODE_EXPIRE * 1000, Double.MAX_VALUE);
+        return nodes == null ? Collections.emptySet() : nodes;
+    }
+
+    /**
+     * 节点唯一的消费者名 主机名加端口 重启后可以继续处理自己的pending list
+     */
+    public String getConsumerName() {
+        if (consumerName == null) {
+            String host;
+            try {
+                host = InetAddress.getLocalHost().getHostName();
+            } catch (Exception e) {
+                host = ManagementFactory.getRuntimeMXBean().getName();
+            }
+            consumerName = host + ":" + serverPort;
+        }
+        return consumerName;
+    }
+
+    /**
+     * 创建消费者组 stream不存在时一并创建
+     */
+    public void createGroupIfAbsent(String streamKey) {
+        createGroupIfAbsent(streamKey, STREAM_ORDER_GROUP);
+    }
+
+    /**
+     * 创建其他消费者组 从stream中现存的第一条消息开始消费
+     */
+    public void createGroupIfAbsent(String streamKey, String group) {
+        try {
+            stringRedisTemplate.execute(connection -> connection.execute("XGROUP",
+                    "CREATE".getBytes(), streamKey.getBytes(), group.getBytes(),
+                    "0".getBytes(), "MKSTREAM".getBytes()), true);
+        } catch (Exception e) {
+            //BUSYGROUP 组已存在
+            log.debug("消费者组已存在 {} {}", streamKey, group);
+        }
+    }
+
+    private void rebalance() {
+        try {
+            long now = System.currentTimeMillis();
+            String me = getConsumerName();
+            //心跳 并清理下线节点
+            stringRedisTemplate.opsForZSet().add(STREAM_ORDER_NODES_KEY, me, now);
+            stringRedisTemplate.opsForZSet().removeRangeByScore(STREAM_ORDER_NODES_KEY, 0, now - NODE_EXPIRE * 1000);
+            Set<String> nodes = stringRedisTemplate.opsForZSet().range(STREAM_ORDER_NODES_KEY, 0, -1);
+            List<String> alive = nodes == null ? new ArrayList<>() : new ArrayList<>(nodes);
+            Collections.sort(alive);
+            int index = alive.indexOf(me);
+            if (index < 0) {
+                return;
+            }
+            //轮流认领分区
+            Set<Integer> owned = new HashSet<>();
+            for (int i = index; i < partitions; i += alive.size()) {
+                owned.add(i);
+            }
+            if (!owned.equals(assigned)) {
+                log.info("订单分区重新分配 节点{} 存活节点{} 负责分区{}", me, alive.size(), owned);
+                assigned = owned;
+                listener.accept(owned);
+            }
+        } catch (Exception e) {
+            log.error("订单分区心跳失败", e);
+        }
+    }
+}
@@ -0,0 +1,227 @@
+package com.hmdp.utils;
+
+import cn.hutool.json.JSONUtil;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.data.domain.Range;
+import org.springframework.data.redis.connection.RedisZSetCommands;
+import org.springframework.data.redis.connection.stream.MapRecord;
+import org.springframework.data.redis.connection.stream.PendingMessagesSummary;
+import org.springframework.data.redis.connection.stream.StreamInfo;
+import org.springframework.data.redis.core.StringRedisTemplate;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.stereotype.Component;
+
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * 订单消息队列的保留策略
+ * 所有消费者组都已经投递并且确认的消息用XTRIM MINID删除 需要redis 6.2
+ * 可选在删除前把消息归档到本地的gzip分段文件 每次归档写一个新文件 只追加不修改
+ */
+@Slf4j
+@Component
+public class OrderStreamRetention {
+
+    /**
+     * 每个分区已经归档到的消息id 分区换到其他节点后接着归档
+     */
+    private static final String STREAM_ORDER_ARCHIVED_KEY = "stream.order:archived";
+    /**
+     * 归档时每次读取的消息数
+     */
+    private static final int ARCHIVE_PAGE = 1000;
+
+    private final StringRedisTemplate stringRedisTemplate;
+    private final OrderStreamManager orderStreamManager;
+
+    /**
+     * 是否定时删除已确认的消息
+     */
+    @Value("${hmdp.seckill.order.retention.enabled:true}")
+    private boolean enabled;
+    /**
+     * 删除前是否归档
+     */
+    @Value("${hmdp.seckill.order.retention.archive-enabled:false}")
+    private boolean archiveEnabled;
+    /**
+     * 归档文件目录
+     */
+    @Value("${hmdp.seckill.order.retention.archive-dir:./data/stream-archive}")
+    private String archiveDir;
+
+    public OrderStreamRetention(StringRedisTemplate stringRedisTemplate, OrderStreamManager orderStreamManager) {
+        this.stringRedisTemplate = stringRedisTemplate;
+        this.orderStreamManager = orderStreamManager;
+    }
+
+    /**
+     * 只处理本节点负责的分区 避免多个节点重复归档
+     */
+    @Scheduled(fixedDelayString = "${hmdp.seckill.order.retention.interval:60000}")
+    public void trim() {
+        if (!enabled) {
+            return;
+        }
+        for (Integer partition : orderStreamManager.getAssigned()) {
+            String streamKey = orderStreamManager.streamKey(partition);
+            try {
+                trim(streamKey);
+            } catch (Exception e) {
+                log.error("清理订单消息失败 {}", streamKey, e);
+            }
+        }
+    }
+
+    private void trim(String streamKey) throws IOException {
+        String minId = safeMinId(streamKey);
+        if (minId == null) {
+            return;
+        }
+        if (archiveEnabled) {
+            archive(streamKey, minId);
+        }
+        Long trimmed = stringRedisTemplate.execute(connection -> (Long) connection.execute("XTRIM",
+                streamKey.getBytes(StandardCharsets.UTF_8), "MINID".getBytes(StandardCharsets.UTF_8),
+                "~".getBytes(StandardCharsets.UTF_8), minId.getBytes(StandardCharsets.UTF_8)), true);
+        if (trimmed != null && trimmed > 0) {
+            log.info("清理订单消息 {} {}条 保留{}之后的消息", streamKey, trimmed, minId);
+        }
+    }
+
+    /**
+     * 小于该id的消息已经被所有消费者组投递并确认
+     * 取每个组last-delivered-id和pending list中最小id的最小值
+     * @return 没有可以删除的消息时返回null
+     */
+    String safeMinId(String streamKey) {
+        StreamInfo.XInfoGroups groups = stringRedisTemplate.opsForStream().groups(streamKey);
+        if (groups == null || groups.isEmpty()) {
+            return null;
+        }
+        String minId = null;
+        for (int i = 0; i < groups.size(); i++) {
+            StreamInfo.XInfoGroup group = groups.get(i);
+            String candidate = group.lastDeliveredId();
+            if (group.pendingCount() != null && group.pendingCount() > 0) {
+                PendingMessagesSummary summary = stringRedisTemplate.opsForStream()
+                        .pending(streamKey, group.groupName());
+                if (summary != null && summary.minMessageId() != null) {
+                    candidate = min(candidate, summary.minMessageId());
+                }
+            }
+            minId = minId == null ? candidate : min(minId, candidate);
+        }
+        return minId == null || "0-0".equals(minId) ? null : minId;
+    }
+
+    /**
+     * 把上次归档之后 minId之前的消息写入新的gzip分段文件 每行一条json
+     * 开区间用XRANGE的(前缀表示 需要redis 6.2
+     * 先写临时文件 写完再改名 中途失败留下的文件不会影响下次归档
+     */
+    private void archive(String streamKey, String minId) throws IOException {
+        Object archived = stringRedisTemplate.opsForHash().get(STREAM_ORDER_ARCHIVED_KEY, streamKey);
+        String from = archived == null ? "-" : "(" + archived;
+        List<MapRecord<String, Object, Object>> records = stringRedisTemplate.opsForStream().range(streamKey,
+                Range.closed(from, "(" + minId), RedisZSetCommands.Limit.limit().count(ARCHIVE_PAGE));
+        if (records == null || records.isEmpty()) {
+            return;
+        }
+        Path dir = Paths.get(archiveDir, streamKey);
+        Files.createDirectories(dir);
+        Path segment = dir.resolve(records.get(0).getId().getValue() + ".jsonl.gz");
+        Path temp = dir.resolve(segment.getFileName() + ".tmp");
+        String last = null;
+        int count = 0;
+        try (BufferedWriter writer = new BufferedWriter(new OutputStreamWriter(new GZIPOutputStream(
+                Files.newOutputStream(temp, StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING,
+                        StandardOpenOption.WRITE)), StandardCharsets.UTF_8))) {
+            while (records != null && !records.isEmpty()) {
+                for (MapRecord<String, Object, Object> record : records) {
+                    Map<Object, Object> line = new LinkedHashMap<>(record.getValue());
+                    line.put("streamId", record.getId().getValue());
+                    writer.write(JSONUtil.toJsonStr(line));
+                    writer.newLine();
+                    last = record.getId().getValue();
+                    count++;
+                }
+                records = stringRedisTemplate.opsForStream().range(streamKey,
+                        Range.closed("(" + last, "(" + minId), RedisZSetCommands.Limit.limit().count(ARCHIVE_PAGE));
+            }
+        } catch (IOException | RuntimeException e) {
+            Files.deleteIfExists(temp);
+            throw e;
+        }
+        //上次改名之后记录进度失败时 这一段会重新归档 覆盖原来的文件
+        Files.move(temp, segment, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+        //文件写完才记录进度 中途失败下次重新归档这一段
+        stringRedisTemplate.opsForHash().put(STREAM_ORDER_ARCHIVED_KEY, streamKey, last);
+        log.info("归档订单消息 {} {}条 {}", streamKey, count, segment);
+    }
+
+    /**
+     * 各分区的长度 内存占用和消费者组进度
+     */
+    public List<Map<String, Object>> stats() {
+        List<Map<String, Object>> result = new ArrayList<>();
+        for (int i = 0; i < orderStreamManager.getPartitions(); i++) {
+            String streamKey = orderStreamManager.streamKey(i);
+            Map<String, Object> stat = new LinkedHashMap<>();
+            stat.put("stream", streamKey);
+            stat.put("length", stringRedisTemplate.opsForStream().size(streamKey));
+            stat.put("memoryBytes", stringRedisTemplate.execute(connection -> connection.execute("MEMORY",
+                    "USAGE".getBytes(StandardCharsets.UTF_8), streamKey.getBytes(StandardCharsets.UTF_8)), true));
+            List<Map<String, Object>> groups = new ArrayList<>();
+            StreamInfo.XInfoGroups infoGroups = stringRedisTemplate.opsForStream().groups(streamKey);
+            if (infoGroups != null) {
+                for (int j = 0; j < infoGroups.size(); j++) {
+                    StreamInfo.XInfoGroup group = infoGroups.get(j);
+                    Map<String, Object> g = new LinkedHashMap<>();
+                    g.put("name", group.groupName());
+                    g.put("lastDeliveredId", group.lastDeliveredId());
+                    g.put("pending", group.pendingCount());
+                    groups.add(g);
+                }
+            }
+            stat.put("groups", groups);
+            stat.put("archivedId", stringRedisTemplate.opsForHash().get(STREAM_ORDER_ARCHIVED_KEY, streamKey));
+            result.add(stat);
+        }
+        return result;
+    }
+
+    /**
+     * 比较两个stream消息id 格式为毫秒时间戳-序号
+     */
+    static String min(String a, String b) {
+        return compare(a, b) <= 0 ? a : b;
+    }
+
+    static int compare(String a, String b) {
+        int ia = a.indexOf('-');
+        int ib = b.indexOf('-');
+        long msA = Long.parseLong(ia < 0 ? a : a.substring(0, ia));
+        long msB = Long.parseLong(ib < 0 ? b : b.substring(0, ib));
+        if (msA != msB) {
+            return Long.compare(msA, msB);
+        }
+        long seqA = ia < 0 ? 0 : Long.parseLong(a.substring(ia + 1));
+        long seqB = ib < 0 ? 0 : Long.parseLong(b.substring(ib + 1));
+        return Long.compare(seqA, seqB);
+    }
+}
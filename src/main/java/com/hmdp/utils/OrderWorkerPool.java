@@ -0,0 +1,79 @@
+package com.hmdp.utils;
+
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * 按userId路由的订单落库线程
+ * 同一个用户的订单总是交给同一个线程 每个用户只有一个写入者 不需要分布式锁
+ * 一人一单最终由(user_id, voucher_id)唯一索引保证
+ */
+@Slf4j
+@Component
+public class OrderWorkerPool {
+
+    /**
+     * 线程数 为0时不启用 订单在分区消费线程中直接落库
+     */
+    @Value("${hmdp.seckill.order.workers:0}")
+    private int workers;
+    /**
+     * 每个线程的队列长度 队列满时消费线程阻塞等待
+     */
+    @Value("${hmdp.seckill.order.worker-queue:1024}")
+    private int queueSize;
+
+    private ThreadPoolExecutor[] executors;
+
+    @PostConstruct
+    private void init() {
+        executors = new ThreadPoolExecutor[Math.max(workers, 0)];
+        for (int i = 0; i < executors.length; i++) {
+            String name = "order-worker-" + i;
+            executors[i] = new ThreadPoolExecutor(1, 1, 0, TimeUnit.MILLISECONDS,
+                    new ArrayBlockingQueue<>(queueSize), r -> new Thread(r, name), (r, executor) -> {
+                //队列满了阻塞提交者 不能由提交线程执行 否则同一用户会有两个写入者
+                try {
+                    executor.getQueue().put(r);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    throw new IllegalStateException("提交订单任务被中断", e);
+                }
+            });
+        }
+    }
+
+    @PreDestroy
+    private void destroy() {
+        for (ThreadPoolExecutor executor : executors) {
+            executor.shutdown();
+        }
+        for (ThreadPoolExecutor executor : executors) {
+            try {
+                executor.awaitTermination(5, TimeUnit.SECONDS);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+    }
+
+    public boolean isEnabled() {
+        return executors.length > 0;
+    }
+
+    /**
+     * 交给userId对应的线程执行
+     */
+    public CompletableFuture<Void> submit(Long userId, Runnable task) {
+        int index = (int) Math.floorMod(userId, (long) executors.length);
+        return CompletableFuture.runAsync(task, executors[index]);
+    }
+}
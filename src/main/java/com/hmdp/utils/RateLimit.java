@@ -0,0 +1,83 @@
+package com.hmdp.utils;
+
+import java.lang.annotation.Documented;
+import java.lang.annotation.ElementType;
+import java.lang.annotation.Repeatable;
+import java.lang.annotation.Retention;
+import java.lang.annotation.RetentionPolicy;
+import java.lang.annotation.Target;
+
+/**
+ * 接口限流 由RateLimitInterceptor处理 可以叠加多个 比如每个用户一个限制再加一个全局限制
+ */
+@Documented
+@Target(ElementType.METHOD)
+@Retention(RetentionPolicy.RUNTIME)
+@Repeatable(RateLimits.class)
+public @interface RateLimit {
+
+    enum Dimension {
+        /**
+         * 每个登录用户 未登录时按ip
+         */
+        USER,
+        /**
+         * 每个客户端ip
+         */
+        IP,
+        /**
+         * 每个请求参数值 参数名由param指定
+         */
+        PARAM,
+        /**
+         * 所有请求共用
+         */
+        GLOBAL,
+        /**
+         * 本节点的所有请求共用 在本地按令牌桶计数 不访问redis
+         */
+        NODE
+    }
+
+    enum Algorithm {
+        /**
+         * 滑动窗口 period内最多permits次
+         */
+        SLIDING_WINDOW,
+        /**
+         * 令牌桶 容量permits 每period补满一桶 允许突发
+         */
+        TOKEN_BUCKET
+    }
+
+    /**
+     * 限流名称 默认为类名.方法名
+     */
+    String name() default "";
+
+    Dimension dimension() default Dimension.USER;
+
+    /**
+     * dimension为PARAM时使用的请求参数名
+     */
+    String param() default "";
+
+    Algorithm algorithm() default Algorithm.SLIDING_WINDOW;
+
+    /**
+     * 窗口内允许的请求数 或者令牌桶容量
+     */
+    int permits();
+
+    /**
+     * 从配置中读取permits的属性名 配置值不大于0时不限流 为空时使用permits
+     */
+    String permitsProperty() default "";
+
+    /**
+     * 窗口大小 或者补满一桶需要的时间 秒
+     */
+    long period() default 1;
+
+    String message() default "请求过于频繁 请稍后重试";
+}
@@ -0,0 +1,111 @@
+package com.hmdp.utils;
+
+import cn.hutool.core.util.StrUtil;
+import cn.hutool.json.JSONUtil;
+import com.hmdp.dto.Result;
+import com.hmdp.dto.UserDTO;
+import org.springframework.core.annotation.AnnotatedElementUtils;
+import org.springframework.web.method.HandlerMethod;
+import org.springframework.web.servlet.HandlerInterceptor;
+
+import javax.servlet.DispatcherType;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+import java.nio.charset.StandardCharsets;
+import java.util.Collection;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+/**
+ * 处理controller方法上的RateLimit 在登录拦截器之后执行 可以拿到当前用户
+ * 被限流时返回429
+ * 客户端ip取连接的对端地址 只有对端是配置的可信代理时才读取X-Forwarded-For 请求头可以伪造
+ */
+public class RateLimitInterceptor implements HandlerInterceptor {
+
+    private static final int SC_TOO_MANY_REQUESTS = 429;
+
+    private static final String X_FORWARDED_FOR = "X-Forwarded-For";
+
+    private final RateLimiter rateLimiter;
+    /**
+     * 可信代理的ip
+     */
+    private final Set<String> trustedProxies;
+
+    public RateLimitInterceptor(RateLimiter rateLimiter, Collection<String> trustedProxies) {
+        this.rateLimiter = rateLimiter;
+        this.trustedProxies = new HashSet<>(trustedProxies);
+    }
+
+    @Override
+    public boolean preHandle(HttpServletRequest request, HttpServletResponse response, Object handler) throws Exception {
+        //异步请求完成后的再次分派 不能重复计数
+        if (request.getDispatcherType() == DispatcherType.ASYNC) {
+            return true;
+        }
+        if (!(handler instanceof HandlerMethod)) {
+            return true;
+        }
+        HandlerMethod method = (HandlerMethod) handler;
+        Set<RateLimit> limits = AnnotatedElementUtils.findMergedRepeatableAnnotations(method.getMethod(), RateLimit.class);
+        for (RateLimit limit : limits) {
+            String name = StrUtil.isNotBlank(limit.name()) ? limit.name()
+                    : method.getBeanType().getSimpleName() + "." + method.getMethod().getName();
+            String identity = identity(limit, request);
+            if (identity == null) {
+                continue;
+            }
+            if (!rateLimiter.tryAcquire(name, limit, identity)) {
+                response.setStatus(SC_TOO_MANY_REQUESTS);
+                response.setContentType("application/json;charset=UTF-8");
+                response.getOutputStream().write(JSONUtil.toJsonStr(Result.fail(limit.message()))
+                        .getBytes(StandardCharsets.UTF_8));
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * @return 限流对象 PARAM模式下请求没有带该参数时返回null 不限流
+     */
+    private String identity(RateLimit limit, HttpServletRequest request) {
+        switch (limit.dimension()) {
+            case USER:
+                UserDTO user = UserHolder.getUser();
+                return user != null ? "user:" + user.getId() : "ip:" + clientIp(request);
+            case IP:
+                return clientIp(request);
+            case PARAM:
+                String value = request.getParameter(limit.param());
+                return StrUtil.isBlank(value) ? null : value;
+            default:
+                return "all";
+        }
+    }
+
+    /**
+     * 从X-Forwarded-For的最右边开始跳过可信代理 第一个不可信的地址就是客户端
+     * 更左边的值由客户端自己填写 不能使用
+     */
+    private String clientIp(HttpServletRequest request) {
+        String ip = request.getRemoteAddr();
+        if (!trustedProxies.contains(ip)) {
+            return ip;
+        }
+        String forwarded = request.getHeader(X_FORWARDED_FOR);
+        if (StrUtil.isBlank(forwarded)) {
+            return ip;
+        }
+        List<String> hops = StrUtil.splitTrim(forwarded, ',');
+        for (int i = hops.size() - 1; i >= 0; i--) {
+            ip = hops.get(i);
+            if (!trustedProxies.contains(ip)) {
+                return ip;
+            }
+        }
+        return ip;
+    }
+}
@@ -0,0 +1,250 @@
+package com.hmdp.utils;
+
+import cn.hutool.core.lang.UUID;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.core.env.Environment;
+import org.springframework.core.io.ClassPathResource;
+import org.springframework.data.redis.core.StringRedisTemplate;
+import org.springframework.data.redis.core.script.DefaultRedisScript;
+import org.springframework.stereotype.Component;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+
+import static com.hmdp.utils.RedisConstants.RATE_LIMIT_KEY;
+
+/**
+ * 基于redis的分布式限流 滑动窗口和令牌桶各是一个lua脚本 一次调用完成判断和记录
+ * 脚本拒绝时返回需要等待的时间 本地记下这个key在此之前一定会被拒绝 期间的请求不再访问redis
+ * redis异常时放行 限流不能成为新的故障点
+ * NODE维度只在本地按令牌桶计数 不访问redis
+ */
+@Slf4j
+@Component
+public class RateLimiter {
+
+    private static final DefaultRedisScript<Long> SLIDING_WINDOW_SCRIPT;
+    private static final DefaultRedisScript<Long> TOKEN_BUCKET_SCRIPT;
+
+    static {
+        SLIDING_WINDOW_SCRIPT = new DefaultRedisScript<>();
+        SLIDING_WINDOW_SCRIPT.setLocation(new ClassPathResource("rate_limit_sliding_window.lua"));
+        SLIDING_WINDOW_SCRIPT.setResultType(Long.class);
+        TOKEN_BUCKET_SCRIPT = new DefaultRedisScript<>();
+        TOKEN_BUCKET_SCRIPT.setLocation(new ClassPathResource("rate_limit_token_bucket.lua"));
+        TOKEN_BUCKET_SCRIPT.setResultType(Long.class);
+    }
+
+    /**
+     * 滑动窗口中请求的唯一标识 节点前缀加自增序号
+     */
+    private static final String ID_PREFIX = UUID.randomUUID().toString(true) + "-";
+
+    private final StringRedisTemplate stringRedisTemplate;
+
+    /**
+     * 是否开启限流
+     */
+    @Value("${hmdp.rate-limit.enabled:true}")
+    private boolean enabled;
+    /**
+     * 是否开启本地预过滤
+     */
+    @Value("${hmdp.rate-limit.local-filter:true}")
+    private boolean localFilter;
+    /**
+     * 本地最多记录的被拒绝key数 超过后不再记录 新的请求直接访问redis
+     */
+    @Value("${hmdp.rate-limit.max-blocked-keys:100000}")
+    private int maxBlockedKeys;
+    /**
+     * 打印限流统计的周期 毫秒
+     */
+    @Value("${hmdp.rate-limit.report-interval:60000}")
+    private long reportInterval;
+
+    /**
+     * 被拒绝的key和可以再次尝试的时间
+     */
+    private final Map<String, Long> blocked = new ConcurrentHashMap<>();
+    private final Map<String, Metrics> metrics = new ConcurrentHashMap<>();
+    /**
+     * NODE维度的本地令牌桶
+     */
+    private final Map<String, LocalTokenBucket> localBuckets = new ConcurrentHashMap<>();
+    /**
+     * permitsProperty对应的配置值
+     */
+    private final Map<String, Integer> configuredPermits = new ConcurrentHashMap<>();
+    private final AtomicLong sequence = new AtomicLong();
+
+    private final ScheduledExecutorService scheduler = Executors.newSingleThreadScheduledExecutor(r -> {
+        Thread t = new Thread(r, "rate-limit");
+        t.setDaemon(true);
+        return t;
+    });
+
+    private final Environment environment;
+
+    public RateLimiter(StringRedisTemplate stringRedisTemplate, Environment environment) {
+        this.stringRedisTemplate = stringRedisTemplate;
+        this.environment = environment;
+    }
+
+    @PostConstruct
+    private void init() {
+        if (!enabled) {
+            return;
+        }
+        scheduler.scheduleWithFixedDelay(this::evict, 1, 1, TimeUnit.SECONDS);
+        scheduler.scheduleWithFixedDelay(this::report, reportInterval, reportInterval, TimeUnit.MILLISECONDS);
+    }
+
+    @PreDestroy
+    private void destroy() {
+        scheduler.shutdownNow();
+    }
+
+    /**
+     * @param name 限流名称
+     * @param identity 限流对象 用户id ip或者参数值
+     * @return 是否放行
+     */
+    public boolean tryAcquire(String name, RateLimit limit, String identity) {
+        if (!enabled) {
+            return true;
+        }
+        int permits = permits(limit);
+        if (permits <= 0) {
+            return true;
+        }
+        Metrics m = metrics.computeIfAbsent(name, k -> new Metrics());
+        long periodMillis = TimeUnit.SECONDS.toMillis(limit.period());
+        if (limit.dimension() == RateLimit.Dimension.NODE) {
+            if (localBuckets.computeIfAbsent(name, k -> new LocalTokenBucket()).tryAcquire(permits, periodMillis)) {
+                m.allowed.increment();
+                return true;
+            }
+            m.rejectedLocal.increment();
+            return false;
+        }
+        String key = RATE_LIMIT_KEY + name + ":" + identity;
+        long now = System.currentTimeMillis();
+        if (localFilter) {
+            Long until = blocked.get(key);
+            if (until != null && until > now) {
+                m.rejectedLocal.increment();
+                return false;
+            }
+        }
+        Long wait;
+        try {
+            if (limit.algorithm() == RateLimit.Algorithm.TOKEN_BUCKET) {
+                wait = stringRedisTemplate.execute(TOKEN_BUCKET_SCRIPT, Collections.singletonList(key),
+                        String.valueOf(permits), String.valueOf(periodMillis));
+            } else {
+                wait = stringRedisTemplate.execute(SLIDING_WINDOW_SCRIPT, Collections.singletonList(key),
+                        String.valueOf(permits), String.valueOf(periodMillis),
+                        ID_PREFIX + sequence.incrementAndGet());
+            }
+        } catch (Exception e) {
+            m.errors.increment();
+            log.warn("限流脚本执行失败 放行 {}", key, e);
+            return true;
+        }
+        if (wait == null || wait <= 0) {
+            m.allowed.increment();
+            return true;
+        }
+        m.rejectedRedis.increment();
+        if (localFilter && blocked.size() < maxBlockedKeys) {
+            blocked.put(key, now + wait);
+        }
+        return false;
+    }
+
+    private int permits(RateLimit limit) {
+        if (limit.permitsProperty().isEmpty()) {
+            return limit.permits();
+        }
+        return configuredPermits.computeIfAbsent(limit.permitsProperty(),
+                property -> environment.getProperty(property, Integer.class, limit.permits()));
+    }
+
+    private void evict() {
+        long now = System.currentTimeMillis();
+        blocked.values().removeIf(until -> until <= now);
+    }
+
+    private void report() {
+        metrics.forEach((name, m) -> {
+            long rejected = m.rejectedLocal.sum() + m.rejectedRedis.sum();
+            if (rejected > 0 || m.errors.sum() > 0) {
+                log.info("限流 {} 放行{} 拒绝{} 本地拒绝{} 异常{}", name, m.allowed.sum(), rejected,
+                        m.rejectedLocal.sum(), m.errors.sum());
+            }
+        });
+    }
+
+    /**
+     * 每个限流的累计放行 拒绝次数 本地拒绝的请求没有访问redis
+     */
+    public Map<String, Object> snapshot() {
+        Map<String, Object> map = new LinkedHashMap<>();
+        map.put("enabled", enabled);
+        map.put("localFilter", localFilter);
+        map.put("blockedKeys", blocked.size());
+        Map<String, Object> limits = new LinkedHashMap<>();
+        metrics.forEach((name, m) -> {
+            Map<String, Object> stat = new LinkedHashMap<>();
+            stat.put("allowed", m.allowed.sum());
+            stat.put("rejectedRedis", m.rejectedRedis.sum());
+            stat.put("rejectedLocal", m.rejectedLocal.sum());
+            stat.put("errors", m.errors.sum());
+            limits.put(name, stat);
+        });
+        map.put("limits", limits);
+        return map;
+    }
+
+    /**
+     * 本地令牌桶 容量permits 每period补满一桶
+     */
+    private static final class LocalTokenBucket {
+        private double tokens;
+        private long last;
+
+        synchronized boolean tryAcquire(int permits, long periodMillis) {
+            long now = System.nanoTime();
+            if (last == 0) {
+                tokens = permits;
+            } else {
+                tokens = Math.min(permits,
+                        tokens + (double) (now - last) * permits / TimeUnit.MILLISECONDS.toNanos(periodMillis));
+            }
+            last = now;
+            if (tokens < 1) {
+                return false;
+            }
+            tokens -= 1;
+            return true;
+        }
+    }
+
+    private static class Metrics {
+        private final LongAdder allowed = new LongAdder();
+        private final LongAdder rejectedRedis = new LongAdder();
+        private final LongAdder rejectedLocal = new LongAdder();
+        private final LongAdder errors = new LongAdder();
+    }
+}
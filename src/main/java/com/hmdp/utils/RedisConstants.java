@@ -10,13 +10,32 @@ public class RedisConstants {
 
     public static final Long CACHE_SHOP_TTL = 30L;
     public static final String CACHE_SHOP_KEY = "cache:shop:";
+    public static final String BLOOM_FILTER_KEY = "bloom:";
 
     public static final String LOCK_SHOP_KEY = "lock:shop:";
     public static final Long LOCK_SHOP_TTL = 10L;
+    public static final String LOCK_SECKILL_RECONCILE_KEY = "lock:seckill:reconcile";
+    public static final String LOCK_SALES_ROLLUP_KEY = "lock:sales:rollup";
+    public static final String LOCK_BLOOM_REBUILD_KEY = "lock:bloom:rebuild:";
+    public static final String LOCK_SECKILL_WARM_UP_KEY = "lock:seckill:warmup:";
+    public static final Long LOCK_SECKILL_WARM_UP_TTL = 30L;
 
     public static final String SECKILL_STOCK_KEY = "seckill:stock:";
+    public static final String SECKILL_ORDER_KEY = "seckill:order:";
+    public static final String SECKILL_VOUCHER_KEY = "seckill:voucher:";
+    public static final String SECKILL_LEASED_KEY = "seckill:leased:";
+    public static final String ORDER_STATUS_KEY = "order:status:";
+    public static final String ORDER_DELAY_KEY = "order:delay:cancel";
+    public static final String ORDER_DELAY_PROCESSING_KEY = "order:delay:cancel:processing";
     public static final String BLOG_LIKED_KEY = "blog:liked:";
     public static final String FEED_KEY = "feed:";
     public static final String SHOP_GEO_KEY = "shop:geo:";
     public static final String USER_SIGN_KEY = "sign:";
+    public static final String RATE_LIMIT_KEY = "rate:limit:";
+    public static final String SALES_STAT_KEY = "sales:{stat}:";
+    public static final String SALES_DIRTY_KEY = "sales:{stat}:dirty";
+
+    public static final String ID_WORKER_KEY = "id:worker:";
+    public static final Long ID_WORKER_TTL = 30L;
+    public static final Long ID_WORKER_TS_TTL = 604800L;
 }
@@ -1,20 +1,39 @@
 package com.hmdp.utils;
 
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnProperty;
+import org.springframework.data.redis.core.ReactiveStringRedisTemplate;
 import org.springframework.data.redis.core.StringRedisTemplate;
 import org.springframework.stereotype.Component;
 
 import java.time.LocalDateTime;
+import java.time.ZoneId;
 import java.time.ZoneOffset;
 import java.time.format.DateTimeFormatter;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicBoolean;
 import java.util.concurrent.atomic.AtomicLong;
 
 /**
  * 实现全局唯一id
  */
+@Slf4j
 @Component
-public class RedisIdWorker {
+@ConditionalOnProperty(name = "hmdp.id.generator", havingValue = "redis", matchIfMissing = true)
+public class RedisIdWorker implements IdGenerator {
 
     private StringRedisTemplate stringRedisTemplate;
+    /**
+     * 异步生成id时使用 没有注入时退化为同步生成
+     */
+    @Autowired(required = false)
+    private ReactiveStringRedisTemplate reactiveStringRedisTemplate;
 
     public RedisIdWorker(StringRedisTemplate stringRedisTemplate) {
         this.stringRedisTemplate = stringRedisTemplate;
@@ -29,6 +48,33 @@ public class RedisIdWorker {
      */
     private static final int COUNT_BITS = 32;
 
+    private static final DateTimeFormatter DATE_FORMATTER = DateTimeFormatter.ofPattern("yyyy:MM:dd");
+
+    /**
+     * 号段模式 每次用INCRBY预取一段序列号在本地分配
+     */
+    @Value("${hmdp.id.segment.enabled:false}")
+    private boolean segmentEnabled;
+    /**
+     * 每个号段的长度
+     */
+    @Value("${hmdp.id.segment.size:1000}")
+    private long segmentSize;
+    /**
+     * 剩余比例低于该值时后台预取下一个号段
+     */
+    @Value("${hmdp.id.segment.refill-ratio:0.2}")
+    private double refillRatio;
+
+    private final Map<String, SegmentBuffer> buffers = new ConcurrentHashMap<>();
+
+    private final ExecutorService refillExecutor = Executors.newSingleThreadExecutor(r -> {
+        Thread t = new Thread(r, "id-segment-refill");
+        t.setDaemon(true);
+        return t;
+    });
+
+    @Override
     public long nextId(String keyPrefix) {
         //生成时间戳
         LocalDateTime now = LocalDateTime.now();
@@ -36,10 +82,111 @@ public class RedisIdWorker {
         long timestamp = nowSecond - BEGIN_TIMESTAMP;
         //生成序列号
         //获取当前日期 精确到天
-        String format = now.format(DateTimeFormatter.ofPattern("yyyy:MM:dd"));
+        String format = now.format(DATE_FORMATTER);
+        if (segmentEnabled) {
+            return timestamp << COUNT_BITS | nextSequence(keyPrefix, format);
+        }
         //自增长 加上一个时间戳 就可以把一个key的增长放到一天里 不会超出
         Long increment = stringRedisTemplate.opsForValue().increment("icr:" + keyPrefix + ":" + format);
 
         return timestamp << COUNT_BITS | increment;//向左位移 然后采用或运算把两部分拼接起来
     }
+
+    /**
+     * 号段模式绝大多数时候在本地分配 直接同步生成 否则异步执行INCR
+     */
+    @Override
+    public CompletableFuture<Long> nextIdAsync(String keyPrefix) {
+        if (segmentEnabled || reactiveStringRedisTemplate == null) {
+            return CompletableFuture.completedFuture(nextId(keyPrefix));
+        }
+        LocalDateTime now = LocalDateTime.now();
+        long timestamp = now.toEpochSecond(ZoneOffset.UTC) - BEGIN_TIMESTAMP;
+        return reactiveStringRedisTemplate.opsForValue()
+                .increment("icr:" + keyPrefix + ":" + now.format(DATE_FORMATTER))
+                .map(increment -> timestamp << COUNT_BITS | increment)
+                .toFuture();
+    }
+
+    @Override
+    public long timestampOf(long id) {
+        //生成时按本地时间的秒数计算 这里按同样的方式还原
+        long second = (id >>> COUNT_BITS) + BEGIN_TIMESTAMP;
+        return LocalDateTime.ofEpochSecond(second, 0, ZoneOffset.UTC)
+                .atZone(ZoneId.systemDefault()).toInstant().toEpochMilli();
+    }
+
+    /**
+     * 从本地号段中取序列号 号段用完时切换到预取好的下一段
+     */
+    private long nextSequence(String keyPrefix, String date) {
+        SegmentBuffer buffer = buffers.computeIfAbsent(keyPrefix, k -> new SegmentBuffer());
+        while (true) {
+            Segment current = buffer.current;
+            if (current != null && current.date.equals(date)) {
+                long sequence = current.cursor.getAndIncrement();
+                if (sequence <= current.end) {
+                    //剩余不足时提前异步加载下一段
+                    if (current.end - sequence < segmentSize * refillRatio) {
+                        refillAsync(keyPrefix, date, buffer);
+                    }
+                    return sequence;
+                }
+            }
+            //号段用完或者跨天 切换号段
+            synchronized (buffer) {
+                if (buffer.current == current) {
+                    Segment next = buffer.next;
+                    buffer.next = null;
+                    buffer.current = next != null && next.date.equals(date) ? next : fetch(keyPrefix, date);
+                }
+            }
+        }
+    }
+
+    private void refillAsync(String keyPrefix, String date, SegmentBuffer buffer) {
+        if (buffer.next != null || !buffer.loading.compareAndSet(false, true)) {
+            return;
+        }
+        refillExecutor.execute(() -> {
+            try {
+                Segment next = fetch(keyPrefix, date);
+                synchronized (buffer) {
+                    if (buffer.next == null) {
+                        buffer.next = next;
+                    }
+                }
+            } catch (Exception e) {
+                log.error("预取号段失败 {}", keyPrefix, e);
+            } finally {
+                buffer.loading.set(false);
+            }
+        });
+    }
+
+    /**
+     * INCRBY一次占用[end - segmentSize + 1, end]
+     */
+    private Segment fetch(String keyPrefix, String date) {
+        Long end = stringRedisTemplate.opsForValue().increment("icr:" + keyPrefix + ":" + date, segmentSize);
+        return new Segment(date, end - segmentSize + 1, end);
+    }
+
+    private static class SegmentBuffer {
+        private volatile Segment current;
+        private volatile Segment next;
+        private final AtomicBoolean loading = new AtomicBoolean();
+    }
+
+    private static class Segment {
+        private final String date;
+        private final AtomicLong cursor;
+        private final long end;
+
+        private Segment(String date, long start, long end) {
+            this.date = date;
+            this.cursor = new AtomicLong(start);
+            this.end = end;
+        }
+    }
 }
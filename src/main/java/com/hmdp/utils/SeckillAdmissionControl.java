@@ -0,0 +1,206 @@
+package com.hmdp.utils;
+
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.data.redis.connection.stream.StreamInfo;
+import org.springframework.data.redis.core.StringRedisTemplate;
+import org.springframework.stereotype.Component;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * 秒杀准入控制
+ * 定时采集订单消息积压 落库耗时和redis耗时 交给AdmissionPolicy计算并发上限
+ * 请求进入秒杀时占用一个并发名额 超过上限直接返回系统繁忙 不再执行lua脚本
+ */
+@Slf4j
+@Component
+public class SeckillAdmissionControl {
+
+    private static final double EWMA_ALPHA = 0.2;
+
+    private final StringRedisTemplate stringRedisTemplate;
+    private final OrderStreamManager orderStreamManager;
+    private final OrderConsumeMetrics orderConsumeMetrics;
+    private final AdmissionPolicy admissionPolicy;
+
+    /**
+     * 是否开启准入控制
+     */
+    @Value("${hmdp.seckill.admission.enabled:false}")
+    private boolean enabled;
+    /**
+     * 采集信号的周期 毫秒
+     */
+    @Value("${hmdp.seckill.admission.sample-interval:500}")
+    private long sampleInterval;
+    /**
+     * 订单消息积压阈值
+     */
+    @Value("${hmdp.seckill.admission.max-lag:10000}")
+    private long maxLag;
+    /**
+     * 落库耗时阈值 毫秒
+     */
+    @Value("${hmdp.seckill.admission.max-db-latency:50}")
+    private double maxDbLatency;
+    /**
+     * redis耗时阈值 毫秒
+     */
+    @Value("${hmdp.seckill.admission.max-redis-latency:20}")
+    private double maxRedisLatency;
+    /**
+     * 并发上限的最小值 至少为1 过载期间仍放行少量请求探测是否恢复
+     */
+    @Value("${hmdp.seckill.admission.min-limit:1}")
+    private int minLimit;
+    @Value("${hmdp.seckill.admission.max-limit:1000}")
+    private int maxLimit;
+
+    private volatile int limit;
+    private final AtomicInteger inflight = new AtomicInteger();
+    private volatile AdmissionSignals signals = new AdmissionSignals();
+    private volatile double redisLatencyMillis;
+    private long lastDbSamples;
+
+    private final LongAdder admitted = new LongAdder();
+    private final LongAdder rejected = new LongAdder();
+
+    private final ScheduledExecutorService scheduler = Executors.newSingleThreadScheduledExecutor(r -> {
+        Thread t = new Thread(r, "seckill-admission");
+        t.setDaemon(true);
+        return t;
+    });
+
+    public SeckillAdmissionControl(StringRedisTemplate stringRedisTemplate,
+                                   OrderStreamManager orderStreamManager,
+                                   OrderConsumeMetrics orderConsumeMetrics,
+                                   AdmissionPolicy admissionPolicy) {
+        this.stringRedisTemplate = stringRedisTemplate;
+        this.orderStreamManager = orderStreamManager;
+        this.orderConsumeMetrics = orderConsumeMetrics;
+        this.admissionPolicy = admissionPolicy;
+    }
+
+    @PostConstruct
+    private void init() {
+        minLimit = Math.max(1, minLimit);
+        limit = maxLimit;
+        if (!enabled) {
+            return;
+        }
+        scheduler.scheduleWithFixedDelay(this::adjust, sampleInterval, sampleInterval, TimeUnit.MILLISECONDS);
+    }
+
+    @PreDestroy
+    private void destroy() {
+        scheduler.shutdownNow();
+    }
+
+    /**
+     * 占用一个并发名额 成功后必须调用release
+     */
+    public boolean tryAcquire() {
+        if (!enabled) {
+            return true;
+        }
+        while (true) {
+            int current = inflight.get();
+            if (current >= limit) {
+                rejected.increment();
+                return false;
+            }
+            if (inflight.compareAndSet(current, current + 1)) {
+                admitted.increment();
+                return true;
+            }
+        }
+    }
+
+    public void release() {
+        if (enabled) {
+            inflight.decrementAndGet();
+        }
+    }
+
+    /**
+     * 记录一次redis调用的耗时
+     */
+    public synchronized void recordRedisLatency(long nanos) {
+        redisLatencyMillis = redisLatencyMillis * (1 - EWMA_ALPHA) + nanos / 1e6 * EWMA_ALPHA;
+    }
+
+    private void adjust() {
+        try {
+            AdmissionSignals next = new AdmissionSignals();
+            next.setMaxLag(maxLag);
+            next.setMaxDbLatencyMillis(maxDbLatency);
+            next.setMaxRedisLatencyMillis(maxRedisLatency);
+            long begin = System.nanoTime();
+            next.setLag(lag());
+            //没有秒杀请求时用采集本身的耗时保持redis信号更新
+            recordRedisLatency((System.nanoTime() - begin) / Math.max(orderStreamManager.getPartitions(), 1));
+            next.setRedisLatencyMillis(redisLatencyMillis);
+            //周期内没有落库 耗时信号向0衰减
+            long dbSamples = orderConsumeMetrics.getDbSamples();
+            if (dbSamples == lastDbSamples) {
+                orderConsumeMetrics.decayDbLatency();
+            }
+            lastDbSamples = dbSamples;
+            next.setDbLatencyMillis(orderConsumeMetrics.getDbLatencyMillis());
+            int nextLimit = Math.max(minLimit, Math.min(maxLimit, admissionPolicy.nextLimit(limit, next)));
+            if (nextLimit != limit) {
+                log.debug("秒杀并发上限 {} -> {} 压力{}", limit, nextLimit, next.pressure());
+            }
+            limit = nextLimit;
+            signals = next;
+        } catch (Exception e) {
+            log.error("采集准入信号失败", e);
+        }
+    }
+
+    /**
+     * 所有分区的消费积压 redis 7的XINFO GROUPS返回lag 更早的版本只能用pending数量近似
+     */
+    private long lag() {
+        long lag = 0;
+        for (int i = 0; i < orderStreamManager.getPartitions(); i++) {
+            StreamInfo.XInfoGroups groups = stringRedisTemplate.opsForStream().groups(orderStreamManager.streamKey(i));
+            for (int j = 0; j < groups.size(); j++) {
+                StreamInfo.XInfoGroup group = groups.get(j);
+                if (!OrderStreamManager.STREAM_ORDER_GROUP.equals(group.groupName())) {
+                    continue;
+                }
+                Object groupLag = group.getRaw().get("lag");
+                if (groupLag != null) {
+                    lag += Long.parseLong(groupLag.toString());
+                }
+                lag += group.pendingCount();
+            }
+        }
+        return lag;
+    }
+
+    public Map<String, Object> snapshot() {
+        AdmissionSignals current = signals;
+        Map<String, Object> map = new LinkedHashMap<>();
+        map.put("enabled", enabled);
+        map.put("policy", admissionPolicy.getClass().getSimpleName());
+        map.put("limit", limit);
+        map.put("inflight", inflight.get());
+        map.put("admitted", admitted.sum());
+        map.put("rejected", rejected.sum());
+        map.put("lag", current.getLag());
+        map.put("dbLatencyMillis", current.getDbLatencyMillis());
+        map.put("redisLatencyMillis", current.getRedisLatencyMillis());
+        return map;
+    }
+}
@@ -0,0 +1,442 @@
+package com.hmdp.utils;
+
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.core.io.ClassPathResource;
+import org.springframework.data.redis.connection.StringRedisConnection;
+import org.springframework.data.redis.core.RedisCallback;
+import org.springframework.data.redis.core.StringRedisTemplate;
+import org.springframework.data.redis.core.script.DefaultRedisScript;
+import org.springframework.stereotype.Component;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+
+/**
+ * 本地库存租约模式的秒杀准入
+ * 请求线程只扣减本地租到的库存 一人一单的校验由后台线程攒批后在用户所在的分片各执行一次lua脚本
+ * 确认成功的订单再用一次pipeline发送到消息队列
+ * 租约长时间没有使用或者节点下线时把剩余库存还回redis
+ * redis按节点的消费者名记录租约 节点异常退出时心跳过期 对账时回收它的租约
+ * 本地租约用完只说明本节点没有库存 只有redis库存为0并且没有节点持有租约时才算售罄
+ */
+@Slf4j
+@Component
+public class SeckillLeaseAdmission {
+
+    private static final DefaultRedisScript<Long> LEASE_SCRIPT;
+    private static final DefaultRedisScript<List> CONFIRM_SCRIPT;
+    private static final DefaultRedisScript<Long> RETURN_SCRIPT;
+    private static final DefaultRedisScript<Long> MOVE_SCRIPT;
+    static {
+        LEASE_SCRIPT = new DefaultRedisScript<>();
+        LEASE_SCRIPT.setResultType(Long.class);
+        LEASE_SCRIPT.setLocation(new ClassPathResource("seckill_lease.lua"));
+        CONFIRM_SCRIPT = new DefaultRedisScript<>();
+        CONFIRM_SCRIPT.setResultType(List.class);
+        CONFIRM_SCRIPT.setLocation(new ClassPathResource("seckill_confirm.lua"));
+        RETURN_SCRIPT = new DefaultRedisScript<>();
+        RETURN_SCRIPT.setResultType(Long.class);
+        RETURN_SCRIPT.setLocation(new ClassPathResource("seckill_lease_return.lua"));
+        MOVE_SCRIPT = new DefaultRedisScript<>();
+        MOVE_SCRIPT.setResultType(Long.class);
+        MOVE_SCRIPT.setLocation(new ClassPathResource("seckill_lease_move.lua"));
+    }
+
+    /**
+     * 本节点没有租约库存 其他节点还持有租约 或者本节点的租约已经被回收
+     */
+    public static final int NO_LEASE = StockLeasePool.LEASE_LOST;
+    /**
+     * 确认脚本的执行结果未知 订单可能已经发送到消息队列
+     */
+    public static final int UNKNOWN = 7;
+
+    private final StringRedisTemplate stringRedisTemplate;
+    private final OrderStreamManager orderStreamManager;
+    private final SeckillSoldOutRegistry seckillSoldOutRegistry;
+    private final SeckillStockManager seckillStockManager;
+
+    /**
+     * 是否开启本地库存租约
+     */
+    @Value("${hmdp.seckill.lease.enabled:false}")
+    private boolean enabled;
+    /**
+     * 每次租用的库存数量
+     */
+    @Value("${hmdp.seckill.lease.chunk:200}")
+    private int chunk;
+    /**
+     * 租约空闲多久后归还剩余库存 毫秒
+     */
+    @Value("${hmdp.seckill.lease.idle-return:30000}")
+    private long idleReturn;
+    /**
+     * 每批最多确认的订单数
+     */
+    @Value("${hmdp.seckill.lease.confirm-batch:200}")
+    private int confirmBatch;
+    /**
+     * 请求线程等待确认结果的超时时间 毫秒
+     */
+    @Value("${hmdp.seckill.lease.confirm-timeout:3000}")
+    private long confirmTimeout;
+
+    private StockLeasePool stockLeasePool;
+
+    /**
+     * 秒杀时间窗口 本地预判用 以确认脚本中的redis时间为准
+     */
+    private final Map<Long, long[]> windows = new ConcurrentHashMap<>();
+    /**
+     * 最近一次租用时redis没有库存 也没有节点持有租约的优惠券
+     */
+    private final Set<Long> drained = ConcurrentHashMap.newKeySet();
+
+    private final BlockingQueue<Admission> admissions = new LinkedBlockingQueue<>();
+
+    private final ScheduledExecutorService scheduler = Executors.newScheduledThreadPool(2, r -> {
+        Thread t = new Thread(r, "seckill-lease");
+        t.setDaemon(true);
+        return t;
+    });
+
+    private volatile boolean running = true;
+
+    public SeckillLeaseAdmission(StringRedisTemplate stringRedisTemplate,
+                                 OrderStreamManager orderStreamManager,
+                                 SeckillSoldOutRegistry seckillSoldOutRegistry,
+                                 SeckillStockManager seckillStockManager) {
+        this.stringRedisTemplate = stringRedisTemplate;
+        this.orderStreamManager = orderStreamManager;
+        this.seckillSoldOutRegistry = seckillSoldOutRegistry;
+        this.seckillStockManager = seckillStockManager;
+    }
+
+    @PostConstruct
+    private void init() {
+        stockLeasePool = new StockLeasePool(new RedisStockSource(), chunk);
+        if (!enabled) {
+            return;
+        }
+        scheduler.execute(this::confirmLoop);
+        scheduler.scheduleWithFixedDelay(this::returnIdle, idleReturn, idleReturn / 2, TimeUnit.MILLISECONDS);
+    }
+
+    @PreDestroy
+    private void destroy() {
+        running = false;
+        scheduler.shutdownNow();
+        //节点下线 剩余库存还回redis
+        for (Long voucherId : stockLeasePool.vouchers()) {
+            try {
+                stockLeasePool.returnAll(voucherId);
+            } catch (Exception e) {
+                log.error("归还租约库存失败 {}", voucherId, e);
+            }
+        }
+    }
+
+    public boolean isEnabled() {
+        return enabled;
+    }
+
+    public long getConfirmTimeout() {
+        return confirmTimeout;
+    }
+
+    /**
+     * 准入 扣减本地库存后加入攒批确认
+     * 调用方等待超过confirm-timeout时确认可能仍在排队 之后还会完成
+     * @return 0 成功 1 售罄 2 重复下单 3 未开始 4 已结束 5 优惠券不存在 与seckill.lua相同
+     * 6 本节点没有租约库存 7 结果未知 确认失败没有放行时异常完成
+     */
+    public CompletableFuture<Integer> admit(Long voucherId, Long userId, long orderId) {
+        //不在时间窗口内的请求不占用本地库存
+        long[] window = windows.get(voucherId);
+        if (window == null) {
+            window = seckillStockManager.getWindow(voucherId);
+            if (window == null) {
+                return CompletableFuture.completedFuture(5);
+            }
+            windows.put(voucherId, window);
+        }
+        long now = System.currentTimeMillis();
+        if (now < window[0]) {
+            return CompletableFuture.completedFuture(3);
+        }
+        if (now > window[1]) {
+            return CompletableFuture.completedFuture(4);
+        }
+        if (!stockLeasePool.tryAcquire(voucherId)) {
+            return CompletableFuture.completedFuture(drained.contains(voucherId) ? 1 : NO_LEASE);
+        }
+        Admission admission = new Admission(voucherId, userId, orderId);
+        admissions.add(admission);
+        return admission.result;
+    }
+
+    /**
+     * 秒杀开始前预先租一批库存到本地
+     */
+    public void prefetch(Long voucherId) {
+        if (enabled) {
+            stockLeasePool.prefetch(voucherId);
+        }
+    }
+
+    /**
+     * 攒批确认 同一张券一次脚本调用
+     */
+    private void confirmLoop() {
+        List<Admission> batch = new ArrayList<>(confirmBatch);
+        while (running) {
+            try {
+                Admission first = admissions.poll(1, TimeUnit.SECONDS);
+                if (first == null) {
+                    continue;
+                }
+                batch.add(first);
+                admissions.drainTo(batch, confirmBatch - 1);
+                Map<Long, List<Admission>> byVoucher = new LinkedHashMap<>();
+                for (Admission admission : batch) {
+                    byVoucher.computeIfAbsent(admission.voucherId, k -> new ArrayList<>()).add(admission);
+                }
+                byVoucher.forEach(this::confirm);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return;
+            } catch (Exception e) {
+                log.error("确认租约订单失败", e);
+            } finally {
+                batch.clear();
+            }
+        }
+    }
+
+    private void confirm(Long voucherId, List<Admission> batch) {
+        List<Long> userIds = new ArrayList<>(batch.size());
+        List<Long> orderIds = new ArrayList<>(batch.size());
+        for (Admission admission : batch) {
+            userIds.add(admission.userId);
+            orderIds.add(admission.orderId);
+        }
+        int[] codes;
+        try {
+            //重复下单或者不在时间窗口内的库存放回本地
+            codes = stockLeasePool.confirm(voucherId, userIds, orderIds);
+        } catch (Exception e) {
+            //超时等错误时脚本可能已经执行 逐个检查是否已经下单
+            resolve(voucherId, batch, e);
+            return;
+        }
+        for (int i = 0; i < batch.size(); i++) {
+            batch.get(i).result.complete(codes[i]);
+        }
+    }
+
+    /**
+     * 确认脚本的结果未知 已下单集合中没有的用户一定没有下单 库存放回本地
+     * 已经在集合中的可能是这次下单 也可能是之前的订单 不能放回库存 按结果未知处理
+     * 检查也失败时全部按结果未知处理 宁可少卖也不超卖
+     */
+    private void resolve(Long voucherId, List<Admission> batch, Exception cause) {
+        List<Object> members;
+        try {
+            int shards = seckillStockManager.shards(voucherId);
+            members = stringRedisTemplate.executePipelined((RedisCallback<Object>) connection -> {
+                StringRedisConnection conn = (StringRedisConnection) connection;
+                for (Admission admission : batch) {
+                    conn.sIsMember(SeckillStockManager.orderKey(voucherId,
+                            SeckillStockManager.shardOf(admission.userId, shards)), admission.userId.toString());
+                }
+                return null;
+            });
+        } catch (Exception e) {
+            log.error("确认租约订单结果未知 优惠券{} 订单数{}", voucherId, batch.size(), e);
+            batch.forEach(admission -> admission.result.complete(UNKNOWN));
+            return;
+        }
+        for (int i = 0; i < batch.size(); i++) {
+            Admission admission = batch.get(i);
+            if (Boolean.TRUE.equals(members.get(i))) {
+                log.warn("确认租约订单结果未知 订单{} 用户{}", admission.orderId, admission.userId);
+                admission.result.complete(UNKNOWN);
+            } else {
+                stockLeasePool.release(voucherId);
+                admission.result.completeExceptionally(cause);
+            }
+        }
+    }
+
+    private void returnIdle() {
+        for (Long voucherId : stockLeasePool.idleVouchers(idleReturn)) {
+            try {
+                int returned = stockLeasePool.returnAll(voucherId);
+                log.debug("租约空闲 归还优惠券{}库存{}", voucherId, returned);
+            } catch (Exception e) {
+                log.error("归还租约库存失败 {}", voucherId, e);
+            }
+        }
+    }
+
+    /**
+     * 以redis中的秒杀库存作为中心库存
+     * 各节点从不同的分片开始租 本分片没有库存时再租其他分片 租约记录在租到的分片中
+     * 确认在用户所在的分片执行 该分片的租约不够时先从其他分片转入
+     */
+    private class RedisStockSource implements StockLeasePool.StockSource {
+
+        @Override
+        public int lease(Long voucherId, int amount) {
+            int shards = seckillStockManager.shards(voucherId);
+            int first = firstShard(shards);
+            boolean leasedByOthers = false;
+            for (int i = 0; i < shards; i++) {
+                Long leased = stringRedisTemplate.execute(LEASE_SCRIPT,
+                        SeckillStockManager.keys(voucherId, (first + i) % shards),
+                        String.valueOf(amount), orderStreamManager.getConsumerName());
+                if (leased != null && leased > 0) {
+                    drained.remove(voucherId);
+                    return leased.intValue();
+                }
+                //-1表示该分片的库存都在租约中
+                leasedByOthers |= leased == null || leased < 0;
+            }
+            //所有分片都没有库存并且没有节点持有租约才算售罄
+            if (leasedByOthers) {
+                drained.remove(voucherId);
+            } else {
+                drained.add(voucherId);
+            }
+            return 0;
+        }
+
+        @Override
+        public void giveBack(Long voucherId, int amount) {
+            int shards = seckillStockManager.shards(voucherId);
+            int first = firstShard(shards);
+            long returned = 0;
+            for (int i = 0; i < shards && returned < amount; i++) {
+                Long count = stringRedisTemplate.execute(RETURN_SCRIPT,
+                        SeckillStockManager.keys(voucherId, (first + i) % shards),
+                        String.valueOf(amount - returned), orderStreamManager.getConsumerName());
+                returned += count == null ? 0 : count;
+            }
+            if (returned <= 0) {
+                //租约已经被回收
+                return;
+            }
+            drained.remove(voucherId);
+            //其他节点可能已经标记售罄 库存回来了需要清除
+            seckillSoldOutRegistry.reset(voucherId);
+        }
+
+        @Override
+        public int[] confirm(Long voucherId, List<Long> userIds, List<Long> orderIds) {
+            int shards = seckillStockManager.shards(voucherId);
+            Map<Integer, List<Integer>> byShard = new LinkedHashMap<>();
+            for (int i = 0; i < userIds.size(); i++) {
+                byShard.computeIfAbsent(SeckillStockManager.shardOf(userIds.get(i), shards), k -> new ArrayList<>())
+                        .add(i);
+            }
+            int[] codes = new int[userIds.size()];
+            for (Map.Entry<Integer, List<Integer>> entry : byShard.entrySet()) {
+                int shard = entry.getKey();
+                List<Integer> lacking = confirmOnShard(voucherId, shard, 0, entry.getValue(), userIds, orderIds, codes);
+                if (lacking.isEmpty()) {
+                    continue;
+                }
+                //本分片的租约不够 从其他分片转入后重试 转不到说明租约已经被回收
+                int moved = moveLease(voucherId, shard, shards, lacking.size());
+                if (moved > 0) {
+                    confirmOnShard(voucherId, shard, moved, lacking, userIds, orderIds, codes);
+                }
+            }
+            return codes;
+        }
+
+        /**
+         * 在一个分片中确认 成功的订单随后发送到消息队列
+         * @return 租约不够的订单下标
+         */
+        private List<Integer> confirmOnShard(Long voucherId, int shard, int moved, List<Integer> indexes,
+                                             List<Long> userIds, List<Long> orderIds, int[] codes) {
+            List<String> args = new ArrayList<>(indexes.size() + 2);
+            args.add(orderStreamManager.getConsumerName());
+            args.add(String.valueOf(moved));
+            for (Integer index : indexes) {
+                args.add(userIds.get(index).toString());
+            }
+            List<?> results = stringRedisTemplate.execute(CONFIRM_SCRIPT, SeckillStockManager.keys(voucherId, shard),
+                    args.toArray());
+            List<Integer> lacking = new ArrayList<>();
+            List<Long> confirmedUsers = new ArrayList<>(indexes.size());
+            List<Long> confirmedOrders = new ArrayList<>(indexes.size());
+            for (int i = 0; i < indexes.size(); i++) {
+                int index = indexes.get(i);
+                codes[index] = ((Number) results.get(i)).intValue();
+                if (codes[index] == StockLeasePool.CONFIRMED) {
+                    confirmedUsers.add(userIds.get(index));
+                    confirmedOrders.add(orderIds.get(index));
+                } else if (codes[index] == StockLeasePool.LEASE_LOST) {
+                    lacking.add(index);
+                }
+            }
+            //发送失败时抛出异常 已下单的用户按结果未知处理 由对账修复
+            if (!confirmedUsers.isEmpty()) {
+                orderStreamManager.publishAll(voucherId, confirmedUsers, confirmedOrders);
+            }
+            return lacking;
+        }
+
+        /**
+         * 把本节点在其他分片的租约转到目标分片
+         * @return 转出的数量
+         */
+        private int moveLease(Long voucherId, int target, int shards, int amount) {
+            int moved = 0;
+            for (int i = 1; i < shards && moved < amount; i++) {
+                Long count = stringRedisTemplate.execute(MOVE_SCRIPT,
+                        SeckillStockManager.keys(voucherId, (target + i) % shards),
+                        orderStreamManager.getConsumerName(), String.valueOf(amount - moved));
+                moved += count == null ? 0 : count.intValue();
+            }
+            return moved;
+        }
+
+        /**
+         * 本节点最先租用的分片 各节点错开
+         */
+        private int firstShard(int shards) {
+            return Math.floorMod(orderStreamManager.getConsumerName().hashCode(), shards);
+        }
+    }
+
+    private static class Admission {
+        private final Long voucherId;
+        private final Long userId;
+        private final long orderId;
+        private final CompletableFuture<Integer> result = new CompletableFuture<>();
+
+        private Admission(Long voucherId, Long userId, long orderId) {
+            this.voucherId = voucherId;
+            this.userId = userId;
+            this.orderId = orderId;
+        }
+    }
+}
@@ -0,0 +1,474 @@
+package com.hmdp.utils;
+
+import com.hmdp.entity.SeckillVoucher;
+import com.hmdp.mapper.SeckillVoucherMapper;
+import com.hmdp.mapper.VoucherOrderMapper;
+import com.hmdp.service.ISeckillVoucherService;
+import lombok.extern.slf4j.Slf4j;
+import org.redisson.api.RLock;
+import org.redisson.api.RedissonClient;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.core.io.ClassPathResource;
+import org.springframework.data.redis.connection.StringRedisConnection;
+import org.springframework.data.redis.core.Cursor;
+import org.springframework.data.redis.core.RedisCallback;
+import org.springframework.data.redis.core.ScanOptions;
+import org.springframework.data.redis.core.StringRedisTemplate;
+import org.springframework.data.redis.core.script.DefaultRedisScript;
+import org.springframework.stereotype.Component;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+import java.io.IOException;
+import java.time.LocalDateTime;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+import static com.hmdp.utils.RedisConstants.LOCK_SECKILL_RECONCILE_KEY;
+
+/**
+ * redis和数据库的秒杀库存对账
+ * 库存 redis中剩余库存加各节点租走的库存加已下单人数应该等于总库存 数据库中剩余库存加未取消订单数也应该等于总库存
+ * 核对数量之前先回收心跳已经过期的节点的租约
+ * 已下单用户 逐个分片SSCAN seckill:order:{id:k}分块到数据库按索引查询 再逐个分表按user_id分页扫描到redis逐个确认
+ * 各分片的数量分别读取后相加 借库存和转移租约的中间状态会造成短暂的差异 和消息在队列中一样等待确认
+ * 消息还在队列中的订单两边会暂时不一致 差异第一次出现只记录 超过confirm-after仍然存在才确认和修复
+ * 每块之间暂停 秒杀期间持续运行也不会给redis和数据库带来明显压力 多个节点通过分布式锁只有一个在对账
+ */
+@Slf4j
+@Component
+public class SeckillReconciler {
+
+    private static final DefaultRedisScript<List> RECONCILE_SCRIPT;
+    private static final DefaultRedisScript<Long> CANCEL_SCRIPT;
+    private static final DefaultRedisScript<Long> RECLAIM_SCRIPT;
+
+    static {
+        RECONCILE_SCRIPT = new DefaultRedisScript<>();
+        RECONCILE_SCRIPT.setLocation(new ClassPathResource("seckill_reconcile.lua"));
+        RECONCILE_SCRIPT.setResultType(List.class);
+        CANCEL_SCRIPT = new DefaultRedisScript<>();
+        CANCEL_SCRIPT.setLocation(new ClassPathResource("seckill_cancel.lua"));
+        CANCEL_SCRIPT.setResultType(Long.class);
+        RECLAIM_SCRIPT = new DefaultRedisScript<>();
+        RECLAIM_SCRIPT.setLocation(new ClassPathResource("seckill_lease_reclaim.lua"));
+        RECLAIM_SCRIPT.setResultType(Long.class);
+    }
+
+    /**
+     * 报告中每种差异最多列出的用户数
+     */
+    private static final int MAX_SAMPLES = 20;
+    private static final String REDIS_COUNT = "count:redis";
+    private static final String DB_COUNT = "count:db";
+    private static final String REDIS_ONLY = "redis:";
+    private static final String DB_ONLY = "db:";
+
+    private final StringRedisTemplate stringRedisTemplate;
+    private final RedissonClient redissonClient;
+    private final ISeckillVoucherService seckillVoucherService;
+    private final SeckillVoucherMapper seckillVoucherMapper;
+    private final VoucherOrderMapper voucherOrderMapper;
+    private final SeckillSoldOutRegistry seckillSoldOutRegistry;
+    private final OrderStreamManager orderStreamManager;
+    private final SeckillStockManager seckillStockManager;
+
+    /**
+     * 是否开启对账
+     */
+    @Value("${hmdp.seckill.reconcile.enabled:true}")
+    private boolean enabled;
+    /**
+     * 对账周期 毫秒
+     */
+    @Value("${hmdp.seckill.reconcile.interval:60000}")
+    private long interval;
+    /**
+     * 每块的用户数
+     */
+    @Value("${hmdp.seckill.reconcile.chunk:500}")
+    private int chunk;
+    /**
+     * 每块之间暂停的时间 毫秒
+     */
+    @Value("${hmdp.seckill.reconcile.pause:10}")
+    private long pause;
+    /**
+     * 差异持续多久才确认 要大于消息正常落库和订单日志重放的时间 毫秒
+     */
+    @Value("${hmdp.seckill.reconcile.confirm-after:600000}")
+    private long confirmAfter;
+    /**
+     * 秒杀结束后继续对账的时间 毫秒
+     */
+    @Value("${hmdp.seckill.reconcile.retention:86400000}")
+    private long retention;
+    /**
+     * 是否修复已经确认的差异 关闭时只报告
+     */
+    @Value("${hmdp.seckill.reconcile.repair:false}")
+    private boolean repair;
+
+    /**
+     * 每张券的差异和第一次发现的时间
+     */
+    private final Map<Long, Map<String, Long>> suspects = new ConcurrentHashMap<>();
+    /**
+     * 每张券最近一次对账的结果
+     */
+    private final Map<Long, Map<String, Object>> reports = new ConcurrentHashMap<>();
+
+    private final ScheduledExecutorService scheduler = Executors.newSingleThreadScheduledExecutor(r -> {
+        Thread t = new Thread(r, "seckill-reconcile");
+        t.setDaemon(true);
+        return t;
+    });
+
+    public SeckillReconciler(StringRedisTemplate stringRedisTemplate,
+                             RedissonClient redissonClient,
+                             ISeckillVoucherService seckillVoucherService,
+                             SeckillVoucherMapper seckillVoucherMapper,
+                             VoucherOrderMapper voucherOrderMapper,
+                             SeckillSoldOutRegistry seckillSoldOutRegistry,
+                             OrderStreamManager orderStreamManager,
+                             SeckillStockManager seckillStockManager) {
+        this.stringRedisTemplate = stringRedisTemplate;
+        this.redissonClient = redissonClient;
+        this.seckillVoucherService = seckillVoucherService;
+        this.seckillVoucherMapper = seckillVoucherMapper;
+        this.voucherOrderMapper = voucherOrderMapper;
+        this.seckillSoldOutRegistry = seckillSoldOutRegistry;
+        this.orderStreamManager = orderStreamManager;
+        this.seckillStockManager = seckillStockManager;
+    }
+
+    @PostConstruct
+    private void init() {
+        if (!enabled) {
+            return;
+        }
+        //对账可能持续较长时间 使用单独的线程 不占用@Scheduled的线程
+        scheduler.scheduleWithFixedDelay(this::reconcile, interval, interval, TimeUnit.MILLISECONDS);
+    }
+
+    @PreDestroy
+    private void destroy() {
+        scheduler.shutdownNow();
+    }
+
+    private void reconcile() {
+        RLock lock = redissonClient.getLock(LOCK_SECKILL_RECONCILE_KEY);
+        try {
+            if (!lock.tryLock()) {
+                return;
+            }
+        } catch (Exception e) {
+            log.error("获取对账锁失败", e);
+            return;
+        }
+        try {
+            LocalDateTime now = LocalDateTime.now();
+            List<SeckillVoucher> vouchers = seckillVoucherService.query()
+                    .le("begin_time", now)
+                    .ge("end_time", now.minusNanos(TimeUnit.MILLISECONDS.toNanos(retention)))
+                    .list();
+            Set<Long> checked = new HashSet<>();
+            for (SeckillVoucher voucher : vouchers) {
+                Long voucherId = voucher.getVoucherId();
+                checked.add(voucherId);
+                try {
+                    reconcile(voucherId);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    return;
+                } catch (Exception e) {
+                    log.error("秒杀库存对账失败 优惠券{}", voucherId, e);
+                }
+            }
+            suspects.keySet().retainAll(checked);
+            reports.keySet().retainAll(checked);
+        } catch (Exception e) {
+            //异常不能抛出 否则定时任务不再执行
+            log.error("秒杀库存对账失败", e);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private void reconcile(Long voucherId) throws InterruptedException, IOException {
+        long now = System.currentTimeMillis();
+        Map<String, Object> report = new LinkedHashMap<>();
+        report.put("voucherId", voucherId);
+        //本轮发现的差异 第一次发现的时间沿用上一轮
+        Map<String, Long> previous = suspects.getOrDefault(voucherId, new HashMap<>());
+        Map<String, Long> current = new HashMap<>();
+        int shards = seckillStockManager.shards(voucherId);
+
+        //redis中有 数据库中没有 消息丢失或者落库失败
+        List<Long> redisOnly = new ArrayList<>();
+        List<Long> block = new ArrayList<>(chunk);
+        for (int shard = 0; shard < shards; shard++) {
+            try (Cursor<String> cursor = stringRedisTemplate.opsForSet().scan(
+                    SeckillStockManager.orderKey(voucherId, shard), ScanOptions.scanOptions().count(chunk).build())) {
+                while (cursor.hasNext()) {
+                    block.add(Long.valueOf(cursor.next()));
+                    if (block.size() >= chunk) {
+                        redisOnly.addAll(missingInDb(voucherId, block));
+                        block.clear();
+                        Thread.sleep(pause);
+                    }
+                }
+            }
+        }
+        if (!block.isEmpty()) {
+            redisOnly.addAll(missingInDb(voucherId, block));
+        }
+
+        //数据库中有 redis中没有 redis数据丢失或者人工修改 逐个分表按user_id分页
+        List<Long> dbOnly = new ArrayList<>();
+        for (int shard = 0; shard < OrderShardRouter.SHARDS; shard++) {
+            long lastUserId = 0;
+            while (true) {
+                long after = lastUserId;
+                List<Long> userIds = OrderShardRouter.onShard(shard,
+                        () -> voucherOrderMapper.selectActiveUsersAfter(voucherId, after, chunk));
+                if (userIds.isEmpty()) {
+                    break;
+                }
+                dbOnly.addAll(missingInRedis(voucherId, userIds));
+                lastUserId = userIds.get(userIds.size() - 1);
+                Thread.sleep(pause);
+                if (userIds.size() < chunk) {
+                    break;
+                }
+            }
+        }
+
+        List<Long> confirmedRedisOnly = new ArrayList<>();
+        for (Long userId : new HashSet<>(redisOnly)) {
+            if (strike(REDIS_ONLY + userId, previous, current, now)) {
+                confirmedRedisOnly.add(userId);
+            }
+        }
+        List<Long> confirmedDbOnly = new ArrayList<>();
+        for (Long userId : dbOnly) {
+            if (strike(DB_ONLY + userId, previous, current, now)) {
+                confirmedDbOnly.add(userId);
+            }
+        }
+        report.put("redisOnly", redisOnly.size());
+        report.put("redisOnlyConfirmed", sample(confirmedRedisOnly));
+        report.put("dbOnly", dbOnly.size());
+        report.put("dbOnlyConfirmed", sample(confirmedDbOnly));
+        if (repair) {
+            repairMembers(voucherId, confirmedRedisOnly, confirmedDbOnly, report);
+        }
+
+        reclaimLeases(voucherId, shards, report);
+        //最后核对数量 已下单用户修复后的数量会体现在这里
+        Integer total = seckillStockManager.getTotal(voucherId);
+        if (total == null) {
+            //优惠券没有写入redis 无法得到总库存
+            report.put("skipped", "redis中没有优惠券信息");
+            reports.put(voucherId, report);
+            suspects.put(voucherId, current);
+            return;
+        }
+        long redisStock = 0;
+        long redisSold = 0;
+        long redisLeased = 0;
+        for (int shard = 0; shard < shards; shard++) {
+            List<?> count = stringRedisTemplate.execute(RECONCILE_SCRIPT,
+                    SeckillStockManager.keys(voucherId, shard), "0");
+            redisStock += ((Number) count.get(0)).longValue();
+            redisSold += ((Number) count.get(1)).longValue();
+            redisLeased += ((Number) count.get(2)).longValue();
+        }
+        long redisDelta = total - redisSold - redisStock - redisLeased;
+        report.put("total", total);
+        report.put("redisStock", redisStock);
+        report.put("redisSold", redisSold);
+        report.put("redisLeased", redisLeased);
+        report.put("redisDelta", redisDelta);
+        if (redisDelta != 0 && strike(REDIS_COUNT, previous, current, now) && repair) {
+            long repaired = repairStock(voucherId, shards, redisDelta);
+            log.warn("修正redis库存 优惠券{} 差值{} 修正{}", voucherId, redisDelta, repaired);
+            report.put("redisRepaired", repaired);
+        }
+        Map<String, Object> dbCount = seckillVoucherMapper.selectStockAndSold(voucherId, OrderShardRouter.tables());
+        long dbStock = ((Number) dbCount.get("stock")).longValue();
+        long dbSold = ((Number) dbCount.get("sold")).longValue();
+        long dbDelta = total - dbSold - dbStock;
+        report.put("dbStock", dbStock);
+        report.put("dbSold", dbSold);
+        report.put("dbDelta", dbDelta);
+        //已经在redis下单 还在消息队列中的订单
+        report.put("inFlight", redisSold - dbSold);
+        if (dbDelta != 0 && strike(DB_COUNT, previous, current, now) && repair) {
+            seckillVoucherMapper.repairStock(voucherId, total, OrderShardRouter.tables());
+            log.warn("修正数据库库存 优惠券{} 差值{}", voucherId, dbDelta);
+            report.put("dbRepaired", dbDelta);
+        }
+        report.put("suspects", current.size());
+        report.put("checkedAt", now);
+        reports.put(voucherId, report);
+        suspects.put(voucherId, current);
+        if (!confirmedRedisOnly.isEmpty() || !confirmedDbOnly.isEmpty()) {
+            log.warn("秒杀对账 优惠券{} redis多出{}人 数据库多出{}人", voucherId,
+                    confirmedRedisOnly.size(), confirmedDbOnly.size());
+        }
+    }
+
+    /**
+     * 心跳过期的节点租走的库存放回redis库存 节点异常退出时租约不会一直占着库存
+     * 取不到存活节点时不回收 避免心跳读取失败时把所有租约收回
+     */
+    private void reclaimLeases(Long voucherId, int shards, Map<String, Object> report) {
+        Set<String> alive = orderStreamManager.aliveNodes();
+        if (alive.isEmpty()) {
+            return;
+        }
+        long reclaimed = 0;
+        for (int shard = 0; shard < shards; shard++) {
+            Long count = stringRedisTemplate.execute(RECLAIM_SCRIPT, SeckillStockManager.keys(voucherId, shard),
+                    alive.toArray());
+            reclaimed += count == null ? 0 : count;
+        }
+        if (reclaimed > 0) {
+            seckillSoldOutRegistry.reset(voucherId);
+            log.warn("回收下线节点的租约 优惠券{} 库存{}", voucherId, reclaimed);
+            report.put("leaseReclaimed", reclaimed);
+        }
+    }
+
+    /**
+     * 按差值修正redis库存 多出的库存从各分片依次扣减 不扣成负数 缺少的库存加到第一个分片
+     * @return 实际修正的差值
+     */
+    private long repairStock(Long voucherId, int shards, long delta) {
+        long repaired = 0;
+        for (int shard = 0; shard < shards && repaired != delta; shard++) {
+            List<?> count = stringRedisTemplate.execute(RECONCILE_SCRIPT, SeckillStockManager.keys(voucherId, shard),
+                    String.valueOf(delta - repaired));
+            repaired += ((Number) count.get(3)).longValue();
+        }
+        return repaired;
+    }
+
+    /**
+     * 记录一次差异
+     * @return 差异是否已经持续了confirm-after
+     */
+    private boolean strike(String key, Map<String, Long> previous, Map<String, Long> current, long now) {
+        long firstSeen = previous.getOrDefault(key, now);
+        current.put(key, firstSeen);
+        return now - firstSeen >= confirmAfter;
+    }
+
+    private List<Long> missingInDb(Long voucherId, List<Long> userIds) {
+        //按分表分组 每个分表一次查询
+        Map<Integer, List<Long>> byShard = new HashMap<>();
+        for (Long userId : userIds) {
+            byShard.computeIfAbsent(OrderShardRouter.shardOf(userId), k -> new ArrayList<>()).add(userId);
+        }
+        Set<Long> found = new HashSet<>();
+        for (List<Long> shardUserIds : byShard.values()) {
+            found.addAll(voucherOrderMapper.selectActiveUsers(voucherId, shardUserIds));
+        }
+        List<Long> missing = new ArrayList<>();
+        for (Long userId : userIds) {
+            if (!found.contains(userId)) {
+                missing.add(userId);
+            }
+        }
+        return missing;
+    }
+
+    /**
+     * 一次pipeline逐个SISMEMBER
+     */
+    private List<Long> missingInRedis(Long voucherId, List<Long> userIds) {
+        int shards = seckillStockManager.shards(voucherId);
+        List<Object> members = stringRedisTemplate.executePipelined((RedisCallback<Object>) connection -> {
+            StringRedisConnection conn = (StringRedisConnection) connection;
+            for (Long userId : userIds) {
+                conn.sIsMember(SeckillStockManager.orderKey(voucherId, SeckillStockManager.shardOf(userId, shards)),
+                        userId.toString());
+            }
+            return null;
+        });
+        List<Long> missing = new ArrayList<>();
+        for (int i = 0; i < userIds.size(); i++) {
+            if (!Boolean.TRUE.equals(members.get(i))) {
+                missing.add(userIds.get(i));
+            }
+        }
+        return missing;
+    }
+
+    /**
+     * redis多出的用户订单已经丢失 移出已下单集合并归还redis库存 与取消订单相同
+     * 数据库多出的用户补回已下单集合 保证一人一单 库存差异由数量核对修正
+     */
+    private void repairMembers(Long voucherId, List<Long> redisOnly, List<Long> dbOnly, Map<String, Object> report) {
+        int shards = seckillStockManager.shards(voucherId);
+        if (!redisOnly.isEmpty()) {
+            long returned = 0;
+            for (Map.Entry<Integer, List<String>> entry : byShard(redisOnly, shards).entrySet()) {
+                Long count = stringRedisTemplate.execute(CANCEL_SCRIPT,
+                        SeckillStockManager.keys(voucherId, entry.getKey()), entry.getValue().toArray());
+                returned += count == null ? 0 : count;
+            }
+            if (returned > 0) {
+                seckillSoldOutRegistry.reset(voucherId);
+            }
+            log.warn("修复redis已下单用户 优惠券{} 移除{}人 归还库存{}", voucherId, redisOnly.size(), returned);
+            report.put("redisOnlyRepaired", redisOnly.size());
+        }
+        if (!dbOnly.isEmpty()) {
+            for (Map.Entry<Integer, List<String>> entry : byShard(dbOnly, shards).entrySet()) {
+                stringRedisTemplate.opsForSet().add(SeckillStockManager.orderKey(voucherId, entry.getKey()),
+                        entry.getValue().toArray(new String[0]));
+            }
+            log.warn("修复redis已下单用户 优惠券{} 补回{}人", voucherId, dbOnly.size());
+            report.put("dbOnlyRepaired", dbOnly.size());
+        }
+    }
+
+    /**
+     * 用户按所在的分片分组
+     */
+    private Map<Integer, List<String>> byShard(List<Long> userIds, int shards) {
+        Map<Integer, List<String>> byShard = new HashMap<>();
+        for (Long userId : userIds) {
+            byShard.computeIfAbsent(SeckillStockManager.shardOf(userId, shards), k -> new ArrayList<>())
+                    .add(userId.toString());
+        }
+        return byShard;
+    }
+
+    private List<Long> sample(List<Long> userIds) {
+        return userIds.size() <= MAX_SAMPLES ? userIds : new ArrayList<>(userIds.subList(0, MAX_SAMPLES));
+    }
+
+    /**
+     * 各优惠券最近一次的对账结果
+     */
+    public Map<String, Object> report() {
+        Map<String, Object> map = new LinkedHashMap<>();
+        map.put("enabled", enabled);
+        map.put("repair", repair);
+        map.put("confirmAfter", confirmAfter);
+        map.put("vouchers", new ArrayList<>(reports.values()));
+        return map;
+    }
+}
@@ -0,0 +1,41 @@
+package com.hmdp.utils;
+
+import cn.hutool.json.JSONUtil;
+import com.hmdp.dto.Result;
+import org.springframework.web.servlet.HandlerInterceptor;
+import org.springframework.web.servlet.HandlerMapping;
+
+import javax.servlet.DispatcherType;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+import java.nio.charset.StandardCharsets;
+import java.util.Map;
+
+/**
+ * 秒杀接口在限流之前先检查本地售罄标记 售罄之后的请求不再访问redis
+ */
+public class SeckillSoldOutInterceptor implements HandlerInterceptor {
+
+    private final SeckillSoldOutRegistry seckillSoldOutRegistry;
+
+    public SeckillSoldOutInterceptor(SeckillSoldOutRegistry seckillSoldOutRegistry) {
+        this.seckillSoldOutRegistry = seckillSoldOutRegistry;
+    }
+
+    @Override
+    public boolean preHandle(HttpServletRequest request, HttpServletResponse response, Object handler) throws Exception {
+        if (request.getDispatcherType() == DispatcherType.ASYNC) {
+            return true;
+        }
+        @SuppressWarnings("unchecked")
+        Map<String, String> variables = (Map<String, String>) request.getAttribute(
+                HandlerMapping.URI_TEMPLATE_VARIABLES_ATTRIBUTE);
+        String id = variables == null ? null : variables.get("id");
+        if (id == null || !seckillSoldOutRegistry.isSoldOut(Long.valueOf(id))) {
+            return true;
+        }
+        response.setContentType("application/json;charset=UTF-8");
+        response.getOutputStream().write(JSONUtil.toJsonStr(Result.fail("库存不足")).getBytes(StandardCharsets.UTF_8));
+        return false;
+    }
+}
@@ -0,0 +1,66 @@
+package com.hmdp.utils;
+
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.data.redis.core.StringRedisTemplate;
+import org.springframework.data.redis.listener.ChannelTopic;
+import org.springframework.data.redis.listener.RedisMessageListenerContainer;
+import org.springframework.stereotype.Component;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * 本地售罄标记
+ * lua脚本返回库存不足后在本地标记 并通过redis发布订阅通知其他节点
+ * 之后的请求直接在本地拒绝 不再执行脚本 重新补充库存时清除标记
+ */
+@Slf4j
+@Component
+public class SeckillSoldOutRegistry {
+
+    private static final String SECKILL_SOLD_OUT_CHANNEL = "seckill:soldout";
+    private static final String SOLD_OUT = "+";
+    private static final String RESET = "-";
+
+    private final StringRedisTemplate stringRedisTemplate;
+
+    private final Set<Long> soldOut = ConcurrentHashMap.newKeySet();
+
+    public SeckillSoldOutRegistry(StringRedisTemplate stringRedisTemplate,
+                                  RedisMessageListenerContainer redisMessageListenerContainer) {
+        this.stringRedisTemplate = stringRedisTemplate;
+        //订阅其他节点的售罄和补货消息
+        redisMessageListenerContainer.addMessageListener((message, pattern) -> {
+            String body = new String(message.getBody(), StandardCharsets.UTF_8);
+            Long voucherId = Long.valueOf(body.substring(1));
+            if (body.startsWith(SOLD_OUT)) {
+                soldOut.add(voucherId);
+            } else {
+                soldOut.remove(voucherId);
+            }
+        }, new ChannelTopic(SECKILL_SOLD_OUT_CHANNEL));
+    }
+
+    public boolean isSoldOut(Long voucherId) {
+        return soldOut.contains(voucherId);
+    }
+
+    /**
+     * 标记售罄并通知其他节点
+     */
+    public void markSoldOut(Long voucherId) {
+        if (soldOut.add(voucherId)) {
+            log.debug("优惠券{}已售罄", voucherId);
+            stringRedisTemplate.convertAndSend(SECKILL_SOLD_OUT_CHANNEL, SOLD_OUT + voucherId);
+        }
+    }
+
+    /**
+     * 补充库存后清除标记并通知其他节点
+     */
+    public void reset(Long voucherId) {
+        soldOut.remove(voucherId);
+        stringRedisTemplate.convertAndSend(SECKILL_SOLD_OUT_CHANNEL, RESET + voucherId);
+    }
+}
@@ -0,0 +1,229 @@
+package com.hmdp.utils;
+
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.data.redis.core.StringRedisTemplate;
+import org.springframework.stereotype.Component;
+
+import java.time.LocalDateTime;
+import java.time.ZoneId;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+import static com.hmdp.utils.RedisConstants.SECKILL_LEASED_KEY;
+import static com.hmdp.utils.RedisConstants.SECKILL_ORDER_KEY;
+import static com.hmdp.utils.RedisConstants.SECKILL_STOCK_KEY;
+import static com.hmdp.utils.RedisConstants.SECKILL_VOUCHER_KEY;
+
+/**
+ * 秒杀库存在redis中的存放方式
+ * 库存拆成多个分片 每个分片是一组带{id:分片} hash tag的key 在cluster中属于同一个slot 不同分片可以落在不同的节点
+ * 分片的库存seckill:stock:{id:k} 已下单用户seckill:order:{id:k} 时间窗口seckill:voucher:{id:k}
+ * 租约中的库存seckill:leased:{id:k} 是hash 字段为节点的消费者名 脚本通过KEYS传入 顺序见keys
+ * 用户按userId取模固定在一个分片中下单 一人一单只需要检查这个分片 分片没有库存时从其他分片借
+ * seckill:voucher:{id}保存秒杀的时间窗口 总库存 分片数和限购数量 请求不需要查数据库
+ */
+@Component
+public class SeckillStockManager {
+
+    private static final String BEGIN_FIELD = "begin";
+    private static final String END_FIELD = "end";
+    private static final String TOTAL_FIELD = "total";
+    private static final String LIMIT_FIELD = "limit";
+    private static final String SHARDS_FIELD = "shards";
+    /**
+     * 每人限购数量 订单表按一人一单建模
+     */
+    private static final int LIMIT_PER_USER = 1;
+
+    private final StringRedisTemplate stringRedisTemplate;
+
+    /**
+     * 新发布的优惠券的库存分片数 已经发布的优惠券沿用redis中记录的分片数
+     */
+    @Value("${hmdp.seckill.stock-shards:1}")
+    private int stockShards;
+
+    /**
+     * 各优惠券的分片数 发布后不再变化
+     */
+    private final Map<Long, Integer> shardCounts = new ConcurrentHashMap<>();
+
+    public SeckillStockManager(StringRedisTemplate stringRedisTemplate) {
+        this.stringRedisTemplate = stringRedisTemplate;
+    }
+
+    /**
+     * 一个分片的脚本使用的key 依次为库存 已下单用户 时间窗口 租约中的库存
+     */
+    public static List<String> keys(Long voucherId, int shard) {
+        return new ArrayList<>(Arrays.asList(stockKey(voucherId, shard), orderKey(voucherId, shard),
+                voucherKey(voucherId, shard), leasedKey(voucherId, shard)));
+    }
+
+    public static String stockKey(Long voucherId, int shard) {
+        return SECKILL_STOCK_KEY + hashTag(voucherId, shard);
+    }
+
+    public static String orderKey(Long voucherId, int shard) {
+        return SECKILL_ORDER_KEY + hashTag(voucherId, shard);
+    }
+
+    public static String leasedKey(Long voucherId, int shard) {
+        return SECKILL_LEASED_KEY + hashTag(voucherId, shard);
+    }
+
+    /**
+     * 分片中的时间窗口
+     */
+    public static String voucherKey(Long voucherId, int shard) {
+        return SECKILL_VOUCHER_KEY + hashTag(voucherId, shard);
+    }
+
+    /**
+     * 优惠券的元数据 不属于任何分片
+     */
+    public static String voucherKey(Long voucherId) {
+        return SECKILL_VOUCHER_KEY + "{" + voucherId + "}";
+    }
+
+    private static String hashTag(Long voucherId, int shard) {
+        return "{" + voucherId + ":" + shard + "}";
+    }
+
+    /**
+     * 用户下单的分片
+     */
+    public static int shardOf(Long userId, int shards) {
+        return (int) Math.floorMod(userId, (long) shards);
+    }
+
+    /**
+     * 优惠券的分片数 没有写入redis时为1 脚本会返回优惠券不存在
+     */
+    public int shards(Long voucherId) {
+        Integer cached = shardCounts.get(voucherId);
+        if (cached != null) {
+            return cached;
+        }
+        Object value = stringRedisTemplate.opsForHash().get(voucherKey(voucherId), SHARDS_FIELD);
+        if (value == null) {
+            return 1;
+        }
+        int shards = Integer.parseInt(value.toString());
+        shardCounts.put(voucherId, shards);
+        return shards;
+    }
+
+    /**
+     * 第一次写入时记录分片数 之后都用记录的分片数
+     */
+    private int resolveShards(Long voucherId) {
+        stringRedisTemplate.opsForHash().putIfAbsent(voucherKey(voucherId), SHARDS_FIELD,
+                String.valueOf(Math.max(stockShards, 1)));
+        shardCounts.remove(voucherId);
+        return shards(voucherId);
+    }
+
+    /**
+     * 库存平均分到各分片 余数分给前面的分片
+     */
+    private static int[] split(int stock, int shards) {
+        int[] parts = new int[shards];
+        for (int i = 0; i < shards; i++) {
+            parts[i] = stock / shards + (i < stock % shards ? 1 : 0);
+        }
+        return parts;
+    }
+
+    /**
+     * 写入库存
+     */
+    public void initStock(Long voucherId, int stock) {
+        int[] parts = split(stock, resolveShards(voucherId));
+        for (int i = 0; i < parts.length; i++) {
+            stringRedisTemplate.opsForValue().set(stockKey(voucherId, i), String.valueOf(parts[i]));
+        }
+    }
+
+    /**
+     * 库存不存在时写入 已经写入的库存可能已经被扣减 不能覆盖
+     * @return 是否有分片写入
+     */
+    public boolean initStockIfAbsent(Long voucherId, int stock) {
+        int[] parts = split(stock, resolveShards(voucherId));
+        boolean written = false;
+        for (int i = 0; i < parts.length; i++) {
+            written |= Boolean.TRUE.equals(stringRedisTemplate.opsForValue()
+                    .setIfAbsent(stockKey(voucherId, i), String.valueOf(parts[i])));
+        }
+        return written;
+    }
+
+    /**
+     * 写入秒杀元数据 时间窗口为毫秒时间戳 每个分片也写入一份时间窗口
+     * 总库存是对账的基准 只在发布时写入一次 已经存在时不覆盖
+     * @param total 发布时的总库存 为null时不写入
+     */
+    public void saveMeta(Long voucherId, LocalDateTime beginTime, LocalDateTime endTime, Integer total) {
+        Map<String, String> meta = new HashMap<>();
+        meta.put(BEGIN_FIELD, String.valueOf(toEpochMilli(beginTime)));
+        meta.put(END_FIELD, String.valueOf(toEpochMilli(endTime)));
+        meta.put(LIMIT_FIELD, String.valueOf(LIMIT_PER_USER));
+        int shards = resolveShards(voucherId);
+        for (int i = 0; i < shards; i++) {
+            stringRedisTemplate.opsForHash().putAll(voucherKey(voucherId, i), meta);
+        }
+        stringRedisTemplate.opsForHash().putAll(voucherKey(voucherId), meta);
+        if (total != null) {
+            stringRedisTemplate.opsForHash().putIfAbsent(voucherKey(voucherId), TOTAL_FIELD, String.valueOf(total));
+        }
+    }
+
+    /**
+     * 发布时的总库存 没有写入时返回null
+     */
+    public Integer getTotal(Long voucherId) {
+        Object total = stringRedisTemplate.opsForHash().get(voucherKey(voucherId), TOTAL_FIELD);
+        return total == null ? null : Integer.valueOf(total.toString());
+    }
+
+    /**
+     * 秒杀时间窗口
+     * @return [开始时间, 结束时间] 毫秒时间戳 没有写入时返回null
+     */
+    public long[] getWindow(Long voucherId) {
+        List<Object> window = stringRedisTemplate.opsForHash()
+                .multiGet(voucherKey(voucherId), Arrays.asList(BEGIN_FIELD, END_FIELD));
+        if (window.get(0) == null || window.get(1) == null) {
+            return null;
+        }
+        return new long[]{Long.parseLong(window.get(0).toString()), Long.parseLong(window.get(1).toString())};
+    }
+
+    /**
+     * 剩余库存 各分片之和
+     */
+    public long getStock(Long voucherId) {
+        int shards = shards(voucherId);
+        List<String> keys = new ArrayList<>(shards);
+        for (int i = 0; i < shards; i++) {
+            keys.add(stockKey(voucherId, i));
+        }
+        List<String> values = stringRedisTemplate.opsForValue().multiGet(keys);
+        long stock = 0;
+        if (values != null) {
+            for (String value : values) {
+                stock += value == null ? 0 : Long.parseLong(value);
+            }
+        }
+        return stock;
+    }
+
+    private long toEpochMilli(LocalDateTime time) {
+        return time.atZone(ZoneId.systemDefault()).toInstant().toEpochMilli();
+    }
+}
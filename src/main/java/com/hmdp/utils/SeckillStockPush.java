@@ -0,0 +1,399 @@
+package com.hmdp.utils;
+
+import cn.hutool.core.util.StrUtil;
+import cn.hutool.json.JSONUtil;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.data.redis.core.RedisCallback;
+import org.springframework.data.redis.core.StringRedisTemplate;
+import org.springframework.data.redis.listener.PatternTopic;
+import org.springframework.data.redis.listener.RedisMessageListenerContainer;
+import org.springframework.stereotype.Component;
+import org.springframework.web.servlet.mvc.method.annotation.SseEmitter;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+
+import static com.hmdp.utils.RedisConstants.SECKILL_STOCK_KEY;
+
+/**
+ * 秒杀库存实时推送
+ * 每个节点用一个模式订阅监听seckill:stock:*的keyspace通知 任一分片变化都记录这张优惠券
+ * 推送线程每interval毫秒读取一次这些优惠券的库存 和上次推送的值不同才发给订阅的SSE连接
+ * 同一张券在一个周期内无论扣减多少次 每个节点只读一次redis 每个连接最多收到一条消息
+ * keyspace通知需要notify-keyspace-events包含K和$ 由运维在redis上配置 没有开启时靠refresh-interval定时刷新兜底
+ * 发送在单独的线程池中执行 每个连接只保留最新的一条待发送消息 排队等待发送线程不算慢连接
+ * 一次写入阻塞超过slow-threshold毫秒的连接视为慢连接直接关闭 客户端重连后拿到最新库存
+ */
+@Slf4j
+@Component
+public class SeckillStockPush {
+
+    private static final String NOTIFY_KEYSPACE_EVENTS = "notify-keyspace-events";
+
+    private final StringRedisTemplate stringRedisTemplate;
+    private final RedisMessageListenerContainer redisMessageListenerContainer;
+    private final SeckillStockManager seckillStockManager;
+
+    /**
+     * 是否开启库存推送
+     */
+    @Value("${hmdp.seckill.stock-push.enabled:true}")
+    private boolean enabled;
+    /**
+     * 启动时用CONFIG SET开启keyspace通知 会修改共享redis的配置 默认关闭 由运维开启
+     */
+    @Value("${hmdp.seckill.stock-push.configure-notifications:false}")
+    private boolean configureNotifications;
+    /**
+     * 合并推送的周期 毫秒
+     */
+    @Value("${hmdp.seckill.stock-push.interval:200}")
+    private long interval;
+    /**
+     * 没有收到通知时也重新读取库存的周期 毫秒
+     */
+    @Value("${hmdp.seckill.stock-push.refresh-interval:5000}")
+    private long refreshInterval;
+    /**
+     * 心跳周期 及时发现断开的连接 毫秒
+     */
+    @Value("${hmdp.seckill.stock-push.heartbeat-interval:15000}")
+    private long heartbeatInterval;
+    /**
+     * 连接的最长时间 到期后客户端自动重连 毫秒
+     */
+    @Value("${hmdp.seckill.stock-push.timeout:600000}")
+    private long timeout;
+    /**
+     * 每个节点的最大连接数
+     */
+    @Value("${hmdp.seckill.stock-push.max-connections:10000}")
+    private int maxConnections;
+    /**
+     * 连接数已满时建议客户端重连的间隔 毫秒
+     */
+    @Value("${hmdp.seckill.stock-push.reject-retry:5000}")
+    private long rejectRetry;
+    /**
+     * 发送线程数 慢连接最多占住这些线程 不影响推送线程
+     */
+    @Value("${hmdp.seckill.stock-push.send-threads:4}")
+    private int sendThreads;
+    /**
+     * 一次写入阻塞超过该时间的连接视为慢连接 毫秒
+     */
+    @Value("${hmdp.seckill.stock-push.slow-threshold:5000}")
+    private long slowThreshold;
+
+    @Value("${spring.redis.database:0}")
+    private int database;
+
+    /**
+     * 每张券的订阅连接
+     */
+    private final Map<Long, Set<Subscriber>> emitters = new ConcurrentHashMap<>();
+    private final AtomicInteger connections = new AtomicInteger();
+    /**
+     * 上个周期之后库存有变化的券
+     */
+    private final Set<Long> dirty = ConcurrentHashMap.newKeySet();
+    /**
+     * 每张券最近一次推送的库存
+     */
+    private final Map<Long, Long> pushed = new ConcurrentHashMap<>();
+    private final AtomicInteger dropped = new AtomicInteger();
+    private ExecutorService sender;
+
+    private final ScheduledExecutorService scheduler = Executors.newSingleThreadScheduledExecutor(r -> {
+        Thread t = new Thread(r, "seckill-stock-push");
+        t.setDaemon(true);
+        return t;
+    });
+
+    public SeckillStockPush(StringRedisTemplate stringRedisTemplate,
+                            RedisMessageListenerContainer redisMessageListenerContainer,
+                            SeckillStockManager seckillStockManager) {
+        this.stringRedisTemplate = stringRedisTemplate;
+        this.redisMessageListenerContainer = redisMessageListenerContainer;
+        this.seckillStockManager = seckillStockManager;
+    }
+
+    @PostConstruct
+    private void init() {
+        if (!enabled) {
+            return;
+        }
+        sender = Executors.newFixedThreadPool(sendThreads, r -> {
+            Thread t = new Thread(r, "seckill-stock-send");
+            t.setDaemon(true);
+            return t;
+        });
+        if (configureNotifications) {
+            configureNotifications();
+        }
+        String prefix = "__keyspace@" + database + "__:" + SECKILL_STOCK_KEY;
+        redisMessageListenerContainer.addMessageListener((message, pattern) -> {
+            //频道为前缀加上分片的hash tag {123:0}
+            String channel = new String(message.getChannel(), StandardCharsets.UTF_8);
+            String rest = channel.substring(prefix.length());
+            try {
+                Long voucherId = Long.valueOf(StrUtil.subBefore(StrUtil.unWrap(rest, '{', '}'), ':', false));
+                if (emitters.containsKey(voucherId)) {
+                    dirty.add(voucherId);
+                }
+            } catch (NumberFormatException e) {
+                log.debug("忽略库存通知 {}", channel);
+            }
+        }, new PatternTopic(prefix + "*"));
+        scheduler.scheduleWithFixedDelay(this::push, interval, interval, TimeUnit.MILLISECONDS);
+        scheduler.scheduleWithFixedDelay(() -> dirty.addAll(emitters.keySet()),
+                refreshInterval, refreshInterval, TimeUnit.MILLISECONDS);
+        scheduler.scheduleWithFixedDelay(this::heartbeat,
+                heartbeatInterval, heartbeatInterval, TimeUnit.MILLISECONDS);
+    }
+
+    @PreDestroy
+    private void destroy() {
+        scheduler.shutdownNow();
+        if (sender != null) {
+            sender.shutdownNow();
+        }
+        for (Set<Subscriber> set : emitters.values()) {
+            set.forEach(subscriber -> subscriber.emitter.complete());
+        }
+    }
+
+    /**
+     * 在现有配置上补充K和$ 已经包含时不修改
+     */
+    private void configureNotifications() {
+        try {
+            stringRedisTemplate.execute((RedisCallback<Object>) connection -> {
+                Properties config = connection.getConfig(NOTIFY_KEYSPACE_EVENTS);
+                String current = config == null ? "" : config.getProperty(NOTIFY_KEYSPACE_EVENTS, "");
+                String next = current;
+                if (!next.contains("K")) {
+                    next += "K";
+                }
+                if (!next.contains("$") && !next.contains("A")) {
+                    next += "$";
+                }
+                if (!next.equals(current)) {
+                    connection.setConfig(NOTIFY_KEYSPACE_EVENTS, next);
+                    log.info("开启keyspace通知 {} -> {}", current, next);
+                }
+                return null;
+            });
+        } catch (Exception e) {
+            log.warn("开启keyspace通知失败 库存推送每{}毫秒刷新一次", refreshInterval, e);
+        }
+    }
+
+    /**
+     * 订阅一张券的库存 先推送当前库存 之后只推送变化
+     */
+    public SseEmitter subscribe(Long voucherId) {
+        SseEmitter emitter = new SseEmitter(timeout);
+        if (!enabled || connections.incrementAndGet() > maxConnections) {
+            if (enabled) {
+                connections.decrementAndGet();
+            }
+            try {
+                //retry让EventSource推迟重连
+                emitter.send(SseEmitter.event().name("rejected").reconnectTime(rejectRetry)
+                        .data(enabled ? "连接数已满" : "库存推送未开启"));
+            } catch (IOException e) {
+                log.debug("发送拒绝消息失败", e);
+            }
+            emitter.complete();
+            return emitter;
+        }
+        Subscriber subscriber = new Subscriber(voucherId, emitter);
+        //和remove一样在compute中修改 避免加入刚被移除的空集合
+        emitters.compute(voucherId, (id, set) -> {
+            Set<Subscriber> result = set == null ? ConcurrentHashMap.newKeySet() : set;
+            result.add(subscriber);
+            return result;
+        });
+        emitter.onCompletion(() -> remove(subscriber));
+        emitter.onTimeout(() -> remove(subscriber));
+        emitter.onError(e -> remove(subscriber));
+        try {
+            send(subscriber, seckillStockManager.getStock(voucherId));
+        } catch (Exception e) {
+            //读取失败时等下一次通知或者定时刷新
+            dirty.add(voucherId);
+        }
+        return emitter;
+    }
+
+    private void remove(Subscriber subscriber) {
+        subscriber.closed = true;
+        Long voucherId = subscriber.voucherId;
+        boolean[] removed = new boolean[1];
+        emitters.computeIfPresent(voucherId, (id, set) -> {
+            removed[0] = set.remove(subscriber);
+            return set.isEmpty() ? null : set;
+        });
+        if (removed[0]) {
+            connections.decrementAndGet();
+        }
+        if (!emitters.containsKey(voucherId)) {
+            pushed.remove(voucherId);
+        }
+    }
+
+    private void push() {
+        if (dirty.isEmpty()) {
+            return;
+        }
+        List<Long> vouchers = new ArrayList<>(dirty);
+        dirty.removeAll(vouchers);
+        for (Long voucherId : vouchers) {
+            Set<Subscriber> set = emitters.get(voucherId);
+            if (set == null || set.isEmpty()) {
+                continue;
+            }
+            try {
+                long stock = seckillStockManager.getStock(voucherId);
+                Long last = pushed.put(voucherId, stock);
+                if (last != null && last == stock) {
+                    continue;
+                }
+                for (Subscriber subscriber : set) {
+                    send(subscriber, stock);
+                }
+            } catch (Exception e) {
+                //异常不能抛出 否则定时任务不再执行
+                log.error("推送库存失败 优惠券{}", voucherId, e);
+                dirty.add(voucherId);
+            }
+        }
+    }
+
+    private void send(Subscriber subscriber, long stock) {
+        Map<String, Object> data = new LinkedHashMap<>();
+        data.put("voucherId", subscriber.voucherId);
+        data.put("stock", stock);
+        send(subscriber, SseEmitter.event().name("stock").data(JSONUtil.toJsonStr(data)), true);
+    }
+
+    /**
+     * 交给发送线程 推送线程不等待写入完成
+     * 还没有发出的消息被新的库存替换 每个连接同时最多有一个发送任务
+     * @param replace 为false时已经有待发送的消息就不再发送 用于心跳
+     */
+    private void send(Subscriber subscriber, SseEmitter.SseEventBuilder event, boolean replace) {
+        long since = subscriber.writingSince;
+        if (since != 0 && System.nanoTime() - since > TimeUnit.MILLISECONDS.toNanos(slowThreshold)) {
+            //一次写入阻塞太久 关闭慢连接
+            dropped.incrementAndGet();
+            remove(subscriber);
+            subscriber.emitter.complete();
+            return;
+        }
+        if (replace) {
+            subscriber.pending.set(event);
+        } else if (!subscriber.pending.compareAndSet(null, event)) {
+            return;
+        }
+        schedule(subscriber);
+    }
+
+    private void schedule(Subscriber subscriber) {
+        if (!subscriber.scheduled.compareAndSet(false, true)) {
+            return;
+        }
+        try {
+            sender.execute(() -> drain(subscriber));
+        } catch (RejectedExecutionException e) {
+            subscriber.scheduled.set(false);
+        }
+    }
+
+    /**
+     * 发出待发送的消息 直到没有新的消息
+     */
+    private void drain(Subscriber subscriber) {
+        try {
+            SseEmitter.SseEventBuilder event;
+            while (!subscriber.closed && (event = subscriber.pending.getAndSet(null)) != null) {
+                subscriber.writingSince = System.nanoTime() | 1;
+                try {
+                    subscriber.emitter.send(event);
+                } catch (Exception e) {
+                    //客户端已经断开
+                    remove(subscriber);
+                    subscriber.emitter.completeWithError(e);
+                } finally {
+                    subscriber.writingSince = 0;
+                }
+            }
+        } finally {
+            subscriber.scheduled.set(false);
+        }
+        //清除标记之前加入的消息
+        if (!subscriber.closed && subscriber.pending.get() != null) {
+            schedule(subscriber);
+        }
+    }
+
+    private void heartbeat() {
+        emitters.forEach((voucherId, set) -> {
+            for (Subscriber subscriber : set) {
+                send(subscriber, SseEmitter.event().comment(""), false);
+            }
+        });
+    }
+
+    public Map<String, Object> snapshot() {
+        Map<String, Object> map = new LinkedHashMap<>();
+        map.put("enabled", enabled);
+        map.put("connections", connections.get());
+        map.put("vouchers", emitters.size());
+        map.put("dropped", dropped.get());
+        map.put("pushed", new LinkedHashMap<>(pushed));
+        return map;
+    }
+
+    /**
+     * 一个SSE连接和它最新的一条待发送消息
+     */
+    private static final class Subscriber {
+        private final Long voucherId;
+        private final SseEmitter emitter;
+        private final AtomicReference<SseEmitter.SseEventBuilder> pending = new AtomicReference<>();
+        /**
+         * 是否已经有发送任务
+         */
+        private final AtomicBoolean scheduled = new AtomicBoolean();
+        /**
+         * 当前写入开始的时间 System.nanoTime 0表示没有在写入
+         */
+        private volatile long writingSince;
+        private volatile boolean closed;
+
+        Subscriber(Long voucherId, SseEmitter emitter) {
+            this.voucherId = voucherId;
+            this.emitter = emitter;
+        }
+    }
+}
@@ -0,0 +1,179 @@
+package com.hmdp.utils;
+
+import cn.hutool.core.lang.UUID;
+import com.hmdp.entity.SeckillVoucher;
+import com.hmdp.service.ISeckillVoucherService;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.core.io.ClassPathResource;
+import org.springframework.data.redis.core.RedisCallback;
+import org.springframework.data.redis.core.StringRedisTemplate;
+import org.springframework.data.redis.core.script.DefaultRedisScript;
+import org.springframework.scheduling.TaskScheduler;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.stereotype.Component;
+
+import java.nio.charset.StandardCharsets;
+import java.time.LocalDateTime;
+import java.time.ZoneId;
+import java.util.Collections;
+import java.util.Date;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+
+import static com.hmdp.utils.RedisConstants.LOCK_SECKILL_WARM_UP_KEY;
+import static com.hmdp.utils.RedisConstants.LOCK_SECKILL_WARM_UP_TTL;
+
+/**
+ * 秒杀预热
+ * 定时扫描即将开始的秒杀券 在开始之前把库存 时间窗口 消费者组 lua脚本和本地缓存都准备好
+ * 避免秒杀开始的第一秒承担冷启动的开销
+ */
+@Slf4j
+@Component
+public class SeckillWarmUpScheduler {
+
+    /**
+     * 秒杀用到的lua脚本 预先SCRIPT LOAD 之后EVALSHA不会因为NOSCRIPT退回EVAL
+     */
+    private static final String[] SCRIPTS = {"seckill.lua", "seckill_borrow.lua", "seckill_lease.lua",
+            "seckill_confirm.lua", "seckill_lease_move.lua", "seckill_lease_return.lua"};
+    private static final String WARMED_FIELD = "warmed";
+
+    private static final DefaultRedisScript<Long> UNLOCK_SCRIPT;
+
+    static {
+        UNLOCK_SCRIPT = new DefaultRedisScript<>();
+        UNLOCK_SCRIPT.setLocation(new ClassPathResource("unlock.lua"));
+        UNLOCK_SCRIPT.setResultType(Long.class);
+    }
+
+    private final ISeckillVoucherService seckillVoucherService;
+    private final StringRedisTemplate stringRedisTemplate;
+    private final SeckillStockManager seckillStockManager;
+    private final OrderStreamManager orderStreamManager;
+    private final SeckillSoldOutRegistry seckillSoldOutRegistry;
+    private final SeckillLeaseAdmission seckillLeaseAdmission;
+    private final TaskScheduler taskScheduler;
+
+    /**
+     * 提前多久开始预热 毫秒
+     */
+    @Value("${hmdp.seckill.warm-up.window:600000}")
+    private long window;
+    /**
+     * 开始前多久预热本地缓存 毫秒 不能超过租约的空闲归还时间
+     */
+    @Value("${hmdp.seckill.warm-up.local-lead:5000}")
+    private long localLead;
+
+    /**
+     * 本节点已经预热的优惠券 value为秒杀结束时间
+     */
+    private final Map<Long, Long> warmed = new ConcurrentHashMap<>();
+
+    public SeckillWarmUpScheduler(ISeckillVoucherService seckillVoucherService,
+                                  StringRedisTemplate stringRedisTemplate,
+                                  SeckillStockManager seckillStockManager,
+                                  OrderStreamManager orderStreamManager,
+                                  SeckillSoldOutRegistry seckillSoldOutRegistry,
+                                  SeckillLeaseAdmission seckillLeaseAdmission,
+                                  TaskScheduler taskScheduler) {
+        this.seckillVoucherService = seckillVoucherService;
+        this.stringRedisTemplate = stringRedisTemplate;
+        this.seckillStockManager = seckillStockManager;
+        this.orderStreamManager = orderStreamManager;
+        this.seckillSoldOutRegistry = seckillSoldOutRegistry;
+        this.seckillLeaseAdmission = seckillLeaseAdmission;
+        this.taskScheduler = taskScheduler;
+    }
+
+    @Scheduled(fixedDelayString = "${hmdp.seckill.warm-up.interval:30000}")
+    public void scan() {
+        long now = System.currentTimeMillis();
+        //已经结束的不用再记录
+        warmed.values().removeIf(end -> end < now);
+        //即将开始和正在进行的 正在进行的是为了给启动前发布的优惠券补上元数据
+        LocalDateTime from = LocalDateTime.now();
+        List<SeckillVoucher> vouchers = seckillVoucherService.query()
+                .le("begin_time", from.plusNanos(window * 1_000_000))
+                .ge("end_time", from)
+                .list();
+        for (SeckillVoucher voucher : vouchers) {
+            if (warmed.containsKey(voucher.getVoucherId())) {
+                continue;
+            }
+            try {
+                if (warmUp(voucher)) {
+                    warmed.put(voucher.getVoucherId(), toEpochMilli(voucher.getEndTime()));
+                }
+            } catch (Exception e) {
+                log.error("秒杀预热失败 {}", voucher.getVoucherId(), e);
+            }
+        }
+    }
+
+    /**
+     * @return 其他节点正在准备redis中的数据时返回false 下次扫描再检查
+     */
+    private boolean warmUp(SeckillVoucher voucher) {
+        Long voucherId = voucher.getVoucherId();
+        //redis中的数据只需要一个节点准备 完成后才写入标记 中途失败其他节点还会重试
+        if (!stringRedisTemplate.opsForHash().hasKey(SeckillStockManager.voucherKey(voucherId), WARMED_FIELD)) {
+            String lockKey = LOCK_SECKILL_WARM_UP_KEY + voucherId;
+            String token = UUID.randomUUID().toString(true);
+            Boolean locked = stringRedisTemplate.opsForValue()
+                    .setIfAbsent(lockKey, token, LOCK_SECKILL_WARM_UP_TTL, TimeUnit.SECONDS);
+            if (!Boolean.TRUE.equals(locked)) {
+                return false;
+            }
+            try {
+                //发布时没有写入redis 或者redis数据丢失 按数据库的剩余库存补上 已经在秒杀中的库存不覆盖
+                seckillStockManager.initStockIfAbsent(voucherId, voucher.getStock());
+                //数据库中的库存是扣减过的 不能作为总库存 总库存只在发布时写入
+                seckillStockManager.saveMeta(voucherId, voucher.getBeginTime(), voucher.getEndTime(), null);
+                stringRedisTemplate.opsForHash().put(SeckillStockManager.voucherKey(voucherId), WARMED_FIELD,
+                        String.valueOf(System.currentTimeMillis()));
+            } finally {
+                //锁可能已经过期被其他节点持有 只释放自己的
+                stringRedisTemplate.execute(UNLOCK_SCRIPT, Collections.singletonList(lockKey), token);
+            }
+        }
+        //消费者组和脚本缓存都是幂等的 每个节点都执行一次
+        for (int i = 0; i < orderStreamManager.getPartitions(); i++) {
+            orderStreamManager.createGroupIfAbsent(orderStreamManager.streamKey(i));
+        }
+        loadScripts();
+        //本地缓存临近开始时再预热 太早租到的库存会被当作空闲归还
+        long localAt = Math.max(System.currentTimeMillis(), toEpochMilli(voucher.getBeginTime()) - localLead);
+        taskScheduler.schedule(() -> warmUpLocal(voucherId), new Date(localAt));
+        log.info("秒杀预热 优惠券{} 开始时间{}", voucherId, voucher.getBeginTime());
+        return true;
+    }
+
+    private void warmUpLocal(Long voucherId) {
+        try {
+            if (seckillSoldOutRegistry.isSoldOut(voucherId) && seckillStockManager.getStock(voucherId) > 0) {
+                seckillSoldOutRegistry.reset(voucherId);
+            }
+            seckillLeaseAdmission.prefetch(voucherId);
+        } catch (Exception e) {
+            log.error("本地缓存预热失败 {}", voucherId, e);
+        }
+    }
+
+    private void loadScripts() {
+        for (String script : SCRIPTS) {
+            DefaultRedisScript<Object> redisScript = new DefaultRedisScript<>();
+            redisScript.setLocation(new ClassPathResource(script));
+            byte[] body = redisScript.getScriptAsString().getBytes(StandardCharsets.UTF_8);
+            stringRedisTemplate.execute((RedisCallback<String>) connection -> connection.scriptLoad(body));
+        }
+    }
+
+    private long toEpochMilli(LocalDateTime time) {
+        return time.atZone(ZoneId.systemDefault()).toInstant().toEpochMilli();
+    }
+}
@@ -0,0 +1,220 @@
+package com.hmdp.utils;
+
+import cn.hutool.core.lang.UUID;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnProperty;
+import org.springframework.data.redis.core.StringRedisTemplate;
+import org.springframework.data.redis.core.script.DefaultRedisScript;
+import org.springframework.stereotype.Component;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+import java.util.Arrays;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import static com.hmdp.utils.RedisConstants.ID_WORKER_KEY;
+import static com.hmdp.utils.RedisConstants.ID_WORKER_TS_TTL;
+import static com.hmdp.utils.RedisConstants.ID_WORKER_TTL;
+
+/**
+ * 雪花算法id 完全在本地生成 请求路径上没有任何io
+ * 41位毫秒时间戳 + 10位workerId + 12位序列号
+ * workerId启动时从redis租用 定时心跳续期 心跳同时记录最后使用的时间戳 重启后不会回到过去
+ * 时间戳保留7天 关闭时只释放自己持有的租约
+ * 距离上次续期成功超过租约时间减去安全余量后拒绝生成 避免停顿或者网络分区期间workerId被其他节点租走
+ */
+@Slf4j
+@Component
+@ConditionalOnProperty(name = "hmdp.id.generator", havingValue = "snowflake")
+public class SnowflakeIdGenerator implements IdGenerator {
+
+    /**
+     * 开始时间戳 毫秒 与RedisIdWorker相同
+     */
+    private static final long BEGIN_TIMESTAMP = 1640995200000L;
+    private static final int WORKER_BITS = 10;
+    private static final int SEQUENCE_BITS = 12;
+    private static final long MAX_WORKER_ID = (1L << WORKER_BITS) - 1;
+    private static final long SEQUENCE_MASK = (1L << SEQUENCE_BITS) - 1;
+
+    /**
+     * 只有租约持有者才能续期 顺便记录最后使用的时间戳
+     */
+    private static final DefaultRedisScript<Long> RENEW_SCRIPT = new DefaultRedisScript<>(
+            "if (redis.call('get', KEYS[1]) == ARGV[1]) then " +
+                    "redis.call('expire', KEYS[1], ARGV[2]) " +
+                    "redis.call('set', KEYS[2], ARGV[3], 'EX', ARGV[4]) " +
+                    "return 1 end " +
+                    "return 0", Long.class);
+
+    /**
+     * 只有租约持有者才能释放 释放前记录最后使用的时间戳
+     */
+    private static final DefaultRedisScript<Long> RELEASE_SCRIPT = new DefaultRedisScript<>(
+            "if (redis.call('get', KEYS[1]) == ARGV[1]) then " +
+                    "redis.call('set', KEYS[2], ARGV[2], 'EX', ARGV[3]) " +
+                    "return redis.call('del', KEYS[1]) end " +
+                    "return 0", Long.class);
+
+    private final StringRedisTemplate stringRedisTemplate;
+
+    /**
+     * 允许的最大时钟回拨 毫秒 范围内沿用上次的时间戳继续递增 超过则拒绝生成
+     */
+    @Value("${hmdp.id.snowflake.max-backward:5000}")
+    private long maxBackward;
+
+    /**
+     * 租约的安全余量 毫秒 上次续期成功后经过ttl减去余量仍未续期则拒绝生成
+     */
+    @Value("${hmdp.id.snowflake.lease-margin:5000}")
+    private long leaseMargin;
+
+    /**
+     * 租约标识 区分同一个workerId的不同持有者
+     */
+    private final String token = UUID.randomUUID().toString(true);
+
+    private volatile long workerId = -1;
+    /**
+     * 租约在本地的有效期 System.nanoTime 从发出续期命令的时间算起 比redis中的实际过期时间早
+     */
+    private volatile long leaseValidUntil;
+
+    /**
+     * 高位为相对时间戳 低12位为序列号 序列号溢出时自然进位到下一毫秒
+     */
+    private final AtomicLong state = new AtomicLong();
+
+    private final ScheduledExecutorService scheduler = Executors.newSingleThreadScheduledExecutor(r -> {
+        Thread t = new Thread(r, "snowflake-lease");
+        t.setDaemon(true);
+        return t;
+    });
+
+    public SnowflakeIdGenerator(StringRedisTemplate stringRedisTemplate) {
+        this.stringRedisTemplate = stringRedisTemplate;
+    }
+
+    @PostConstruct
+    public void init() {
+        lease();
+        long period = ID_WORKER_TTL / 3;
+        scheduler.scheduleAtFixedRate(this::renew, period, period, TimeUnit.SECONDS);
+    }
+
+    @PreDestroy
+    public void destroy() {
+        scheduler.shutdownNow();
+        if (workerId < 0) {
+            return;
+        }
+        //租约可能已经被其他节点持有 只释放自己的
+        stringRedisTemplate.execute(RELEASE_SCRIPT,
+                Arrays.asList(leaseKey(workerId), timestampKey(workerId)),
+                token, String.valueOf(state.get() >>> SEQUENCE_BITS), ID_WORKER_TS_TTL.toString());
+    }
+
+    @Override
+    public long nextId(String keyPrefix) {
+        if (System.nanoTime() - leaseValidUntil > 0) {
+            throw new IllegalStateException("workerId " + workerId + " 租约已过期 拒绝生成id");
+        }
+        while (true) {
+            long last = state.get();
+            long lastTimestamp = last >>> SEQUENCE_BITS;
+            long now = System.currentTimeMillis() - BEGIN_TIMESTAMP;
+            long next;
+            if (now > lastTimestamp) {
+                next = now << SEQUENCE_BITS;
+            } else {
+                //同一毫秒 或者时钟回拨 沿用上次的时间戳继续递增
+                if (lastTimestamp - now > maxBackward) {
+                    throw new IllegalStateException("时钟回拨" + (lastTimestamp - now) + "ms 拒绝生成id");
+                }
+                next = last + 1;
+            }
+            if (state.compareAndSet(last, next)) {
+                return (next >>> SEQUENCE_BITS) << (WORKER_BITS + SEQUENCE_BITS)
+                        | workerId << SEQUENCE_BITS
+                        | (next & SEQUENCE_MASK);
+            }
+        }
+    }
+
+    @Override
+    public long timestampOf(long id) {
+        return (id >>> (WORKER_BITS + SEQUENCE_BITS)) + BEGIN_TIMESTAMP;
+    }
+
+    public long getWorkerId() {
+        return workerId;
+    }
+
+    /**
+     * 从随机位置开始找一个空闲的workerId
+     */
+    private synchronized void lease() {
+        long start = ThreadLocalRandom.current().nextLong(MAX_WORKER_ID + 1);
+        for (long i = 0; i <= MAX_WORKER_ID; i++) {
+            long id = (start + i) & MAX_WORKER_ID;
+            long begin = System.nanoTime();
+            Boolean success = stringRedisTemplate.opsForValue()
+                    .setIfAbsent(leaseKey(id), token, ID_WORKER_TTL, TimeUnit.SECONDS);
+            if (!Boolean.TRUE.equals(success)) {
+                continue;
+            }
+            //上一个持有者最后使用的时间戳 防止重启后时钟落后生成重复id
+            String lastUsed = stringRedisTemplate.opsForValue().get(timestampKey(id));
+            if (lastUsed != null) {
+                long lastTimestamp = Long.parseLong(lastUsed);
+                state.accumulateAndGet(lastTimestamp << SEQUENCE_BITS, Math::max);
+            }
+            workerId = id;
+            leaseValidUntil = begin + leaseValidNanos();
+            log.info("租用workerId {}", id);
+            return;
+        }
+        throw new IllegalStateException("没有可用的workerId");
+    }
+
+    private void renew() {
+        try {
+            long begin = System.nanoTime();
+            Long renewed = stringRedisTemplate.execute(RENEW_SCRIPT,
+                    Arrays.asList(leaseKey(workerId), timestampKey(workerId)),
+                    token, ID_WORKER_TTL.toString(), String.valueOf(state.get() >>> SEQUENCE_BITS),
+                    ID_WORKER_TS_TTL.toString());
+            if (renewed == null || renewed == 0) {
+                //租约已经丢失 可能被其他节点占用 重新租用
+                log.error("workerId {} 租约丢失 重新租用", workerId);
+                leaseValidUntil = begin;
+                lease();
+                return;
+            }
+            leaseValidUntil = begin + leaseValidNanos();
+        } catch (Exception e) {
+            log.error("workerId {} 续期失败", workerId, e);
+        }
+    }
+
+    /**
+     * 租约和时间戳使用相同的hash tag 在cluster中位于同一个slot
+     */
+    private static String leaseKey(long id) {
+        return ID_WORKER_KEY + "{" + id + "}";
+    }
+
+    private static String timestampKey(long id) {
+        return ID_WORKER_KEY + "{" + id + "}:ts";
+    }
+
+    private long leaseValidNanos() {
+        return TimeUnit.SECONDS.toNanos(ID_WORKER_TTL) - TimeUnit.MILLISECONDS.toNanos(leaseMargin);
+    }
+}
@@ -0,0 +1,21 @@
+package com.hmdp.utils;
+
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnProperty;
+import org.springframework.stereotype.Component;
+
+/**
+ * 固定阈值 任一信号超过阈值时并发上限降到min-limit 只放行少量探测请求 恢复后放开到最大并发
+ */
+@Component
+@ConditionalOnProperty(name = "hmdp.seckill.admission.policy", havingValue = "static", matchIfMissing = true)
+public class StaticAdmissionPolicy implements AdmissionPolicy {
+
+    @Value("${hmdp.seckill.admission.max-limit:1000}")
+    private int maxLimit;
+
+    @Override
+    public int nextLimit(int limit, AdmissionSignals signals) {
+        return signals.overloaded() ? 0 : maxLimit;
+    }
+}
@@ -0,0 +1,187 @@
+package com.hmdp.utils;
+
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * 本地库存租约
+ * 每张优惠券从中心库存一次租用一批库存放到本地计数器 本地扣减不需要网络请求
+ * 本地计数器扣完后再去租下一批 中心库存本身保证不超卖 所以各节点租到的总量不会超过库存
+ * 中心库存按节点记录租约 确认下单时消耗本节点的租约 节点下线后租约可以被回收
+ */
+public class StockLeasePool {
+
+    /**
+     * 确认成功
+     */
+    public static final int CONFIRMED = 0;
+    /**
+     * 本节点的租约已经被回收 本地的库存不再有效
+     */
+    public static final int LEASE_LOST = 6;
+
+    /**
+     * 中心库存
+     */
+    public interface StockSource {
+
+        /**
+         * 最多租用amount件库存
+         * @return 实际租到的数量 小于等于0表示没有库存可租
+         */
+        int lease(Long voucherId, int amount);
+
+        /**
+         * 归还库存 最多归还本节点租约中记录的数量
+         */
+        void giveBack(Long voucherId, int amount);
+
+        /**
+         * 确认一批订单 一人一单 每个成功的订单消耗本节点的一件租约
+         * @return 每个订单的结果 CONFIRMED 成功 LEASE_LOST 租约已被回收 其他值为没有用掉库存的原因
+         */
+        int[] confirm(Long voucherId, List<Long> userIds, List<Long> orderIds);
+    }
+
+    private final StockSource stockSource;
+    private final int chunk;
+
+    private final Map<Long, Lease> leases = new ConcurrentHashMap<>();
+
+    public StockLeasePool(StockSource stockSource, int chunk) {
+        this.stockSource = stockSource;
+        this.chunk = chunk;
+    }
+
+    /**
+     * 扣减一件库存
+     * @return false表示本地和中心库存都已经没有了
+     */
+    public boolean tryAcquire(Long voucherId) {
+        Lease lease = leases.computeIfAbsent(voucherId, k -> new Lease());
+        lease.lastAccess = System.currentTimeMillis();
+        while (true) {
+            int remaining = lease.remaining.get();
+            if (remaining > 0) {
+                if (lease.remaining.compareAndSet(remaining, remaining - 1)) {
+                    return true;
+                }
+                continue;
+            }
+            //本地用完了 同一张券只让一个线程去续租
+            synchronized (lease) {
+                if (lease.remaining.get() > 0) {
+                    continue;
+                }
+                int leased = stockSource.lease(voucherId, chunk);
+                if (leased <= 0) {
+                    return false;
+                }
+                lease.remaining.addAndGet(leased);
+            }
+        }
+    }
+
+    /**
+     * 本地没有库存时提前租一批 秒杀开始前预热用
+     * @return 本地剩余库存
+     */
+    public int prefetch(Long voucherId) {
+        Lease lease = leases.computeIfAbsent(voucherId, k -> new Lease());
+        synchronized (lease) {
+            if (lease.remaining.get() <= 0) {
+                int leased = stockSource.lease(voucherId, chunk);
+                if (leased > 0) {
+                    lease.remaining.addAndGet(leased);
+                }
+            }
+            lease.lastAccess = System.currentTimeMillis();
+            return lease.remaining.get();
+        }
+    }
+
+    /**
+     * 把一件没有用掉的库存放回本地 比如确认时发现重复下单
+     */
+    public void release(Long voucherId) {
+        Lease lease = leases.get(voucherId);
+        if (lease != null) {
+            lease.remaining.incrementAndGet();
+        } else {
+            stockSource.giveBack(voucherId, 1);
+        }
+    }
+
+    /**
+     * 确认一批已经扣减本地库存的订单
+     * 重复下单等没有用掉的库存放回本地 租约被回收时本地剩余库存按中心库存的记录归还 多出的部分作废
+     * @return 每个订单的结果 与StockSource.confirm相同
+     */
+    public int[] confirm(Long voucherId, List<Long> userIds, List<Long> orderIds) {
+        int[] codes = stockSource.confirm(voucherId, userIds, orderIds);
+        boolean lost = false;
+        for (int code : codes) {
+            if (code == LEASE_LOST) {
+                lost = true;
+            } else if (code != CONFIRMED) {
+                release(voucherId);
+            }
+        }
+        if (lost) {
+            returnAll(voucherId);
+        }
+        return codes;
+    }
+
+    /**
+     * 把本地剩余的库存全部还给中心库存
+     * @return 归还的数量
+     */
+    public int returnAll(Long voucherId) {
+        Lease lease = leases.get(voucherId);
+        if (lease == null) {
+            return 0;
+        }
+        synchronized (lease) {
+            int remaining = lease.remaining.getAndSet(0);
+            if (remaining > 0) {
+                stockSource.giveBack(voucherId, remaining);
+            }
+            return remaining;
+        }
+    }
+
+    /**
+     * 超过idleMillis没有访问的租约
+     */
+    public Set<Long> idleVouchers(long idleMillis) {
+        long deadline = System.currentTimeMillis() - idleMillis;
+        Set<Long> idle = ConcurrentHashMap.newKeySet();
+        leases.forEach((voucherId, lease) -> {
+            if (lease.lastAccess < deadline && lease.remaining.get() > 0) {
+                idle.add(voucherId);
+            }
+        });
+        return idle;
+    }
+
+    public Set<Long> vouchers() {
+        return leases.keySet();
+    }
+
+    /**
+     * 本地剩余库存
+     */
+    public int remaining(Long voucherId) {
+        Lease lease = leases.get(voucherId);
+        return lease == null ? 0 : lease.remaining.get();
+    }
+
+    private static class Lease {
+        private final AtomicInteger remaining = new AtomicInteger();
+        private volatile long lastAccess = System.currentTimeMillis();
+    }
+}
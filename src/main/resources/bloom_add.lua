@@ -0,0 +1,16 @@
+-- 向布隆过滤器加入一个id 并通知其他节点写入本地副本
+-- bitmap不存在时不写入 避免重建完成之前生成只有部分位的bitmap被其他节点加载 由重建的补充步骤加入
+-- 写入不改变版本号 其他节点按写入序号从最近写入的记录中补上丢失的通知 不需要重新加载整个bitmap
+-- KEYS[1] bitmap KEYS[2] 写入序号 KEYS[3] 最近写入的记录 元素为 序号:id
+-- ARGV[1] 频道 ARGV[2] 消息 ARGV[3] id ARGV[4] 保留的记录条数 ARGV[5..] 各个位
+if (redis.call("exists", KEYS[1]) == 0) then
+    return 0
+end
+for i = 5, #ARGV do
+    redis.call("setbit", KEYS[1], ARGV[i], 1)
+end
+local seq = redis.call("incr", KEYS[2])
+redis.call("lpush", KEYS[3], seq .. ":" .. ARGV[3])
+redis.call("ltrim", KEYS[3], 0, tonumber(ARGV[4]) - 1)
+redis.call("publish", ARGV[1], ARGV[2])
+return 1
@@ -81,6 +81,23 @@ CREATE TABLE `tb_follow`  (
 -- Records of tb_follow
 -- ----------------------------
 
+-- ----------------------------
+-- Table structure for tb_sales_stat
+-- 由OrderSalesStats从redis中的计数定时汇总 看板不再统计订单表
+-- ----------------------------
+DROP TABLE IF EXISTS `tb_sales_stat`;
+CREATE TABLE `tb_sales_stat`  (
+  `id` bigint(20) UNSIGNED NOT NULL AUTO_INCREMENT COMMENT '主键',
+  `dimension` tinyint(1) UNSIGNED NOT NULL COMMENT '统计维度 1：优惠券；2：商铺',
+  `target_id` bigint(20) UNSIGNED NOT NULL COMMENT '优惠券id或商铺id',
+  `granularity` tinyint(1) UNSIGNED NOT NULL COMMENT '时间粒度 1：分钟；2：小时',
+  `bucket_time` datetime NOT NULL COMMENT '时间桶的开始时间',
+  `sales` int(10) NOT NULL DEFAULT 0 COMMENT '销量',
+  `update_time` timestamp NOT NULL DEFAULT CURRENT_TIMESTAMP ON UPDATE CURRENT_TIMESTAMP COMMENT '更新时间',
+  PRIMARY KEY (`id`) USING BTREE,
+  UNIQUE INDEX `uk_target_bucket`(`dimension`, `target_id`, `granularity`, `bucket_time`) USING BTREE
+) ENGINE = InnoDB CHARACTER SET = utf8mb4 COLLATE = utf8mb4_general_ci COMMENT = '销量统计' ROW_FORMAT = Compact;
+
 -- ----------------------------
 -- Table structure for tb_seckill_voucher
 -- ----------------------------
@@ -92,7 +109,8 @@ CREATE TABLE `tb_seckill_voucher`  (
   `begin_time` timestamp NOT NULL DEFAULT '0000-00-00 00:00:00' COMMENT '生效时间',
   `end_time` timestamp NOT NULL DEFAULT '0000-00-00 00:00:00' COMMENT '失效时间',
   `update_time` timestamp NOT NULL DEFAULT CURRENT_TIMESTAMP ON UPDATE CURRENT_TIMESTAMP COMMENT '更新时间',
-  PRIMARY KEY (`voucher_id`) USING BTREE
+  PRIMARY KEY (`voucher_id`) USING BTREE,
+  INDEX `idx_begin_time`(`begin_time`) USING BTREE
 ) ENGINE = InnoDB CHARACTER SET = utf8mb4 COLLATE = utf8mb4_general_ci COMMENT = '秒杀优惠券表，与优惠券是一对一关系' ROW_FORMAT = Compact;
 
 -- ----------------------------
@@ -1260,10 +1278,11 @@ CREATE TABLE `tb_voucher`  (
 INSERT INTO `tb_voucher` VALUES (1, 1, '50元代金券', '周一至周日均可使用', '全场通用\\n无需预约\\n可无限叠加\\不兑现、不找零\\n仅限堂食', 4750, 5000, 0, 1, '2022-01-04 09:42:39', '2022-01-04 09:43:31');
 
 -- ----------------------------
--- Table structure for tb_voucher_order
+-- Table structure for tb_voucher_order_00 ~ tb_voucher_order_15
+-- 订单表按user_id % 16分表 见OrderShardRouter
 -- ----------------------------
-DROP TABLE IF EXISTS `tb_voucher_order`;
-CREATE TABLE `tb_voucher_order`  (
+DROP TABLE IF EXISTS `tb_voucher_order_00`;
+CREATE TABLE `tb_voucher_order_00`  (
   `id` bigint(20) NOT NULL COMMENT '主键',
   `user_id` bigint(20) UNSIGNED NOT NULL COMMENT '下单的用户id',
   `voucher_id` bigint(20) UNSIGNED NOT NULL COMMENT '购买的代金券id',
@@ -1274,11 +1293,269 @@ CREATE TABLE `tb_voucher_order`  (
   `use_time` timestamp NULL DEFAULT NULL COMMENT '核销时间',
   `refund_time` timestamp NULL DEFAULT NULL COMMENT '退款时间',
   `update_time` timestamp NOT NULL DEFAULT CURRENT_TIMESTAMP ON UPDATE CURRENT_TIMESTAMP COMMENT '更新时间',
-  PRIMARY KEY (`id`) USING BTREE
+  `active` tinyint(1) GENERATED ALWAYS AS (IF(`status` = 4, NULL, 1)) VIRTUAL COMMENT '已取消的订单为NULL 不参与一人一单的唯一约束',
+  PRIMARY KEY (`id`) USING BTREE,
+  UNIQUE INDEX `uk_user_voucher`(`user_id`, `voucher_id`, `active`) USING BTREE,
+  INDEX `idx_voucher_user`(`voucher_id`, `user_id`, `status`) USING BTREE
+) ENGINE = InnoDB CHARACTER SET = utf8mb4 COLLATE = utf8mb4_general_ci ROW_FORMAT = Compact;
+DROP TABLE IF EXISTS `tb_voucher_order_01`;
+CREATE TABLE `tb_voucher_order_01`  (
+  `id` bigint(20) NOT NULL COMMENT '主键',
+  `user_id` bigint(20) UNSIGNED NOT NULL COMMENT '下单的用户id',
+  `voucher_id` bigint(20) UNSIGNED NOT NULL COMMENT '购买的代金券id',
+  `pay_type` tinyint(1) UNSIGNED NOT NULL DEFAULT 1 COMMENT '支付方式 1：余额支付；2：支付宝；3：微信',
+  `status` tinyint(1) UNSIGNED NOT NULL DEFAULT 1 COMMENT '订单状态，1：未支付；2：已支付；3：已核销；4：已取消；5：退款中；6：已退款',
+  `create_time` timestamp NOT NULL DEFAULT CURRENT_TIMESTAMP COMMENT '下单时间',
+  `pay_time` timestamp NULL DEFAULT NULL COMMENT '支付时间',
+  `use_time` timestamp NULL DEFAULT NULL COMMENT '核销时间',
+  `refund_time` timestamp NULL DEFAULT NULL COMMENT '退款时间',
+  `update_time` timestamp NOT NULL DEFAULT CURRENT_TIMESTAMP ON UPDATE CURRENT_TIMESTAMP COMMENT '更新时间',
+  `active` tinyint(1) GENERATED ALWAYS AS (IF(`status` = 4, NULL, 1)) VIRTUAL COMMENT '已取消的订单为NULL 不参与一人一单的唯一约束',
+  PRIMARY KEY (`id`) USING BTREE,
+  UNIQUE INDEX `uk_user_voucher`(`user_id`, `voucher_id`, `active`) USING BTREE,
+  INDEX `idx_voucher_user`(`voucher_id`, `user_id`, `status`) USING BTREE
+) ENGINE = InnoDB CHARACTER SET = utf8mb4 COLLATE = utf8mb4_general_ci ROW_FORMAT = Compact;
+DROP TABLE IF EXISTS `tb_voucher_order_02`;
+CREATE TABLE `tb_voucher_order_02`  (
+  `id` bigint(20) NOT NULL COMMENT '主键',
+  `user_id` bigint(20) UNSIGNED NOT NULL COMMENT '下单的用户id',
+  `voucher_id` bigint(20) UNSIGNED NOT NULL COMMENT '购买的代金券id',
+  `pay_type` tinyint(1) UNSIGNED NOT NULL DEFAULT 1 COMMENT '支付方式 1：余额支付；2：支付宝；3：微信',
+  `status` tinyint(1) UNSIGNED NOT NULL DEFAULT 1 COMMENT '订单状态，1：未支付；2：已支付；3：已核销；4：已取消；5：退款中；6：已退款',
+  `create_time` timestamp NOT NULL DEFAULT CURRENT_TIMESTAMP COMMENT '下单时间',
+  `pay_time` timestamp NULL DEFAULT NULL COMMENT '支付时间',
+  `use_time` timestamp NULL DEFAULT NULL COMMENT '核销时间',
+  `refund_time` timestamp NULL DEFAULT NULL COMMENT '退款时间',
+  `update_time` timestamp NOT NULL DEFAULT CURRENT_TIMESTAMP ON UPDATE CURRENT_TIMESTAMP COMMENT '更新时间',
+  `active` tinyint(1) GENERATED ALWAYS AS (IF(`status` = 4, NULL, 1)) VIRTUAL COMMENT '已取消的订单为NULL 不参与一人一单的唯一约束',
+  PRIMARY KEY (`id`) USING BTREE,
+  UNIQUE INDEX `uk_user_voucher`(`user_id`, `voucher_id`, `active`) USING BTREE,
+  INDEX `idx_voucher_user`(`voucher_id`, `user_id`, `status`) USING BTREE
+) ENGINE = InnoDB CHARACTER SET = utf8mb4 COLLATE = utf8mb4_general_ci ROW_FORMAT = Compact;
+DROP TABLE IF EXISTS `tb_voucher_order_03`;
+CREATE TABLE `tb_voucher_order_03`  (
+  `id` bigint(20) NOT NULL COMMENT '主键',
+  `user_id` bigint(20) UNSIGNED NOT NULL COMMENT '下单的用户id',
+  `voucher_id` bigint(20) UNSIGNED NOT NULL COMMENT '购买的代金券id',
+  `pay_type` tinyint(1) UNSIGNED NOT NULL DEFAULT 1 COMMENT '支付方式 1：余额支付；2：支付宝；3：微信',
+  `status` tinyint(1) UNSIGNED NOT NULL DEFAULT 1 COMMENT '订单状态，1：未支付；2：已支付；3：已核销；4：已取消；5：退款中；6：已退款',
+  `create_time` timestamp NOT NULL DEFAULT CURRENT_TIMESTAMP COMMENT '下单时间',
+  `pay_time` timestamp NULL DEFAULT NULL COMMENT '支付时间',
+  `use_time` timestamp NULL DEFAULT NULL COMMENT '核销时间',
+  `refund_time` timestamp NULL DEFAULT NULL COMMENT '退款时间',
+  `update_time` timestamp NOT NULL DEFAULT CURRENT_TIMESTAMP ON UPDATE CURRENT_TIMESTAMP COMMENT '更新时间',
+  `active` tinyint(1) GENERATED ALWAYS AS (IF(`status` = 4, NULL, 1)) VIRTUAL COMMENT '已取消的订单为NULL 不参与一人一单的唯一约束',
+  PRIMARY KEY (`id`) USING BTREE,
+  UNIQUE INDEX `uk_user_voucher`(`user_id`, `voucher_id`, `active`) USING BTREE,
+  INDEX `idx_voucher_user`(`voucher_id`, `user_id`, `status`) USING BTREE
+) ENGINE = InnoDB CHARACTER SET = utf8mb4 COLLATE = utf8mb4_general_ci ROW_FORMAT = Compact;
+DROP TABLE IF EXISTS `tb_voucher_order_04`;
+CREATE TABLE `tb_voucher_order_04`  (
+  `id` bigint(20) NOT NULL COMMENT '主键',
+  `user_id` bigint(20) UNSIGNED NOT NULL COMMENT '下单的用户id',
+  `voucher_id` bigint(20) UNSIGNED NOT NULL COMMENT '购买的代金券id',
+  `pay_type` tinyint(1) UNSIGNED NOT NULL DEFAULT 1 COMMENT '支付方式 1：余额支付；2：支付宝；3：微信',
+  `status` tinyint(1) UNSIGNED NOT NULL DEFAULT 1 COMMENT '订单状态，1：未支付；2：已支付；3：已核销；4：已取消；5：退款中；6：已退款',
+  `create_time` timestamp NOT NULL DEFAULT CURRENT_TIMESTAMP COMMENT '下单时间',
+  `pay_time` timestamp NULL DEFAULT NULL COMMENT '支付时间',
+  `use_time` timestamp NULL DEFAULT NULL COMMENT '核销时间',
+  `refund_time` timestamp NULL DEFAULT NULL COMMENT '退款时间',
+  `update_time` timestamp NOT NULL DEFAULT CURRENT_TIMESTAMP ON UPDATE CURRENT_TIMESTAMP COMMENT '更新时间',
+  `active` tinyint(1) GENERATED ALWAYS AS (IF(`status` = 4, NULL, 1)) VIRTUAL COMMENT '已取消的订单为NULL 不参与一人一单的唯一约束',
+  PRIMARY KEY (`id`) USING BTREE,
+  UNIQUE INDEX `uk_user_voucher`(`user_id`, `voucher_id`, `active`) USING BTREE,
+  INDEX `idx_voucher_user`(`voucher_id`, `user_id`, `status`) USING BTREE
+) ENGINE = InnoDB CHARACTER SET = utf8mb4 COLLATE = utf8mb4_general_ci ROW_FORMAT = Compact;
+DROP TABLE IF EXISTS `tb_voucher_order_05`;
+CREATE TABLE `tb_voucher_order_05`  (
+  `id` bigint(20) NOT NULL COMMENT '主键',
+  `user_id` bigint(20) UNSIGNED NOT NULL COMMENT '下单的用户id',
+  `voucher_id` bigint(20) UNSIGNED NOT NULL COMMENT '购买的代金券id',
+  `pay_type` tinyint(1) UNSIGNED NOT NULL DEFAULT 1 COMMENT '支付方式 1：余额支付；2：支付宝；3：微信',
+  `status` tinyint(1) UNSIGNED NOT NULL DEFAULT 1 COMMENT '订单状态，1：未支付；2：已支付；3：已核销；4：已取消；5：退款中；6：已退款',
+  `create_time` timestamp NOT NULL DEFAULT CURRENT_TIMESTAMP COMMENT '下单时间',
+  `pay_time` timestamp NULL DEFAULT NULL COMMENT '支付时间',
+  `use_time` timestamp NULL DEFAULT NULL COMMENT '核销时间',
+  `refund_time` timestamp NULL DEFAULT NULL COMMENT '退款时间',
+  `update_time` timestamp NOT NULL DEFAULT CURRENT_TIMESTAMP ON UPDATE CURRENT_TIMESTAMP COMMENT '更新时间',
+  `active` tinyint(1) GENERATED ALWAYS AS (IF(`status` = 4, NULL, 1)) VIRTUAL COMMENT '已取消的订单为NULL 不参与一人一单的唯一约束',
+  PRIMARY KEY (`id`) USING BTREE,
+  UNIQUE INDEX `uk_user_voucher`(`user_id`, `voucher_id`, `active`) USING BTREE,
+  INDEX `idx_voucher_user`(`voucher_id`, `user_id`, `status`) USING BTREE
+) ENGINE = InnoDB CHARACTER SET = utf8mb4 COLLATE = utf8mb4_general_ci ROW_FORMAT = Compact;
+DROP TABLE IF EXISTS `tb_voucher_order_06`;
+CREATE TABLE `tb_voucher_order_06`  (
+  `id` bigint(20) NOT NULL COMMENT '主键',
+  `user_id` bigint(20) UNSIGNED NOT NULL COMMENT '下单的用户id',
+  `voucher_id` bigint(20) UNSIGNED NOT NULL COMMENT '购买的代金券id',
+  `pay_type` tinyint(1) UNSIGNED NOT NULL DEFAULT 1 COMMENT '支付方式 1：余额支付；2：支付宝；3：微信',
+  `status` tinyint(1) UNSIGNED NOT NULL DEFAULT 1 COMMENT '订单状态，1：未支付；2：已支付；3：已核销；4：已取消；5：退款中；6：已退款',
+  `create_time` timestamp NOT NULL DEFAULT CURRENT_TIMESTAMP COMMENT '下单时间',
+  `pay_time` timestamp NULL DEFAULT NULL COMMENT '支付时间',
+  `use_time` timestamp NULL DEFAULT NULL COMMENT '核销时间',
+  `refund_time` timestamp NULL DEFAULT NULL COMMENT '退款时间',
+  `update_time` timestamp NOT NULL DEFAULT CURRENT_TIMESTAMP ON UPDATE CURRENT_TIMESTAMP COMMENT '更新时间',
+  `active` tinyint(1) GENERATED ALWAYS AS (IF(`status` = 4, NULL, 1)) VIRTUAL COMMENT '已取消的订单为NULL 不参与一人一单的唯一约束',
+  PRIMARY KEY (`id`) USING BTREE,
+  UNIQUE INDEX `uk_user_voucher`(`user_id`, `voucher_id`, `active`) USING BTREE,
+  INDEX `idx_voucher_user`(`voucher_id`, `user_id`, `status`) USING BTREE
+) ENGINE = InnoDB CHARACTER SET = utf8mb4 COLLATE = utf8mb4_general_ci ROW_FORMAT = Compact;
+DROP TABLE IF EXISTS `tb_voucher_order_07`;
+CREATE TABLE `tb_voucher_order_07`  (
+  `id` bigint(20) NOT NULL COMMENT '主键',
+  `user_id` bigint(20) UNSIGNED NOT NULL COMMENT '下单的用户id',
+  `voucher_id` bigint(20) UNSIGNED NOT NULL COMMENT '购买的代金券id',
+  `pay_type` tinyint(1) UNSIGNED NOT NULL DEFAULT 1 COMMENT '支付方式 1：余额支付；2：支付宝；3：微信',
+  `status` tinyint(1) UNSIGNED NOT NULL DEFAULT 1 COMMENT '订单状态，1：未支付；2：已支付；3：已核销；4：已取消；5：退款中；6：已退款',
+  `create_time` timestamp NOT NULL DEFAULT CURRENT_TIMESTAMP COMMENT '下单时间',
+  `pay_time` timestamp NULL DEFAULT NULL COMMENT '支付时间',
+  `use_time` timestamp NULL DEFAULT NULL COMMENT '核销时间',
+  `refund_time` timestamp NULL DEFAULT NULL COMMENT '退款时间',
+  `update_time` timestamp NOT NULL DEFAULT CURRENT_TIMESTAMP ON UPDATE CURRENT_TIMESTAMP COMMENT '更新时间',
+  `active` tinyint(1) GENERATED ALWAYS AS (IF(`status` = 4, NULL, 1)) VIRTUAL COMMENT '已取消的订单为NULL 不参与一人一单的唯一约束',
+  PRIMARY KEY (`id`) USING BTREE,
+  UNIQUE INDEX `uk_user_voucher`(`user_id`, `voucher_id`, `active`) USING BTREE,
+  INDEX `idx_voucher_user`(`voucher_id`, `user_id`, `status`) USING BTREE
+) ENGINE = InnoDB CHARACTER SET = utf8mb4 COLLATE = utf8mb4_general_ci ROW_FORMAT = Compact;
+DROP TABLE IF EXISTS `tb_voucher_order_08`;
+CREATE TABLE `tb_voucher_order_08`  (
+  `id` bigint(20) NOT NULL COMMENT '主键',
+  `user_id` bigint(20) UNSIGNED NOT NULL COMMENT '下单的用户id',
+  `voucher_id` bigint(20) UNSIGNED NOT NULL COMMENT '购买的代金券id',
+  `pay_type` tinyint(1) UNSIGNED NOT NULL DEFAULT 1 COMMENT '支付方式 1：余额支付；2：支付宝；3：微信',
+  `status` tinyint(1) UNSIGNED NOT NULL DEFAULT 1 COMMENT '订单状态，1：未支付；2：已支付；3：已核销；4：已取消；5：退款中；6：已退款',
+  `create_time` timestamp NOT NULL DEFAULT CURRENT_TIMESTAMP COMMENT '下单时间',
+  `pay_time` timestamp NULL DEFAULT NULL COMMENT '支付时间',
+  `use_time` timestamp NULL DEFAULT NULL COMMENT '核销时间',
+  `refund_time` timestamp NULL DEFAULT NULL COMMENT '退款时间',
+  `update_time` timestamp NOT NULL DEFAULT CURRENT_TIMESTAMP ON UPDATE CURRENT_TIMESTAMP COMMENT '更新时间',
+  `active` tinyint(1) GENERATED ALWAYS AS (IF(`status` = 4, NULL, 1)) VIRTUAL COMMENT '已取消的订单为NULL 不参与一人一单的唯一约束',
+  PRIMARY KEY (`id`) USING BTREE,
+  UNIQUE INDEX `uk_user_voucher`(`user_id`, `voucher_id`, `active`) USING BTREE,
+  INDEX `idx_voucher_user`(`voucher_id`, `user_id`, `status`) USING BTREE
+) ENGINE = InnoDB CHARACTER SET = utf8mb4 COLLATE = utf8mb4_general_ci ROW_FORMAT = Compact;
+DROP TABLE IF EXISTS `tb_voucher_order_09`;
+CREATE TABLE `tb_voucher_order_09`  (
+  `id` bigint(20) NOT NULL COMMENT '主键',
+  `user_id` bigint(20) UNSIGNED NOT NULL COMMENT '下单的用户id',
+  `voucher_id` bigint(20) UNSIGNED NOT NULL COMMENT '购买的代金券id',
+  `pay_type` tinyint(1) UNSIGNED NOT NULL DEFAULT 1 COMMENT '支付方式 1：余额支付；2：支付宝；3：微信',
+  `status` tinyint(1) UNSIGNED NOT NULL DEFAULT 1 COMMENT '订单状态，1：未支付；2：已支付；3：已核销；4：已取消；5：退款中；6：已退款',
+  `create_time` timestamp NOT NULL DEFAULT CURRENT_TIMESTAMP COMMENT '下单时间',
+  `pay_time` timestamp NULL DEFAULT NULL COMMENT '支付时间',
+  `use_time` timestamp NULL DEFAULT NULL COMMENT '核销时间',
+  `refund_time` timestamp NULL DEFAULT NULL COMMENT '退款时间',
+  `update_time` timestamp NOT NULL DEFAULT CURRENT_TIMESTAMP ON UPDATE CURRENT_TIMESTAMP COMMENT '更新时间',
+  `active` tinyint(1) GENERATED ALWAYS AS (IF(`status` = 4, NULL, 1)) VIRTUAL COMMENT '已取消的订单为NULL 不参与一人一单的唯一约束',
+  PRIMARY KEY (`id`) USING BTREE,
+  UNIQUE INDEX `uk_user_voucher`(`user_id`, `voucher_id`, `active`) USING BTREE,
+  INDEX `idx_voucher_user`(`voucher_id`, `user_id`, `status`) USING BTREE
+) ENGINE = InnoDB CHARACTER SET = utf8mb4 COLLATE = utf8mb4_general_ci ROW_FORMAT = Compact;
+DROP TABLE IF EXISTS `tb_voucher_order_10`;
+CREATE TABLE `tb_voucher_order_10`  (
+  `id` bigint(20) NOT NULL COMMENT '主键',
+  `user_id` bigint(20) UNSIGNED NOT NULL COMMENT '下单的用户id',
+  `voucher_id` bigint(20) UNSIGNED NOT NULL COMMENT '购买的代金券id',
+  `pay_type` tinyint(1) UNSIGNED NOT NULL DEFAULT 1 COMMENT '支付方式 1：余额支付；2：支付宝；3：微信',
+  `status` tinyint(1) UNSIGNED NOT NULL DEFAULT 1 COMMENT '订单状态，1：未支付；2：已支付；3：已核销；4：已取消；5：退款中；6：已退款',
+  `create_time` timestamp NOT NULL DEFAULT CURRENT_TIMESTAMP COMMENT '下单时间',
+  `pay_time` timestamp NULL DEFAULT NULL COMMENT '支付时间',
+  `use_time` timestamp NULL DEFAULT NULL COMMENT '核销时间',
+  `refund_time` timestamp NULL DEFAULT NULL COMMENT '退款时间',
+  `update_time` timestamp NOT NULL DEFAULT CURRENT_TIMESTAMP ON UPDATE CURRENT_TIMESTAMP COMMENT '更新时间',
+  `active` tinyint(1) GENERATED ALWAYS AS (IF(`status` = 4, NULL, 1)) VIRTUAL COMMENT '已取消的订单为NULL 不参与一人一单的唯一约束',
+  PRIMARY KEY (`id`) USING BTREE,
+  UNIQUE INDEX `uk_user_voucher`(`user_id`, `voucher_id`, `active`) USING BTREE,
+  INDEX `idx_voucher_user`(`voucher_id`, `user_id`, `status`) USING BTREE
+) ENGINE = InnoDB CHARACTER SET = utf8mb4 COLLATE = utf8mb4_general_ci ROW_FORMAT = Compact;
+DROP TABLE IF EXISTS `tb_voucher_order_11`;
+CREATE TABLE `tb_voucher_order_11`  (
+  `id` bigint(20) NOT NULL COMMENT '主键',
+  `user_id` bigint(20) UNSIGNED NOT NULL COMMENT '下单的用户id',
+  `voucher_id` bigint(20) UNSIGNED NOT NULL COMMENT '购买的代金券id',
+  `pay_type` tinyint(1) UNSIGNED NOT NULL DEFAULT 1 COMMENT '支付方式 1：余额支付；2：支付宝；3：微信',
+  `status` tinyint(1) UNSIGNED NOT NULL DEFAULT 1 COMMENT '订单状态，1：未支付；2：已支付；3：已核销；4：已取消；5：退款中；6：已退款',
+  `create_time` timestamp NOT NULL DEFAULT CURRENT_TIMESTAMP COMMENT '下单时间',
+  `pay_time` timestamp NULL DEFAULT NULL COMMENT '支付时间',
+  `use_time` timestamp NULL DEFAULT NULL COMMENT '核销时间',
+  `refund_time` timestamp NULL DEFAULT NULL COMMENT '退款时间',
+  `update_time` timestamp NOT NULL DEFAULT CURRENT_TIMESTAMP ON UPDATE CURRENT_TIMESTAMP COMMENT '更新时间',
+  `active` tinyint(1) GENERATED ALWAYS AS (IF(`status` = 4, NULL, 1)) VIRTUAL COMMENT '已取消的订单为NULL 不参与一人一单的唯一约束',
+  PRIMARY KEY (`id`) USING BTREE,
+  UNIQUE INDEX `uk_user_voucher`(`user_id`, `voucher_id`, `active`) USING BTREE,
+  INDEX `idx_voucher_user`(`voucher_id`, `user_id`, `status`) USING BTREE
+) ENGINE = InnoDB CHARACTER SET = utf8mb4 COLLATE = utf8mb4_general_ci ROW_FORMAT = Compact;
+DROP TABLE IF EXISTS `tb_voucher_order_12`;
+CREATE TABLE `tb_voucher_order_12`  (
+  `id` bigint(20) NOT NULL COMMENT '主键',
+  `user_id` bigint(20) UNSIGNED NOT NULL COMMENT '下单的用户id',
+  `voucher_id` bigint(20) UNSIGNED NOT NULL COMMENT '购买的代金券id',
+  `pay_type` tinyint(1) UNSIGNED NOT NULL DEFAULT 1 COMMENT '支付方式 1：余额支付；2：支付宝；3：微信',
+  `status` tinyint(1) UNSIGNED NOT NULL DEFAULT 1 COMMENT '订单状态，1：未支付；2：已支付；3：已核销；4：已取消；5：退款中；6：已退款',
+  `create_time` timestamp NOT NULL DEFAULT CURRENT_TIMESTAMP COMMENT '下单时间',
+  `pay_time` timestamp NULL DEFAULT NULL COMMENT '支付时间',
+  `use_time` timestamp NULL DEFAULT NULL COMMENT '核销时间',
+  `refund_time` timestamp NULL DEFAULT NULL COMMENT '退款时间',
+  `update_time` timestamp NOT NULL DEFAULT CURRENT_TIMESTAMP ON UPDATE CURRENT_TIMESTAMP COMMENT '更新时间',
+  `active` tinyint(1) GENERATED ALWAYS AS (IF(`status` = 4, NULL, 1)) VIRTUAL COMMENT '已取消的订单为NULL 不参与一人一单的唯一约束',
+  PRIMARY KEY (`id`) USING BTREE,
+  UNIQUE INDEX `uk_user_voucher`(`user_id`, `voucher_id`, `active`) USING BTREE,
+  INDEX `idx_voucher_user`(`voucher_id`, `user_id`, `status`) USING BTREE
+) ENGINE = InnoDB CHARACTER SET = utf8mb4 COLLATE = utf8mb4_general_ci ROW_FORMAT = Compact;
+DROP TABLE IF EXISTS `tb_voucher_order_13`;
+CREATE TABLE `tb_voucher_order_13`  (
+  `id` bigint(20) NOT NULL COMMENT '主键',
+  `user_id` bigint(20) UNSIGNED NOT NULL COMMENT '下单的用户id',
+  `voucher_id` bigint(20) UNSIGNED NOT NULL COMMENT '购买的代金券id',
+  `pay_type` tinyint(1) UNSIGNED NOT NULL DEFAULT 1 COMMENT '支付方式 1：余额支付；2：支付宝；3：微信',
+  `status` tinyint(1) UNSIGNED NOT NULL DEFAULT 1 COMMENT '订单状态，1：未支付；2：已支付；3：已核销；4：已取消；5：退款中；6：已退款',
+  `create_time` timestamp NOT NULL DEFAULT CURRENT_TIMESTAMP COMMENT '下单时间',
+  `pay_time` timestamp NULL DEFAULT NULL COMMENT '支付时间',
+  `use_time` timestamp NULL DEFAULT NULL COMMENT '核销时间',
+  `refund_time` timestamp NULL DEFAULT NULL COMMENT '退款时间',
+  `update_time` timestamp NOT NULL DEFAULT CURRENT_TIMESTAMP ON UPDATE CURRENT_TIMESTAMP COMMENT '更新时间',
+  `active` tinyint(1) GENERATED ALWAYS AS (IF(`status` = 4, NULL, 1)) VIRTUAL COMMENT '已取消的订单为NULL 不参与一人一单的唯一约束',
+  PRIMARY KEY (`id`) USING BTREE,
+  UNIQUE INDEX `uk_user_voucher`(`user_id`, `voucher_id`, `active`) USING BTREE,
+  INDEX `idx_voucher_user`(`voucher_id`, `user_id`, `status`) USING BTREE
+) ENGINE = InnoDB CHARACTER SET = utf8mb4 COLLATE = utf8mb4_general_ci ROW_FORMAT = Compact;
+DROP TABLE IF EXISTS `tb_voucher_order_14`;
+CREATE TABLE `tb_voucher_order_14`  (
+  `id` bigint(20) NOT NULL COMMENT '主键',
+  `user_id` bigint(20) UNSIGNED NOT NULL COMMENT '下单的用户id',
+  `voucher_id` bigint(20) UNSIGNED NOT NULL COMMENT '购买的代金券id',
+  `pay_type` tinyint(1) UNSIGNED NOT NULL DEFAULT 1 COMMENT '支付方式 1：余额支付；2：支付宝；3：微信',
+  `status` tinyint(1) UNSIGNED NOT NULL DEFAULT 1 COMMENT '订单状态，1：未支付；2：已支付；3：已核销；4：已取消；5：退款中；6：已退款',
+  `create_time` timestamp NOT NULL DEFAULT CURRENT_TIMESTAMP COMMENT '下单时间',
+  `pay_time` timestamp NULL DEFAULT NULL COMMENT '支付时间',
+  `use_time` timestamp NULL DEFAULT NULL COMMENT '核销时间',
+  `refund_time` timestamp NULL DEFAULT NULL COMMENT '退款时间',
+  `update_time` timestamp NOT NULL DEFAULT CURRENT_TIMESTAMP ON UPDATE CURRENT_TIMESTAMP COMMENT '更新时间',
+  `active` tinyint(1) GENERATED ALWAYS AS (IF(`status` = 4, NULL, 1)) VIRTUAL COMMENT '已取消的订单为NULL 不参与一人一单的唯一约束',
+  PRIMARY KEY (`id`) USING BTREE,
+  UNIQUE INDEX `uk_user_voucher`(`user_id`, `voucher_id`, `active`) USING BTREE,
+  INDEX `idx_voucher_user`(`voucher_id`, `user_id`, `status`) USING BTREE
+) ENGINE = InnoDB CHARACTER SET = utf8mb4 COLLATE = utf8mb4_general_ci ROW_FORMAT = Compact;
+DROP TABLE IF EXISTS `tb_voucher_order_15`;
+CREATE TABLE `tb_voucher_order_15`  (
+  `id` bigint(20) NOT NULL COMMENT '主键',
+  `user_id` bigint(20) UNSIGNED NOT NULL COMMENT '下单的用户id',
+  `voucher_id` bigint(20) UNSIGNED NOT NULL COMMENT '购买的代金券id',
+  `pay_type` tinyint(1) UNSIGNED NOT NULL DEFAULT 1 COMMENT '支付方式 1：余额支付；2：支付宝；3：微信',
+  `status` tinyint(1) UNSIGNED NOT NULL DEFAULT 1 COMMENT '订单状态，1：未支付；2：已支付；3：已核销；4：已取消；5：退款中；6：已退款',
+  `create_time` timestamp NOT NULL DEFAULT CURRENT_TIMESTAMP COMMENT '下单时间',
+  `pay_time` timestamp NULL DEFAULT NULL COMMENT '支付时间',
+  `use_time` timestamp NULL DEFAULT NULL COMMENT '核销时间',
+  `refund_time` timestamp NULL DEFAULT NULL COMMENT '退款时间',
+  `update_time` timestamp NOT NULL DEFAULT CURRENT_TIMESTAMP ON UPDATE CURRENT_TIMESTAMP COMMENT '更新时间',
+  `active` tinyint(1) GENERATED ALWAYS AS (IF(`status` = 4, NULL, 1)) VIRTUAL COMMENT '已取消的订单为NULL 不参与一人一单的唯一约束',
+  PRIMARY KEY (`id`) USING BTREE,
+  UNIQUE INDEX `uk_user_voucher`(`user_id`, `voucher_id`, `active`) USING BTREE,
+  INDEX `idx_voucher_user`(`voucher_id`, `user_id`, `status`) USING BTREE
 ) ENGINE = InnoDB CHARACTER SET = utf8mb4 COLLATE = utf8mb4_general_ci ROW_FORMAT = Compact;
 
 -- ----------------------------
--- Records of tb_voucher_order
+-- Records of tb_voucher_order_00 ~ tb_voucher_order_15
 -- ----------------------------
 
 SET FOREIGN_KEY_CHECKS = 1;
@@ -0,0 +1,16 @@
+-- 领取到期的订单 从延时队列移到处理中队列 多个节点同时领取时只有一个成功
+-- KEYS[1] 延时队列 KEYS[2] 处理中队列 ARGV 到期的成员
+-- 返回本次领取到的成员
+redis.replicate_commands()
+local time = redis.call("time")
+local now = tonumber(time[1]) * 1000 + math.floor(tonumber(time[2]) / 1000)
+
+local claimed = {}
+for i = 1, #ARGV do
+    if (redis.call("zrem", KEYS[1], ARGV[i]) == 1) then
+        -- score为领取时间 处理超时后放回延时队列
+        redis.call("zadd", KEYS[2], now, ARGV[i])
+        claimed[#claimed + 1] = ARGV[i]
+    end
+end
+return claimed
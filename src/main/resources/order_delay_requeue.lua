@@ -0,0 +1,14 @@
+-- 处理中超时的成员放回延时队列 领取它们的节点可能已经宕机
+-- KEYS[1] 延时队列 KEYS[2] 处理中队列 ARGV[1] 处理超时时间 毫秒 ARGV[2] 每次最多放回的数量
+-- 返回放回的数量
+redis.replicate_commands()
+local time = redis.call("time")
+local now = tonumber(time[1]) * 1000 + math.floor(tonumber(time[2]) / 1000)
+
+local expired = redis.call("zrangebyscore", KEYS[2], 0, now - tonumber(ARGV[1]), "limit", 0, tonumber(ARGV[2]))
+for i = 1, #expired do
+    -- 已经到期 放回后立即重新处理
+    redis.call("zadd", KEYS[1], now, expired[i])
+    redis.call("zrem", KEYS[2], expired[i])
+end
+return #expired
@@ -0,0 +1,22 @@
+-- 滑动窗口限流 窗口内的每次请求记录在zset中 score为请求时间
+-- KEYS[1] 限流key ARGV[1] 窗口内允许的请求数 ARGV[2] 窗口大小 毫秒 ARGV[3] 本次请求的唯一标识
+-- 返回0表示放行 大于0表示需要等待的毫秒数
+local key = KEYS[1]
+local limit = tonumber(ARGV[1])
+local window = tonumber(ARGV[2])
+
+-- 以redis服务器时间为准 之后还有写命令 需要按命令复制
+redis.replicate_commands()
+local time = redis.call("time")
+local now = tonumber(time[1]) * 1000 + math.floor(tonumber(time[2]) / 1000)
+
+-- 清理窗口之外的请求
+redis.call("zremrangebyscore", key, 0, now - window)
+if (redis.call("zcard", key) >= limit) then
+    -- 最早的请求移出窗口后才能放行
+    local oldest = redis.call("zrange", key, 0, 0, "withscores")
+    return math.max(tonumber(oldest[2]) + window - now, 1)
+end
+redis.call("zadd", key, now, ARGV[3])
+redis.call("pexpire", key, window)
+return 0
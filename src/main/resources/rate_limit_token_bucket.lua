@@ -0,0 +1,27 @@
+-- 令牌桶限流 桶的状态保存在hash中 tokens为剩余令牌 ts为上次补充的时间
+-- KEYS[1] 限流key ARGV[1] 桶容量 ARGV[2] 补满一桶需要的时间 毫秒
+-- 返回0表示放行 大于0表示需要等待的毫秒数
+local key = KEYS[1]
+local capacity = tonumber(ARGV[1])
+local period = tonumber(ARGV[2])
+local rate = capacity / period
+
+redis.replicate_commands()
+local time = redis.call("time")
+local now = tonumber(time[1]) * 1000 + math.floor(tonumber(time[2]) / 1000)
+
+local bucket = redis.call("hmget", key, "tokens", "ts")
+local tokens = tonumber(bucket[1]) or capacity
+local ts = tonumber(bucket[2]) or now
+-- 按经过的时间补充令牌
+tokens = math.min(capacity, tokens + math.max(now - ts, 0) * rate)
+local wait = 0
+if (tokens < 1) then
+    wait = math.max(math.ceil((1 - tokens) / rate), 1)
+else
+    tokens = tokens - 1
+end
+redis.call("hset", key, "tokens", tostring(tokens), "ts", tostring(now))
+-- 空闲一个周期后桶一定是满的 不需要保留
+redis.call("pexpire", key, period)
+return wait
@@ -0,0 +1,41 @@
+-- 订单消息计入销量统计 按订单id去重 计数之后由调用方确认消息 没有确认的消息重新投递时不会重复计数
+-- 每个订单在sales:{stat}:orders:{yyyyMMdd}中记录状态 1 已计数 0 失败或取消 死信重放产生的新消息不会重复计数
+-- 所有key使用相同的hash tag 在cluster中位于同一个slot
+-- KEYS[1] 待汇总的桶 KEYS[2..n+1] n个计数项的key 之后是订单状态key
+-- ARGV[1] 计数项数量n ARGV[2] 订单状态的保留时间
+-- 之后n组 field ttl 再之后每个订单 订单状态key的序号 订单id 计数项个数k k个计数项序号
+local dirtyKey = KEYS[1]
+local n = tonumber(ARGV[1])
+local markTtl = tonumber(ARGV[2])
+
+local deltas = {}
+local counted = 0
+local i = 3 + n * 2
+while (i <= #ARGV) do
+    local markKey = KEYS[tonumber(ARGV[i])]
+    local orderId = ARGV[i + 1]
+    local k = tonumber(ARGV[i + 2])
+    -- 同一个订单只计数一次 已经失败或取消的不再计数
+    if (redis.call("hsetnx", markKey, orderId, "1") == 1) then
+        redis.call("expire", markKey, markTtl)
+        counted = counted + 1
+        for j = 1, k do
+            local t = tonumber(ARGV[i + 2 + j])
+            deltas[t] = (deltas[t] or 0) + 1
+        end
+    end
+    i = i + 3 + k
+end
+
+for t, delta in pairs(deltas) do
+    local key = KEYS[1 + t]
+    local field = ARGV[1 + t * 2]
+    local ttl = tonumber(ARGV[2 + t * 2])
+    redis.call("hincrby", key, field, delta)
+    -- ttl为0的是累计值 不需要汇总到数据库
+    if (ttl > 0) then
+        redis.call("expire", key, ttl)
+        redis.call("sadd", dirtyKey, key.."|"..field)
+    end
+end
+return counted
@@ -0,0 +1,36 @@
+-- 订单取消或者落库失败后从下单时间所在的桶中扣减 桶已经过期的不再处理
+-- 只有已经计数的订单才扣减 还没有计数的记为0 之后收到消息也不再计数 重复执行不会多扣
+-- KEYS[1] 待汇总的桶 之后是订单状态key和计数项的key
+-- ARGV[1] 订单状态的保留时间
+-- 之后每个订单 订单状态key的序号 订单id 计数项个数k k组计数项 key的序号 field ttl
+-- 返回扣减的订单数
+local dirtyKey = KEYS[1]
+local markTtl = tonumber(ARGV[1])
+local subtracted = 0
+local i = 2
+while (i <= #ARGV) do
+    local markKey = KEYS[tonumber(ARGV[i])]
+    local orderId = ARGV[i + 1]
+    local k = tonumber(ARGV[i + 2])
+    local mark = redis.call("hget", markKey, orderId)
+    if (mark ~= "0") then
+        redis.call("hset", markKey, orderId, "0")
+        redis.call("expire", markKey, markTtl)
+    end
+    if (mark == "1") then
+        subtracted = subtracted + 1
+        for j = 0, k - 1 do
+            local base = i + 3 + j * 3
+            local key = KEYS[tonumber(ARGV[base])]
+            local field = ARGV[base + 1]
+            if (tonumber(redis.call("hget", key, field) or "0") > 0) then
+                redis.call("hincrby", key, field, -1)
+                if (tonumber(ARGV[base + 2]) > 0) then
+                    redis.call("sadd", dirtyKey, key.."|"..field)
+                end
+            end
+        end
+    end
+    i = i + 3 + k * 3
+end
+return subtracted
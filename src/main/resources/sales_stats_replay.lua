@@ -0,0 +1,10 @@
+-- 死信重放前清除失败标记 重放的消息落库成功后重新计数 已经计数的保持不变
+-- KEYS 订单状态key
+-- ARGV 每两个参数为一组 订单状态key的序号 订单id
+for i = 1, #ARGV, 2 do
+    local markKey = KEYS[tonumber(ARGV[i])]
+    if (redis.call("hget", markKey, ARGV[i + 1]) == "0") then
+        redis.call("hdel", markKey, ARGV[i + 1])
+    end
+end
+return 0
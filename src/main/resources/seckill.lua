@@ -1,27 +1,56 @@
--- 参数列表
-local voucherId = ARGV[1]
-local userId = ARGV[2]
-local orderId = ARGV[3]
+-- 在用户所在的库存分片中下单
+-- KEYS: 分片的库存 已下单用户 优惠券信息 租约中的库存
+-- 同一个分片的key带有{voucherId:分片} hash tag 在cluster中属于同一个slot 用户按userId取模选择分片
+-- ARGV: userId 是否已经从其他分片借到一件库存
+-- 订单消息由调用方在脚本成功后发送 消息队列的分区不在这个slot中
+local userId = ARGV[1]
+local borrowed = ARGV[2] == "1"
 
--- key列表
 -- 库存
-local stockKey = "seckill:stock:"..voucher
+local stockKey = KEYS[1]
 --订单
-local orderKey = "seckill:order:"..voucher
+local orderKey = KEYS[2]
+--优惠券信息
+local voucherKey = KEYS[3]
 
 -- 脚本业务
--- 判断库存是否充足
-if (tonumber(redis.call("get", stockKey)) <= 0) then
-    return 1
+-- 下面用到了TIME 之后还有写命令 需要按命令复制
+redis.replicate_commands()
+local code = 0
+-- 优惠券信息 开始时间 结束时间
+local meta = redis.call("hmget", voucherKey, "begin", "end")
+if (not meta[1]) then
+    -- 优惠券不存在或者还没有写入redis
+    code = 5
+else
+    -- 以redis服务器时间为准 各节点时钟不一致也不影响
+    local time = redis.call("time")
+    local now = tonumber(time[1]) * 1000 + math.floor(tonumber(time[2]) / 1000)
+    if (now < tonumber(meta[1])) then
+        code = 3
+    elseif (now > tonumber(meta[2])) then
+        code = 4
+    -- 判断用户是否下单 订单表按一人一单建模 限购数量limit目前固定为1
+    elseif (redis.call("sismember", orderKey, userId) == 1) then
+        code = 2
+    end
 end
--- 判断用户是否下单
-if (redis.call("get", orderKey) == 1) then
-    return 2
+if (code ~= 0) then
+    if (borrowed) then
+        -- 借到的库存没有用掉 放到本分片
+        redis.call("incrby", stockKey, 1)
+    end
+    return code
+end
+if (not borrowed) then
+    -- 判断库存是否充足 本分片没有库存时由调用方去其他分片借
+    if (tonumber(redis.call("get", stockKey) or "0") <= 0) then
+        return 1
+    end
+    --扣减库存
+    redis.call("incrby", stockKey, -1)
 end
---扣减库存
-redis.call("incrby", stockKey, -1)
 --下单
 redis.call("sadd", orderKey, userId)
---发送消息到队列中
-redis.call("xadd", "stream.order","*", "voucherId", voucherId, "userId",userId, "id", orderId )
-return 0
\ No newline at end of file
+return 0
+-- 返回值 0 成功 1 本分片库存不足 2 重复下单 3 未开始 4 已结束 5 优惠券不存在
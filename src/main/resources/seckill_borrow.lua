@@ -0,0 +1,11 @@
+-- 用户所在的分片没有库存时 从其他分片借一件
+-- KEYS: 被借的分片的库存 已下单用户 优惠券信息 租约中的库存
+-- 借到之后在用户所在的分片下单 中间失败这件库存不在任何分片中 只会少卖 由对账修正
+local stockKey = KEYS[1]
+
+if (tonumber(redis.call("get", stockKey) or "0") <= 0) then
+    return 0
+end
+redis.call("incrby", stockKey, -1)
+return 1
+-- 返回值 1 借到 0 该分片也没有库存
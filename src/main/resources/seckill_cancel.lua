@@ -0,0 +1,19 @@
+-- 取消订单后归还redis中的库存 用户从已下单集合中移除后可以重新抢购
+-- KEYS: 用户所在分片的库存 已下单用户 优惠券信息 租约中的库存
+-- ARGV: 每个参数为一个已取消订单的userId
+-- 只有成功移出已下单集合的用户才归还库存 重复执行不会多还
+local stockKey = KEYS[1]
+local orderKey = KEYS[2]
+
+local returned = 0
+for i = 1, #ARGV do
+    if (redis.call("srem", orderKey, ARGV[i]) == 1) then
+        -- 秒杀结束后库存key已经删除 不再创建
+        if (redis.call("exists", stockKey) == 1) then
+            redis.call("incrby", stockKey, 1)
+            returned = returned + 1
+        end
+    end
+end
+return returned
+-- 返回值 实际归还的库存数
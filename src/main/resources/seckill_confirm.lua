@@ -0,0 +1,60 @@
+-- 批量确认本地租约放行的订单 一人一单 在用户所在的库存分片中执行
+-- KEYS: 分片的库存 已下单用户 优惠券信息 租约中的库存
+-- ARGV: 节点 从其他分片转入的租约数量 之后每个参数为一个userId
+-- 每个订单消耗该节点在本分片的一件租约 租约不够时返回6 由调用方从其他分片转入后重试
+-- 订单消息由调用方在脚本成功后发送
+local orderKey = KEYS[2]
+local voucherKey = KEYS[3]
+local leasedKey = KEYS[4]
+local node = ARGV[1]
+local moved = tonumber(ARGV[2])
+
+local result = {}
+-- 以redis服务器时间判断时间窗口 本地的检查只是预判
+redis.replicate_commands()
+local meta = redis.call("hmget", voucherKey, "begin", "end")
+local code = 0
+if (not meta[1]) then
+    code = 5
+else
+    local time = redis.call("time")
+    local now = tonumber(time[1]) * 1000 + math.floor(tonumber(time[2]) / 1000)
+    if (now < tonumber(meta[1])) then
+        code = 3
+    elseif (now > tonumber(meta[2])) then
+        code = 4
+    end
+end
+if (code ~= 0) then
+    -- 转入的租约仍然属于该节点
+    if (moved > 0) then
+        redis.call("hincrby", leasedKey, node, moved)
+    end
+    for i = 3, #ARGV do
+        result[#result + 1] = code
+    end
+    return result
+end
+
+local available = tonumber(redis.call("hget", leasedKey, node) or "0") + moved
+local confirmed = 0
+for i = 3, #ARGV do
+    local userId = ARGV[i]
+    if (redis.call("sismember", orderKey, userId) == 1) then
+        -- 重复下单
+        result[#result + 1] = 2
+    elseif (confirmed >= available) then
+        -- 本分片的租约不够
+        result[#result + 1] = 6
+    else
+        redis.call("sadd", orderKey, userId)
+        confirmed = confirmed + 1
+        result[#result + 1] = 0
+    end
+end
+-- 下单成功的库存不再属于租约 重复下单的由节点放回本地租约
+if (moved ~= confirmed and redis.call("hincrby", leasedKey, node, moved - confirmed) <= 0) then
+    redis.call("hdel", leasedKey, node)
+end
+return result
+-- 每个订单的结果 0 成功 2 重复下单 3 未开始 4 已结束 5 优惠券不存在 6 本分片的租约不够
@@ -0,0 +1,26 @@
+-- 从一个库存分片中租用一批
+-- seckill:leased:{id:分片}是hash 字段为节点的消费者名 值为该节点租走还没有用掉的库存 确认下单和归还时减少
+-- 节点下线后心跳过期 对账时把它的租约回收到库存中
+-- KEYS: 分片的库存 已下单用户 优惠券信息 租约中的库存
+-- ARGV: 想要租用的数量 节点
+local stockKey = KEYS[1]
+local leasedKey = KEYS[4]
+local want = tonumber(ARGV[1])
+local node = ARGV[2]
+
+local stock = tonumber(redis.call("get", stockKey) or "0")
+local got = math.min(stock, want)
+if (got > 0) then
+    redis.call("incrby", stockKey, -got)
+    redis.call("hincrby", leasedKey, node, got)
+    return got
+end
+-- 本分片没有库存可租 节点还持有本分片的租约时不算售罄
+local leased = redis.call("hvals", leasedKey)
+for i = 1, #leased do
+    if (tonumber(leased[i]) > 0) then
+        return -1
+    end
+end
+return 0
+-- 返回值 租到的数量 0 本分片已经售罄 -1 本分片的库存都在租约中
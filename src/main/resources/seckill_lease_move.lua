@@ -0,0 +1,18 @@
+-- 从一个分片转出节点的租约 之后在用户所在的分片确认时转入
+-- KEYS: 转出分片的库存 已下单用户 优惠券信息 租约中的库存
+-- ARGV: 节点 需要的数量
+-- 转出之后转入之前失败 这部分库存不在任何分片中 只会少卖 由对账修正
+local leasedKey = KEYS[4]
+local node = ARGV[1]
+local want = tonumber(ARGV[2])
+
+local leased = tonumber(redis.call("hget", leasedKey, node) or "0")
+local take = math.min(want, leased)
+if (take <= 0) then
+    return 0
+end
+if (redis.call("hincrby", leasedKey, node, -take) <= 0) then
+    redis.call("hdel", leasedKey, node)
+end
+return take
+-- 返回值 转出的数量
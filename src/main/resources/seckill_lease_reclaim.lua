@@ -0,0 +1,25 @@
+-- 回收已经下线的节点在一个分片中的租约 放回该分片的库存
+-- KEYS: 分片的库存 已下单用户 优惠券信息 租约中的库存
+-- ARGV: 存活节点的消费者名
+local stockKey = KEYS[1]
+local leasedKey = KEYS[4]
+
+local alive = {}
+for i = 1, #ARGV do
+    alive[ARGV[i]] = true
+end
+local reclaimed = 0
+local leases = redis.call("hgetall", leasedKey)
+for i = 1, #leases, 2 do
+    local node = leases[i]
+    if (not alive[node]) then
+        local amount = tonumber(leases[i + 1])
+        if (amount > 0) then
+            redis.call("incrby", stockKey, amount)
+            reclaimed = reclaimed + amount
+        end
+        redis.call("hdel", leasedKey, node)
+    end
+end
+return reclaimed
+-- 返回值 回收的库存数
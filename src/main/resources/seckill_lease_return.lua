@@ -0,0 +1,20 @@
+-- 归还租约中没有用掉的库存
+-- KEYS: 分片的库存 已下单用户 优惠券信息 租约中的库存
+-- ARGV: 归还数量 节点
+-- 最多归还该节点在本分片记录的数量 租约已经被回收时多出的部分不会变成库存
+local stockKey = KEYS[1]
+local leasedKey = KEYS[4]
+local amount = tonumber(ARGV[1])
+local node = ARGV[2]
+
+local leased = tonumber(redis.call("hget", leasedKey, node) or "0")
+local give = math.min(amount, leased)
+if (give <= 0) then
+    return 0
+end
+redis.call("incrby", stockKey, give)
+if (redis.call("hincrby", leasedKey, node, -give) <= 0) then
+    redis.call("hdel", leasedKey, node)
+end
+return give
+-- 返回值 实际归还的数量
@@ -0,0 +1,21 @@
+-- 读取一个库存分片的数量 各分片的库存加各节点租走的库存加已下单人数应该等于总库存
+-- KEYS: 分片的库存 已下单用户 优惠券信息 租约中的库存
+-- ARGV[1] 修正库存的差值 为0时只读取 扣减时不扣成负数
+-- 返回 {剩余库存, 已下单人数, 租约中的库存, 实际修正的差值}
+local stockKey = KEYS[1]
+local orderKey = KEYS[2]
+local leasedKey = KEYS[4]
+local delta = tonumber(ARGV[1])
+
+local stock = tonumber(redis.call("get", stockKey) or "0")
+local sold = redis.call("scard", orderKey)
+local leased = 0
+local leases = redis.call("hvals", leasedKey)
+for i = 1, #leases do
+    leased = leased + tonumber(leases[i])
+end
+local applied = math.max(delta, -stock)
+if (applied ~= 0) then
+    redis.call("set", stockKey, stock + applied)
+end
+return {stock, sold, leased, applied}
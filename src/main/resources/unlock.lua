@@ -1,6 +1,6 @@
 --比较锁标示是否一致
-if (redis.call(get, KEY[1]) == ARG[1]) then
+if (redis.call("get", KEYS[1]) == ARGV[1]) then
     --释放锁
-    return redis.call("del", KEY[1])
+    return redis.call("del", KEYS[1])
 end
-return 0
\ No newline at end of file
+return 0
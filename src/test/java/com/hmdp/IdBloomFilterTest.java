@@ -0,0 +1,79 @@
+package com.hmdp;
+
+import com.hmdp.utils.IdBloomFilter;
+import org.junit.jupiter.api.Test;
+
+import java.util.Arrays;
+
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ * 布隆过滤器本地副本 验证和redis bitmap的位顺序一致 没有漏判 误判率接近配置值
+ */
+class IdBloomFilterTest {
+
+    @Test
+    void loadedBitmapContainsAllIds() {
+        IdBloomFilter filter = new IdBloomFilter("test", 100000, 0.01);
+        IdBloomFilter.Builder builder = filter.builder();
+        for (long id = 1; id <= 100000; id++) {
+            builder.add(id);
+        }
+        filter.load(builder.toBitmap());
+        for (long id = 1; id <= 100000; id++) {
+            assertTrue(filter.mightContain(id));
+        }
+        int falsePositives = 0;
+        for (long id = 100001; id <= 200000; id++) {
+            if (filter.mightContain(id)) {
+                falsePositives++;
+            }
+        }
+        assertTrue(falsePositives < 2000, "误判数 " + falsePositives);
+    }
+
+    @Test
+    void trailingZeroBytesMayBeMissing() {
+        IdBloomFilter filter = new IdBloomFilter("test", 1000, 0.01);
+        long[] offsets = filter.offsets(42);
+        long max = Arrays.stream(offsets).max().getAsLong();
+        //模拟redis SETBIT 第i位在第i/8个字节的高位开始 只保存到最后一个为1的字节
+        byte[] bitmap = new byte[(int) (max / 8) + 1];
+        for (long offset : offsets) {
+            bitmap[(int) (offset / 8)] |= (byte) (0x80 >>> (offset % 8));
+        }
+        filter.load(bitmap);
+        assertTrue(filter.mightContain(42));
+        assertFalse(filter.mightContain(43) && filter.mightContain(44) && filter.mightContain(45));
+    }
+
+    @Test
+    void chunkedLoadMatchesWholeLoad() {
+        IdBloomFilter filter = new IdBloomFilter("test", 10000, 0.01);
+        IdBloomFilter.Builder builder = filter.builder();
+        for (long id = 1; id <= 10000; id++) {
+            builder.add(id);
+        }
+        byte[] bitmap = builder.toBitmap();
+        //分段长度不是8的倍数 最后一段比其他段短
+        IdBloomFilter.Loader loader = filter.loader();
+        for (int start = 0; start < bitmap.length; start += 1000) {
+            loader.append(Arrays.copyOfRange(bitmap, start, Math.min(start + 1000, bitmap.length)));
+        }
+        loader.finish();
+        for (long id = 1; id <= 10000; id++) {
+            assertTrue(filter.mightContain(id));
+        }
+    }
+
+    @Test
+    void addDuringLoadIsKept() {
+        IdBloomFilter filter = new IdBloomFilter("test", 1000, 0.01);
+        assertTrue(filter.mightContain(7), "加载之前不拦截");
+        filter.beginLoad();
+        filter.addLocal(7);
+        filter.load(filter.builder().toBitmap());
+        assertTrue(filter.mightContain(7));
+    }
+}
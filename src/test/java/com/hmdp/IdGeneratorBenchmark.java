@@ -0,0 +1,78 @@
+package com.hmdp;
+
+import com.hmdp.utils.IdGenerator;
+import com.hmdp.utils.RedisIdWorker;
+import com.hmdp.utils.SnowflakeIdGenerator;
+import org.openjdk.jmh.annotations.*;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+import org.springframework.data.redis.connection.RedisStandaloneConfiguration;
+import org.springframework.data.redis.connection.lettuce.LettuceConnectionFactory;
+import org.springframework.data.redis.core.StringRedisTemplate;
+import org.springframework.test.util.ReflectionTestUtils;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * id生成器吞吐对比 需要本地redis
+ * redis: 每个id一次INCR segment: 号段模式 snowflake: 本地雪花算法
+ * 运行main方法 -Dredis.password=xxx 指定redis密码
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Threads(8)
+@Fork(1)
+public class IdGeneratorBenchmark {
+
+    @Param({"redis", "segment", "snowflake"})
+    private String generator;
+
+    private LettuceConnectionFactory connectionFactory;
+    private IdGenerator idGenerator;
+
+    @Setup
+    public void setup() {
+        RedisStandaloneConfiguration configuration = new RedisStandaloneConfiguration("localhost", 6379);
+        configuration.setPassword(System.getProperty("redis.password", "123321"));
+        connectionFactory = new LettuceConnectionFactory(configuration);
+        connectionFactory.afterPropertiesSet();
+        StringRedisTemplate stringRedisTemplate = new StringRedisTemplate(connectionFactory);
+        if ("snowflake".equals(generator)) {
+            SnowflakeIdGenerator snowflake = new SnowflakeIdGenerator(stringRedisTemplate);
+            ReflectionTestUtils.setField(snowflake, "maxBackward", 5000L);
+            snowflake.init();
+            idGenerator = snowflake;
+            return;
+        }
+        RedisIdWorker redisIdWorker = new RedisIdWorker(stringRedisTemplate);
+        if ("segment".equals(generator)) {
+            ReflectionTestUtils.setField(redisIdWorker, "segmentEnabled", true);
+            ReflectionTestUtils.setField(redisIdWorker, "segmentSize", 1000L);
+            ReflectionTestUtils.setField(redisIdWorker, "refillRatio", 0.2);
+        }
+        idGenerator = redisIdWorker;
+    }
+
+    @TearDown
+    public void tearDown() {
+        if (idGenerator instanceof SnowflakeIdGenerator) {
+            ((SnowflakeIdGenerator) idGenerator).destroy();
+        }
+        connectionFactory.destroy();
+    }
+
+    @Benchmark
+    public long nextId() {
+        return idGenerator.nextId("bench");
+    }
+
+    public static void main(String[] args) throws RunnerException {
+        new Runner(new OptionsBuilder()
+                .include(IdGeneratorBenchmark.class.getSimpleName())
+                .build()).run();
+    }
+}
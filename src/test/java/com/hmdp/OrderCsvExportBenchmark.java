@@ -0,0 +1,102 @@
+package com.hmdp;
+
+import com.hmdp.entity.VoucherOrder;
+import com.hmdp.utils.OrderCsvWriter;
+import org.openjdk.jmh.annotations.*;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.time.LocalDateTime;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * 订单导出 流式写入和先加载到list再写入的对比 不需要数据库
+ * 生成的订单逐行交给OrderCsvWriter 与数据库游标的用法相同 输出丢弃 只计算格式化和压缩的开销
+ * 运行main方法 加上-prof gc可以看到每次导出的分配量 流式导出的常驻内存与行数无关
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.SingleShotTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 2)
+@Measurement(iterations = 5)
+@Fork(value = 1, jvmArgs = {"-Xmx256m"})
+public class OrderCsvExportBenchmark {
+
+    @Param({"1000000"})
+    private int rows;
+
+    @Param({"false", "true"})
+    private boolean gzip;
+
+    @Benchmark
+    public long streaming() throws IOException {
+        try (OrderCsvWriter writer = new OrderCsvWriter(new NullOutputStream(), gzip)) {
+            writer.writeAll(() -> generate(rows));
+            return writer.getRows();
+        }
+    }
+
+    /**
+     * 相当于ServiceImpl.list()之后再写入 所有行同时在内存中
+     */
+    @Benchmark
+    public long materialized() throws IOException {
+        List<VoucherOrder> orders = new ArrayList<>();
+        generate(rows).forEachRemaining(orders::add);
+        try (OrderCsvWriter writer = new OrderCsvWriter(new NullOutputStream(), gzip)) {
+            writer.writeAll(orders);
+            return writer.getRows();
+        }
+    }
+
+    /**
+     * 每次返回一个新对象 与游标逐行映射结果一致
+     */
+    private static Iterator<VoucherOrder> generate(int rows) {
+        LocalDateTime base = LocalDateTime.of(2022, 1, 1, 0, 0);
+        return new Iterator<VoucherOrder>() {
+            private int i;
+
+            @Override
+            public boolean hasNext() {
+                return i < rows;
+            }
+
+            @Override
+            public VoucherOrder next() {
+                long n = i++;
+                VoucherOrder order = new VoucherOrder();
+                order.setId((n << 20) + 17);
+                order.setUserId(1000 + n % 500000);
+                order.setVoucherId(10L);
+                order.setPayType(1);
+                order.setStatus(n % 10 == 0 ? 4 : 1);
+                order.setCreateTime(base.plusSeconds(n));
+                order.setUpdateTime(base.plusSeconds(n + 60));
+                return order;
+            }
+        };
+    }
+
+    private static class NullOutputStream extends OutputStream {
+        @Override
+        public void write(int b) {
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) {
+        }
+    }
+
+    public static void main(String[] args) throws RunnerException {
+        new Runner(new OptionsBuilder()
+                .include(OrderCsvExportBenchmark.class.getSimpleName())
+                .build()).run();
+    }
+}
@@ -0,0 +1,69 @@
+package com.hmdp;
+
+import com.hmdp.utils.OrderJournal;
+import org.openjdk.jmh.annotations.*;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+import org.springframework.test.util.ReflectionTestUtils;
+import org.springframework.util.FileSystemUtils;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * 订单日志不同刷盘策略的吞吐对比 不需要redis
+ * ALWAYS: 每条记录刷盘 GROUP: 合并刷盘 NONE: 只写页缓存
+ * 运行main方法 -Djournal.dir=xxx 指定日志目录 默认在临时目录 结果和磁盘类型关系很大
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Threads(16)
+@Fork(1)
+public class OrderJournalBenchmark {
+
+    @Param({"ALWAYS", "GROUP", "NONE"})
+    private OrderJournal.SyncPolicy sync;
+
+    private Path dir;
+    private OrderJournal orderJournal;
+    private final AtomicLong orderId = new AtomicLong();
+
+    @Setup
+    public void setup() throws IOException {
+        String base = System.getProperty("journal.dir");
+        dir = base == null ? Files.createTempDirectory("order-journal")
+                : Files.createTempDirectory(Files.createDirectories(Paths.get(base)), "order-journal");
+        orderJournal = new OrderJournal(null);
+        ReflectionTestUtils.setField(orderJournal, "enabled", true);
+        ReflectionTestUtils.setField(orderJournal, "dir", dir.toString());
+        ReflectionTestUtils.setField(orderJournal, "sync", sync);
+        ReflectionTestUtils.setField(orderJournal, "segmentSize", 64 * 1024 * 1024);
+        orderJournal.init();
+    }
+
+    @TearDown
+    public void tearDown() throws IOException {
+        orderJournal.destroy();
+        FileSystemUtils.deleteRecursively(dir);
+    }
+
+    @Benchmark
+    public void append() throws IOException {
+        long id = orderId.incrementAndGet();
+        orderJournal.append(id, id, 1L);
+    }
+
+    public static void main(String[] args) throws RunnerException {
+        new Runner(new OptionsBuilder()
+                .include(OrderJournalBenchmark.class.getSimpleName())
+                .build()).run();
+    }
+}
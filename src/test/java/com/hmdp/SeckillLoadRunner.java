@@ -0,0 +1,172 @@
+package com.hmdp;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * 同步和异步秒杀接口的并发压测 需要启动服务 不由surefire执行
+ * 每个并发一个线程 一个keep-alive连接 持续发送请求 统计吞吐 延迟分位数和失败数
+ * 服务端用较小的tomcat线程数启动更容易看出差别 例如
+ * --server.tomcat.threads.max=20 --hmdp.rate-limit.enabled=false
+ * 运行main方法
+ * -Dmode=sync|async 默认依次压测两个接口
+ * -Dbase.url=http://localhost:8081 -Dvoucher.id=优惠券id
+ * -Dtokens=登录token文件 每行一个 按线程轮流使用 -Dconcurrency=并发数 -Dduration=秒
+ */
+public class SeckillLoadRunner {
+
+    /**
+     * 延迟直方图 每个桶1毫秒 超过的计入最后一个桶
+     */
+    private static final int MAX_LATENCY_MILLIS = 10000;
+
+    private final String url;
+    private final List<String> tokens;
+    private final int concurrency;
+    private final long durationMillis;
+    private final int timeoutMillis;
+
+    private final LongAdder ok = new LongAdder();
+    private final LongAdder rejected = new LongAdder();
+    private final LongAdder serverErrors = new LongAdder();
+    private final LongAdder ioErrors = new LongAdder();
+    private final AtomicInteger inflight = new AtomicInteger();
+    private final AtomicInteger maxInflight = new AtomicInteger();
+    private final AtomicLongArray histogram = new AtomicLongArray(MAX_LATENCY_MILLIS + 1);
+
+    SeckillLoadRunner(String url, List<String> tokens, int concurrency, long durationMillis, int timeoutMillis) {
+        this.url = url;
+        this.tokens = tokens;
+        this.concurrency = concurrency;
+        this.durationMillis = durationMillis;
+        this.timeoutMillis = timeoutMillis;
+    }
+
+    public static void main(String[] args) throws Exception {
+        String baseUrl = System.getProperty("base.url", "http://localhost:8081");
+        String voucherId = System.getProperty("voucher.id", "10");
+        String tokenFile = System.getProperty("tokens");
+        List<String> tokens = tokenFile == null ? Collections.singletonList(System.getProperty("token", ""))
+                : Files.readAllLines(Paths.get(tokenFile), StandardCharsets.UTF_8);
+        int concurrency = Integer.getInteger("concurrency", 500);
+        long duration = TimeUnit.SECONDS.toMillis(Integer.getInteger("duration", 30));
+        int timeout = Integer.getInteger("timeout", 5000);
+        String mode = System.getProperty("mode");
+        List<String> modes = new ArrayList<>();
+        if (mode == null || "sync".equals(mode)) {
+            modes.add("sync");
+        }
+        if (mode == null || "async".equals(mode)) {
+            modes.add("async");
+        }
+        for (String m : modes) {
+            String url = baseUrl + "/voucher-order/seckill/" + voucherId + ("async".equals(m) ? "/async" : "");
+            SeckillLoadRunner runner = new SeckillLoadRunner(url, tokens, concurrency, duration, timeout);
+            runner.run();
+            runner.report(m);
+        }
+    }
+
+    void run() throws InterruptedException {
+        long deadline = System.currentTimeMillis() + durationMillis;
+        ExecutorService executor = Executors.newFixedThreadPool(concurrency);
+        CountDownLatch done = new CountDownLatch(concurrency);
+        for (int i = 0; i < concurrency; i++) {
+            String token = tokens.get(i % tokens.size());
+            executor.execute(() -> {
+                try {
+                    while (System.currentTimeMillis() < deadline) {
+                        request(token);
+                    }
+                } finally {
+                    done.countDown();
+                }
+            });
+        }
+        done.await();
+        executor.shutdown();
+    }
+
+    private void request(String token) {
+        long begin = System.nanoTime();
+        int current = inflight.incrementAndGet();
+        maxInflight.accumulateAndGet(current, Math::max);
+        try {
+            HttpURLConnection connection = (HttpURLConnection) new URL(url).openConnection();
+            connection.setRequestMethod("POST");
+            connection.setConnectTimeout(timeoutMillis);
+            connection.setReadTimeout(timeoutMillis);
+            connection.setRequestProperty("Authorization", token);
+            connection.setDoOutput(true);
+            try (OutputStream out = connection.getOutputStream()) {
+                out.flush();
+            }
+            int status = connection.getResponseCode();
+            //读完响应体 连接才能复用
+            try (InputStream in = status < 400 ? connection.getInputStream() : connection.getErrorStream()) {
+                drain(in);
+            }
+            if (status == 200) {
+                ok.increment();
+            } else if (status == 429 || status == 503) {
+                rejected.increment();
+            } else {
+                serverErrors.increment();
+            }
+        } catch (IOException e) {
+            //连接超时 读超时 连接被拒绝
+            ioErrors.increment();
+        } finally {
+            inflight.decrementAndGet();
+            long millis = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - begin);
+            histogram.incrementAndGet((int) Math.min(millis, MAX_LATENCY_MILLIS));
+        }
+    }
+
+    private static void drain(InputStream in) throws IOException {
+        if (in == null) {
+            return;
+        }
+        byte[] buffer = new byte[1024];
+        while (in.read(buffer) >= 0) {
+            // 丢弃
+        }
+    }
+
+    void report(String mode) {
+        long total = ok.sum() + rejected.sum() + serverErrors.sum() + ioErrors.sum();
+        System.out.printf("%-5s concurrency=%d requests=%d throughput=%.0f/s ok=%d rejected=%d serverErrors=%d "
+                        + "ioErrors=%d maxInflight=%d p50=%dms p99=%dms p999=%dms max=%dms%n",
+                mode, concurrency, total, total * 1000.0 / durationMillis, ok.sum(), rejected.sum(),
+                serverErrors.sum(), ioErrors.sum(), maxInflight.get(),
+                percentile(total, 0.5), percentile(total, 0.99), percentile(total, 0.999), percentile(total, 1));
+    }
+
+    private long percentile(long total, double p) {
+        long target = (long) Math.ceil(total * p);
+        long seen = 0;
+        for (int i = 0; i <= MAX_LATENCY_MILLIS; i++) {
+            seen += histogram.get(i);
+            if (seen >= target && seen > 0) {
+                return i;
+            }
+        }
+        return MAX_LATENCY_MILLIS;
+    }
+}
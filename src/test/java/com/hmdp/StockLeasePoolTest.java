@@ -0,0 +1,281 @@
+package com.hmdp;
+
+import com.hmdp.utils.StockLeasePool;
+import org.junit.jupiter.api.Test;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ * 本地库存租约压测 多个节点并发抢购同一张券 验证不超卖 一人一单 剩余库存全部归还
+ * 中心库存按seckill_lease.lua seckill_confirm.lua seckill_lease_return.lua seckill_lease_reclaim.lua的逻辑模拟
+ */
+class StockLeasePoolTest {
+
+    private static final Long VOUCHER_ID = 1L;
+
+    @Test
+    void noOversellWhenDemandExceedsStock() throws Exception {
+        Result result = stress(10000, 30000, 4, 200, 64);
+        assertEquals(10000, result.orders);
+        assertEquals(0, result.centralStock);
+        assertTrue(result.minCentralStock >= 0);
+    }
+
+    @Test
+    void unusedLeaseReturnedWhenDemandBelowStock() throws Exception {
+        Result result = stress(10000, 3000, 4, 200, 64);
+        assertEquals(3000, result.orders);
+        assertEquals(7000, result.centralStock);
+        assertTrue(result.minCentralStock >= 0);
+    }
+
+    @Test
+    void duplicateInSameBatchReleasedToLocal() {
+        CentralStock central = new CentralStock(10);
+        StockLeasePool pool = new StockLeasePool(central.node("a"), 5);
+        for (int i = 0; i < 3; i++) {
+            assertTrue(pool.tryAcquire(VOUCHER_ID));
+        }
+        int[] codes = pool.confirm(VOUCHER_ID, list(1L, 1L, 2L), list(11L, 12L, 13L));
+        assertArrayEquals(new int[]{StockLeasePool.CONFIRMED, 2, StockLeasePool.CONFIRMED}, codes);
+        //重复下单的库存放回本地 租约只消耗了成功的两件
+        assertEquals(3, pool.remaining(VOUCHER_ID));
+        assertEquals(3, central.leased("a"));
+        assertEquals(2, central.sold());
+        central.assertBalanced();
+    }
+
+    @Test
+    void deadNodeLeaseReclaimedAndZombieRejected() {
+        CentralStock central = new CentralStock(100);
+        StockLeasePool dead = new StockLeasePool(central.node("a"), 40);
+        StockLeasePool alive = new StockLeasePool(central.node("b"), 40);
+        assertEquals(40, dead.prefetch(VOUCHER_ID));
+        assertTrue(dead.tryAcquire(VOUCHER_ID));
+        //节点a异常退出 没有归还租约 心跳过期后被回收
+        assertEquals(40, central.reclaim(Collections.singleton("b")));
+        assertEquals(100, central.stock);
+        central.assertBalanced();
+
+        long userId = 1;
+        while (alive.tryAcquire(VOUCHER_ID)) {
+            assertArrayEquals(new int[]{StockLeasePool.CONFIRMED},
+                    alive.confirm(VOUCHER_ID, list(userId), list(userId)));
+            userId++;
+        }
+        assertEquals(100, central.sold());
+
+        //节点a恢复后用已经被回收的库存确认 不能超卖 本地库存作废
+        assertArrayEquals(new int[]{StockLeasePool.LEASE_LOST},
+                dead.confirm(VOUCHER_ID, list(userId), list(userId)));
+        assertEquals(0, dead.remaining(VOUCHER_ID));
+        assertFalse(dead.tryAcquire(VOUCHER_ID));
+        assertEquals(100, central.sold());
+        assertEquals(0, central.stock);
+        central.assertBalanced();
+    }
+
+    /**
+     * @param stock 中心库存
+     * @param users 参与抢购的用户数 每个用户请求两次 模拟重复下单
+     * @param nodes 节点数 每个节点一个租约池
+     * @param chunk 每次租用的数量
+     * @param threads 并发线程数
+     */
+    private Result stress(int stock, int users, int nodes, int chunk, int threads) throws Exception {
+        CentralStock centralStock = new CentralStock(stock);
+        List<StockLeasePool> pools = new ArrayList<>(nodes);
+        for (int i = 0; i < nodes; i++) {
+            pools.add(new StockLeasePool(centralStock.node("node" + i), chunk));
+        }
+        AtomicInteger orders = new AtomicInteger();
+
+        ExecutorService executor = Executors.newFixedThreadPool(threads);
+        CountDownLatch start = new CountDownLatch(1);
+        CountDownLatch done = new CountDownLatch(users * 2);
+        for (int i = 0; i < users * 2; i++) {
+            long userId = i % users;
+            executor.execute(() -> {
+                try {
+                    start.await();
+                    ThreadLocalRandom random = ThreadLocalRandom.current();
+                    StockLeasePool pool = pools.get(random.nextInt(nodes));
+                    if (!pool.tryAcquire(VOUCHER_ID)) {
+                        return;
+                    }
+                    //确认时去重 重复的库存放回本地
+                    int[] codes = pool.confirm(VOUCHER_ID, list(userId), list(userId));
+                    if (codes[0] == StockLeasePool.CONFIRMED) {
+                        orders.incrementAndGet();
+                    }
+                    //偶尔模拟租约空闲归还
+                    if (random.nextInt(1000) == 0) {
+                        pool.returnAll(VOUCHER_ID);
+                    }
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                } finally {
+                    done.countDown();
+                }
+            });
+        }
+        start.countDown();
+        assertTrue(done.await(60, TimeUnit.SECONDS));
+        executor.shutdown();
+        //活动结束 所有节点归还剩余库存
+        for (StockLeasePool pool : pools) {
+            pool.returnAll(VOUCHER_ID);
+        }
+        assertEquals(centralStock.sold(), orders.get());
+        centralStock.assertBalanced();
+        assertEquals(0, centralStock.totalLeased());
+        return new Result(orders.get(), centralStock.stock, centralStock.min);
+    }
+
+    private static List<Long> list(Long... values) {
+        List<Long> list = new ArrayList<>(values.length);
+        Collections.addAll(list, values);
+        return list;
+    }
+
+    /**
+     * 模拟redis中的库存 seckill:order:{id}和按节点记录的seckill:leased:{id} 每个方法相当于一次lua脚本
+     */
+    private static class CentralStock {
+        private final int total;
+        private int stock;
+        private int min;
+        private final Set<Long> ordered = new HashSet<>();
+        private final Map<String, Integer> leased = new HashMap<>();
+
+        private CentralStock(int stock) {
+            this.total = stock;
+            this.stock = stock;
+            this.min = stock;
+        }
+
+        private StockLeasePool.StockSource node(String node) {
+            return new StockLeasePool.StockSource() {
+                @Override
+                public int lease(Long voucherId, int amount) {
+                    synchronized (CentralStock.this) {
+                        int take = Math.min(stock, amount);
+                        if (take <= 0) {
+                            return 0;
+                        }
+                        stock -= take;
+                        min = Math.min(min, stock);
+                        leased.merge(node, take, Integer::sum);
+                        return take;
+                    }
+                }
+
+                @Override
+                public void giveBack(Long voucherId, int amount) {
+                    synchronized (CentralStock.this) {
+                        int give = Math.min(amount, leased.getOrDefault(node, 0));
+                        if (give > 0) {
+                            stock += give;
+                            addLeased(node, -give);
+                        }
+                    }
+                }
+
+                @Override
+                public int[] confirm(Long voucherId, List<Long> userIds, List<Long> orderIds) {
+                    synchronized (CentralStock.this) {
+                        int available = leased.getOrDefault(node, 0);
+                        int confirmed = 0;
+                        int[] codes = new int[userIds.size()];
+                        for (int i = 0; i < codes.length; i++) {
+                            if (ordered.contains(userIds.get(i))) {
+                                codes[i] = 2;
+                            } else if (confirmed >= available) {
+                                codes[i] = StockLeasePool.LEASE_LOST;
+                            } else {
+                                ordered.add(userIds.get(i));
+                                confirmed++;
+                                codes[i] = StockLeasePool.CONFIRMED;
+                            }
+                        }
+                        addLeased(node, -confirmed);
+                        return codes;
+                    }
+                }
+            };
+        }
+
+        private void addLeased(String node, int delta) {
+            if (leased.merge(node, delta, Integer::sum) <= 0) {
+                leased.remove(node);
+            }
+        }
+
+        /**
+         * 回收不在存活节点中的租约
+         */
+        private synchronized int reclaim(Set<String> alive) {
+            int reclaimed = 0;
+            for (String node : new ArrayList<>(leased.keySet())) {
+                if (!alive.contains(node)) {
+                    int amount = leased.remove(node);
+                    stock += amount;
+                    reclaimed += amount;
+                }
+            }
+            return reclaimed;
+        }
+
+        private synchronized int leased(String node) {
+            return leased.getOrDefault(node, 0);
+        }
+
+        private synchronized int totalLeased() {
+            int sum = 0;
+            for (int amount : leased.values()) {
+                sum += amount;
+            }
+            return sum;
+        }
+
+        private synchronized int sold() {
+            return ordered.size();
+        }
+
+        /**
+         * 与seckill_reconcile.lua相同 总库存等于库存加租约中的库存加已下单人数
+         */
+        private synchronized void assertBalanced() {
+            assertEquals(total, stock + totalLeased() + ordered.size());
+        }
+    }
+
+    private static class Result {
+        private final int orders;
+        private final int centralStock;
+        private final int minCentralStock;
+
+        private Result(int orders, int centralStock, int minCentralStock) {
+            this.orders = orders;
+            this.centralStock = centralStock;
+            this.minCentralStock = minCentralStock;
+        }
+    }
+}